@@ -18,9 +18,12 @@ LOCAL_SRC_FILES := \
         feature_mos/src/mosaic/AlignFeatures.cpp \
         feature_mos/src/mosaic/Blend.cpp \
         feature_mos/src/mosaic/Delaunay.cpp \
+        feature_mos/src/mosaic/FrameIngest.cpp \
+        feature_mos/src/mosaic/FrameStore.cpp \
         feature_mos/src/mosaic/ImageUtils.cpp \
         feature_mos/src/mosaic/Mosaic.cpp \
         feature_mos/src/mosaic/Pyramid.cpp \
+        feature_mos/src/mosaic/WorkerPool.cpp \
         feature_mos/src/mosaic_renderer/Renderer.cpp \
         feature_mos/src/mosaic_renderer/WarpRenderer.cpp \
         feature_mos/src/mosaic_renderer/SurfaceTextureRenderer.cpp \
@@ -37,6 +40,7 @@ LOCAL_SRC_FILES := \
         feature_stab/db_vlvm/db_utilities_linalg.cpp \
         feature_stab/db_vlvm/db_utilities_poly.cpp \
         feature_stab/src/dbreg/dbreg.cpp \
+        feature_stab/src/dbreg/dbstagetimer.cpp \
         feature_stab/src/dbreg/dbstabsmooth.cpp \
         feature_stab/src/dbreg/vp_motionmodel.c
 
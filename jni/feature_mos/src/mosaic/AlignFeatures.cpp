@@ -30,7 +30,23 @@
 
 #define LOG_TAG "AlignFeatures"
 
-Align::Align()
+// Runs a part of a dbreg job on a WorkerPool thread.
+class RegJob : public WorkerPool::Job
+{
+public:
+  RegJob(db_Parallel::Job *job) : m_job(job) {}
+  void run(int part) { m_job->Run(part); }
+private:
+  db_Parallel::Job *m_job;
+};
+
+void Align::RegWorkers::Run(Job *job, int parts)
+{
+  RegJob regJob(job);
+  m_workers.run(&regJob, parts);
+}
+
+Align::Align() : m_RegWorkers(m_Workers)
 {
   width = height = 0;
   frame_number = 0;
@@ -38,15 +54,22 @@ Align::Align()
   reference_frame_index = 0;
   db_Identity3x3(Hcurr);
   db_Identity3x3(Hprev);
+  m_Workers.start(WorkerPool::getCpuCount());
+  reg.SetParallel(&m_RegWorkers);
 }
 
 Align::~Align()
 {
   // Free gray-scale image
-  if (imageGray != ImageUtils::IMAGE_TYPE_NOIMAGE)
+  if (imageGray != (ImageType) ImageUtils::IMAGE_TYPE_NOIMAGE)
     ImageUtils::freeImage(imageGray);
 }
 
+int Align::setThreadCount(int threads)
+{
+  return m_Workers.start(threads < 1 ? 1 : threads);
+}
+
 char* Align::getRegProfileString()
 {
   return reg.profile_string;
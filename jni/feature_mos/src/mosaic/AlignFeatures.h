@@ -28,6 +28,7 @@
 
 #include "ImageUtils.h"
 #include "MatrixUtils.h"
+#include "WorkerPool.h"
 
 #if __cplusplus < 201103L && !defined(__GXX_EXPERIMENTAL_CXX0X__) && !defined(constexpr)
 #define constexpr const
@@ -64,6 +65,17 @@ public:
   // Initialization of structures, etc.
   int initialize(int width, int height, bool quarter_res, float thresh_still);
 
+  // Detects and matches the corners on this many threads, the online cores
+  // by default. The alignment does not depend on it.
+  int setThreadCount(int threads);
+
+  // Lets the robust homography stop drawing hypotheses once one made of
+  // inliers only was drawn with this probability; 0, the default, draws
+  // all of them.
+  void setHomographyConfidence(double confidence) {
+    reg.SetHomographyConfidence(confidence);
+  }
+
   // Add a frame.  Note: The alignment computation is performed
   // in this function
   int addFrameRGB(ImageType image);
@@ -75,8 +87,21 @@ public:
 
 protected:
 
+  // Runs the parts of the corner detection and matching on a WorkerPool.
+  class RegWorkers : public db_Parallel {
+  public:
+    RegWorkers(WorkerPool &workers) : m_workers(workers) {}
+    int GetThreadCount() { return m_workers.getThreadCount(); }
+    void Run(Job *job, int parts);
+  private:
+    WorkerPool &m_workers;
+  };
+
   db_FrameToReferenceRegistration reg;
 
+  WorkerPool m_Workers;
+  RegWorkers m_RegWorkers;
+
   int frame_number;
 
   double Hcurr[9];   // Homography from the alignment reference to the frame-t
@@ -25,20 +25,110 @@
 
 #include "Geometry.h"
 #include "trsMatrix.h"
+#include "dbstagetimer.h"
 
 #include "Log.h"
 #define LOG_TAG "BLEND"
 
+// Builds the frame pyramids of consecutive sites, one per slot.
+class Blend::FramePyramidJob : public WorkerPool::Job
+{
+public:
+    FramePyramidJob(Blend *blend, CSite *first) :
+        m_blend(blend), m_first(first), m_failed(false) {}
+
+    virtual void run(int slot)
+    {
+        if (m_blend->FillFramePyramid(m_first[slot].getMb(), slot) != BLEND_RET_OK)
+            m_failed = true;
+    }
+
+    bool failed() { return m_failed; }
+
+private:
+    Blend *m_blend;
+    CSite *m_first;
+    volatile bool m_failed;
+};
+
+// Projects one pyramid level of a frame into the mosaic, by bands of rows.
+class Blend::LevelJob : public WorkerPool::Job
+{
+public:
+    LevelJob(Blend *blend, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect,
+            YUVinfo &imgMos, double inv_trs[3][3], int site_idx, int slot, int parts) :
+        dscale(0), m_blend(blend), m_vcrect(vcrect), m_brect(brect), m_rect(rect),
+        m_imgMos(imgMos), m_inv_trs(inv_trs), m_site_idx(site_idx), m_slot(slot),
+        m_parts(parts) {}
+
+    virtual void run(int part)
+    {
+        m_blend->ProcessPyramidLevel(m_vcrect, m_brect, m_rect, m_imgMos, m_inv_trs,
+                m_site_idx, m_slot, dscale, part, m_parts);
+    }
+
+    int dscale;
+
+private:
+    Blend *m_blend;
+    BlendRect &m_vcrect;
+    BlendRect &m_brect;
+    MosaicRect &m_rect;
+    YUVinfo &m_imgMos;
+    double (*m_inv_trs)[3];
+    int m_site_idx;
+    int m_slot;
+    int m_parts;
+};
+
 Blend::Blend()
 {
   m_wb.blendingType = BLEND_TYPE_NONE;
+  for (int i = 0; i < WorkerPool::MAX_THREADS; i++)
+  {
+      m_pFrameYPyr[i] = m_pFrameUPyr[i] = m_pFrameVPyr[i] = NULL;
+  }
+  m_Workers.start(WorkerPool::getCpuCount());
 }
 
 Blend::~Blend()
 {
-    if (m_pFrameVPyr) free(m_pFrameVPyr);
-    if (m_pFrameUPyr) free(m_pFrameUPyr);
-    if (m_pFrameYPyr) free(m_pFrameYPyr);
+    FreeFramePyramids();
+}
+
+int Blend::setThreadCount(int threads)
+{
+    return m_Workers.start(threads < 1 ? 1 : threads);
+}
+
+int Blend::AllocateFramePyramids(int slots)
+{
+    for (int i = 0; i < slots; i++)
+    {
+        if (m_pFrameYPyr[i]) continue;
+
+        m_pFrameYPyr[i] = PyramidShort::allocatePyramidPacked(m_wb.nlevs, (unsigned short) width, (unsigned short) height, BORDER);
+        m_pFrameUPyr[i] = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) (width), (unsigned short) (height), BORDER);
+        m_pFrameVPyr[i] = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) (width), (unsigned short) (height), BORDER);
+
+        if (!m_pFrameYPyr[i] || !m_pFrameUPyr[i] || !m_pFrameVPyr[i])
+        {
+            LOGE("Error: Could not allocate pyramids for blending");
+            return BLEND_RET_ERROR_MEMORY;
+        }
+    }
+    return BLEND_RET_OK;
+}
+
+void Blend::FreeFramePyramids()
+{
+    for (int i = 0; i < WorkerPool::MAX_THREADS; i++)
+    {
+        if (m_pFrameVPyr[i]) free(m_pFrameVPyr[i]);
+        if (m_pFrameUPyr[i]) free(m_pFrameUPyr[i]);
+        if (m_pFrameYPyr[i]) free(m_pFrameYPyr[i]);
+        m_pFrameYPyr[i] = m_pFrameUPyr[i] = m_pFrameVPyr[i] = NULL;
+    }
 }
 
 int Blend::initialize(int blendingType, int stripType, int frame_width, int frame_height)
@@ -57,21 +147,9 @@ int Blend::initialize(int blendingType, int stripType, int frame_width, int fram
 
     m_wb.roundoffOverlap = 1.5;
 
-    m_pFrameYPyr = NULL;
-    m_pFrameUPyr = NULL;
-    m_pFrameVPyr = NULL;
-
-    m_pFrameYPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevs, (unsigned short) width, (unsigned short) height, BORDER);
-    m_pFrameUPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) (width), (unsigned short) (height), BORDER);
-    m_pFrameVPyr = PyramidShort::allocatePyramidPacked(m_wb.nlevsC, (unsigned short) (width), (unsigned short) (height), BORDER);
-
-    if (!m_pFrameYPyr || !m_pFrameUPyr || !m_pFrameVPyr)
-    {
-        LOGE("Error: Could not allocate pyramids for blending");
-        return BLEND_RET_ERROR_MEMORY;
-    }
-
-    return BLEND_RET_OK;
+    // The pyramids of the other threads are allocated when blending starts.
+    FreeFramePyramids();
+    return AllocateFramePyramids(1);
 }
 
 inline double max(double a, double b) { return a > b ? a : b; }
@@ -261,9 +339,11 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
     memset(imgMos->V.ptr[0], 128, (imgMos->V.width * imgMos->V.height) << 1);
 
     // Do the triangulation.  It returns a sorted list of edges
+    db_StageTimer sites(db_StageTimer::Sites);
     SEdgeVector *edge;
     int n = m_Triangulator.triangulate(&edge, numCenters, width, height);
     m_Triangulator.linkNeighbors(edge, n, numCenters);
+    sites.Stop();
 
     // Bounding rectangle that determines the positioning of the rectangle that is
     // cropped out of the computed mosaic to get rid of the gray borders.
@@ -285,7 +365,10 @@ int Blend::runBlend(MosaicFrame **oframes, MosaicFrame **rframes,
             cropping_rect, progress, cancelComputation);
 
     if (m_wb.blendingType == BLEND_TYPE_HORZ)
+    {
+        db_StageTimer timer(db_StageTimer::Cropping);
         CropFinalMosaic(*imgMos, cropping_rect);
+    }
 
 
     m_Triangulator.freeMemory();    // note: can be called even if delaunay_alloc() wasn't successful
@@ -328,8 +411,12 @@ int Blend::MosaicSizeCheck(float sizeMultiplier, float heightMultiplier) {
    return BLEND_RET_OK;
 }
 
-int Blend::FillFramePyramid(MosaicFrame *mb)
+int Blend::FillFramePyramid(MosaicFrame *mb, int slot)
 {
+    PyramidShort *pFrameYPyr = m_pFrameYPyr[slot];
+    PyramidShort *pFrameUPyr = m_pFrameUPyr[slot];
+    PyramidShort *pFrameVPyr = m_pFrameVPyr[slot];
+
     ImageType mbY, mbU, mbV;
     // Lay this image, centered into the temporary buffer
     mbY = mb->image;
@@ -340,9 +427,9 @@ int Blend::FillFramePyramid(MosaicFrame *mb)
 
     for(h=0; h<height; h++)
     {
-        ImageTypeShort yptr = m_pFrameYPyr->ptr[h];
-        ImageTypeShort uptr = m_pFrameUPyr->ptr[h];
-        ImageTypeShort vptr = m_pFrameVPyr->ptr[h];
+        ImageTypeShort yptr = pFrameYPyr->ptr[h];
+        ImageTypeShort uptr = pFrameUPyr->ptr[h];
+        ImageTypeShort vptr = pFrameVPyr->ptr[h];
 
         for(w=0; w<width; w++)
         {
@@ -353,14 +440,14 @@ int Blend::FillFramePyramid(MosaicFrame *mb)
     }
 
     // Spread the image through the border
-    PyramidShort::BorderSpread(m_pFrameYPyr, BORDER, BORDER, BORDER, BORDER);
-    PyramidShort::BorderSpread(m_pFrameUPyr, BORDER, BORDER, BORDER, BORDER);
-    PyramidShort::BorderSpread(m_pFrameVPyr, BORDER, BORDER, BORDER, BORDER);
+    PyramidShort::BorderSpread(pFrameYPyr, BORDER, BORDER, BORDER, BORDER);
+    PyramidShort::BorderSpread(pFrameUPyr, BORDER, BORDER, BORDER, BORDER);
+    PyramidShort::BorderSpread(pFrameVPyr, BORDER, BORDER, BORDER, BORDER);
 
     // Generate Laplacian pyramids
-    if (!PyramidShort::BorderReduce(m_pFrameYPyr, m_wb.nlevs) || !PyramidShort::BorderExpand(m_pFrameYPyr, m_wb.nlevs, -1) ||
-            !PyramidShort::BorderReduce(m_pFrameUPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(m_pFrameUPyr, m_wb.nlevsC, -1) ||
-            !PyramidShort::BorderReduce(m_pFrameVPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(m_pFrameVPyr, m_wb.nlevsC, -1))
+    if (!PyramidShort::BorderReduce(pFrameYPyr, m_wb.nlevs) || !PyramidShort::BorderExpand(pFrameYPyr, m_wb.nlevs, -1) ||
+            !PyramidShort::BorderReduce(pFrameUPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(pFrameUPyr, m_wb.nlevsC, -1) ||
+            !PyramidShort::BorderReduce(pFrameVPyr, m_wb.nlevsC) || !PyramidShort::BorderExpand(pFrameVPyr, m_wb.nlevsC, -1))
     {
         LOGE("Error: Could not generate Laplacian pyramids");
         return BLEND_RET_ERROR;
@@ -394,6 +481,7 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
     int site_idx;
 
     // First go through each frame and for each mosaic pixel determine which frame it should come from
+    db_StageTimer sites(db_StageTimer::Sites);
     site_idx = 0;
     for(CSite *csite = m_AllSites; csite < esite; csite++)
     {
@@ -549,10 +637,24 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
         }
 
     }
+    sites.Stop();
+
+    // Now perform the actual blending using the frame assignment determined above.
+    // The pyramids of as many frames as there are threads are built at the same
+    // time. The frames are then projected into the mosaic one after the other, in
+    // the same order as with a single thread, since where they overlap the later
+    // ones overwrite or add to the earlier ones.
+    int slots = m_Workers.getThreadCount();
+    if (AllocateFramePyramids(slots) != BLEND_RET_OK)
+    {
+        if (m_pMosaicVPyr) free(m_pMosaicVPyr);
+        if (m_pMosaicUPyr) free(m_pMosaicUPyr);
+        if (m_pMosaicYPyr) free(m_pMosaicYPyr);
+        return BLEND_RET_ERROR_MEMORY;
+    }
 
-    // Now perform the actual blending using the frame assignment determined above
     site_idx = 0;
-    for(CSite *csite = m_AllSites; csite < esite; csite++)
+    for(CSite *csite = m_AllSites; csite < esite; csite += slots)
     {
         if(cancelComputation)
         {
@@ -562,22 +664,33 @@ int Blend::DoMergeAndBlend(MosaicFrame **frames, int nsite,
             return BLEND_RET_CANCELLED;
         }
 
-        mb = csite->getMb();
-
+        int count = (esite - csite < slots) ? (int) (esite - csite) : slots;
 
-        if(FillFramePyramid(mb)!=BLEND_RET_OK)
+        db_StageTimer pyramid(db_StageTimer::Pyramid);
+        FramePyramidJob job(this, csite);
+        m_Workers.run(&job, count);
+        if (job.failed())
             return BLEND_RET_ERROR;
+        pyramid.Stop();
+
+        db_StageTimer blending(db_StageTimer::Blending);
+        for (int slot = 0; slot < count; slot++)
+        {
+            mb = csite[slot].getMb();
 
-        ProcessPyramidForThisFrame(csite, mb->vcrect, mb->brect, rect, imgMos, mb->trs, site_idx);
+            ProcessPyramidForThisFrame(csite + slot, mb->vcrect, mb->brect, rect, imgMos, mb->trs, site_idx, slot);
 
-        progress += TIME_PERCENT_BLEND/nsite;
+            progress += TIME_PERCENT_BLEND/nsite;
 
-        site_idx++;
+            site_idx++;
+        }
     }
 
 
     // Blend
+    db_StageTimer blending(db_StageTimer::Blending);
     PerformFinalBlending(imgMos, cropping_rect);
+    blending.Stop();
 
     if (cropping_rect.Width() <= 0 || cropping_rect.Height() <= 0)
     {
@@ -887,182 +1000,194 @@ void Blend::ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, Mosai
     }
 }
 
-void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx)
+void Blend::ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx, int slot)
 {
     // Put the Region of interest (for all levels) into m_pMosaicYPyr
     double inv_trs[3][3];
     inv33d(trs, inv_trs);
 
-    // Process each pyramid level
-    PyramidShort *sptr = m_pFrameYPyr;
-    PyramidShort *suptr = m_pFrameUPyr;
-    PyramidShort *svptr = m_pFrameVPyr;
+    // Process each pyramid level. The rows of a level are independent, but a
+    // level reads the mask that the finer ones may have cleared.
+    LevelJob job(this, vcrect, brect, rect, imgMos, inv_trs, site_idx, slot,
+            m_Workers.getThreadCount());
+    for (job.dscale = 0; job.dscale < m_wb.nlevs; job.dscale++)
+    {
+        m_Workers.run(&job, m_Workers.getThreadCount());
+    }
+}
+
+void Blend::ProcessPyramidLevel(BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double inv_trs[3][3], int site_idx, int slot, int dscale, int part, int parts)
+{
+    // dscale is the distance scale for the current level
+    PyramidShort *sptr = m_pFrameYPyr[slot] + dscale;
+    PyramidShort *suptr = m_pFrameUPyr[slot] + dscale;
+    PyramidShort *svptr = m_pFrameVPyr[slot] + dscale;
 
-    PyramidShort *dptr = m_pMosaicYPyr;
-    PyramidShort *duptr = m_pMosaicUPyr;
-    PyramidShort *dvptr = m_pMosaicVPyr;
+    PyramidShort *dptr = m_pMosaicYPyr + dscale;
+    PyramidShort *duptr = m_pMosaicUPyr + dscale;
+    PyramidShort *dvptr = m_pMosaicVPyr + dscale;
 
-    int dscale = 0; // distance scale for the current level
-    int nC = m_wb.nlevsC;
-    for (int n = m_wb.nlevs; n--; dscale++, dptr++, sptr++, dvptr++, duptr++, svptr++, suptr++, nC--)
+    int nC = m_wb.nlevsC - dscale;
+
+    int l = (int) ((vcrect.lft - rect.left) / (1 << dscale));
+    int b = (int) ((vcrect.bot - rect.top) / (1 << dscale));
+    int r = (int) ((vcrect.rgt - rect.left) / (1 << dscale) + .5);
+    int t = (int) ((vcrect.top - rect.top) / (1 << dscale) + .5);
+
+    if (vcrect.lft == brect.lft)
+        l = (l <= 0) ? -BORDER : l - BORDER;
+    else if (l < -BORDER)
+        l = -BORDER;
+
+    if (vcrect.bot == brect.bot)
+        b = (b <= 0) ? -BORDER : b - BORDER;
+    else if (b < -BORDER)
+        b = -BORDER;
+
+    if (vcrect.rgt == brect.rgt)
+        r = (r >= dptr->width) ? dptr->width + BORDER - 1 : r + BORDER;
+    else if (r >= dptr->width + BORDER)
+        r = dptr->width + BORDER - 1;
+
+    if (vcrect.top == brect.top)
+        t = (t >= dptr->height) ? dptr->height + BORDER - 1 : t + BORDER;
+    else if (t >= dptr->height + BORDER)
+        t = dptr->height + BORDER - 1;
+
+    // Walk this part's band of the Region of interest and populate the pyramid
+    int rows = t - b + 1;
+    int first = b + rows * part / parts;
+    int last = b + rows * (part + 1) / parts - 1;
+    for (int j = first; j <= last; j++)
     {
-        int l = (int) ((vcrect.lft - rect.left) / (1 << dscale));
-        int b = (int) ((vcrect.bot - rect.top) / (1 << dscale));
-        int r = (int) ((vcrect.rgt - rect.left) / (1 << dscale) + .5);
-        int t = (int) ((vcrect.top - rect.top) / (1 << dscale) + .5);
-
-        if (vcrect.lft == brect.lft)
-            l = (l <= 0) ? -BORDER : l - BORDER;
-        else if (l < -BORDER)
-            l = -BORDER;
-
-        if (vcrect.bot == brect.bot)
-            b = (b <= 0) ? -BORDER : b - BORDER;
-        else if (b < -BORDER)
-            b = -BORDER;
-
-        if (vcrect.rgt == brect.rgt)
-            r = (r >= dptr->width) ? dptr->width + BORDER - 1 : r + BORDER;
-        else if (r >= dptr->width + BORDER)
-            r = dptr->width + BORDER - 1;
-
-        if (vcrect.top == brect.top)
-            t = (t >= dptr->height) ? dptr->height + BORDER - 1 : t + BORDER;
-        else if (t >= dptr->height + BORDER)
-            t = dptr->height + BORDER - 1;
-
-        // Walk the Region of interest and populate the pyramid
-        for (int j = b; j <= t; j++)
-        {
-            int jj = (j << dscale);
-            double sj = jj + rect.top;
+        int jj = (j << dscale);
+        double sj = jj + rect.top;
 
-            for (int i = l; i <= r; i++)
-            {
-                int ii = (i << dscale);
-                // project point and then triangulate to neighbors
-                double si = ii + rect.left;
+        for (int i = l; i <= r; i++)
+        {
+            int ii = (i << dscale);
+            // project point and then triangulate to neighbors
+            double si = ii + rect.left;
 
-                int inMask = ((unsigned) ii < imgMos.Y.width &&
-                        (unsigned) jj < imgMos.Y.height) ? 1 : 0;
+            int inMask = ((unsigned) ii < imgMos.Y.width &&
+                    (unsigned) jj < imgMos.Y.height) ? 1 : 0;
 
-                if(inMask && imgMos.Y.ptr[jj][ii] != site_idx &&
-                        imgMos.V.ptr[jj][ii] != site_idx &&
-                        imgMos.Y.ptr[jj][ii] != 255)
-                    continue;
+            if(inMask && imgMos.Y.ptr[jj][ii] != site_idx &&
+                    imgMos.V.ptr[jj][ii] != site_idx &&
+                    imgMos.Y.ptr[jj][ii] != 255)
+                continue;
 
-                // Setup weights for cross-fading
-                // Weight of the intensity already in the output pixel
-                double wt0 = 0.0;
-                // Weight of the intensity from the input pixel (current frame)
-                double wt1 = 1.0;
+            // Setup weights for cross-fading
+            // Weight of the intensity already in the output pixel
+            double wt0 = 0.0;
+            // Weight of the intensity from the input pixel (current frame)
+            double wt1 = 1.0;
 
-                if (m_wb.stripType == STRIP_TYPE_WIDE)
+            if (m_wb.stripType == STRIP_TYPE_WIDE)
+            {
+                if(inMask && imgMos.Y.ptr[jj][ii] != 255)
                 {
-                    if(inMask && imgMos.Y.ptr[jj][ii] != 255)
+                    // If not on a seam OR pyramid level exceeds
+                    // maximum level for cross-fading.
+                    if((imgMos.V.ptr[jj][ii] == 128) ||
+                        (dscale > STRIP_CROSS_FADE_MAX_PYR_LEVEL))
                     {
-                        // If not on a seam OR pyramid level exceeds
-                        // maximum level for cross-fading.
-                        if((imgMos.V.ptr[jj][ii] == 128) ||
-                            (dscale > STRIP_CROSS_FADE_MAX_PYR_LEVEL))
-                        {
-                            wt0 = 0.0;
-                            wt1 = 1.0;
-                        }
-                        else
-                        {
-                            wt0 = 1.0;
-                            wt1 = ((imgMos.Y.ptr[jj][ii] == site_idx) ?
-                                    (double)imgMos.U.ptr[jj][ii] / 100.0 :
-                                    1.0 - (double)imgMos.U.ptr[jj][ii] / 100.0);
-                        }
+                        wt0 = 0.0;
+                        wt1 = 1.0;
+                    }
+                    else
+                    {
+                        wt0 = 1.0;
+                        wt1 = ((imgMos.Y.ptr[jj][ii] == site_idx) ?
+                                (double)imgMos.U.ptr[jj][ii] / 100.0 :
+                                1.0 - (double)imgMos.U.ptr[jj][ii] / 100.0);
                     }
                 }
+            }
 
-                // Project this mosaic point into the original frame coordinate space
-                double xx, yy;
+            // Project this mosaic point into the original frame coordinate space
+            double xx, yy;
 
-                MosaicToFrame(inv_trs, si, sj, xx, yy);
+            MosaicToFrame(inv_trs, si, sj, xx, yy);
 
-                if (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0)
+            if (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0)
+            {
+                if(inMask)
                 {
-                    if(inMask)
-                    {
-                        imgMos.Y.ptr[jj][ii] = 255;
-                        wt0 = 0.0f;
-                        wt1 = 1.0f;
-                    }
+                    imgMos.Y.ptr[jj][ii] = 255;
+                    wt0 = 0.0f;
+                    wt1 = 1.0f;
                 }
+            }
 
-                xx /= (1 << dscale);
-                yy /= (1 << dscale);
+            xx /= (1 << dscale);
+            yy /= (1 << dscale);
 
 
-                int x1 = (xx >= 0.0) ? (int) xx : (int) floor(xx);
-                int y1 = (yy >= 0.0) ? (int) yy : (int) floor(yy);
+            int x1 = (xx >= 0.0) ? (int) xx : (int) floor(xx);
+            int y1 = (yy >= 0.0) ? (int) yy : (int) floor(yy);
 
-                // Final destination in extended pyramid
+            // Final destination in extended pyramid
 #ifndef LINEAR_INTERP
-                if(inSegment(x1, sptr->width, BORDER-1) &&
-                        inSegment(y1, sptr->height, BORDER-1))
+            if(inSegment(x1, sptr->width, BORDER-1) &&
+                    inSegment(y1, sptr->height, BORDER-1))
+            {
+                double xfrac = xx - x1;
+                double yfrac = yy - y1;
+                dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + .5 +
+                        wt1 * ciCalc(sptr, x1, y1, xfrac, yfrac));
+                if (dvptr >= m_pMosaicVPyr && nC > 0)
                 {
-                    double xfrac = xx - x1;
-                    double yfrac = yy - y1;
-                    dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + .5 +
-                            wt1 * ciCalc(sptr, x1, y1, xfrac, yfrac));
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
-                    {
-                        duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] + .5 +
-                                wt1 * ciCalc(suptr, x1, y1, xfrac, yfrac));
-                        dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] + .5 +
-                                wt1 * ciCalc(svptr, x1, y1, xfrac, yfrac));
-                    }
+                    duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] + .5 +
+                            wt1 * ciCalc(suptr, x1, y1, xfrac, yfrac));
+                    dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] + .5 +
+                            wt1 * ciCalc(svptr, x1, y1, xfrac, yfrac));
                 }
+            }
 #else
-                if(inSegment(x1, sptr->width, BORDER) && inSegment(y1, sptr->height, BORDER))
+            if(inSegment(x1, sptr->width, BORDER) && inSegment(y1, sptr->height, BORDER))
+            {
+                int x2 = x1 + 1;
+                int y2 = y1 + 1;
+                double xfrac = xx - x1;
+                double yfrac = yy - y1;
+                double y1val = sptr->ptr[y1][x1] +
+                    (sptr->ptr[y1][x2] - sptr->ptr[y1][x1]) * xfrac;
+                double y2val = sptr->ptr[y2][x1] +
+                    (sptr->ptr[y2][x2] - sptr->ptr[y2][x1]) * xfrac;
+                dptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
+
+                if (dvptr >= m_pMosaicVPyr && nC > 0)
                 {
-                    int x2 = x1 + 1;
-                    int y2 = y1 + 1;
-                    double xfrac = xx - x1;
-                    double yfrac = yy - y1;
-                    double y1val = sptr->ptr[y1][x1] +
-                        (sptr->ptr[y1][x2] - sptr->ptr[y1][x1]) * xfrac;
-                    double y2val = sptr->ptr[y2][x1] +
-                        (sptr->ptr[y2][x2] - sptr->ptr[y2][x1]) * xfrac;
-                    dptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
-
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
-                    {
-                        y1val = suptr->ptr[y1][x1] +
-                            (suptr->ptr[y1][x2] - suptr->ptr[y1][x1]) * xfrac;
-                        y2val = suptr->ptr[y2][x1] +
-                            (suptr->ptr[y2][x2] - suptr->ptr[y2][x1]) * xfrac;
+                    y1val = suptr->ptr[y1][x1] +
+                        (suptr->ptr[y1][x2] - suptr->ptr[y1][x1]) * xfrac;
+                    y2val = suptr->ptr[y2][x1] +
+                        (suptr->ptr[y2][x2] - suptr->ptr[y2][x1]) * xfrac;
 
-                        duptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
+                    duptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
 
-                        y1val = svptr->ptr[y1][x1] +
-                            (svptr->ptr[y1][x2] - svptr->ptr[y1][x1]) * xfrac;
-                        y2val = svptr->ptr[y2][x1] +
-                            (svptr->ptr[y2][x2] - svptr->ptr[y2][x1]) * xfrac;
+                    y1val = svptr->ptr[y1][x1] +
+                        (svptr->ptr[y1][x2] - svptr->ptr[y1][x1]) * xfrac;
+                    y2val = svptr->ptr[y2][x1] +
+                        (svptr->ptr[y2][x2] - svptr->ptr[y2][x1]) * xfrac;
 
-                        dvptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
-                    }
+                    dvptr->ptr[j][i] = (short) (y1val + yfrac * (y2val - y1val));
                 }
+            }
 #endif
-                else
-                {
-                    clipToSegment(x1, sptr->width, BORDER);
-                    clipToSegment(y1, sptr->height, BORDER);
+            else
+            {
+                clipToSegment(x1, sptr->width, BORDER);
+                clipToSegment(y1, sptr->height, BORDER);
 
-                    dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + 0.5 +
-                            wt1 * sptr->ptr[y1][x1] );
-                    if (dvptr >= m_pMosaicVPyr && nC > 0)
-                    {
-                        dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] +
-                                0.5 + wt1 * svptr->ptr[y1][x1] );
-                        duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] +
-                                0.5 + wt1 * suptr->ptr[y1][x1] );
-                    }
+                dptr->ptr[j][i] = (short) (wt0 * dptr->ptr[j][i] + 0.5 +
+                        wt1 * sptr->ptr[y1][x1] );
+                if (dvptr >= m_pMosaicVPyr && nC > 0)
+                {
+                    dvptr->ptr[j][i] = (short) (wt0 * dvptr->ptr[j][i] +
+                            0.5 + wt1 * svptr->ptr[y1][x1] );
+                    duptr->ptr[j][i] = (short) (wt0 * duptr->ptr[j][i] +
+                            0.5 + wt1 * suptr->ptr[y1][x1] );
                 }
             }
         }
@@ -1209,6 +1334,24 @@ void Blend::FrameToMosaicRect(int width, int height, double trs[3][3], BlendRect
     }
 }
 
+void Blend::StripCenter(MosaicFrame *mb, double &x, double &y)
+{
+    double midX = mb->width / 2.0;
+    double midY = mb->height / 2.0;
+    double z = ProjZ(mb->trs, midX, midY, 1.0);
+    x = ProjX(mb->trs, midX, midY, z, 1.0);
+    y = ProjY(mb->trs, midX, midY, z, 1.0);
+}
+
+bool Blend::IsNewStrip(double prevX, double prevY, double x, double y)
+{
+    double deltaX = x - prevX;
+    double deltaY = y - prevY;
+
+    return fabs(deltaX) > STRIP_SEPARATION_THRESHOLD_PXLS ||
+            fabs(deltaY) > STRIP_SEPARATION_THRESHOLD_PXLS;
+}
+
 void Blend::SelectRelevantFrames(MosaicFrame **frames, int frames_size,
         MosaicFrame **relevant_frames, int &relevant_frames_size)
 {
@@ -1216,14 +1359,8 @@ void Blend::SelectRelevantFrames(MosaicFrame **frames, int frames_size,
     MosaicFrame *last = frames[frames_size-1];
     MosaicFrame *mb;
 
-    double fxpos = first->trs[0][2], fypos = first->trs[1][2];
-
-    double midX = last->width / 2.0;
-    double midY = last->height / 2.0;
-    double z = ProjZ(first->trs, midX, midY, 1.0);
-    double firstX, firstY;
-    double prevX = firstX = ProjX(first->trs, midX, midY, z, 1.0);
-    double prevY = firstY = ProjY(first->trs, midX, midY, z, 1.0);
+    double prevX, prevY;
+    StripCenter(first, prevX, prevY);
 
     relevant_frames[0] = first; // Add first frame by default
     relevant_frames_size = 1;
@@ -1232,15 +1369,9 @@ void Blend::SelectRelevantFrames(MosaicFrame **frames, int frames_size,
     {
         mb = frames[i];
         double currX, currY;
-        z = ProjZ(mb->trs, midX, midY, 1.0);
-        currX = ProjX(mb->trs, midX, midY, z, 1.0);
-        currY = ProjY(mb->trs, midX, midY, z, 1.0);
-        double deltaX = currX - prevX;
-        double deltaY = currY - prevY;
-        double center2centerDist = sqrt(deltaY * deltaY + deltaX * deltaX);
+        StripCenter(mb, currX, currY);
 
-        if (fabs(deltaX) > STRIP_SEPARATION_THRESHOLD_PXLS ||
-                fabs(deltaY) > STRIP_SEPARATION_THRESHOLD_PXLS)
+        if (IsNewStrip(prevX, prevY, currX, currY))
         {
             relevant_frames[relevant_frames_size] = mb;
             relevant_frames_size++;
@@ -24,6 +24,7 @@
 #include "MosaicTypes.h"
 #include "Pyramid.h"
 #include "Delaunay.h"
+#include "WorkerPool.h"
 
 #define BLEND_RANGE_DEFAULT 6
 #define BORDER 8
@@ -77,14 +78,29 @@ public:
 
   int initialize(int blendingType, int stripType, int frame_width, int frame_height);
 
+  // Blends on this many threads, the online cores by default. The output
+  // does not depend on it.
+  int setThreadCount(int threads);
+
   int runBlend(MosaicFrame **frames, MosaicFrame **rframes, int frames_size, ImageType &imageMosaicYVU,
         int &mosaicWidth, int &mosaicHeight, float &progress, bool &cancelComputation);
 
+  // Center of a frame in the mosaic, as used to select the frames of a
+  // STRIP_TYPE_WIDE blend.
+  static void StripCenter(MosaicFrame *mb, double &x, double &y);
+
+  // Whether a frame centered at (x, y) is far enough from the last selected
+  // one, centered at (prevX, prevY), to be selected for a STRIP_TYPE_WIDE
+  // blend. The first and last frames are always selected.
+  static bool IsNewStrip(double prevX, double prevY, double x, double y);
+
 protected:
 
-  PyramidShort *m_pFrameYPyr;
-  PyramidShort *m_pFrameUPyr;
-  PyramidShort *m_pFrameVPyr;
+  // Frame pyramids, one set per thread so that the pyramids of the next
+  // frames are built at the same time.
+  PyramidShort *m_pFrameYPyr[WorkerPool::MAX_THREADS];
+  PyramidShort *m_pFrameUPyr[WorkerPool::MAX_THREADS];
+  PyramidShort *m_pFrameVPyr[WorkerPool::MAX_THREADS];
 
   PyramidShort *m_pMosaicYPyr;
   PyramidShort *m_pMosaicUPyr;
@@ -95,6 +111,11 @@ protected:
 
   BlendParams m_wb;
 
+  WorkerPool m_Workers;
+
+  class FramePyramidJob;
+  class LevelJob;
+
   // Height and width of individual frames
   int width, height;
 
@@ -110,9 +131,12 @@ protected:
 
   int  DoMergeAndBlend(MosaicFrame **frames, int nsite,  int width, int height, YUVinfo &imgMos, MosaicRect &rect, MosaicRect &cropping_rect, float &progress, bool &cancelComputation);
   void ComputeMask(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, int site_idx);
-  void ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx);
+  void ProcessPyramidForThisFrame(CSite *csite, BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double trs[3][3], int site_idx, int slot);
+  void ProcessPyramidLevel(BlendRect &vcrect, BlendRect &brect, MosaicRect &rect, YUVinfo &imgMos, double inv_trs[3][3], int site_idx, int slot, int dscale, int part, int parts);
 
-  int  FillFramePyramid(MosaicFrame *mb);
+  int  AllocateFramePyramids(int slots);
+  void FreeFramePyramids();
+  int  FillFramePyramid(MosaicFrame *mb, int slot);
 
   // TODO: need to add documentation about the parameters
   void ComputeBlendParameters(MosaicFrame **frames, int frames_size, int is360);
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameIngest.cpp
+
+#include <string.h>
+
+#include "FrameIngest.h"
+
+// Part 0 builds and hands over the low resolution frame, part 1 builds the
+// high resolution one.
+class IngestJob : public WorkerPool::Job {
+public:
+  ImageType nv21;
+  int width, height, factor;
+  ImageType highRes, lowRes;
+  FrameIngest::Listener *listener;
+
+  void run(int part)
+  {
+    if (part == 0)
+    {
+      FrameIngest::toLowResYVU24(lowRes, nv21, width, height, factor);
+      if (listener != NULL)
+        listener->onLowResReady();
+    }
+    else
+    {
+      FrameIngest::toYVU24(highRes, nv21, width, height);
+    }
+  }
+};
+
+int FrameIngest::start(int threads)
+{
+  return m_Workers.start(threads > 2 ? 2 : threads);
+}
+
+void FrameIngest::stop()
+{
+  m_Workers.stop();
+}
+
+void FrameIngest::ingest(ImageType nv21, int width, int height, int factor,
+    ImageType highRes, ImageType lowRes, Listener *listener)
+{
+  IngestJob job;
+  job.nv21 = nv21;
+  job.width = width;
+  job.height = height;
+  job.factor = factor;
+  job.highRes = highRes;
+  job.lowRes = lowRes;
+  job.listener = listener;
+  m_Workers.run(&job, 2);
+}
+
+void FrameIngest::toYVU24(ImageType yvu24, ImageType nv21, int width,
+    int height)
+{
+  int frameSize = width * height;
+
+  ImageType ovp = yvu24 + frameSize;
+  ImageType oup = yvu24 + frameSize + frameSize;
+
+  memcpy(yvu24, nv21, frameSize * sizeof(unsigned char));
+
+  for (int j = 0; j < height; j += 2)
+  {
+    unsigned char u = 0, v = 0;
+    int uvp = frameSize + (j >> 1) * width;
+    ovp = yvu24 + frameSize + j * width;
+    oup = ovp + frameSize;
+
+    ImageType iuvp = nv21 + uvp;
+
+    for (int i = 0; i < width; i += 2)
+    {
+      v = *iuvp++;
+      u = *iuvp++;
+
+      *ovp++ = v;
+      *oup++ = u;
+
+      *ovp++ = v;
+      *oup++ = u;
+    }
+    memcpy(ovp, ovp - width, width * sizeof(unsigned char));
+    memcpy(oup, oup - width, width * sizeof(unsigned char));
+  }
+}
+
+void FrameIngest::toLowResYVU24(ImageType yvu24, ImageType nv21, int width,
+    int height, int factor)
+{
+  int frameSize = width * height;
+
+  // Row j of the planes of toYVU24() is row r of plane p. The chroma of a
+  // pixel is the VU pair of its even column, on the chroma row r / 2.
+  for (int p = 0; p < 3; p++)
+  {
+    for (int j = p * height; j < (p + 1) * height; j += factor)
+    {
+      int r = j - p * height;
+      ImageType outp = yvu24 + (j / factor) * (width / factor);
+
+      if (p == 0)
+      {
+        ImageType in = nv21 + r * width;
+        for (int i = 0; i < width; i += factor)
+          *outp++ = in[i];
+      }
+      else
+      {
+        // V comes first in NV21, like in the planes.
+        ImageType in = nv21 + frameSize + (r >> 1) * width + (p - 1);
+        for (int i = 0; i < width; i += factor)
+          *outp++ = in[i & ~1];
+      }
+    }
+  }
+}
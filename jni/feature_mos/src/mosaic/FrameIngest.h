@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameIngest.h
+
+#ifndef FRAME_INGEST_H
+#define FRAME_INGEST_H
+
+#include "ImageUtils.h"
+#include "WorkerPool.h"
+
+/**
+ *  Builds the planar YVU frames of the high and low resolution mosaics from
+ *  an NV21 camera frame, on the CPU. With two threads the high resolution
+ *  frame is built while the low resolution one is built and aligned.
+ */
+class FrameIngest {
+
+public:
+
+  /**
+   *  Called once the low resolution frame is built, on one of the threads
+   *  of the ingest, to start aligning it.
+   */
+  class Listener {
+  public:
+    virtual ~Listener() {}
+    virtual void onLowResReady() = 0;
+  };
+
+  /**
+   *  Starts the threads, at most 2. Returns the thread count.
+   */
+  int start(int threads);
+  void stop();
+
+  /**
+   *  Builds the width x height highRes frame and the width/factor x
+   *  height/factor lowRes frame from nv21, and returns once both are done
+   *  and listener->onLowResReady() has returned.
+   */
+  void ingest(ImageType nv21, int width, int height, int factor,
+      ImageType highRes, ImageType lowRes, Listener *listener);
+
+  /**
+   *  Converts NV21 to YVU planes at full resolution, repeating each chroma
+   *  sample over its 2x2 pixels.
+   */
+  static void toYVU24(ImageType yvu24, ImageType nv21, int width, int height);
+
+  /**
+   *  Gives the same planes as subsampling the output of toYVU24() by
+   *  factor, reading only the samples that are kept.
+   */
+  static void toLowResYVU24(ImageType yvu24, ImageType nv21, int width,
+      int height, int factor);
+
+private:
+
+  WorkerPool m_Workers;
+};
+
+#endif
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameStore.cpp
+
+#include <stdlib.h>
+
+#include "FrameStore.h"
+
+#include "Log.h"
+#define LOG_TAG "FRAMESTORE"
+
+FrameStore::FrameStore()
+{
+    m_width = m_height = m_channels = 0;
+    m_frameBytes = m_maxBytes = 0;
+    m_images = m_free = NULL;
+    m_allocated = m_freeCount = m_capacity = m_peakHeld = 0;
+    pthread_mutex_init(&m_lock, NULL);
+}
+
+FrameStore::~FrameStore()
+{
+    clear();
+    pthread_mutex_destroy(&m_lock);
+}
+
+void FrameStore::initialize(int width, int height, int channels, size_t maxBytes)
+{
+    pthread_mutex_lock(&m_lock);
+    freeImages();
+    m_width = width;
+    m_height = height;
+    m_channels = channels;
+    m_frameBytes = (size_t) width * height * channels;
+    m_maxBytes = maxBytes;
+    pthread_mutex_unlock(&m_lock);
+}
+
+void FrameStore::clear()
+{
+    pthread_mutex_lock(&m_lock);
+    freeImages();
+    pthread_mutex_unlock(&m_lock);
+}
+
+// Called with m_lock held.
+void FrameStore::freeImages()
+{
+    for (int i = 0; i < m_allocated; i++)
+        ImageUtils::freeImage(m_images[i]);
+    free(m_images);
+    free(m_free);
+    m_images = m_free = NULL;
+    m_allocated = m_freeCount = m_capacity = m_peakHeld = 0;
+}
+
+ImageType FrameStore::acquire()
+{
+    ImageType image = NULL;
+
+    pthread_mutex_lock(&m_lock);
+    if (m_freeCount > 0)
+    {
+        image = m_free[--m_freeCount];
+    }
+    else if (m_frameBytes > 0 &&
+            (m_maxBytes == 0 || (m_allocated + 1) * m_frameBytes <= m_maxBytes))
+    {
+        if (m_allocated == m_capacity)
+        {
+            // Both arrays grow together, so that every image fits in m_free.
+            int capacity = m_capacity ? 2 * m_capacity : 16;
+            ImageType *images = (ImageType *) realloc(m_images, capacity * sizeof(ImageType));
+            if (images != NULL) m_images = images;
+            ImageType *freeImages = (ImageType *) realloc(m_free, capacity * sizeof(ImageType));
+            if (freeImages != NULL) m_free = freeImages;
+            if (images != NULL && freeImages != NULL) m_capacity = capacity;
+        }
+        if (m_allocated < m_capacity)
+        {
+            image = ImageUtils::allocateImage(m_width, m_height, m_channels);
+            if (image != NULL) m_images[m_allocated++] = image;
+        }
+        if (image == NULL)
+            LOGE("Could not allocate frame %d", m_allocated);
+    }
+    if (image != NULL && m_allocated - m_freeCount > m_peakHeld)
+        m_peakHeld = m_allocated - m_freeCount;
+    pthread_mutex_unlock(&m_lock);
+
+    return image;
+}
+
+void FrameStore::release(ImageType image)
+{
+    if (image == NULL)
+        return;
+
+    pthread_mutex_lock(&m_lock);
+    if (m_freeCount < m_allocated)
+        m_free[m_freeCount++] = image;
+    pthread_mutex_unlock(&m_lock);
+}
+
+size_t FrameStore::getHeldBytes()
+{
+    return getHeldFrames() * m_frameBytes;
+}
+
+size_t FrameStore::getPeakHeldBytes()
+{
+    pthread_mutex_lock(&m_lock);
+    size_t bytes = m_peakHeld * m_frameBytes;
+    pthread_mutex_unlock(&m_lock);
+    return bytes;
+}
+
+size_t FrameStore::getAllocatedBytes()
+{
+    pthread_mutex_lock(&m_lock);
+    size_t bytes = m_allocated * m_frameBytes;
+    pthread_mutex_unlock(&m_lock);
+    return bytes;
+}
+
+int FrameStore::getHeldFrames()
+{
+    pthread_mutex_lock(&m_lock);
+    int frames = m_allocated - m_freeCount;
+    pthread_mutex_unlock(&m_lock);
+    return frames;
+}
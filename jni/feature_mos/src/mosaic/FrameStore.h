@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// FrameStore.h
+
+#ifndef FRAME_STORE_H
+#define FRAME_STORE_H
+
+#include <pthread.h>
+#include <stddef.h>
+
+#include "ImageUtils.h"
+
+/**
+ *  A pool of same-size frame images. The images are allocated when they are
+ *  first needed and then recycled, up to an optional budget in bytes, and the
+ *  store keeps count of the bytes held by the frames handed out. It is safe
+ *  to acquire and release images from several threads.
+ */
+class FrameStore {
+
+public:
+
+  FrameStore();
+  ~FrameStore();
+
+  /**
+   *  Frees all the images, then sets the size of the next ones. A maxBytes
+   *  of 0 means no budget.
+   */
+  void initialize(int width, int height, int channels, size_t maxBytes);
+
+  /**
+   *  Frees all the images, including those still handed out, which must not
+   *  be used any more.
+   */
+  void clear();
+
+  /**
+   *  Returns an image, or NULL if a new one would go over the budget or
+   *  cannot be allocated. The pixels are those of the last frame it held.
+   */
+  ImageType acquire();
+
+  /**
+   *  Gives an image of the store back. NULL is ignored.
+   */
+  void release(ImageType image);
+
+  size_t getFrameBytes() { return m_frameBytes; }
+
+  /**
+   *  Bytes of the images handed out and not yet released.
+   */
+  size_t getHeldBytes();
+
+  /**
+   *  Highest getHeldBytes() since the last initialize() or clear().
+   */
+  size_t getPeakHeldBytes();
+
+  /**
+   *  Bytes of all the images allocated, whether held or free.
+   */
+  size_t getAllocatedBytes();
+
+  int getHeldFrames();
+
+private:
+
+  void freeImages();
+
+  int m_width;
+  int m_height;
+  int m_channels;
+  size_t m_frameBytes;
+  size_t m_maxBytes;
+
+  pthread_mutex_t m_lock;
+
+  // All the images, and the free ones at the end of m_free, guarded by
+  // m_lock.
+  ImageType *m_images;
+  ImageType *m_free;
+  int m_allocated;
+  int m_freeCount;
+  int m_capacity;
+  int m_peakHeld;
+};
+
+#endif
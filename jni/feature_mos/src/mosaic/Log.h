@@ -16,9 +16,17 @@
 #ifndef LOG_H_
 #define LOG_H
 
+#ifdef __ANDROID__
 #include <android/log.h>
 #define LOGV(...) __android_log_print(ANDROID_LOG_SILENT, LOG_TAG, __VA_ARGS__)
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+#else
+// Host builds, such as the panorama benchmark, log errors to stderr.
+#include <stdio.h>
+#define LOGV(...)
+#define LOGI(...)
+#define LOGE(...) (fprintf(stderr, LOG_TAG ": " __VA_ARGS__), fputc('\n', stderr))
+#endif
 
 #endif
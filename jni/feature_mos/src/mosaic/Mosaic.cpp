@@ -22,6 +22,7 @@
 
 #include <stdio.h>
 #include <string.h>
+#include <sys/time.h>
 
 #include "Mosaic.h"
 #include "trsMatrix.h"
@@ -35,10 +36,37 @@ Mosaic::Mosaic()
     imageMosaicYVU = NULL;
     frames_size = 0;
     max_frames = 200;
+    frame_store = NULL;
+    strip_x = strip_y = 0.0;
+
+    align_thread_started = false;
+    align_stop = false;
+    queued_frames = NULL;
+    queued_size = aligned_size = 0;
+    pthread_mutex_init(&align_lock, NULL);
+    pthread_cond_init(&align_cond, NULL);
 }
 
 Mosaic::~Mosaic()
 {
+    if (align_thread_started)
+    {
+        bool cancel = true;
+        float progress;
+        finishBackgroundAlignment(progress, cancel);
+    }
+    if (frame_store != NULL)
+    {
+        // The images of the frames that were queued but never added.
+        for (int i = aligned_size; i < queued_size; i++)
+            frame_store->release(queued_frames[i]);
+        for (int i = 0; i < frames_size; i++)
+            frame_store->release(frames[i]->image);
+    }
+    delete[] queued_frames;
+    pthread_cond_destroy(&align_cond);
+    pthread_mutex_destroy(&align_lock);
+
     for (int i = 0; i < frames_size; i++)
     {
         if (frames[i])
@@ -76,22 +104,18 @@ int Mosaic::initialize(int blendingType, int stripType, int width, int height, i
     mosaicWidth = mosaicHeight = 0;
     imageMosaicYVU = NULL;
 
+    if (nframes > max_frames)
+        max_frames = nframes;
+
     frames = new MosaicFrame *[max_frames];
     rframes = new MosaicFrame *[max_frames];
 
-    if(nframes>-1)
+    for(int i=0; i<max_frames; i++)
     {
-        for(int i=0; i<nframes; i++)
-        {
+        if (i < nframes)
             frames[i] = new MosaicFrame(this->width,this->height,false); // Do no allocate memory for YUV data
-        }
-    }
-    else
-    {
-        for(int i=0; i<max_frames; i++)
-        {
+        else
             frames[i] = NULL;
-        }
     }
 
     owned_frames = new ImageType[max_frames];
@@ -125,6 +149,15 @@ int Mosaic::addFrameRGB(ImageType imageRGB)
 {
     ImageType imageYVU;
     // Convert to YVU24 which is used by blending
+    if (frame_store != NULL)
+    {
+        imageYVU = frame_store->acquire();
+        if (imageYVU == NULL)
+            return MOSAIC_RET_ERROR;
+        ImageUtils::rgb2yvu(imageYVU, imageRGB, width, height);
+        return addFrame(imageYVU);
+    }
+
     imageYVU = ImageUtils::allocateImage(this->width, this->height, ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
     ImageUtils::rgb2yvu(imageYVU, imageRGB, width, height);
 
@@ -141,6 +174,15 @@ int Mosaic::addFrameRGB(ImageType imageRGB)
 
 int Mosaic::addFrame(ImageType imageYVU)
 {
+    if (frames_size >= max_frames)
+    {
+        LOGV("WARNING: More frames than preallocated, ignoring."
+             "Increase maximum number of frames (-f <max_frames>) to avoid this");
+        if (frame_store != NULL)
+            frame_store->release(imageYVU);
+        return MOSAIC_RET_ERROR;
+    }
+
     if(frames[frames_size]==NULL)
         frames[frames_size] = new MosaicFrame(this->width,this->height,false);
 
@@ -157,13 +199,6 @@ int Mosaic::addFrame(ImageType imageYVU)
         align_flag = aligner->addFrame(frame->image);
         aligner->getLastTRS(frame->trs);
 
-        if (frames_size >= max_frames)
-        {
-            LOGV("WARNING: More frames than preallocated, ignoring."
-                 "Increase maximum number of frames (-f <max_frames>) to avoid this");
-            return MOSAIC_RET_ERROR;
-        }
-
         switch (align_flag)
         {
             case Align::ALIGN_RET_OK:
@@ -185,12 +220,169 @@ int Mosaic::addFrame(ImageType imageYVU)
         }
     }
 
+    if (frame_store != NULL)
+    {
+        if (ret != MOSAIC_RET_OK && ret != MOSAIC_RET_FEW_INLIERS)
+        {
+            frame_store->release(imageYVU);
+            frame->image = NULL;
+        }
+        // A PAN blend rotates every frame in balanceRotations() before
+        // choosing them, so the choice cannot be made from the trs of the
+        // frames as they come.
+        else if (stripType == Blend::STRIP_TYPE_WIDE &&
+                blendingType != Blend::BLEND_TYPE_PAN)
+        {
+            releaseUnusedFrame();
+        }
+    }
+
+    return ret;
+}
+
+// Makes the choice of Blend::SelectRelevantFrames() as the frames come: the
+// first frame is always used, and so is the last one, which is only known
+// once the capture ends. Any other frame is used if it is far enough from
+// the last one used, which can be decided as soon as the next frame has been
+// added.
+void Mosaic::releaseUnusedFrame()
+{
+    int last = frames_size - 1;
+
+    if (last == 0)
+    {
+        Blend::StripCenter(frames[0], strip_x, strip_y);
+    }
+    else if (last >= 2)
+    {
+        MosaicFrame *mb = frames[last - 1];
+        double x, y;
+        Blend::StripCenter(mb, x, y);
+
+        if (Blend::IsNewStrip(strip_x, strip_y, x, y))
+        {
+            strip_x = x;
+            strip_y = y;
+        }
+        else
+        {
+            frame_store->release(mb->image);
+            mb->image = NULL;
+        }
+    }
+}
+
+
+int Mosaic::startBackgroundAlignment()
+{
+    if (!initialized || align_thread_started)
+        return MOSAIC_RET_ERROR;
+
+    if (queued_frames == NULL)
+        queued_frames = new ImageType[max_frames];
+    queued_size = aligned_size = 0;
+    align_stop = false;
+
+    // The frames are captured meanwhile, and the app aligns its low
+    // resolution mosaic on every core, so the background thread aligns on
+    // its own rather than with a pool of its own.
+    aligner->setThreadCount(1);
+
+    if (pthread_create(&align_thread, NULL, alignMain, this) != 0)
+    {
+        LOGE("Error: Could not start the alignment thread");
+        return MOSAIC_RET_ERROR;
+    }
+    align_thread_started = true;
+    return MOSAIC_RET_OK;
+}
+
+int Mosaic::queueFrame(ImageType imageYVU)
+{
+    int ret = MOSAIC_RET_ERROR;
+    if (align_thread_started)
+    {
+        pthread_mutex_lock(&align_lock);
+        if (queued_size < max_frames)
+        {
+            queued_frames[queued_size++] = imageYVU;
+            pthread_cond_broadcast(&align_cond);
+            ret = MOSAIC_RET_OK;
+        }
+        pthread_mutex_unlock(&align_lock);
+    }
+
+    if (ret != MOSAIC_RET_OK && frame_store != NULL)
+        frame_store->release(imageYVU);
     return ret;
 }
 
+void *Mosaic::alignMain(void *arg)
+{
+    Mosaic *mosaic = (Mosaic *) arg;
+
+    pthread_mutex_lock(&mosaic->align_lock);
+    for (;;)
+    {
+        while (!mosaic->align_stop && mosaic->aligned_size == mosaic->queued_size)
+            pthread_cond_wait(&mosaic->align_cond, &mosaic->align_lock);
+        if (mosaic->align_stop)
+            break;
+
+        ImageType image = mosaic->queued_frames[mosaic->aligned_size];
+        pthread_mutex_unlock(&mosaic->align_lock);
+        mosaic->addFrame(image);
+        pthread_mutex_lock(&mosaic->align_lock);
+
+        mosaic->aligned_size++;
+        pthread_cond_broadcast(&mosaic->align_cond);
+    }
+    pthread_mutex_unlock(&mosaic->align_lock);
+    return NULL;
+}
+
+int Mosaic::finishBackgroundAlignment(float &progress, bool &cancelComputation)
+{
+    pthread_mutex_lock(&align_lock);
+    while (aligned_size < queued_size && !cancelComputation)
+    {
+        progress = TIME_PERCENT_ALIGN * aligned_size / queued_size;
+
+        // cancelComputation is set without notice, so look at it now and then.
+        struct timeval now;
+        struct timespec timeout;
+        gettimeofday(&now, NULL);
+        timeout.tv_sec = now.tv_sec;
+        timeout.tv_nsec = (now.tv_usec + 50000) * 1000L;
+        if (timeout.tv_nsec >= 1000000000L)
+        {
+            timeout.tv_sec++;
+            timeout.tv_nsec -= 1000000000L;
+        }
+        pthread_cond_timedwait(&align_cond, &align_lock, &timeout);
+    }
+    align_stop = true;
+    pthread_cond_broadcast(&align_cond);
+    pthread_mutex_unlock(&align_lock);
+
+    pthread_join(align_thread, NULL);
+    align_thread_started = false;
+
+    if (cancelComputation)
+        return MOSAIC_RET_CANCELLED;
+
+    progress = TIME_PERCENT_ALIGN;
+    return MOSAIC_RET_OK;
+}
 
 int Mosaic::createMosaic(float &progress, bool &cancelComputation)
 {
+    if (align_thread_started &&
+            finishBackgroundAlignment(progress, cancelComputation) != MOSAIC_RET_OK)
+    {
+        return MOSAIC_RET_CANCELLED;
+    }
+
     if (frames_size <= 0)
     {
         // Haven't accepted any frame in aligner. No need to do blending.
@@ -239,6 +431,13 @@ ImageType Mosaic::getMosaic(int &width, int &height)
     return imageMosaicYVU;
 }
 
+int Mosaic::setThreadCount(int threads)
+{
+    if (aligner != NULL)
+        threads = aligner->setThreadCount(threads);
+    return blender != NULL ? blender->setThreadCount(threads) : threads;
+}
+
 
 
 int Mosaic::balanceRotations()
@@ -23,9 +23,12 @@
 #ifndef MOSAIC_H
 #define MOSAIC_H
 
+#include <pthread.h>
+
 #include "ImageUtils.h"
 #include "AlignFeatures.h"
 #include "Blend.h"
+#include "FrameStore.h"
 #include "MosaicTypes.h"
 
 /*! \mainpage Mosaic
@@ -90,7 +93,7 @@ public:
     *                       Horz. Otherwise, it is set to thin irrespective of the input.
     *   \param width        Width of input images (note: all images must be same size)
     *   \param height       Height of input images (note: all images must be same size)
-    *   \param nframes      Number of frames to pre-allocate; default value -1 will allocate each frame as it comes
+    *   \param nframes      Number of frames to pre-allocate, which raises the maximum number of frames if needed; default value -1 will allocate each frame as it comes
     *   \param quarter_res  Whether to compute alignment at quarter the input resolution (default = false)
     *   \param thresh_still Minimum number of pixels of translation detected between the new frame and the last frame before this frame is added to be mosaiced. For the low-res processing at 320x180 resolution input, we set this to 5 pixels. To reject no frames, set this to 0.0 (default value).
     *   \return             Return code signifying success or failure.
@@ -111,8 +114,30 @@ public:
     */
   int addFrameRGB(ImageType imageRGB);
 
+   /*!
+    *   Starts a thread that adds the frames passed to queueFrame(), so that
+    *   they are aligned while the next ones are captured. createMosaic()
+    *   then only has to wait for the frames that are still queued. The
+    *   frames are aligned on that thread alone, whatever setThreadCount()
+    *   was given, so that the alignment does not compete with the capture
+    *   for every core.
+    *   \return             Return code signifying success or failure.
+    */
+  int startBackgroundAlignment();
+
+   /*!
+    *   Queues a YVU frame for the background thread, which adds the frames
+    *   in order, like addFrame(). The image must stay valid until
+    *   createMosaic() returns, unless it comes from the frame store.
+    *   \param imageYVU     Pointer to a YVU image.
+    *   \return             Return code signifying success or failure.
+    */
+  int queueFrame(ImageType imageYVU);
+
    /*!
     *   After adding all frames, call this function to perform the final blending.
+    *   With background alignment, it first waits for the queued frames to be
+    *   added, which counts as the alignment part of the progress.
     *   \param progress     Variable to set the current progress in.
     *   \return             Return code signifying success or failure.
     */
@@ -126,6 +151,32 @@ public:
     */
   ImageType getMosaic(int &width, int &height);
 
+    /*!
+    *   Sets the number of threads to align and blend on, the online cores
+    *   by default. Call it after initialize(). The mosaic does not depend
+    *   on it.
+    *   \param threads      Number of threads, including the calling one.
+    *   \return             The number of threads actually started.
+    */
+  int setThreadCount(int threads);
+
+    /*!
+    *   Takes the images of the frames from store, which must outlive the
+    *   mosaic. Every image passed to addFrame() or queueFrame() must then
+    *   come from the store, as do those of addFrameRGB(), and is released
+    *   to it once the mosaic no longer needs it, whatever the call returns:
+    *   at once for a frame that is not added, and when the mosaic is
+    *   deleted otherwise. With STRIP_TYPE_WIDE, the blend only uses the
+    *   frames that are far enough apart (see Blend::IsNewStrip()), so the
+    *   image of each other frame is released as soon as the next frame is
+    *   added, and the store only holds the frames the blend will use. This
+    *   is not done for BLEND_TYPE_PAN, which rotates the frames before
+    *   choosing them. Call it before adding any frame.
+    *   \param store        Store of the frame images, or NULL to leave the
+    *                       images to the caller (the default).
+    */
+  void setFrameStore(FrameStore *store) { frame_store = store; }
+
     /*!
     *   Provides access to the internal alignment object pointer.
     *   \return             Pointer to the aligner object.
@@ -148,6 +199,8 @@ public:
   static const int MOSAIC_RET_CANCELLED = -2;
   static const int MOSAIC_RET_LOW_TEXTURE = -3;
   static const int MOSAIC_RET_FEW_INLIERS = 2;
+  // No room left for the frame, set by the JNI layer.
+  static const int MOSAIC_RET_FULL = -4;
 
 protected:
 
@@ -221,6 +274,40 @@ protected:
    */
   int balanceRotations();
 
+  /**
+   *  Store the images come from, if any, and the center of the last frame
+   *  kept for a STRIP_TYPE_WIDE blend other than BLEND_TYPE_PAN.
+   */
+  FrameStore *frame_store;
+  double strip_x, strip_y;
+
+  /**
+   *  Releases the image of the frame before the last one added if the
+   *  blend will not use it.
+   */
+  void releaseUnusedFrame();
+
+  /**
+   *  Background alignment: the thread adds queued_frames[aligned_size] to
+   *  queued_frames[queued_size - 1]. Guarded by align_lock.
+   */
+  pthread_t align_thread;
+  pthread_mutex_t align_lock;
+  pthread_cond_t align_cond;
+  bool align_thread_started;
+  bool align_stop;
+  ImageType *queued_frames;
+  int queued_size;
+  int aligned_size;
+
+  static void *alignMain(void *arg);
+
+  /**
+   *  Waits for the background thread to add the queued frames, or for the
+   *  computation to be cancelled, then stops it.
+   */
+  int finishBackgroundAlignment(float &progress, bool &cancelComputation);
+
 };
 
 #endif
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// WorkerPool.cpp
+
+#include <unistd.h>
+
+#include "WorkerPool.h"
+
+#include "Log.h"
+#define LOG_TAG "WORKERPOOL"
+
+WorkerPool::WorkerPool()
+{
+    m_threads = 1;
+    m_job = NULL;
+    m_parts = m_next = m_pending = 0;
+    m_generation = 0;
+    m_quit = false;
+    pthread_mutex_init(&m_lock, NULL);
+    pthread_cond_init(&m_start, NULL);
+    pthread_cond_init(&m_done, NULL);
+}
+
+WorkerPool::~WorkerPool()
+{
+    stop();
+    pthread_cond_destroy(&m_done);
+    pthread_cond_destroy(&m_start);
+    pthread_mutex_destroy(&m_lock);
+}
+
+int WorkerPool::getCpuCount()
+{
+    long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+    return cpus < 1 ? 1 : (int) cpus;
+}
+
+int WorkerPool::start(int threads)
+{
+    stop();
+    if (threads > MAX_THREADS) threads = MAX_THREADS;
+
+    m_quit = false;
+    m_threads = 1;
+    while (m_threads < threads)
+    {
+        if (pthread_create(&m_workers[m_threads - 1], NULL, workerMain, this) != 0)
+        {
+            LOGE("Could only start %d of %d threads", m_threads, threads);
+            break;
+        }
+        m_threads++;
+    }
+    return m_threads;
+}
+
+void WorkerPool::stop()
+{
+    pthread_mutex_lock(&m_lock);
+    m_quit = true;
+    pthread_cond_broadcast(&m_start);
+    pthread_mutex_unlock(&m_lock);
+
+    for (int i = 0; i < m_threads - 1; i++)
+    {
+        pthread_join(m_workers[i], NULL);
+    }
+    m_threads = 1;
+}
+
+void WorkerPool::run(Job *job, int parts)
+{
+    if (m_threads == 1 || parts <= 1)
+    {
+        for (int part = 0; part < parts; part++)
+            job->run(part);
+        return;
+    }
+
+    pthread_mutex_lock(&m_lock);
+    m_job = job;
+    m_parts = parts;
+    m_next = 0;
+    m_pending = parts;
+    m_generation++;
+    pthread_cond_broadcast(&m_start);
+
+    runParts();
+    while (m_pending > 0)
+        pthread_cond_wait(&m_done, &m_lock);
+    m_job = NULL;
+    pthread_mutex_unlock(&m_lock);
+}
+
+// Runs parts of the current job until there are none left. Called and
+// returns with m_lock held.
+void WorkerPool::runParts()
+{
+    while (m_next < m_parts)
+    {
+        int part = m_next++;
+        Job *job = m_job;
+        pthread_mutex_unlock(&m_lock);
+        job->run(part);
+        pthread_mutex_lock(&m_lock);
+        if (--m_pending == 0)
+            pthread_cond_broadcast(&m_done);
+    }
+}
+
+void *WorkerPool::workerMain(void *arg)
+{
+    WorkerPool *pool = (WorkerPool *) arg;
+
+    pthread_mutex_lock(&pool->m_lock);
+    unsigned int seen = pool->m_generation;
+    for (;;)
+    {
+        while (!pool->m_quit && pool->m_generation == seen)
+            pthread_cond_wait(&pool->m_start, &pool->m_lock);
+        if (pool->m_quit)
+            break;
+        seen = pool->m_generation;
+        pool->runParts();
+    }
+    pthread_mutex_unlock(&pool->m_lock);
+    return NULL;
+}
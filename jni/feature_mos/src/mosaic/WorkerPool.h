@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+///////////////////////////////////////////////////
+// WorkerPool.h
+
+#ifndef WORKER_POOL_H
+#define WORKER_POOL_H
+
+#include <pthread.h>
+
+/**
+ *  A fixed set of worker threads that run the parts of a job together with
+ *  the calling thread. The parts are handed out one at a time in order, and
+ *  run() returns once all of them are done.
+ */
+class WorkerPool {
+
+public:
+
+  static const int MAX_THREADS = 8;
+
+  /**
+   *  Work split into parts that can run at the same time.
+   */
+  class Job {
+  public:
+    virtual ~Job() {}
+    virtual void run(int part) = 0;
+  };
+
+  WorkerPool();
+  ~WorkerPool();
+
+  /**
+   *  Starts threads - 1 workers, the caller of run() being the last
+   *  thread, after stopping the previous ones. Returns the thread count,
+   *  which is 1 if no worker could be started.
+   */
+  int start(int threads);
+  void stop();
+
+  int getThreadCount() { return m_threads; }
+
+  /**
+   *  Calls job->run(part) for each part in [0, parts).
+   */
+  void run(Job *job, int parts);
+
+  /**
+   *  Returns the number of online cores.
+   */
+  static int getCpuCount();
+
+private:
+
+  static void *workerMain(void *arg);
+  void runParts();
+
+  pthread_t m_workers[MAX_THREADS];
+  int m_threads;
+
+  pthread_mutex_t m_lock;
+  pthread_cond_t m_start;
+  pthread_cond_t m_done;
+
+  // The current job, guarded by m_lock.
+  Job *m_job;
+  int m_parts;
+  int m_next;
+  int m_pending;
+  unsigned int m_generation;
+  bool m_quit;
+};
+
+#endif
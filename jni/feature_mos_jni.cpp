@@ -26,6 +26,8 @@
 
 #include "mosaic/AlignFeatures.h"
 #include "mosaic/Blend.h"
+#include "mosaic/FrameIngest.h"
+#include "mosaic/FrameStore.h"
 #include "mosaic/Mosaic.h"
 #include "mosaic/Log.h"
 #define LOG_TAG "FEATURE_MOS_JNI"
@@ -38,18 +40,28 @@ extern "C" {
 
 char buffer[1024];
 
-const int MAX_FRAMES = 100;
+const int MAX_FRAMES = 300;
+// Frames whose images can be held at once at each resolution, which sets the
+// memory of a capture. The frames the blend skips do not count, see
+// Mosaic::setFrameStore().
+const int MAX_HELD_FRAMES = 100;
 
 static double mTx;
 
 int tWidth[NR];
 int tHeight[NR];
 
-ImageType tImage[NR][MAX_FRAMES];// = {{ImageUtils::IMAGE_TYPE_NOIMAGE}}; // YVU24 format image
+// YVU24 images of the frames, allocated as they are needed. The image of the
+// next frame is taken from its store before the frame is built, and kept for
+// the frame after if no mosaic takes it.
+FrameStore gFrameStore[NR];
+ImageType gNextImage[NR] = {NULL,NULL};
 Mosaic *mosaic[NR] = {NULL,NULL};
 ImageType resultYVU = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
 ImageType resultBGR = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
 float gTRS[11]; // 9 elements of the transformation, 1 for frame-number, 1 for alignment error code.
+// Builds the planes of the NV21 frames.
+FrameIngest gIngest;
 // Variables to keep track of the mosaic computation progress for both LR & HR.
 float gProgress[NR];
 // Variables to be able to cancel the mosaic computation when the GUI says so.
@@ -96,6 +108,7 @@ int Init(int mID, int nmax)
         }
 
         mosaic[mID] = new Mosaic();
+        mosaic[mID]->setFrameStore(&gFrameStore[mID]);
 
         t0 = now_ms();
 
@@ -118,57 +131,49 @@ int Init(int mID, int nmax)
         return 1;
 }
 
-void GenerateQuarterResImagePlanar(ImageType im, int input_w, int input_h,
-        ImageType &out)
+// Starts the high resolution mosaic of a new capture. Its frames are aligned
+// in the background as the low resolution mosaic accepts them, so that
+// Finalize(HR) only has to wait for the last ones.
+void InitHighRes()
 {
-    ImageType imp;
-    ImageType outp;
-
-    int count = 0;
+    Init(HR, MAX_FRAMES);
+    mosaic[HR]->startBackgroundAlignment();
+}
 
-    for (int j = 0; j < input_h; j += H2L_FACTOR)
+// Takes the images of the next frame from the stores, unless they are
+// already there. Returns false if there is no room left for them.
+bool AcquireNextImages()
+{
+    for(int mID = 0; mID < NR; mID++)
     {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
-
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
-        {
-            *outp++ = *(imp + i);
-            count++;
-        }
-    }
-
-    for (int j = input_h; j < 2 * input_h; j += H2L_FACTOR)
-    {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
-
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
-        {
-            *outp++ = *(imp + i);
-            count++;
-        }
+        if(gNextImage[mID]==NULL)
+            gNextImage[mID] = gFrameStore[mID].acquire();
     }
+    return gNextImage[LR]!=NULL && gNextImage[HR]!=NULL;
+}
 
-    for (int j = 2 * input_h; j < 3 * input_h; j += H2L_FACTOR)
-    {
-        imp = im + j * input_w;
-        outp = out + (j / H2L_FACTOR) * (input_w / H2L_FACTOR);
+// Returns the bytes held by the images of the frames, at both resolutions.
+size_t GetHeldFrameBytes()
+{
+    return gFrameStore[LR].getHeldBytes() + gFrameStore[HR].getHeldBytes();
+}
 
-        for (int i = 0; i < input_w; i += H2L_FACTOR)
-        {
-            *outp++ = *(imp + i);
-            count++;
-        }
-    }
+// Queues the next high resolution image, which the mosaic takes.
+void QueueHighResFrame()
+{
+    mosaic[HR]->queueFrame(gNextImage[HR]);
+    gNextImage[HR] = NULL;
 }
 
-int AddFrame(int mID, int k, float* trs1d)
+// Adds the next image of mID, which the mosaic takes whether it adds the
+// frame or not.
+int AddFrame(int mID, float* trs1d)
 {
     double  t0, t1, time_c;
     double trs[3][3];
 
-    int ret_code = mosaic[mID]->addFrame(tImage[mID][k]);
+    int ret_code = mosaic[mID]->addFrame(gNextImage[mID]);
+    gNextImage[mID] = NULL;
 
     mosaic[mID]->getAligner()->getLastTRS(trs);
 
@@ -199,81 +204,17 @@ int Finalize(int mID)
     t1 = now_ms();
     time_c = t1 - t0;
     LOGV("CreateMosaic: %g ms",time_c);
+    LOGV("Frame store[%d]: %d frames, %zu bytes held", mID,
+            gFrameStore[mID].getHeldFrames(), gFrameStore[mID].getHeldBytes());
 
-    // Get back the result
+    // Get back the result, which is ours to free. An earlier result that was
+    // never read is dropped.
+    ImageUtils::freeImage(resultYVU);
     resultYVU = mosaic[mID]->getMosaic(mosaicWidth, mosaicHeight);
 
     return ret;
 }
 
-void YUV420toYVU24(ImageType yvu24, ImageType yuv420sp, int width, int height)
-{
-    int frameSize = width * height;
-
-    ImageType oyp = yvu24;
-    ImageType ovp = yvu24+frameSize;
-    ImageType oup = yvu24+frameSize+frameSize;
-
-    for (int j = 0, yp = 0; j < height; j++)
-    {
-        unsigned char u = 0, v = 0;
-        int uvp = frameSize + (j >> 1) * width;
-        for (int i = 0; i < width; i++, yp++)
-        {
-            *oyp++ = yuv420sp[yp];
-            //int y = (0xff & (int)yuv420sp[yp]) -16;
-            //yvu24p[yp] = (y<0)?0:y;
-
-            if ((i & 1) == 0)
-            {
-                v = yuv420sp[uvp++];
-                u = yuv420sp[uvp++];
-            }
-
-            *ovp++ = v;
-            *oup++ = u;
-        }
-    }
-}
-
-void YUV420toYVU24_NEW(ImageType yvu24, ImageType yuv420sp, int width,
-        int height)
-{
-    int frameSize = width * height;
-
-    ImageType oyp = yvu24;
-    ImageType ovp = yvu24 + frameSize;
-    ImageType oup = yvu24 + frameSize + frameSize;
-
-    memcpy(yvu24, yuv420sp, frameSize * sizeof(unsigned char));
-
-    for (int j = 0; j < height; j += 2)
-    {
-        unsigned char u = 0, v = 0;
-        int uvp = frameSize + (j >> 1) * width;
-        ovp = yvu24 + frameSize + j * width;
-        oup = ovp + frameSize;
-
-        ImageType iuvp = yuv420sp + uvp;
-
-        for (int i = 0; i < width; i += 2)
-        {
-            v = *iuvp++;
-            u = *iuvp++;
-
-            *ovp++ = v;
-            *oup++ = u;
-
-            *ovp++ = v;
-            *oup++ = u;
-
-        }
-        memcpy(ovp, ovp - width, width * sizeof(unsigned char));
-        memcpy(oup, oup - width, width * sizeof(unsigned char));
-    }
-}
-
-
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_allocateMosaicMemory(
         JNIEnv* env, jobject thiz, jint width, jint height)
 {
@@ -282,26 +223,36 @@ JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_allocateMosaicMemory(
     tWidth[LR] = int(width / H2L_FACTOR);
     tHeight[LR] = int(height / H2L_FACTOR);
 
-    for(int i=0; i<MAX_FRAMES; i++)
+    for(int mID = 0; mID < NR; mID++)
     {
-            tImage[LR][i] = ImageUtils::allocateImage(tWidth[LR], tHeight[LR],
-                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
-            tImage[HR][i] = ImageUtils::allocateImage(tWidth[HR], tHeight[HR],
-                    ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+        size_t frameBytes = (size_t) tWidth[mID] * tHeight[mID] *
+                ImageUtils::IMAGE_TYPE_NUM_CHANNELS;
+        gFrameStore[mID].initialize(tWidth[mID], tHeight[mID],
+                ImageUtils::IMAGE_TYPE_NUM_CHANNELS, MAX_HELD_FRAMES * frameBytes);
+        gNextImage[mID] = NULL;
     }
 
     AllocateTextureMemory(tWidth[HR], tHeight[HR], tWidth[LR], tHeight[LR]);
+    gIngest.start(WorkerPool::getCpuCount());
 }
 
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_freeMosaicMemory(
         JNIEnv* env, jobject thiz)
 {
-    for(int i = 0; i < MAX_FRAMES; i++)
+    // Stop the background alignment, and give the images back, before the
+    // frames go away
+    for(int mID = 0; mID < NR; mID++)
     {
-        ImageUtils::freeImage(tImage[LR][i]);
-        ImageUtils::freeImage(tImage[HR][i]);
+        if(mosaic[mID]!=NULL)
+        {
+            delete mosaic[mID];
+            mosaic[mID] = NULL;
+        }
+        gFrameStore[mID].clear();
+        gNextImage[mID] = NULL;
     }
 
+    gIngest.stop();
     FreeTextureMemory();
 }
 
@@ -361,39 +312,42 @@ void ConvertYVUAiToPlanarYVU(unsigned char *planar, unsigned char *in, int width
     }
 }
 
-JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromGPU(
-        JNIEnv* env, jobject thiz)
+// Aligns the frame the GL thread has read back, and leaves the results in
+// gTRS. Returns the alignment code.
+int SetSourceImageFromGPU()
 {
-    double  t0, t1, time_c;
-    t0 = now_ms();
     int ret_code = Mosaic::MOSAIC_RET_OK;
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES &&
+            AcquireNextImages())
     {
         double last_tx = mTx;
 
         sem_wait(&gPreviewImage_semaphore);
-        ConvertYVUAiToPlanarYVU(tImage[LR][frame_number_LR], gPreviewImage[LR],
+        ConvertYVUAiToPlanarYVU(gNextImage[LR], gPreviewImage[LR],
                 tWidth[LR], tHeight[LR]);
 
         sem_post(&gPreviewImage_semaphore);
 
-        ret_code = AddFrame(LR, frame_number_LR, gTRS);
+        ret_code = AddFrame(LR, gTRS);
 
         if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
         {
             // Copy into HR buffer only if this is a valid frame
             sem_wait(&gPreviewImage_semaphore);
-            ConvertYVUAiToPlanarYVU(tImage[HR][frame_number_HR], gPreviewImage[HR],
+            ConvertYVUAiToPlanarYVU(gNextImage[HR], gPreviewImage[HR],
                     tWidth[HR], tHeight[HR]);
             sem_post(&gPreviewImage_semaphore);
 
+            QueueHighResFrame();
+
             frame_number_LR++;
             frame_number_HR++;
         }
     }
     else
     {
+        ret_code = Mosaic::MOSAIC_RET_FULL;
         gTRS[1] = gTRS[2] = gTRS[3] = gTRS[5] = gTRS[6] = gTRS[7] = 0.0f;
         gTRS[0] = gTRS[4] = gTRS[8] = 1.0f;
     }
@@ -402,50 +356,44 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromG
 
     gTRS[9] = frame_number_HR;
     gTRS[10] = ret_code;
-
-    jfloatArray bytes = env->NewFloatArray(11);
-    if(bytes != 0)
-    {
-        env->SetFloatArrayRegion(bytes, 0, 11, (jfloat*) gTRS);
-    }
-    return bytes;
+    return ret_code;
 }
 
-
-
-JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
-        JNIEnv* env, jobject thiz, jbyteArray photo_data)
+// Aligns the low resolution frame while the high resolution one is built.
+class LowResAligner : public FrameIngest::Listener
 {
-    double  t0, t1, time_c;
-    t0 = now_ms();
-
-    int ret_code = Mosaic::MOSAIC_RET_OK;
+public:
+    int ret_code;
 
-    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES)
+    void onLowResReady()
     {
-        jbyte *pixels = env->GetByteArrayElements(photo_data, 0);
-
-        YUV420toYVU24_NEW(tImage[HR][frame_number_HR], (ImageType)pixels,
-                tWidth[HR], tHeight[HR]);
-
-        env->ReleaseByteArrayElements(photo_data, pixels, 0);
-
-        double last_tx = mTx;
-
-        t0 = now_ms();
-        GenerateQuarterResImagePlanar(tImage[HR][frame_number_HR], tWidth[HR],
-                tHeight[HR], tImage[LR][frame_number_LR]);
-
-
         sem_wait(&gPreviewImage_semaphore);
-        decodeYUV444SP(gPreviewImage[LR], tImage[LR][frame_number_LR],
+        decodeYUV444SP(gPreviewImage[LR], gNextImage[LR],
                 gPreviewImageWidth[LR], gPreviewImageHeight[LR]);
         sem_post(&gPreviewImage_semaphore);
 
-        ret_code = AddFrame(LR, frame_number_LR, gTRS);
+        ret_code = AddFrame(LR, gTRS);
+    }
+};
+
+// Aligns an NV21 frame, and leaves the results in gTRS. Returns the
+// alignment code.
+int SetSourceImage(ImageType pixels)
+{
+    int ret_code = Mosaic::MOSAIC_RET_OK;
+
+    if(frame_number_HR<MAX_FRAMES && frame_number_LR<MAX_FRAMES &&
+            AcquireNextImages())
+    {
+        LowResAligner aligner;
+        gIngest.ingest(pixels, tWidth[HR], tHeight[HR], H2L_FACTOR,
+                gNextImage[HR], gNextImage[LR], &aligner);
+        ret_code = aligner.ret_code;
 
         if(ret_code == Mosaic::MOSAIC_RET_OK || ret_code == Mosaic::MOSAIC_RET_FEW_INLIERS)
         {
+            QueueHighResFrame();
+
             frame_number_LR++;
             frame_number_HR++;
         }
@@ -453,6 +401,7 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
     }
     else
     {
+        ret_code = Mosaic::MOSAIC_RET_FULL;
         gTRS[1] = gTRS[2] = gTRS[3] = gTRS[5] = gTRS[6] = gTRS[7] = 0.0f;
         gTRS[0] = gTRS[4] = gTRS[8] = 1.0f;
     }
@@ -461,7 +410,11 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
 
     gTRS[9] = frame_number_HR;
     gTRS[10] = ret_code;
+    return ret_code;
+}
 
+jfloatArray NewResultArray(JNIEnv* env)
+{
     jfloatArray bytes = env->NewFloatArray(11);
     if(bytes != 0)
     {
@@ -470,6 +423,48 @@ JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
     return bytes;
 }
 
+JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImageFromGPU(
+        JNIEnv* env, jobject thiz)
+{
+    SetSourceImageFromGPU();
+    return NewResultArray(env);
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_setSourceImageFromGPUDirect(
+        JNIEnv* env, jobject thiz)
+{
+    return SetSourceImageFromGPU();
+}
+
+JNIEXPORT jfloatArray JNICALL Java_com_android_camera_Mosaic_setSourceImage(
+        JNIEnv* env, jobject thiz, jbyteArray photo_data)
+{
+    jbyte *pixels = env->GetByteArrayElements(photo_data, 0);
+    SetSourceImage((ImageType)pixels);
+    env->ReleaseByteArrayElements(photo_data, pixels, JNI_ABORT);
+    return NewResultArray(env);
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_setSourceImageFromPreview(
+        JNIEnv* env, jobject thiz, jbyteArray photo_data)
+{
+    if(env->GetArrayLength(photo_data) < tWidth[HR] * tHeight[HR] * 3 / 2)
+    {
+        LOGE("Preview frame of %d bytes is too small", env->GetArrayLength(photo_data));
+        return Mosaic::MOSAIC_RET_ERROR;
+    }
+    jbyte *pixels = env->GetByteArrayElements(photo_data, 0);
+    int ret_code = SetSourceImage((ImageType)pixels);
+    env->ReleaseByteArrayElements(photo_data, pixels, JNI_ABORT);
+    return ret_code;
+}
+
+JNIEXPORT jobject JNICALL Java_com_android_camera_Mosaic_getResultBuffer(
+        JNIEnv* env, jobject thiz)
+{
+    return env->NewDirectByteBuffer(gTRS, sizeof(gTRS));
+}
+
 JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_setBlendingType(
         JNIEnv* env, jobject thiz, jint type)
 {
@@ -495,6 +490,7 @@ JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_reset(
     gCancelComputation[HR] = false;
 
     Init(LR,MAX_FRAMES);
+    InitHighRes();
 }
 
 JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_reportProgress(
@@ -526,30 +522,16 @@ JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_createMosaic(
         gProgress[HR] = 0.0;
         t0 = now_ms();
 
-        Init(HR, frame_number_HR);
+        // The frames have been aligned during the capture, Finalize() waits
+        // for those that are still queued.
+        ret = Finalize(HR);
 
-        for(int k = 0; k < frame_number_HR; k++)
-        {
-            if (gCancelComputation[HR])
-                break;
-            AddFrame(HR, k, NULL);
-            gProgress[HR] += TIME_PERCENT_ALIGN/frame_number_HR;
-        }
+        t1 = now_ms();
+        time_c = t1 - t0;
+        LOGV("Finalize - %d frames [HR]: %g ms", frame_number_HR, time_c);
 
-        if (gCancelComputation[HR])
-        {
-            ret = Mosaic::MOSAIC_RET_CANCELLED;
-        }
-        else
+        if (ret != Mosaic::MOSAIC_RET_CANCELLED)
         {
-            gProgress[HR] = TIME_PERCENT_ALIGN;
-
-            t1 = now_ms();
-            time_c = t1 - t0;
-            LOGV("AlignAll - %d frames [HR]: %g ms", frame_number_HR, time_c);
-
-            ret = Finalize(HR);
-
             gProgress[HR] = 100.0;
         }
 
@@ -661,9 +643,66 @@ JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
     env->SetByteArrayRegion(bytes, imageSize, 8, (jbyte*) dims);
     delete[] dims;
     ImageUtils::freeImage(resultYVU);
+    resultYVU = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
     return bytes;
 }
 
+JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicSize(
+        JNIEnv* env, jobject thiz)
+{
+    if (resultYVU == (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE)
+        return 0;
+
+    jint dims[2] = { mosaicWidth, mosaicHeight };
+    jintArray size = env->NewIntArray(2);
+    if (size == 0) {
+        LOGE("Error in creating the size.");
+        return 0;
+    }
+    env->SetIntArrayRegion(size, 0, 2, dims);
+    return size;
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_getFinalMosaicRows(
+        JNIEnv* env, jobject thiz, jint top, jint rows, jbyteArray y,
+        jbyteArray cb, jbyteArray cr)
+{
+    if (resultYVU == (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE ||
+            mosaicWidth <= 0 || top < 0)
+        return 0;
+
+    // Never more rows than the smallest array holds.
+    int capacity = env->GetArrayLength(y);
+    if (env->GetArrayLength(cb) < capacity) capacity = env->GetArrayLength(cb);
+    if (env->GetArrayLength(cr) < capacity) capacity = env->GetArrayLength(cr);
+    if (rows > capacity / mosaicWidth) rows = capacity / mosaicWidth;
+    if (rows > mosaicHeight - top) rows = mosaicHeight - top;
+    if (rows <= 0)
+        return 0;
+
+    // The planes are Y, V and U, all at full resolution.
+    int planeSize = mosaicWidth * mosaicHeight;
+    int offset = top * mosaicWidth;
+    int size = rows * mosaicWidth;
+    env->SetByteArrayRegion(y, 0, size, (jbyte*) (resultYVU + offset));
+    env->SetByteArrayRegion(cr, 0, size, (jbyte*) (resultYVU + planeSize + offset));
+    env->SetByteArrayRegion(cb, 0, size, (jbyte*) (resultYVU + 2 * planeSize + offset));
+    return rows;
+}
+
+JNIEXPORT jlong JNICALL Java_com_android_camera_Mosaic_getFrameStoreBytes(
+        JNIEnv* env, jobject thiz)
+{
+    return (jlong) GetHeldFrameBytes();
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_freeFinalMosaic(
+        JNIEnv* env, jobject thiz)
+{
+    ImageUtils::freeImage(resultYVU);
+    resultYVU = (ImageType)ImageUtils::IMAGE_TYPE_NOIMAGE;
+}
+
 #ifdef __cplusplus
 }
 #endif
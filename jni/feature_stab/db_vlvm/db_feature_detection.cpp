@@ -26,6 +26,7 @@
 #include <iostream>
 #endif
 #include <float.h>
+#include <string.h>
 
 #define DB_SUB_PIXEL
 
@@ -716,12 +717,10 @@ void db_HarrisStrength_f(float **s,const float * const *img,int w,int h,
     }
 }
 
-/*Compute Harris corner strength of img. Strength is returned for the region
-with (3,3) as upper left and (w-4,h-4) as lower right, positioned in the
-same place in s. In other words,image should be at least 7 pixels wide and 7 pixels high
-for a meaningful result.Moreover, the image should be overallocated by 256 bytes.
-s[i][3] should by 16 byte aligned for any i*/
-void db_HarrisStrength_u(float **s, const unsigned char * const *img,int w,int h,
+/*Compute Harris corner strength of the rows top to bottom of img, from column 3
+to w-4. top has to be at least 3 and bottom at most h-4. Each row only depends on
+the image, so the rows can be split among threads*/
+void db_HarrisStrengthRows_u(float **s, const unsigned char * const *img,int w,int top,int bottom,
                                     /*temp should point to at least
                                     18*128 of allocated memory*/
                                     int *temp)
@@ -739,10 +738,41 @@ void db_HarrisStrength_u(float **s, const unsigned char * const *img,int w,int h
         //nc = 128;
 
         /*Compute the Harris strength of a chunk*/
-        db_HarrisStrengthChunk_u(s,img,x,3,h-4,temp,nc);
+        db_HarrisStrengthChunk_u(s,img,x,top,bottom,temp,nc);
     }
 }
 
+/*Compute Harris corner strength of img. Strength is returned for the region
+with (3,3) as upper left and (w-4,h-4) as lower right, positioned in the
+same place in s. In other words,image should be at least 7 pixels wide and 7 pixels high
+for a meaningful result.Moreover, the image should be overallocated by 256 bytes.
+s[i][3] should by 16 byte aligned for any i*/
+void db_HarrisStrength_u(float **s, const unsigned char * const *img,int w,int h,
+                                    /*temp should point to at least
+                                    18*128 of allocated memory*/
+                                    int *temp)
+{
+    db_HarrisStrengthRows_u(s,img,w,3,h-4,temp);
+}
+
+/*Computes the Harris strength of one band of rows per part, for db_CornerDetector_u*/
+class db_HarrisStrengthJob_u : public db_Parallel::Job
+{
+public:
+    float **s;
+    const unsigned char * const *img;
+    int w,h,parts;
+    int * const *temp;
+
+    void Run(int part)
+    {
+        /*Rows 3 to h-4, split evenly*/
+        int top=3+((h-6)*part)/parts;
+        int bottom=2+((h-6)*(part+1))/parts;
+        if(top<=bottom) db_HarrisStrengthRows_u(s,img,w,top,bottom,temp[part]);
+    }
+};
+
 inline float db_Max_128Aligned16_f(float *v)
 {
 #ifdef DB_USE_SIMD
@@ -1489,20 +1519,21 @@ inline void db_SubPixel(float **strength, const double xd, const double yd, doub
     return;
 }
 
-/*Extract corners from the image part from (left,top) to (right,bottom).
-Store in x and y, extracting at most satnr corners in each block of size (bw,bh).
-The pointer temp_d should point to at least 5*bw*bh positions.
-area_factor holds how many corners max to extract per 10000 pixels*/
-void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int bottom,
+/*Extract corners from the blocks of size (bw,bh) of the image part from (left,top) to
+(right,bottom) whose block rows are first_row to end_row-1. Store in x and y, extracting at
+most satnr corners in each block. The pointer temp_d should point to at least 5*bw*bh positions.
+area_factor holds how many corners max to extract per 10000 pixels. Return the number of
+corners stored*/
+inline int db_ExtractCornersFromBlockRows(float **strength,int left,int top,int right,int bottom,
                                 int bw,int bh,unsigned long area_factor,
                                 float threshold,double *temp_d,
-                                double *x_coord,double *y_coord,int *nr_corners)
+                                double *x_coord,double *y_coord,int first_row,int end_row)
 {
     double *x_temp,*y_temp,*s_temp,*select_temp;
     double loc_thresh;
     unsigned long bwbh,area,saturation;
     int x,next_x,last_x;
-    int y,next_y,last_y;
+    int y,next_y,last_y,end_y;
     int nr,nr_points,i,stop;
 
     bwbh=bw*bh;
@@ -1511,17 +1542,9 @@ void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int
     s_temp=y_temp+bwbh;
     select_temp=s_temp+bwbh;
 
-#ifdef DB_SUB_PIXEL
-    // subpixel processing may sometimes push the corner ourside the real border
-    // increasing border size:
-    left++;
-    top++;
-    bottom--;
-    right--;
-#endif /*DB_SUB_PIXEL*/
-
     nr_points=0;
-    for(y=top;y<=bottom;y=next_y)
+    end_y=top+end_row*bh;
+    for(y=top+first_row*bh;y<=bottom && y<end_y;y=next_y)
     {
         next_y=y+bh;
         last_y=next_y-1;
@@ -1558,9 +1581,122 @@ void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int
             }
         }
     }
+    return(nr_points);
+}
+
+/*Extracts the corners of a range of block rows per part. The corners of each part are
+stored at offset[part], past the most corners the rows of the parts before it can hold*/
+class db_ExtractCornersJob : public db_Parallel::Job
+{
+public:
+    float **strength;
+    int left,top,right,bottom,bw,bh;
+    unsigned long area_factor;
+    float threshold;
+    double * const *temp_d;
+    double *x_coord,*y_coord;
+    int first_row[DB_MAX_PARALLEL_PARTS+1];
+    unsigned long offset[DB_MAX_PARALLEL_PARTS];
+    int nr[DB_MAX_PARALLEL_PARTS];
+
+    void Run(int part)
+    {
+        nr[part]=db_ExtractCornersFromBlockRows(strength,left,top,right,bottom,bw,bh,area_factor,
+            threshold,temp_d[part],x_coord+offset[part],y_coord+offset[part],
+            first_row[part],first_row[part+1]);
+    }
+};
+
+/*Same as db_ExtractCornersSaturated(), with the block rows split into at most parts parts
+run on parallel. temp_d should hold a pointer to 5*bw*bh positions for each part. The corners
+are the same, in the same order, whatever the number of parts*/
+void db_ExtractCornersSaturatedParallel(db_Parallel *parallel,int parts,
+                                float **strength,int left,int top,int right,int bottom,
+                                int bw,int bh,unsigned long area_factor,
+                                float threshold,double * const *temp_d,
+                                double *x_coord,double *y_coord,int *nr_corners)
+{
+    db_ExtractCornersJob job;
+    unsigned long offset;
+    int nr_rows,row,part,nr_points,y,last_y,x,last_x;
+
+#ifdef DB_SUB_PIXEL
+    // subpixel processing may sometimes push the corner ourside the real border
+    // increasing border size:
+    left++;
+    top++;
+    bottom--;
+    right--;
+#endif /*DB_SUB_PIXEL*/
+
+    nr_rows=(bottom>=top)?(bottom-top)/bh+1:0;
+    parts=db_mini(parts,nr_rows);
+    if(parts<=1)
+    {
+        *nr_corners=db_ExtractCornersFromBlockRows(strength,left,top,right,bottom,bw,bh,area_factor,
+            threshold,temp_d[0],x_coord,y_coord,0,nr_rows);
+        return;
+    }
+
+    job.strength=strength;
+    job.left=left; job.top=top; job.right=right; job.bottom=bottom;
+    job.bw=bw; job.bh=bh;
+    job.area_factor=area_factor;
+    job.threshold=threshold;
+    job.temp_d=temp_d;
+    job.x_coord=x_coord;
+    job.y_coord=y_coord;
+
+    /*Each block holds at most its saturation, and the saturations of all the blocks add
+    up to at most the corners the caller has room for*/
+    offset=0;
+    row=0;
+    for(part=0;part<parts;part++)
+    {
+        job.first_row[part]=(nr_rows*part)/parts;
+        job.offset[part]=offset;
+        for(;row<(nr_rows*(part+1))/parts;row++)
+        {
+            y=top+row*bh;
+            last_y=db_mini(y+bh-1,bottom);
+            for(x=left;x<=right;x+=bw)
+            {
+                last_x=db_mini(x+bw-1,right);
+                offset+=((unsigned long)((last_x-x+1)*(last_y-y+1))*area_factor)/10000;
+            }
+        }
+    }
+    job.first_row[parts]=nr_rows;
+
+    db_RunParallel(parallel,&job,parts);
+
+    /*Merge the corners of the parts in order*/
+    nr_points=0;
+    for(part=0;part<parts;part++)
+    {
+        if(job.offset[part]!=(unsigned long)nr_points)
+        {
+            memmove(x_coord+nr_points,x_coord+job.offset[part],job.nr[part]*sizeof(double));
+            memmove(y_coord+nr_points,y_coord+job.offset[part],job.nr[part]*sizeof(double));
+        }
+        nr_points+=job.nr[part];
+    }
     *nr_corners=nr_points;
 }
 
+/*Extract corners from the image part from (left,top) to (right,bottom).
+Store in x and y, extracting at most satnr corners in each block of size (bw,bh).
+The pointer temp_d should point to at least 5*bw*bh positions.
+area_factor holds how many corners max to extract per 10000 pixels*/
+void db_ExtractCornersSaturated(float **strength,int left,int top,int right,int bottom,
+                                int bw,int bh,unsigned long area_factor,
+                                float threshold,double *temp_d,
+                                double *x_coord,double *y_coord,int *nr_corners)
+{
+    db_ExtractCornersSaturatedParallel(0,1,strength,left,top,right,bottom,bw,bh,area_factor,
+        threshold,&temp_d,x_coord,y_coord,nr_corners);
+}
+
 db_CornerDetector_f::db_CornerDetector_f()
 {
     m_w=0; m_h=0;
@@ -1646,6 +1782,8 @@ void db_CornerDetector_f::DetectCorners(const float * const *img,double *x_coord
 db_CornerDetector_u::db_CornerDetector_u()
 {
     m_w=0; m_h=0;
+    m_parallel=0;
+    m_nr_parts=0;
 }
 
 db_CornerDetector_u::~db_CornerDetector_u()
@@ -1655,6 +1793,8 @@ db_CornerDetector_u::~db_CornerDetector_u()
 
 db_CornerDetector_u::db_CornerDetector_u(const db_CornerDetector_u& cd)
 {
+    m_w=0; m_h=0;
+    m_parallel=cd.m_parallel;
     Start(cd.m_w, cd.m_h, cd.m_bw, cd.m_bh, cd.m_area_factor,
         cd.m_a_thresh, cd.m_r_thresh);
 }
@@ -1664,6 +1804,7 @@ db_CornerDetector_u& db_CornerDetector_u::operator=(const db_CornerDetector_u& c
     if ( this == &cd ) return *this;
 
     Clean();
+    m_parallel=cd.m_parallel;
 
     Start(cd.m_w, cd.m_h, cd.m_bw, cd.m_bh, cd.m_area_factor,
         cd.m_a_thresh, cd.m_r_thresh);
@@ -1675,6 +1816,11 @@ void db_CornerDetector_u::Clean()
 {
     if(m_w!=0)
     {
+        for(int part=1;part<m_nr_parts;part++)
+        {
+            delete [] m_part_temp_i[part];
+            delete [] m_part_temp_d[part];
+        }
         delete [] m_temp_i;
         delete [] m_temp_d;
         db_FreeStrengthImage_f(m_strength_mem,m_strength,m_h);
@@ -1721,15 +1867,40 @@ unsigned long db_CornerDetector_u::Start(int im_width,int im_height,
     m_temp_d=new double[5*m_bw*m_bh];
     m_strength=db_AllocStrengthImage_f(&m_strength_mem,m_w,m_h);
 
+    m_nr_parts=1;
+    m_part_temp_i[0]=m_temp_i;
+    m_part_temp_d[0]=m_temp_d;
+
     return(m_max_nr);
 }
 
+int db_CornerDetector_u::StartParts() const
+{
+    int parts=db_NrParallelParts(m_parallel,DB_MAX_PARALLEL_PARTS);
+
+    for(;m_nr_parts<parts;m_nr_parts++)
+    {
+        m_part_temp_i[m_nr_parts]=new int[18*128];
+        m_part_temp_d[m_nr_parts]=new double[5*m_bw*m_bh];
+    }
+    return(parts);
+}
+
 void db_CornerDetector_u::DetectCorners(const unsigned char * const *img,double *x_coord,double *y_coord,int *nr_corners,
                                         const unsigned char * const *msk, unsigned char fgnd) const
 {
     float max_val,threshold;
+    db_HarrisStrengthJob_u strength;
+    int parts;
 
-    db_HarrisStrength_u(m_strength,img,m_w,m_h,m_temp_i);
+    parts=StartParts();
+    strength.s=m_strength;
+    strength.img=img;
+    strength.w=m_w;
+    strength.h=m_h;
+    strength.parts=parts;
+    strength.temp=m_part_temp_i;
+    db_RunParallel(m_parallel,&strength,parts);
 
 
     if(m_r_thresh)
@@ -1739,8 +1910,8 @@ void db_CornerDetector_u::DetectCorners(const unsigned char * const *img,double
     }
     else threshold= (float) m_a_thresh;
 
-    db_ExtractCornersSaturated(m_strength,BORDER,BORDER,m_w-BORDER-1,m_h-BORDER-1,m_bw,m_bh,m_area_factor,threshold,
-        m_temp_d,x_coord,y_coord,nr_corners);
+    db_ExtractCornersSaturatedParallel(m_parallel,parts,m_strength,BORDER,BORDER,m_w-BORDER-1,m_h-BORDER-1,
+        m_bw,m_bh,m_area_factor,threshold,m_part_temp_d,x_coord,y_coord,nr_corners);
 
 
     if ( msk )
@@ -1764,7 +1935,7 @@ void db_CornerDetector_u::DetectCorners(const unsigned char * const *img,double
 
 void db_CornerDetector_u::ExtractCorners(float ** strength, double *x_coord, double *y_coord, int *nr_corners) {
     if ( m_w!=0 )
-        db_ExtractCornersSaturated(strength,BORDER,BORDER,m_w-BORDER-1,m_h-BORDER-1,m_bw,m_bh,m_area_factor,float(m_a_thresh),
-            m_temp_d,x_coord,y_coord,nr_corners);
+        db_ExtractCornersSaturatedParallel(m_parallel,StartParts(),strength,BORDER,BORDER,m_w-BORDER-1,m_h-BORDER-1,
+            m_bw,m_bh,m_area_factor,float(m_a_thresh),m_part_temp_d,x_coord,y_coord,nr_corners);
 }
 
@@ -27,6 +27,7 @@
  */
 #include "db_utilities.h"
 #include "db_utilities_constants.h"
+#include "db_parallel.h"
 #include <stdlib.h> //for NULL
 
 /*!
@@ -158,6 +159,13 @@ public:
      \param nr_corners  actual number of corners computed
      */
     virtual void ExtractCorners(float ** strength, double *x_coord, double *y_coord, int *nr_corners);
+
+    /*!
+     Split the corner strength computation and the extraction of the corners
+     into bands of rows run on parallel, or run them on the calling thread if
+     parallel is NULL. The corners are the same either way.
+     */
+    virtual void SetParallel(db_Parallel *parallel) { m_parallel = parallel; };
 protected:
     virtual void Clean();
     /*The absolute threshold to this function should be 16.0 times
@@ -165,6 +173,9 @@ protected:
     unsigned long Start(int im_width,int im_height,
             int block_width,int block_height,unsigned long area_factor,
             double absolute_threshold,double relative_threshold);
+    /*Return the number of parts to split the detection into, after allocating
+    their temporary memory*/
+    int StartParts() const;
 
     int m_w,m_h,m_bw,m_bh;
     /*Area factor holds the maximum number of corners to detect
@@ -174,6 +185,13 @@ protected:
     int *m_temp_i;
     double *m_temp_d;
     float **m_strength,*m_strength_mem;
+
+    db_Parallel *m_parallel;
+    /*Temporary memory of each part, the first being m_temp_i and m_temp_d.
+    More is allocated when the thread count grows*/
+    mutable int m_nr_parts;
+    mutable int *m_part_temp_i[DB_MAX_PARALLEL_PARTS];
+    mutable double *m_part_temp_d[DB_MAX_PARALLEL_PARTS];
 };
 
 #endif /*DB_FEATURE_DETECTION_H*/
@@ -2729,11 +2729,50 @@ float* db_FillBuckets_f(float *patch_space,const float * const *f_img,db_Bucket_
     return(patch_space);
 }
 
-short* db_FillBuckets_u(short *patch_space,const unsigned char * const *f_img,db_Bucket_u **bp,int bw,int bh,int nr_h,int nr_v,int bd,const double *x,const double *y,int nr_corners,int use_smaller_matching_window, int use_21)
+/*Computes the patch layouts of the points in one band of bucket rows per part*/
+class db_PreAlignBucketsJob_u : public db_Parallel::Job
+{
+public:
+    const unsigned char * const *f_img;
+    db_Bucket_u **bp;
+    int nr_h,nr_v,parts;
+    int use_smaller_matching_window,use_21;
+
+    void Run(int part)
+    {
+        int i,j,k;
+        db_Bucket_u *br;
+        db_PointInfo_u *pir;
+        short *patch;
+
+        for(i=(nr_v*part)/parts;i<(nr_v*(part+1))/parts;i++) for(j=0;j<nr_h;j++)
+        {
+            br=&bp[i][j];
+            for(k=0;k<br->nr;k++)
+            {
+                pir=&(br->ptr[k]);
+                /*The layouts are written here only, in the space given to them by db_FillBuckets_u()*/
+                patch=(short*) pir->patch;
+                if(use_21)
+                    db_SignedSquareNormCorr21x21_PreAlign_u(patch,f_img,pir->x,pir->y,&(pir->sum),&(pir->recip));
+                else if(!use_smaller_matching_window)
+                    db_SignedSquareNormCorr11x11_PreAlign_u(patch,f_img,pir->x,pir->y,&(pir->sum),&(pir->recip));
+                else
+                    db_SignedSquareNormCorr5x5_PreAlign_u(patch,f_img,pir->x,pir->y,&(pir->sum),&(pir->recip));
+            }
+        }
+    }
+};
+
+/*Places the corners in the buckets and computes their patch layouts, the layouts
+split over the threads of parallel if it is not NULL*/
+short* db_FillBuckets_u(short *patch_space,const unsigned char * const *f_img,db_Bucket_u **bp,int bw,int bh,int nr_h,int nr_v,int bd,const double *x,const double *y,int nr_corners,int use_smaller_matching_window, int use_21,
+                        db_Parallel *parallel)
 {
     int i,xi,yi,xpos,ypos,nr;
     db_Bucket_u *br;
     db_PointInfo_u *pir;
+    db_PreAlignBucketsJob_u pre_align;
 
     db_EmptyBuckets_u(bp,nr_h,nr_v);
     for(i=0;i<nr_corners;i++)
@@ -2756,27 +2795,22 @@ short* db_FillBuckets_u(short *patch_space,const unsigned char * const *f_img,db
                 pir->patch=patch_space;
                 br->nr=nr+1;
 
-                if(use_21)
-                {
-                    db_SignedSquareNormCorr21x21_PreAlign_u(patch_space,f_img,xi,yi,&(pir->sum),&(pir->recip));
-                    patch_space+=512;
-                }
-                else
-                {
-                if(!use_smaller_matching_window)
-                {
-                    db_SignedSquareNormCorr11x11_PreAlign_u(patch_space,f_img,xi,yi,&(pir->sum),&(pir->recip));
-                    patch_space+=128;
-                }
-                else
-                {
-                    db_SignedSquareNormCorr5x5_PreAlign_u(patch_space,f_img,xi,yi,&(pir->sum),&(pir->recip));
-                    patch_space+=32;
-                }
-                }
+                if(use_21) patch_space+=512;
+                else if(!use_smaller_matching_window) patch_space+=128;
+                else patch_space+=32;
             }
         }
     }
+
+    pre_align.f_img=f_img;
+    pre_align.bp=bp;
+    pre_align.nr_h=nr_h;
+    pre_align.nr_v=nr_v;
+    pre_align.parts=db_NrParallelParts(parallel,nr_v);
+    pre_align.use_smaller_matching_window=use_smaller_matching_window;
+    pre_align.use_21=use_21;
+    db_RunParallel(parallel,&pre_align,pre_align.parts);
+
     return(patch_space);
 }
 
@@ -2961,7 +2995,10 @@ inline void db_MatchPointPair_f(db_PointInfo_f *pir_l,db_PointInfo_f *pir_r,
     }
 }
 
-inline void db_MatchPointPair_u(db_PointInfo_u *pir_l,db_PointInfo_u *pir_r,
+/*rank_l is the order of pir_l in the traversal of the left points. Of the left
+points with the best score, the right point keeps the first one, whatever the
+order the left points are matched in*/
+inline void db_MatchPointPair_u(db_PointInfo_u *pir_l,db_PointInfo_u *pir_r,int rank_l,
                             unsigned long kA,unsigned long kB, unsigned int rect_window,bool use_smaller_matching_window, int use_21)
 {
     int xm,ym;
@@ -3012,11 +3049,12 @@ inline void db_MatchPointPair_u(db_PointInfo_u *pir_l,db_PointInfo_u *pir_r,
             pir_l->s=score;
             pir_l->pir=pir_r;
         }
-        if((!(pir_r->pir)) || (score>pir_r->s))
+        if((!(pir_r->pir)) || (score>pir_r->s) || (score==pir_r->s && rank_l<pir_r->rank))
         {
             /*Update right corner*/
             pir_r->s=score;
             pir_r->pir=pir_l;
+            pir_r->rank=rank_l;
         }
     }
 }
@@ -3032,7 +3070,7 @@ inline void db_MatchPointAgainstBucket_f(db_PointInfo_f *pir_l,db_Bucket_f *b_r,
     for(p_r=0;p_r<nr;p_r++) db_MatchPointPair_f(pir_l,pir_r+p_r,kA,kB);
 }
 
-inline void db_MatchPointAgainstBucket_u(db_PointInfo_u *pir_l,db_Bucket_u *b_r,
+inline void db_MatchPointAgainstBucket_u(db_PointInfo_u *pir_l,db_Bucket_u *b_r,int rank_l,
                                        unsigned long kA,unsigned long kB,int rect_window, bool use_smaller_matching_window, int use_21)
 {
     int p_r,nr;
@@ -3041,7 +3079,7 @@ inline void db_MatchPointAgainstBucket_u(db_PointInfo_u *pir_l,db_Bucket_u *b_r,
     nr=b_r->nr;
     pir_r=b_r->ptr;
 
-    for(p_r=0;p_r<nr;p_r++) db_MatchPointPair_u(pir_l,pir_r+p_r,kA,kB, rect_window, use_smaller_matching_window, use_21);
+    for(p_r=0;p_r<nr;p_r++) db_MatchPointPair_u(pir_l,pir_r+p_r,rank_l,kA,kB, rect_window, use_smaller_matching_window, use_21);
 
 }
 
@@ -3072,15 +3110,16 @@ void db_MatchBuckets_f(db_Bucket_f **bp_l,db_Bucket_f **bp_r,int nr_h,int nr_v,
     }
 }
 
-void db_MatchBuckets_u(db_Bucket_u **bp_l,db_Bucket_u **bp_r,int nr_h,int nr_v,
+/*Match the points of the left bucket row i against the right buckets around them.
+bd is the capacity of a bucket*/
+inline void db_MatchBucketRow_u(db_Bucket_u **bp_l,db_Bucket_u **bp_r,int i,int nr_h,int bd,
                      unsigned long kA,unsigned long kB,int rect_window,bool use_smaller_matching_window, int use_21)
 {
-    int i,j,k,a,b,br_nr;
+    int j,k,a,b,br_nr;
     db_Bucket_u *br;
     db_PointInfo_u *pir_l;
 
-    /*For all buckets*/
-    for(i=0;i<nr_v;i++) for(j=0;j<nr_h;j++)
+    for(j=0;j<nr_h;j++)
     {
         br=&bp_l[i][j];
         br_nr=br->nr;
@@ -3092,13 +3131,66 @@ void db_MatchBuckets_u(db_Bucket_u **bp_l,db_Bucket_u **bp_r,int nr_h,int nr_v,
             {
                 for(b=j-1;b<=j+1;b++)
                 {
-                    db_MatchPointAgainstBucket_u(pir_l,&bp_r[a][b],kA,kB,rect_window,use_smaller_matching_window, use_21);
+                    db_MatchPointAgainstBucket_u(pir_l,&bp_r[a][b],(i*nr_h+j)*bd+k,kA,kB,rect_window,use_smaller_matching_window, use_21);
                 }
             }
         }
     }
 }
 
+/*Matches the left bucket rows pass, pass+3, pass+6... split among the parts. The
+rows of a pass are three apart, so they touch different right buckets*/
+class db_MatchBucketsJob_u : public db_Parallel::Job
+{
+public:
+    db_Bucket_u **bp_l,**bp_r;
+    int nr_h,nr_v,bd,pass,parts;
+    unsigned long kA,kB;
+    int rect_window;
+    bool use_smaller_matching_window;
+    int use_21;
+
+    void Run(int part)
+    {
+        for(int i=pass+3*part;i<nr_v;i+=3*parts)
+            db_MatchBucketRow_u(bp_l,bp_r,i,nr_h,bd,kA,kB,rect_window,use_smaller_matching_window,use_21);
+    }
+};
+
+/*Match all the left points against the right buckets around them. With parallel, the
+left bucket rows are matched in three passes of rows run at the same time; the matches
+are the same as without*/
+void db_MatchBuckets_u(db_Bucket_u **bp_l,db_Bucket_u **bp_r,int nr_h,int nr_v,int bd,
+                     unsigned long kA,unsigned long kB,int rect_window,bool use_smaller_matching_window, int use_21,
+                     db_Parallel *parallel)
+{
+    db_MatchBucketsJob_u job;
+    int i;
+
+    if(db_NrParallelParts(parallel,(nr_v+2)/3)<=1)
+    {
+        /*For all buckets*/
+        for(i=0;i<nr_v;i++) db_MatchBucketRow_u(bp_l,bp_r,i,nr_h,bd,kA,kB,rect_window,use_smaller_matching_window,use_21);
+        return;
+    }
+
+    job.bp_l=bp_l;
+    job.bp_r=bp_r;
+    job.nr_h=nr_h;
+    job.nr_v=nr_v;
+    job.bd=bd;
+    job.kA=kA;
+    job.kB=kB;
+    job.rect_window=rect_window;
+    job.use_smaller_matching_window=use_smaller_matching_window;
+    job.use_21=use_21;
+    for(job.pass=0;job.pass<3;job.pass++)
+    {
+        job.parts=db_NrParallelParts(parallel,(nr_v-job.pass+2)/3);
+        db_RunParallel(parallel,&job,job.parts);
+    }
+}
+
 void db_CollectMatches_f(db_Bucket_f **bp_l,int nr_h,int nr_v,unsigned long target,int *id_l,int *id_r,int *nr_matches)
 {
     int i,j,k,br_nr;
@@ -3243,6 +3335,7 @@ void db_Matcher_f::Match(const float * const *l_img,const float * const *r_img,
 db_Matcher_u::db_Matcher_u()
 {
     m_w=0; m_h=0;
+    m_parallel=0;
     m_rect_window = 0;
     m_bw=m_bh=m_nr_h=m_nr_v=m_bd=m_target=0;
     m_bp_l=m_bp_r=0;
@@ -3251,12 +3344,14 @@ db_Matcher_u::db_Matcher_u()
 
 db_Matcher_u::db_Matcher_u(const db_Matcher_u& cm)
 {
+    m_parallel=cm.m_parallel;
     Init(cm.m_w, cm.m_h, cm.m_max_disparity, cm.m_target, cm.m_max_disparity_v);
 }
 
 db_Matcher_u& db_Matcher_u::operator= (const db_Matcher_u& cm)
 {
     if ( this == &cm ) return *this;
+    m_parallel=cm.m_parallel;
     Init(cm.m_w, cm.m_h, cm.m_max_disparity, cm.m_target, cm.m_max_disparity_v);
     return *this;
 }
@@ -3357,9 +3452,9 @@ void db_Matcher_u::Match(const unsigned char * const *l_img,const unsigned char
     short *ps;
 
     /*Insert the corners into bucket structure*/
-    ps=db_FillBuckets_u(m_aligned_patch_space,l_img,m_bp_l,m_bw,m_bh,m_nr_h,m_nr_v,m_bd,x_l,y_l,nr_l,m_use_smaller_matching_window,m_use_21);
+    ps=db_FillBuckets_u(m_aligned_patch_space,l_img,m_bp_l,m_bw,m_bh,m_nr_h,m_nr_v,m_bd,x_l,y_l,nr_l,m_use_smaller_matching_window,m_use_21,m_parallel);
     if(H==0)
-        db_FillBuckets_u(ps,r_img,m_bp_r,m_bw,m_bh,m_nr_h,m_nr_v,m_bd,x_r,y_r,nr_r,m_use_smaller_matching_window,m_use_21);
+        db_FillBuckets_u(ps,r_img,m_bp_r,m_bw,m_bh,m_nr_h,m_nr_v,m_bd,x_r,y_r,nr_r,m_use_smaller_matching_window,m_use_21,m_parallel);
     else
     {
         if (affine)
@@ -3398,7 +3493,7 @@ void db_Matcher_u::Match(const unsigned char * const *l_img,const unsigned char
 
 
     /*Compute all the necessary match scores*/
-    db_MatchBuckets_u(m_bp_l,m_bp_r,m_nr_h,m_nr_v,m_kA,m_kB, m_rect_window,m_use_smaller_matching_window,m_use_21);
+    db_MatchBuckets_u(m_bp_l,m_bp_r,m_nr_h,m_nr_v,m_bd,m_kA,m_kB, m_rect_window,m_use_smaller_matching_window,m_use_21,m_parallel);
 
     /*Collect the correspondences*/
     db_CollectMatches_u(m_bp_l,m_nr_h,m_nr_v,m_target,id_l,id_r,nr_matches);
@@ -27,6 +27,7 @@
  */
 #include "db_utilities.h"
 #include "db_utilities_constants.h"
+#include "db_parallel.h"
 
 DB_API void db_SignedSquareNormCorr21x21_PreAlign_u(short *patch,const unsigned char * const *f_img,int x_f,int y_f,float *sum,float *recip);
 DB_API void db_SignedSquareNormCorr11x11_PreAlign_u(short *patch,const unsigned char * const *f_img,int x_f,int y_f,float *sum,float *recip);
@@ -72,6 +73,9 @@ public:
     double s;
     /*Best match candidate*/
     db_PointInfo_u *pir;
+    /*Order of the best match candidate among the points
+    it was matched from, the first one wins a tie*/
+    int rank;
     /*Precomputed coefficients
     of image patch*/
     float sum;
@@ -239,12 +243,20 @@ public:
      */
     int IsAllocated();
 
+    /*!
+     * Split the patch layouts and the match scores over the threads of
+     * parallel, or compute them on the calling thread if parallel is NULL.
+     * The matches are the same either way.
+     */
+    virtual void SetParallel(db_Parallel *parallel) { m_parallel = parallel; };
+
 protected:
     virtual void Clean();
 
 
     int m_w,m_h,m_bw,m_bh,m_nr_h,m_nr_v,m_bd,m_target;
     unsigned long m_kA,m_kB;
+    db_Parallel *m_parallel;
     db_Bucket_u **m_bp_l;
     db_Bucket_u **m_bp_r;
     short *m_patch_space,*m_aligned_patch_space;
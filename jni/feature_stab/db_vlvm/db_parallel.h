@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef DB_PARALLEL_H
+#define DB_PARALLEL_H
+
+#include "db_utilities.h"
+
+/*!
+ * Most parts a job is split into, whatever the thread count.
+ */
+#define DB_MAX_PARALLEL_PARTS 8
+
+/*!
+ * \class db_Parallel
+ * \ingroup LMBasicUtilities
+ * \brief Runs the parts of a job at the same time.
+ *
+ * The library does not start threads of its own. The feature detection and
+ * matching split their work into parts and hand them to the db_Parallel
+ * they are given, if any; their results do not depend on how many threads
+ * run the parts.
+ */
+class DB_API db_Parallel
+{
+public:
+    /*!
+     * Work split into parts that can run at the same time.
+     */
+    class Job
+    {
+    public:
+        virtual ~Job() {}
+        virtual void Run(int part)=0;
+    };
+
+    virtual ~db_Parallel() {}
+
+    /*!
+     * Number of threads the parts run on, including the caller of Run().
+     */
+    virtual int GetThreadCount()=0;
+
+    /*!
+     * Calls job->Run(part) for each part in [0,parts) and returns once all
+     * of them are done.
+     */
+    virtual void Run(Job *job,int parts)=0;
+};
+
+/*!
+ * Number of parts to split a job into: one per thread of parallel, or one
+ * if there is none, and at most max_parts.
+ */
+inline int db_NrParallelParts(db_Parallel *parallel,int max_parts)
+{
+    int parts=parallel ? parallel->GetThreadCount() : 1;
+    if(parts>DB_MAX_PARALLEL_PARTS) parts=DB_MAX_PARALLEL_PARTS;
+    if(parts>max_parts) parts=max_parts;
+    return(parts<1 ? 1 : parts);
+}
+
+/*!
+ * Runs the parts of job on parallel, or on the calling thread if there is
+ * no parallel or a single part.
+ */
+inline void db_RunParallel(db_Parallel *parallel,db_Parallel::Job *job,int parts)
+{
+    if(parallel && parts>1) parallel->Run(job,parts);
+    else for(int part=0;part<parts;part++) job->Run(part);
+}
+
+#endif /*DB_PARALLEL_H*/
@@ -620,6 +620,146 @@ void db_RobCamRotation_Polish_Generic(double H[9],int point_count,int homography
         }
     }
 }
+/*Hypotheses generated between two checks of the early termination*/
+#define DB_ROB_HOMOGRAPHY_BATCH 16
+
+/*Computes the hypotheses [first,first+count) from the samples drawn into their
+slots of hyp_H_array, split among the parts*/
+class db_RobHomographyStitchJob : public db_Parallel::Job
+{
+public:
+    double *hyp_H_array,*x_i,*xp_i,*x_h,*xp_h;
+    int homography_type,similarity,first,count,parts;
+    int orientation_preserving,allow_scaling,allow_rotation,allow_translation,sample_size;
+
+    void Run(int part)
+    {
+        int h,s[4];
+        double *hyp;
+        double *X[3],*Xp[3];
+
+        for(h=first+(count*part)/parts;h<first+(count*(part+1))/parts;h++)
+        {
+            hyp=&hyp_H_array[9*h];
+            s[0]=(int) hyp[0];
+            s[1]=(int) hyp[1];
+            s[2]=(int) hyp[2];
+            s[3]=(int) hyp[3];
+            if(similarity)
+            {
+                X[0]= &x_i[s[0]<<1];
+                X[1]= &x_i[s[1]<<1];
+                X[2]= &x_i[s[2]<<1];
+                Xp[0]= &xp_i[s[0]<<1];
+                Xp[1]= &xp_i[s[1]<<1];
+                Xp[2]= &xp_i[s[2]<<1];
+                db_StitchSimilarity2D(hyp,Xp,X,sample_size,orientation_preserving,
+                                      allow_scaling,allow_rotation,allow_translation);
+            }
+            else switch(homography_type)
+            {
+            case DB_HOMOGRAPHY_TYPE_CAMROTATION:
+                db_StitchCameraRotation_2Points(hyp,
+                                          &x_h[3*s[0]],&x_h[3*s[1]],
+                                          &xp_h[3*s[0]],&xp_h[3*s[1]]);
+                break;
+            case DB_HOMOGRAPHY_TYPE_AFFINE:
+                db_StitchAffine2D_3Points(hyp,
+                                          &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
+                                          &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]);
+                break;
+            case DB_HOMOGRAPHY_TYPE_PROJECTIVE:
+            default:
+                db_StitchProjective2D_4Points(hyp,
+                                          &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],&x_h[3*s[3]],
+                                          &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],&xp_h[3*s[3]]);
+            }
+        }
+    }
+};
+
+/*Finds the most inliers among the hypotheses [first,first+count), each part
+keeping the best of its share*/
+class db_RobHomographyInlierJob : public db_Parallel::Job
+{
+public:
+    double *hyp_H_array,*x_i,*xp_i;
+    double one_over_scale2,t2;
+    int point_count,first,count,parts;
+    int best[DB_MAX_PARALLEL_PARTS];
+
+    void Run(int part)
+    {
+        int h,c,inliers;
+        double *hyp;
+
+        best[part]=0;
+        for(h=first+(count*part)/parts;h<first+(count*(part+1))/parts;h++)
+        {
+            hyp=&hyp_H_array[9*h];
+            for(inliers=0,c=0;c<point_count;c++)
+            {
+                inliers+=(db_SquaredInhomogenousHomographyError(xp_i+(c<<1),hyp,x_i+(c<<1))*one_over_scale2<=t2)?1:0;
+            }
+            if(inliers>best[part]) best[part]=inliers;
+        }
+    }
+};
+
+/*Adds the cost of the correspondences [first_corr,last_corr] to the hypotheses
+[0,nr_hyp), split among the parts. Each cost is summed in the same order
+whatever the number of parts*/
+class db_RobHomographyCostJob : public db_Parallel::Job
+{
+public:
+    double *hyp_H_array,*hyp_cost_array,*x_i,*xp_i;
+    int *hyp_perm;
+    double one_over_scale2;
+    int first_corr,last_corr,nr_hyp,parts;
+
+    void Run(int part)
+    {
+        int j,c;
+        double acc;
+        double *hyp_point,*x_i_temp,*xp_i_temp;
+
+        for(j=(nr_hyp*part)/parts;j<(nr_hyp*(part+1))/parts;j++)
+        {
+            hyp_point=hyp_H_array+9*hyp_perm[j];
+            for(c=first_corr;c<=last_corr;)
+            {
+                /*Take log of product of ten reprojection
+                errors to reduce nr of expensive log operations*/
+                if(c+9<=last_corr)
+                {
+                    x_i_temp=x_i+(c<<1);
+                    xp_i_temp=xp_i+(c<<1);
+
+                    acc=db_ExpCauchyInhomogenousHomographyError(xp_i_temp,hyp_point,x_i_temp,one_over_scale2);
+                    acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+2,hyp_point,x_i_temp+2,one_over_scale2);
+                    acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+4,hyp_point,x_i_temp+4,one_over_scale2);
+                    acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+6,hyp_point,x_i_temp+6,one_over_scale2);
+                    acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+8,hyp_point,x_i_temp+8,one_over_scale2);
+                    acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+10,hyp_point,x_i_temp+10,one_over_scale2);
+                    acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+12,hyp_point,x_i_temp+12,one_over_scale2);
+                    acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+14,hyp_point,x_i_temp+14,one_over_scale2);
+                    acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+16,hyp_point,x_i_temp+16,one_over_scale2);
+                    acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+18,hyp_point,x_i_temp+18,one_over_scale2);
+                    c+=10;
+                }
+                else
+                {
+                    for(acc=1.0;c<=last_corr;c++)
+                    {
+                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i+(c<<1),hyp_point,x_i+(c<<1),one_over_scale2);
+                    }
+                }
+                hyp_cost_array[j]+=log(acc);
+            }
+        }
+    }
+};
+
 void db_RobImageHomography(
                               /*Best homography*/
                               double H[9],
@@ -664,7 +804,9 @@ void db_RobImageHomography(
                               // raw image coordinates
                               double *im_raw, double *im_raw_p,
                               // final matches
-                              int *finalNumE)
+                              int *finalNumE,
+                              db_Parallel *parallel,
+                              double confidence)
 {
     /*Random seed*/
     int r_seed;
@@ -674,10 +816,22 @@ void db_RobImageHomography(
     int i,j,c,point_count,hyp_count;
     int last_hyp,new_last_hyp,last_corr;
     int pos,point_pos,last_point;
-    /*Accumulator*/
-    double acc;
     /*Hypothesis pointer*/
     double *hyp_point;
+    /*Samples drawn before the hypotheses are computed
+    and checked for early termination*/
+    int batch,last_sample,first_hyp;
+    /*Size of the random samples, and number of points
+    that determine a hypothesis*/
+    int draw_size,min_points;
+    /*Most inliers of a hypothesis so far, and the fraction
+    of minimal samples made of inliers it implies*/
+    int best_inliers;
+    double inlier_sample_fraction;
+    /*Parallel parts of the estimation*/
+    db_RobHomographyStitchJob stitch;
+    db_RobHomographyInlierJob inlier_count;
+    db_RobHomographyCostJob cost;
     /*Random sample*/
     int s[4];
     /*Pivot for hypothesis pruning*/
@@ -689,8 +843,6 @@ void db_RobImageHomography(
     /*One over the squared scale of
     Cauchy distribution*/
     double one_over_scale2;
-    /*temporary pointers*/
-    double *x_i_temp,*xp_i_temp;
     /*Temporary space for inverse calibration matrices*/
     double K_inv[9];
     double Kp_inv[9];
@@ -698,8 +850,6 @@ void db_RobImageHomography(
     double H_temp[9],H_temp2[9];
     /*Pointers to homogenous coordinates*/
     double *x_h_point,*xp_h_point;
-    /*Array of pointers to inhomogenous coordinates*/
-    double *X[3],*Xp[3];
     /*Similarity parameters*/
     int orientation_preserving,allow_scaling,allow_rotation,allow_translation,sample_size;
 
@@ -778,6 +928,7 @@ void db_RobImageHomography(
 
     /*Generate Hypotheses*/
     hyp_count=0;
+    stitch.similarity=0;
     switch(homography_type)
     {
     case DB_HOMOGRAPHY_TYPE_SIMILARITY:
@@ -857,72 +1008,106 @@ void db_RobImageHomography(
             break;
         }
 
-        if(point_count>=sample_size) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,3,point_count,r_seed);
-            X[0]= &x_i[s[0]<<1];
-            X[1]= &x_i[s[1]<<1];
-            X[2]= &x_i[s[2]<<1];
-            Xp[0]= &xp_i[s[0]<<1];
-            Xp[1]= &xp_i[s[1]<<1];
-            Xp[2]= &xp_i[s[2]<<1];
-            db_StitchSimilarity2D(&hyp_H_array[9*hyp_count],Xp,X,sample_size,orientation_preserving,
-                                  allow_scaling,allow_rotation,allow_translation);
-            hyp_count++;
-        }
+        stitch.similarity=1;
+        draw_size=3;
+        min_points=sample_size;
         break;
 
     case DB_HOMOGRAPHY_TYPE_CAMROTATION:
-        if(point_count>=2) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,2,point_count,r_seed);
-            db_StitchCameraRotation_2Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]]);
-            hyp_count++;
-        }
+        draw_size=2;
+        min_points=2;
         break;
 
     case DB_HOMOGRAPHY_TYPE_CAMROTATION_F:
-        if(point_count>=3) for(i=0;i<nr_samples;i++)
-        {
-            db_RandomSample(s,3,point_count,r_seed);
-            hyp_count+=db_StitchRotationCommonFocalLength_3Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]);
-        }
+    case DB_HOMOGRAPHY_TYPE_CAMROTATION_F_UD:
+    case DB_HOMOGRAPHY_TYPE_AFFINE:
+        draw_size=3;
+        min_points=3;
         break;
 
-    case DB_HOMOGRAPHY_TYPE_CAMROTATION_F_UD:
-        if(point_count>=3) for(i=0;i<nr_samples;i++)
+    case DB_HOMOGRAPHY_TYPE_PROJECTIVE:
+    default:
+        draw_size=4;
+        min_points=4;
+    }
+
+    stitch.hyp_H_array=hyp_H_array;
+    stitch.x_i=x_i;
+    stitch.xp_i=xp_i;
+    stitch.x_h=x_h;
+    stitch.xp_h=xp_h;
+    stitch.homography_type=homography_type;
+    if(stitch.similarity)
+    {
+        stitch.orientation_preserving=orientation_preserving;
+        stitch.allow_scaling=allow_scaling;
+        stitch.allow_rotation=allow_rotation;
+        stitch.allow_translation=allow_translation;
+        stitch.sample_size=sample_size;
+    }
+
+    inlier_count.hyp_H_array=hyp_H_array;
+    inlier_count.x_i=x_i;
+    inlier_count.xp_i=xp_i;
+    inlier_count.one_over_scale2=one_over_scale2;
+    inlier_count.t2=DB_OUTLIER_THRESHOLD*DB_OUTLIER_THRESHOLD;
+    inlier_count.point_count=point_count;
+    best_inliers=0;
+
+    /*Without early termination all the samples make one batch*/
+    batch=(confidence>0.0) ? DB_ROB_HOMOGRAPHY_BATCH : nr_samples;
+    if(point_count>=min_points) for(i=0;i<nr_samples;)
+    {
+        /*Draw the samples of the batch in order, so that the hypotheses
+        do not depend on the number of threads*/
+        first_hyp=hyp_count;
+        for(last_sample=db_mini(i+batch,nr_samples);i<last_sample;i++)
         {
-            db_RandomSample(s,3,point_count,r_seed);
-            hyp_count+=db_StitchRotationCommonFocalLength_3Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],NULL,0);
+            db_RandomSample(s,draw_size,point_count,r_seed);
+            if(homography_type==DB_HOMOGRAPHY_TYPE_CAMROTATION_F)
+            {
+                hyp_count+=db_StitchRotationCommonFocalLength_3Points(&hyp_H_array[9*hyp_count],
+                                          &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
+                                          &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]);
+            }
+            else if(homography_type==DB_HOMOGRAPHY_TYPE_CAMROTATION_F_UD)
+            {
+                hyp_count+=db_StitchRotationCommonFocalLength_3Points(&hyp_H_array[9*hyp_count],
+                                          &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
+                                          &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],NULL,0);
+            }
+            else
+            {
+                /*Keep the sample in the slot of its hypothesis*/
+                hyp_point=&hyp_H_array[9*hyp_count];
+                for(j=0;j<draw_size;j++) hyp_point[j]=(double) s[j];
+                hyp_count++;
+            }
         }
-        break;
-
-    case DB_HOMOGRAPHY_TYPE_AFFINE:
-        if(point_count>=3) for(i=0;i<nr_samples;i++)
+        if((homography_type!=DB_HOMOGRAPHY_TYPE_CAMROTATION_F) && (homography_type!=DB_HOMOGRAPHY_TYPE_CAMROTATION_F_UD))
         {
-            db_RandomSample(s,3,point_count,r_seed);
-            db_StitchAffine2D_3Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]]);
-            hyp_count++;
+            stitch.first=first_hyp;
+            stitch.count=hyp_count-first_hyp;
+            stitch.parts=db_NrParallelParts(parallel,stitch.count);
+            db_RunParallel(parallel,&stitch,stitch.parts);
         }
-        break;
 
-    case DB_HOMOGRAPHY_TYPE_PROJECTIVE:
-    default:
-        if(point_count>=4) for(i=0;i<nr_samples;i++)
+        if((confidence>0.0) && (hyp_count>first_hyp))
         {
-            db_RandomSample(s,4,point_count,r_seed);
-            db_StitchProjective2D_4Points(&hyp_H_array[9*hyp_count],
-                                      &x_h[3*s[0]],&x_h[3*s[1]],&x_h[3*s[2]],&x_h[3*s[3]],
-                                      &xp_h[3*s[0]],&xp_h[3*s[1]],&xp_h[3*s[2]],&xp_h[3*s[3]]);
-            hyp_count++;
+            inlier_count.first=first_hyp;
+            inlier_count.count=hyp_count-first_hyp;
+            inlier_count.parts=db_NrParallelParts(parallel,inlier_count.count);
+            db_RunParallel(parallel,&inlier_count,inlier_count.parts);
+            for(j=0;j<inlier_count.parts;j++) best_inliers=db_maxi(best_inliers,inlier_count.best[j]);
+
+            /*Stop once a sample made of inliers only was drawn with the
+            given confidence, taking the inlier ratio of the best hypothesis*/
+            if(best_inliers>0)
+            {
+                inlier_sample_fraction=pow(((double)best_inliers)/((double)point_count),(double)min_points);
+                if((inlier_sample_fraction>=1.0) ||
+                   (hyp_count>=log(1.0-confidence)/log(1.0-inlier_sample_fraction))) break;
+            }
         }
     }
 
@@ -936,44 +1121,21 @@ void db_RobImageHomography(
             hyp_perm[i]=i;
             hyp_cost_array[i]=0.0;
         }
+        cost.hyp_H_array=hyp_H_array;
+        cost.hyp_cost_array=hyp_cost_array;
+        cost.x_i=x_i;
+        cost.xp_i=xp_i;
+        cost.hyp_perm=hyp_perm;
+        cost.one_over_scale2=one_over_scale2;
         for(i=0,last_hyp=hyp_count-1;(last_hyp>0) && (i<point_count);i+=chunk_size)
         {
             /*Update cost with the next chunk*/
             last_corr=db_mini(i+chunk_size-1,point_count-1);
-            for(j=0;j<=last_hyp;j++)
-            {
-                hyp_point=hyp_H_array+9*hyp_perm[j];
-                for(c=i;c<=last_corr;)
-                {
-                    /*Take log of product of ten reprojection
-                    errors to reduce nr of expensive log operations*/
-                    if(c+9<=last_corr)
-                    {
-                        x_i_temp=x_i+(c<<1);
-                        xp_i_temp=xp_i+(c<<1);
-
-                        acc=db_ExpCauchyInhomogenousHomographyError(xp_i_temp,hyp_point,x_i_temp,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+2,hyp_point,x_i_temp+2,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+4,hyp_point,x_i_temp+4,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+6,hyp_point,x_i_temp+6,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+8,hyp_point,x_i_temp+8,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+10,hyp_point,x_i_temp+10,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+12,hyp_point,x_i_temp+12,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+14,hyp_point,x_i_temp+14,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+16,hyp_point,x_i_temp+16,one_over_scale2);
-                        acc*=db_ExpCauchyInhomogenousHomographyError(xp_i_temp+18,hyp_point,x_i_temp+18,one_over_scale2);
-                        c+=10;
-                    }
-                    else
-                    {
-                        for(acc=1.0;c<=last_corr;c++)
-                        {
-                            acc*=db_ExpCauchyInhomogenousHomographyError(xp_i+(c<<1),hyp_point,x_i+(c<<1),one_over_scale2);
-                        }
-                    }
-                    hyp_cost_array[j]+=log(acc);
-                }
-            }
+            cost.first_corr=i;
+            cost.last_corr=last_corr;
+            cost.nr_hyp=last_hyp+1;
+            cost.parts=db_NrParallelParts(parallel,cost.nr_hyp);
+            db_RunParallel(parallel,&cost,cost.parts);
             if (chunk_size<point_count){
                 /*Prune out half of the hypotheses*/
                 new_last_hyp=(last_hyp+1)/2-1;
@@ -22,6 +22,7 @@
 #include "db_utilities.h"
 #include "db_robust.h"
 #include "db_metrics.h"
+#include "db_parallel.h"
 
 #include <stdlib.h> // for NULL
 
@@ -83,6 +84,16 @@ Calibration matrices:
  \param scale           Cauchy scale coefficient (see db_ExpCauchyReprojectionError() )
  \param nr_samples      number of times to compute a hypothesis
  \param chunk_size      size of cost chunks
+
+ Speed:
+
+ \param parallel        NULL - compute and score the hypotheses on the calling thread,
+                        otherwise split them over its threads. The random samples are
+                        drawn in the same order either way, so the result is the same.
+ \param confidence      0 - draw nr_samples samples. Otherwise stop drawing, after a
+                        batch of samples, once a sample made of inliers only was drawn
+                        with this probability, going by the inlier ratio of the best
+                        hypothesis so far. Less than 1.
 */
 DB_API void db_RobImageHomography(
                               /*Best homography*/
@@ -127,7 +138,9 @@ DB_API void db_RobImageHomography(
                               // raw image coordinates
                               double *im_raw=NULL, double *im_raw_p=NULL,
                               // final matches
-                              int *final_NumE=0);
+                              int *final_NumE=0,
+                              db_Parallel *parallel=NULL,
+                              double confidence=0.0);
 
 DB_API double db_RobImageHomography_Cost(double H[9],int point_count,double *x_i,
                                                 double *xp_i,double one_over_scale2);
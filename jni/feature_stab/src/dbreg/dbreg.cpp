@@ -16,6 +16,7 @@
 
 // $Id: dbreg.cpp,v 1.31 2011/06/17 14:04:32 mbansal Exp $
 #include "dbreg.h"
+#include "dbstagetimer.h"
 #include <string.h>
 #include <stdio.h>
 
@@ -68,6 +69,9 @@ db_FrameToReferenceRegistration::db_FrameToReferenceRegistration() :
   m_reference_update_period = 0;
   m_nr_frames_processed = 0;
 
+  m_homography_confidence = 0.0;
+  m_parallel = NULL;
+
   return;
 }
 
@@ -259,6 +263,7 @@ int db_FrameToReferenceRegistration::UpdateReference(const unsigned char * const
 
   if (m_quarter_resolution && subsample)
   {
+    db_StageTimer timer(db_StageTimer::QuarterRes);
     GenerateQuarterResImage(im);
     imptr = m_quarter_res_image;
   }
@@ -268,6 +273,7 @@ int db_FrameToReferenceRegistration::UpdateReference(const unsigned char * const
 
   if(detect_corners)
   {
+    db_StageTimer timer(db_StageTimer::FeatureDetection);
     #if MB
     m_cd.DetectCorners(imptr, m_x_corners_ref,m_y_corners_ref,&m_nr_corners_ref);
     int nr = 0;
@@ -359,6 +365,7 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
   {
     if (m_quarter_res_image)
     {
+      db_StageTimer timer(db_StageTimer::QuarterRes);
       GenerateQuarterResImage(im);
     }
 
@@ -386,7 +393,9 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
 #if PROFILE
   iTimer1 = now_ms();
 #endif
+  db_StageTimer detection(db_StageTimer::FeatureDetection);
   m_cd.DetectCorners(imptr, m_x_corners_ins,m_y_corners_ins,&m_nr_corners_ins);
+  detection.Stop();
   // @jke - Adding code to time the functions.  TODO: Remove after test
 # if PROFILE
   iTimer2 = now_ms();
@@ -399,6 +408,7 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
 #if PROFILE
   iTimer1 = now_ms();
 #endif
+  db_StageTimer matching(db_StageTimer::FeatureMatching);
     if(prewarp)
   m_cm.Match(m_reference_image,imptr,m_x_corners_ref,m_y_corners_ref,m_nr_corners_ref,
          m_x_corners_ins,m_y_corners_ins,m_nr_corners_ins,
@@ -407,6 +417,7 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
   m_cm.Match(m_reference_image,imptr,m_x_corners_ref,m_y_corners_ref,m_nr_corners_ref,
          m_x_corners_ins,m_y_corners_ins,m_nr_corners_ins,
          m_match_index_ref,m_match_index_ins,&m_nr_matches);
+  matching.Stop();
   // @jke - Adding code to time the functions.  TODO: Remove after test
 # if PROFILE
   iTimer2 = now_ms();
@@ -433,10 +444,12 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
 #if PROFILE
   iTimer1 = now_ms();
 #endif
+  db_StageTimer homography(db_StageTimer::Homography);
   // perform the alignment:
   db_RobImageHomography(m_H_ref_to_ins, m_corners_ref, m_corners_ins, m_nr_matches, m_K, m_K, m_temp_double, m_temp_int,
             m_homography_type,NULL,m_max_iterations,m_max_nr_matches,m_scale,
-            m_nr_samples, m_chunk_size);
+            m_nr_samples, m_chunk_size, 0, NULL, NULL, NULL, NULL, NULL,
+            m_parallel, m_homography_confidence);
   // @jke - Adding code to time the functions.  TODO: Remove after test
 # if PROFILE
   iTimer2 = now_ms();
@@ -457,6 +470,7 @@ int db_FrameToReferenceRegistration::AddFrame(const unsigned char * const * im,
   // Fit a least-squares model to just the inliers and put it in m_H_ref_to_ins
   if(m_linear_polish)
     Polish(m_inlier_indices, m_num_inlier_indices);
+  homography.Stop();
 
   if (m_quarter_resolution)
   {
@@ -592,7 +606,8 @@ void db_FrameToReferenceRegistration::EstimateSecondaryModel(double H[9])
   // perform the alignment:
   db_RobImageHomography(m_H_ref_to_ins, m_corners_ref, m_corners_ins, m_nr_matches, m_K, m_K, m_temp_double, m_temp_int,
             m_homography_type,NULL,m_max_iterations,m_max_nr_matches,m_scale,
-            m_nr_samples, m_chunk_size);
+            m_nr_samples, m_chunk_size, 0, NULL, NULL, NULL, NULL, NULL,
+            m_parallel, m_homography_confidence);
 
   db_Copy9(H,m_H_ref_to_ins);
 }
@@ -193,6 +193,20 @@ public:
      */
     bool Initialized() const { return m_initialized; }
 
+    /*!
+     * Split the corner detection, matching and robust homography over the
+     * threads of parallel, or run them on the calling thread if parallel is
+     * NULL, the default. The computed transformations do not depend on it.
+     */
+    void SetParallel(db_Parallel *parallel) { m_parallel = parallel; m_cd.SetParallel(parallel); m_cm.SetParallel(parallel); }
+
+    /*!
+     * Stop drawing homography hypotheses once one made of inliers only was
+     * drawn with this probability, or draw all of them if it is 0, the
+     * default. See db_RobImageHomography().
+     */
+    void SetHomographyConfidence(double confidence) { m_homography_confidence = confidence; }
+
     /*!
      * Returns true if the current frame is being used as the alignment reference.
     */
@@ -304,6 +318,8 @@ protected:
     int     m_nr_samples;
     int     m_chunk_size;
     double  m_outlier_t2;
+    double  m_homography_confidence;
+    db_Parallel *m_parallel;
 
     // Whether to fit a linear model to just the inliers at the end
     bool   m_linear_polish;
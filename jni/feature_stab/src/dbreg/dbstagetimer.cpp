@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "dbstagetimer.h"
+#include <time.h>
+
+bool db_StageTimer::m_enabled = false;
+double db_StageTimer::m_seconds[db_StageTimer::NumStages];
+int db_StageTimer::m_calls[db_StageTimer::NumStages];
+
+static const char *stage_names[db_StageTimer::NumStages] = {
+    "quarter_res",
+    "detection",
+    "matching",
+    "homography",
+    "sites",
+    "pyramid",
+    "blend",
+    "crop"
+};
+
+db_StageTimer::db_StageTimer(Stage stage) :
+  m_stage(stage),
+  m_start(m_enabled ? Now() : -1.0)
+{
+}
+
+db_StageTimer::~db_StageTimer()
+{
+    Stop();
+}
+
+void db_StageTimer::Stop()
+{
+    if (m_start < 0.0)
+        return;
+
+    m_seconds[m_stage] += Now() - m_start;
+    m_calls[m_stage]++;
+    m_start = -1.0;
+}
+
+void db_StageTimer::SetEnabled(bool enabled)
+{
+    m_enabled = enabled;
+}
+
+void db_StageTimer::Reset()
+{
+    for (int i = 0; i < NumStages; i++)
+    {
+        m_seconds[i] = 0.0;
+        m_calls[i] = 0;
+    }
+}
+
+const char *db_StageTimer::GetName(Stage stage)
+{
+    return stage_names[stage];
+}
+
+double db_StageTimer::Now()
+{
+    struct timespec res;
+    clock_gettime(CLOCK_MONOTONIC, &res);
+    return res.tv_sec + res.tv_nsec / 1e9;
+}
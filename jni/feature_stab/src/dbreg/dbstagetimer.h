@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#pragma once
+
+
+#ifdef _WIN32
+#ifdef DBREG_EXPORTS
+#define DBREG_API __declspec(dllexport)
+#else
+#define DBREG_API __declspec(dllimport)
+#endif
+#else
+#define DBREG_API
+#endif
+
+/*!
+ * Accumulates the time spent in each stage of the mosaic pipeline, for the
+ * benchmarks. It is off by default, and then a timer does not read the
+ * clock. The stages are timed on the calling thread only, so the totals
+ * are wall clock times; they are not thread safe.
+ *
+ * A timer starts when it is created and adds its time to its stage when it
+ * is stopped or destroyed, whichever comes first.
+ */
+class DBREG_API db_StageTimer
+{
+public:
+    //! Pipeline stages
+    typedef enum {
+        QuarterRes = 0,    //!< quarter resolution alignment images
+        FeatureDetection,  //!< corner detection
+        FeatureMatching,   //!< corner matching
+        Homography,        //!< robust homography, inliers and polish
+        Sites,             //!< Delaunay triangulation and frame masks
+        Pyramid,           //!< Laplacian pyramids of the frames
+        Blending,          //!< projection into the mosaic and final blend
+        Cropping,          //!< crop of the final mosaic
+        NumStages
+    } Stage;
+
+    db_StageTimer(Stage stage);
+    ~db_StageTimer();
+
+    /*!
+     * Adds the time since the timer was created to its stage. Later calls
+     * do nothing.
+     */
+    void Stop();
+
+    static void SetEnabled(bool enabled);
+    static bool IsEnabled() { return m_enabled; }
+
+    /*!
+     * Clears the totals of all stages.
+     */
+    static void Reset();
+
+    static double GetSeconds(Stage stage) { return m_seconds[stage]; }
+    static int GetCalls(Stage stage) { return m_calls[stage]; }
+
+    /*!
+     * Returns the lower case name of the stage, as used in reports.
+     */
+    static const char *GetName(Stage stage);
+
+private:
+    static double Now();
+
+    Stage m_stage;
+    // Negative when not timing.
+    double m_start;
+
+    static bool m_enabled;
+    static double m_seconds[NumStages];
+    static int m_calls[NumStages];
+};
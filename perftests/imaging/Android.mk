@@ -0,0 +1,22 @@
+LOCAL_PATH:= $(call my-dir)
+
+include $(CLEAR_VARS)
+
+# The imaging engines do not depend on the framework, so the benchmarks are
+# built from the app sources and run on the host JVM.
+LOCAL_SRC_FILES := \
+    $(call all-java-files-under, src) \
+    ../../src/com/android/camera/ExifEditor.java \
+    ../../src/com/android/camera/ExposureFusion.java \
+    ../../src/com/android/camera/ImagingThreadPool.java \
+    ../../src/com/android/camera/IntArray.java \
+    ../../src/com/android/camera/JpegEncoder.java \
+    ../../src/com/android/camera/JpegTransform.java \
+    ../../src/com/android/camera/MtbAlignment.java \
+    ../../src/com/android/camera/YuvConverter.java
+
+LOCAL_MODULE := camera_imaging_bench
+
+LOCAL_MODULE_TAGS := tests
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.perftests;
+
+import com.android.camera.ExifEditor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compares ExifEditor with the orientation-only parser it replaced.
+ */
+public class ExifBenchmark {
+    private static final int ITERATIONS = 200000;
+    private static final int WRITE_ITERATIONS = 200;
+    private static final int SCAN_SIZE = 5 * 1024 * 1024;
+
+    // Keeps the JIT from dropping the work.
+    private static int sSink;
+
+    public static void main(String[] args) throws IOException {
+        byte[] jpeg = (args.length > 0) ? readFile(args[0]) : createJpeg();
+
+        final byte[] data = jpeg;
+        final ExifEditor exif = new ExifEditor();
+
+        report("Legacy getOrientation:", time(ITERATIONS, new Runnable() {
+            public void run() {
+                sSink += LegacyExif.getOrientation(data);
+            }
+        }), "");
+
+        report("ExifEditor parse:", time(ITERATIONS, new Runnable() {
+            public void run() {
+                exif.parse(data);
+                sSink += exif.getOrientation();
+            }
+        }), " (all IFDs)");
+
+        report("ExifEditor in-place edit:", time(ITERATIONS, new Runnable() {
+            public void run() {
+                exif.parse(data);
+                if (exif.setOrientationInPlace(90)) sSink++;
+            }
+        }), "");
+
+        final int[] size = new int[1];
+        long rewrite = time(WRITE_ITERATIONS, new Runnable() {
+            public void run() {
+                exif.parse(data);
+                exif.setOrientation(180);
+                exif.setDateTimeOriginal(1357000000000L);
+                exif.setGps(37.422, -122.084, 10, 1357000000000L);
+                byte[] out = exif.write();
+                size[0] = out.length;
+            }
+        });
+        report("ExifEditor rewrite:", rewrite, " (" + size[0] + " bytes)");
+    }
+
+    private static long time(int iterations, Runnable r) {
+        // Warm up the JIT first.
+        for (int i = 0; i < iterations / 10; i++) r.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) r.run();
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    private static void report(String name, long nsPerOp, String extra) {
+        System.out.println(String.format("%-26s%9d ns/op%s", name, nsPerOp, extra));
+    }
+
+    private static byte[] readFile(String path) throws IOException {
+        InputStream in = new FileInputStream(path);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    // A JPEG with an EXIF segment shaped like the ones camera HALs write:
+    // about 20 tags in IFD0, 30 in the EXIF IFD, orientation last in IFD0.
+    private static byte[] createJpeg() {
+        ExifEditor exif = new ExifEditor();
+        byte[] bare = new byte[2 + SCAN_SIZE + 2];
+        bare[0] = (byte) 0xFF;
+        bare[1] = (byte) 0xD8;
+        bare[2] = (byte) 0xFF;
+        bare[3] = (byte) 0xDA;
+        bare[bare.length - 2] = (byte) 0xFF;
+        bare[bare.length - 1] = (byte) 0xD9;
+        exif.parse(bare);
+        for (int i = 0; i < 20; i++) {
+            exif.setShort(ExifEditor.IFD_0, 0x0100 + i, i);
+        }
+        exif.setString(ExifEditor.IFD_0, 0x010F, "Manufacturer");
+        exif.setString(ExifEditor.IFD_0, 0x0110, "Model");
+        for (int i = 0; i < 30; i++) {
+            exif.setLong(ExifEditor.IFD_EXIF, 0xA400 + i, i);
+        }
+        exif.setOrientation(90);
+        exif.setDateTimeOriginal(1357000000000L);
+        return exif.write();
+    }
+
+    // The parser used by Exif.getOrientation() before ExifEditor, without
+    // the logging.
+    private static class LegacyExif {
+        public static int getOrientation(byte[] jpeg) {
+            if (jpeg == null) {
+                return 0;
+            }
+
+            int offset = 0;
+            int length = 0;
+
+            while (offset + 3 < jpeg.length && (jpeg[offset++] & 0xFF) == 0xFF) {
+                int marker = jpeg[offset] & 0xFF;
+                if (marker == 0xFF) {
+                    continue;
+                }
+                offset++;
+                if (marker == 0xD8 || marker == 0x01) {
+                    continue;
+                }
+                if (marker == 0xD9 || marker == 0xDA) {
+                    break;
+                }
+                length = pack(jpeg, offset, 2, false);
+                if (length < 2 || offset + length > jpeg.length) {
+                    return 0;
+                }
+                if (marker == 0xE1 && length >= 8 &&
+                        pack(jpeg, offset + 2, 4, false) == 0x45786966 &&
+                        pack(jpeg, offset + 6, 2, false) == 0) {
+                    offset += 8;
+                    length -= 8;
+                    break;
+                }
+                offset += length;
+                length = 0;
+            }
+
+            if (length > 8) {
+                int tag = pack(jpeg, offset, 4, false);
+                if (tag != 0x49492A00 && tag != 0x4D4D002A) {
+                    return 0;
+                }
+                boolean littleEndian = (tag == 0x49492A00);
+                int count = pack(jpeg, offset + 4, 4, littleEndian) + 2;
+                if (count < 10 || count > length) {
+                    return 0;
+                }
+                offset += count;
+                length -= count;
+                count = pack(jpeg, offset - 2, 2, littleEndian);
+                while (count-- > 0 && length >= 12) {
+                    tag = pack(jpeg, offset, 2, littleEndian);
+                    if (tag == 0x0112) {
+                        int orientation = pack(jpeg, offset + 8, 2, littleEndian);
+                        switch (orientation) {
+                            case 1:
+                                return 0;
+                            case 3:
+                                return 180;
+                            case 6:
+                                return 90;
+                            case 8:
+                                return 270;
+                        }
+                        return 0;
+                    }
+                    offset += 12;
+                    length -= 12;
+                }
+            }
+            return 0;
+        }
+
+        private static int pack(byte[] bytes, int offset, int length,
+                boolean littleEndian) {
+            int step = 1;
+            if (littleEndian) {
+                offset += length - 1;
+                step = -1;
+            }
+
+            int value = 0;
+            while (length-- > 0) {
+                value = (value << 8) | (bytes[offset] & 0xFF);
+                offset += step;
+            }
+            return value;
+        }
+    }
+}
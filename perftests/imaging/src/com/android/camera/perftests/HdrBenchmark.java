@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.perftests;
+
+import com.android.camera.ExposureFusion;
+import com.android.camera.JpegEncoder;
+import com.android.camera.MtbAlignment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Times ExposureFusion on synthetic three picture brackets at the sizes
+ * of 8 MP and 13 MP cameras, stage by stage. With the argument "stream",
+ * times the band by band merge to JPEG of the CPU HDR backend instead,
+ * with the brackets made up a row at a time so that they are never in
+ * memory whole either. With "align", times MtbAlignment on the thumbnails
+ * the HDR mode aligns the brackets on.
+ */
+public class HdrBenchmark {
+    private static final int ITERATIONS = 3;
+
+    private static final int[][] SIZES = {
+        {3264, 2448}, {4128, 3096}
+    };
+    private static final float[] EXPOSURES = {0.25f, 1f, 4f};
+    // How far the brackets moved from the middle one, in thumbnail pixels.
+    private static final int[][] SHIFTS = {{9, -4}, {0, 0}, {-13, 6}};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("stream")) {
+            stream();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("align")) {
+            align();
+            return;
+        }
+        ExposureFusion fusion = new ExposureFusion();
+        for (int[] size : SIZES) {
+            int width = size[0];
+            int height = size[1];
+            int[][] brackets = new int[EXPOSURES.length][];
+            for (int i = 0; i < EXPOSURES.length; i++) {
+                brackets[i] = createBracket(width, height, EXPOSURES[i]);
+            }
+            int[] output = new int[width * height];
+            System.out.println(String.format("%dx%d (%.1f MP), %d threads", width, height,
+                    width * height / 1e6, Runtime.getRuntime().availableProcessors()));
+
+            fusion.fuse(brackets, width, height, output);  // warm up
+            long read = 0, weights = 0, blend = 0, collapse = 0, elapsed = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                fusion.fuse(brackets, width, height, output);
+                ExposureFusion.Timing t = fusion.getTiming();
+                read += t.readNs;
+                weights += t.weightsNs;
+                blend += t.blendNs;
+                collapse += t.collapseNs;
+                elapsed += t.elapsedNs;
+            }
+            report("  read tiles", read);
+            report("  weights", weights);
+            report("  pyramid blend", blend);
+            report("  collapse", collapse);
+            report("  elapsed", elapsed);
+        }
+    }
+
+    private static void stream() throws IOException {
+        ExposureFusion fusion = new ExposureFusion();
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            int height = size[1];
+            System.out.println(String.format("%dx%d (%.1f MP), %d threads, %d MB heap",
+                    width, height, width * height / 1e6,
+                    Runtime.getRuntime().availableProcessors(),
+                    Runtime.getRuntime().maxMemory() / (1024 * 1024)));
+
+            final long[] encodeNs = new long[1];
+            final long[] bytes = new long[1];
+            long read = 0, weights = 0, blend = 0, collapse = 0, elapsed = 0, encode = 0;
+            for (int i = 0; i <= ITERATIONS; i++) {
+                encodeNs[0] = 0;
+                bytes[0] = 0;
+                final JpegEncoder encoder = new JpegEncoder(new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        bytes[0]++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        bytes[0] += len;
+                    }
+                }, width, height, 90);
+                fusion.fuseBands(new ExposureFusion.RowSource() {
+                    @Override
+                    public void readRows(int image, int top, int rows, int[] dst, int offset) {
+                        for (int y = top; y < top + rows; y++, offset += width) {
+                            createRow(width, y, EXPOSURES[image], dst, offset);
+                        }
+                    }
+                }, EXPOSURES.length, width, height, new ExposureFusion.RowSink() {
+                    @Override
+                    public void writeRows(int[] pixels, int rows) throws IOException {
+                        long start = System.nanoTime();
+                        encoder.write(pixels, 0, width, rows);
+                        encodeNs[0] += System.nanoTime() - start;
+                    }
+                });
+                encoder.finish();
+                if (i == 0) continue;  // warm up
+                ExposureFusion.Timing t = fusion.getTiming();
+                read += t.readNs;
+                weights += t.weightsNs;
+                blend += t.blendNs;
+                collapse += t.collapseNs;
+                elapsed += t.elapsedNs;
+                encode += encodeNs[0];
+            }
+            report("  read rows and tiles", read);
+            report("  weights", weights);
+            report("  pyramid blend", blend);
+            report("  collapse", collapse);
+            report("  JPEG encode", encode);
+            report("  elapsed", elapsed);
+            System.out.println("  " + bytes[0] + " bytes of JPEG");
+        }
+    }
+
+    private static void align() {
+        for (int[] size : SIZES) {
+            // The thumbnail size HdrSoftwareProcessor decodes the brackets at.
+            int sample = 1;
+            while (size[0] / sample > 1280) sample *= 2;
+            int width = size[0] / sample;
+            int height = size[1] / sample;
+            byte[][] luma = new byte[EXPOSURES.length][];
+            for (int i = 0; i < EXPOSURES.length; i++) {
+                luma[i] = MtbAlignment.luma(createShiftedBracket(width, height, EXPOSURES[i],
+                        SHIFTS[i][0], SHIFTS[i][1]), width, height);
+            }
+            System.out.println(String.format("%dx%d thumbnails of %dx%d, %d threads",
+                    width, height, size[0], size[1],
+                    Runtime.getRuntime().availableProcessors()));
+
+            MtbAlignment alignment = new MtbAlignment();
+            int[] offset = new int[2];
+            StringBuilder found = new StringBuilder();
+            long elapsed = 0;
+            // As many runs again to warm up, this one being short.
+            for (int i = -ITERATIONS; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                alignment.setReference(luma[1], width, height);
+                alignment.align(luma[0], offset);
+                if (i == 0) found.append(offset[0]).append(',').append(offset[1]);
+                alignment.align(luma[2], offset);
+                if (i == 0) found.append(' ').append(offset[0]).append(',').append(offset[1]);
+                if (i >= 0) elapsed += System.nanoTime() - start;
+            }
+            report("  align 2 brackets", elapsed);
+            System.out.println("  offsets " + found + ", max "
+                    + alignment.getMaxOffset());
+        }
+    }
+
+    private static void report(String name, long ns) {
+        System.out.println(String.format("%-30s%9.1f ms/op", name, ns / 1e6 / ITERATIONS));
+    }
+
+    // A textured scene spanning 8 stops from left to right, taken by a
+    // linear sensor.
+    private static int[] createBracket(int width, int height, float exposure) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            createRow(width, y, exposure, pixels, y * width);
+        }
+        return pixels;
+    }
+
+    // The scene moved by (dx, dy): the bracket at (x + dx, y + dy) shows
+    // what a still one shows at (x, y).
+    private static int[] createShiftedBracket(int width, int height, float exposure,
+            int dx, int dy) {
+        int[] pixels = new int[width * height];
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                int sx = x - dx;
+                int sy = y - dy;
+                // Blobs a few stops apart with a fine grain over them, so
+                // there is something to align at every scale.
+                double radiance = Math.pow(2, 3 * Math.sin(sx * 0.013) * Math.sin(sy * 0.011)
+                        + Math.sin(sx * 0.071 + sy * 0.052) - 2 + 1.5 * grain(sx, sy));
+                pixels[i] = gray(255 * Math.min(1, radiance * exposure));
+            }
+        }
+        return pixels;
+    }
+
+    // A hash of (x, y) between -0.5 and 0.5.
+    private static double grain(int x, int y) {
+        int n = x * 73856093 ^ y * 19349663;
+        n ^= n >>> 13;
+        n *= 0x5bd1e995;
+        n ^= n >>> 15;
+        return (n & 0xFFFF) / 65535.0 - 0.5;
+    }
+
+    private static void createRow(int width, int y, float exposure, int[] dst, int offset) {
+        for (int x = 0; x < width; x++) {
+            dst[offset + x] = pixel(width, x, y, exposure);
+        }
+    }
+
+    private static int pixel(int width, int x, int y, float exposure) {
+        double radiance = Math.pow(2, 8.0 * x / width - 6)
+                * (1 + 0.3 * Math.sin(x * 0.05) * Math.sin(y * 0.04));
+        return gray(255 * Math.min(1, radiance * exposure));
+    }
+
+    private static int gray(double v) {
+        int r = (int) v;
+        int g = (int) (v * 0.85);
+        int b = (int) (v * 0.7);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+}
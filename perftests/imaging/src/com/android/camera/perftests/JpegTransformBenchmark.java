@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.perftests;
+
+import com.android.camera.JpegTransform;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+
+/**
+ * Checks JpegTransform against rotating decoded pixels, and compares its
+ * time and memory with decode, rotate and encode.
+ */
+public class JpegTransformBenchmark {
+    private static final int ITERATIONS = 10;
+    private static final float QUALITY = 0.9f;
+
+    private static final int[] DEGREES = {0, 90, 180, 270};
+
+    private static long sSink;
+
+    public static void main(String[] args) throws IOException {
+        byte[] jpeg;
+        if (args.length > 0) {
+            jpeg = Files.readAllBytes(new File(args[0]).toPath());
+        } else {
+            jpeg = encode(createPicture(4000, 3000), QUALITY);
+        }
+        BufferedImage source = ImageIO.read(new ByteArrayInputStream(jpeg));
+        System.out.println(source.getWidth() + "x" + source.getHeight() + ", "
+                + jpeg.length + " bytes");
+
+        // Correctness: every transform must decode to the rotated pixels of
+        // the original, up to IDCT rounding and chroma upsampling.
+        JpegTransform transform = new JpegTransform();
+        for (int mirror = 0; mirror < 2; mirror++) {
+            for (int degrees : DEGREES) {
+                byte[] out = transform.transform(jpeg,
+                        JpegTransform.forRotation(degrees, mirror == 1));
+                if (out == null) {
+                    throw new IllegalStateException(transform.getError());
+                }
+                BufferedImage actual = ImageIO.read(new ByteArrayInputStream(out));
+                // Partial MCUs are only trimmed at the right and bottom edges
+                // of the source.
+                boolean swap = degrees % 180 != 0;
+                BufferedImage kept = source.getSubimage(0, 0,
+                        swap ? actual.getHeight() : actual.getWidth(),
+                        swap ? actual.getWidth() : actual.getHeight());
+                BufferedImage expected = rotate(kept, degrees, mirror == 1);
+                System.out.println(String.format(
+                        "%3d%s: %dx%d, %d bytes, mean error %.3f",
+                        degrees, mirror == 1 ? " mirrored" : "",
+                        actual.getWidth(), actual.getHeight(), out.length,
+                        meanError(expected, actual)));
+            }
+        }
+
+        final byte[] data = jpeg;
+        final JpegTransform t = new JpegTransform();
+        final int code = JpegTransform.forRotation(90, false);
+        Measure.report("Lossless rotate 90:", ITERATIONS, new Runnable() {
+            public void run() {
+                sSink += t.transform(data, code).length;
+            }
+        });
+        Measure.report("Decode/rotate/encode 90:", ITERATIONS, new Runnable() {
+            public void run() {
+                try {
+                    BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+                    sSink += encode(rotate(image, 90, false), QUALITY).length;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    // Smooth gradients with some noise and sharp edges, roughly as hard to
+    // compress as a photo.
+    private static BufferedImage createPicture(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width) ^ ((y / 64) % 2 == 0 ? 0 : 0x40);
+                int g = y * 255 / height;
+                int b = ((x + y) / 8) % 256;
+                int noise = random.nextInt(16);
+                image.setRGB(x, y, (clamp(r + noise) << 16)
+                        | (clamp(g + noise) << 8) | clamp(b + noise));
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(int v) {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    private static byte[] encode(BufferedImage image, float quality) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.setOutput(ImageIO.createImageOutputStream(out));
+        writer.write(null, new IIOImage(image, null, null), param);
+        writer.dispose();
+        return out.toByteArray();
+    }
+
+    // Mirrors left to right if asked, then rotates clockwise.
+    private static BufferedImage rotate(BufferedImage src, int degrees, boolean mirror) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        boolean swap = degrees % 180 != 0;
+        BufferedImage dst = new BufferedImage(swap ? h : w, swap ? w : h,
+                BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int mx = mirror ? w - 1 - x : x;
+                int dx, dy;
+                switch (degrees) {
+                    case 90: dx = h - 1 - y; dy = mx; break;
+                    case 180: dx = w - 1 - mx; dy = h - 1 - y; break;
+                    case 270: dx = y; dy = w - 1 - mx; break;
+                    default: dx = mx; dy = y; break;
+                }
+                dst.setRGB(dx, dy, src.getRGB(x, y));
+            }
+        }
+        return dst;
+    }
+
+    // Mean absolute channel difference.
+    private static double meanError(BufferedImage expected, BufferedImage actual) {
+        int w = actual.getWidth();
+        int h = actual.getHeight();
+        long sum = 0;
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int a = expected.getRGB(x, y);
+                int b = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    sum += Math.abs(((a >> shift) & 0xFF) - ((b >> shift) & 0xFF));
+                }
+            }
+        }
+        return (double) sum / (3.0 * w * h);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.perftests;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Times a piece of work and counts what it allocates on the calling thread.
+ */
+class Measure {
+    private Measure() {
+    }
+
+    // Runs r to warm up the JIT, then iterations times, and prints the mean
+    // time and allocation of one run.
+    public static void report(String name, int iterations, Runnable r) {
+        for (int i = 0; i < Math.max(1, iterations / 2); i++) r.run();
+        long start = System.nanoTime();
+        long allocated = allocatedBytes();
+        for (int i = 0; i < iterations; i++) r.run();
+        double ms = (System.nanoTime() - start) / 1e6 / iterations;
+        long mb = (allocatedBytes() - allocated) / iterations / (1024 * 1024);
+        System.out.println(String.format("%-30s%9.1f ms/op%6d MB allocated/op",
+                name, ms, mb));
+    }
+
+    // Bytes allocated by this thread, where the JVM can tell. Work done in
+    // other threads is not counted.
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.perftests;
+
+import com.android.camera.JpegEncoder;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+
+/**
+ * Compares encoding the high resolution panorama with JpegEncoder, a strip
+ * at a time as PanoramaModule does when the mosaic does not fit in the heap,
+ * with libjpeg through ImageIO, which stands for YuvImage.compressToJpeg()
+ * on the host. Both encode at quality 100, like the app.
+ */
+public class PanoramaJpegBenchmark {
+    private static final int ITERATIONS = 4;
+    // PanoramaModule.MOSAIC_STRIP_ROWS
+    private static final int STRIP_ROWS = 16;
+
+    // A half and a full turn of 1280x720 frames.
+    private static final int[][] SIZES = {
+        {4800, 1000}, {9600, 1000}
+    };
+
+    private static long sSink;
+
+    // Counts the bytes written, and drops them.
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            final byte[] y = new byte[width * height];
+            final byte[] cb = new byte[y.length];
+            final byte[] cr = new byte[y.length];
+            createPlanes(y, cb, cr, width, height);
+            final BufferedImage image = toImage(y, cb, cr, width, height);
+            System.out.println(String.format("%dx%d (%.1f MP)", width, height,
+                    width * height / 1e6));
+
+            final CountingStream out = new CountingStream();
+            Measure.report("  JpegEncoder, strips", ITERATIONS, new Runnable() {
+                public void run() {
+                    try {
+                        out.count = 0;
+                        JpegEncoder encoder = new JpegEncoder(out, width, height, 100);
+                        byte[] sy = new byte[width * STRIP_ROWS];
+                        byte[] scb = new byte[sy.length];
+                        byte[] scr = new byte[sy.length];
+                        for (int top = 0; top < height; top += STRIP_ROWS) {
+                            int rows = Math.min(STRIP_ROWS, height - top);
+                            System.arraycopy(y, top * width, sy, 0, rows * width);
+                            System.arraycopy(cb, top * width, scb, 0, rows * width);
+                            System.arraycopy(cr, top * width, scr, 0, rows * width);
+                            encoder.writeYCbCr(sy, scb, scr, 0, width, rows);
+                        }
+                        encoder.finish();
+                        sSink += out.count;
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            System.out.println("  " + out.count + " bytes of JPEG");
+
+            Measure.report("  libjpeg (ImageIO)", ITERATIONS, new Runnable() {
+                public void run() {
+                    try {
+                        out.count = 0;
+                        encode(image, out);
+                        sSink += out.count;
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            System.out.println("  " + out.count + " bytes of JPEG");
+        }
+    }
+
+    // Smooth gradients with some noise and sharp edges, roughly as hard to
+    // compress as a photo, in JFIF YCbCr.
+    private static void createPlanes(byte[] y, byte[] cb, byte[] cr, int width,
+            int height) {
+        Random random = new Random(42);
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                int i = row * width + x;
+                int noise = random.nextInt(16);
+                y[i] = (byte) (((x * 255 / width) ^ ((row / 64) % 2 == 0 ? 0 : 0x40))
+                        + noise);
+                cb[i] = (byte) (96 + (row * 64 / height) + noise);
+                cr[i] = (byte) (96 + ((x + row) / 8) % 64 + noise);
+            }
+        }
+    }
+
+    private static BufferedImage toImage(byte[] y, byte[] cb, byte[] cr, int width,
+            int height) {
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_3BYTE_BGR);
+        byte[] bgr = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < y.length; i++) {
+            float l = y[i] & 0xff;
+            float u = (cb[i] & 0xff) - 128f;
+            float v = (cr[i] & 0xff) - 128f;
+            bgr[3 * i] = clamp(l + 1.772f * u);
+            bgr[3 * i + 1] = clamp(l - 0.344136f * u - 0.714136f * v);
+            bgr[3 * i + 2] = clamp(l + 1.402f * v);
+        }
+        return image;
+    }
+
+    private static byte clamp(float v) {
+        return (byte) (v < 0 ? 0 : (v > 255 ? 255 : Math.round(v)));
+    }
+
+    private static void encode(BufferedImage image, OutputStream out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(1.0f);
+        writer.setOutput(ImageIO.createImageOutputStream(out));
+        writer.write(null, new IIOImage(image, null, null), param);
+        writer.dispose();
+    }
+}
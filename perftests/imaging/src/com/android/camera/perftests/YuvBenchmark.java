@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.perftests;
+
+import com.android.camera.YuvConverter;
+
+import java.util.Random;
+
+/**
+ * Compares YuvConverter with the conversions it replaced in
+ * Util.decodeYUV422P() and PanoUtil.decodeYUV420SPQuarterRes(), at preview
+ * and capture sizes.
+ */
+public class YuvBenchmark {
+    private static final int ITERATIONS = 20;
+    // The band height Util.decodeYUV422P() uses.
+    private static final int BAND_ROWS = 256;
+
+    private static final int[][] SIZES = {
+        {1920, 1080}, {3264, 2448}, {4128, 3096}
+    };
+
+    private static final int[] FORMATS = {
+        YuvConverter.FORMAT_NV21, YuvConverter.FORMAT_YV12, YuvConverter.FORMAT_YUV422P
+    };
+    private static final String[] FORMAT_NAMES = {"NV21", "YV12", "YUV422P"};
+
+    private static long sSink;
+
+    public static void main(String[] args) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+            // Big enough for all the formats.
+            final byte[] yuv = new byte[width * height * 2];
+            new Random(1).nextBytes(yuv);
+            System.out.println(String.format("%dx%d (%.1f MP)", width, height,
+                    width * height / 1e6));
+
+            Measure.report("  YUV422P legacy", ITERATIONS, new Runnable() {
+                public void run() {
+                    sSink += LegacyYuv.decodeYUV422P(yuv, width, height)[width];
+                }
+            });
+
+            final int[] band = new int[width * BAND_ROWS];
+            int[] threadCounts = (cores > 1) ? new int[] {1, cores} : new int[] {1};
+            for (final int threads : threadCounts) {
+                final YuvConverter converter = new YuvConverter(threads);
+                String suffix = ", " + threads + " thread(s)";
+                for (final int format : FORMATS) {
+                    Measure.report("  " + FORMAT_NAMES[format] + suffix, ITERATIONS,
+                            new Runnable() {
+                        public void run() {
+                            for (int y = 0; y < height; y += BAND_ROWS) {
+                                int rows = Math.min(BAND_ROWS, height - y);
+                                converter.convert(yuv, format, width, height, width,
+                                        0, y, width, rows, 1, band, 0, width);
+                                sSink += band[width];
+                            }
+                        }
+                    });
+                }
+            }
+
+            final int[] quarter = new int[(width / 4) * (height / 4)];
+            Measure.report("  NV21 1/4 legacy", ITERATIONS, new Runnable() {
+                public void run() {
+                    LegacyYuv.decodeYUV420SPQuarterRes(quarter, yuv, width, height);
+                    sSink += quarter[0];
+                }
+            });
+            final YuvConverter converter = new YuvConverter(1);
+            Measure.report("  NV21 1/4, 1 thread(s)", ITERATIONS, new Runnable() {
+                public void run() {
+                    converter.convert(yuv, YuvConverter.FORMAT_NV21, width, height, width,
+                            0, 0, width, height, 4, quarter, 0, width / 4);
+                    sSink += quarter[0];
+                }
+            });
+        }
+    }
+
+    // The conversion loop of Util.decodeYUV422P() before YuvConverter,
+    // without the final Bitmap.createBitmap() copy.
+    private static class LegacyYuv {
+        public static int[] decodeYUV422P(byte[] yuv422p, int width, int height) {
+            final int frameSize = width * height;
+            int[] rgb = new int[frameSize];
+            for (int j = 0, yp = 0; j < height; j++) {
+                int up = frameSize + (j * (width/2)), u = 0, v = 0;
+                int vp = ((int)(frameSize*1.5) + (j*(width/2)));
+                for (int i = 0; i < width; i++, yp++) {
+                    int y = (0xff & ((int) yuv422p[yp])) - 16;
+                    if (y < 0)
+                        y = 0;
+                    if ((i & 1) == 0) {
+                        u = (0xff & yuv422p[up++]) - 128;
+                        v = (0xff & yuv422p[vp++]) - 128;
+                    }
+
+                    int y1192 = 1192 * y;
+                    int r = (y1192 + 1634 * v);
+                    int g = (y1192 - 833 * v - 400 * u);
+                    int b = (y1192 + 2066 * u);
+
+                    if (r < 0)
+                        r = 0;
+                    else if (r > 262143)
+                        r = 262143;
+                    if (g < 0)
+                        g = 0;
+                    else if (g > 262143)
+                        g = 262143;
+                    if (b < 0)
+                        b = 0;
+                    else if (b > 262143)
+                        b = 262143;
+
+                    rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+                }
+            }
+            return rgb;
+        }
+
+        // PanoUtil.decodeYUV420SPQuarterRes() before YuvConverter.
+        public static void decodeYUV420SPQuarterRes(int[] rgb, byte[] yuv420sp, int width, int height) {
+            final int frameSize = width * height;
+
+            for (int j = 0, ypd = 0; j < height; j += 4) {
+                int uvp = frameSize + (j >> 1) * width, u = 0, v = 0;
+                for (int i = 0; i < width; i += 4, ypd++) {
+                    int y = (0xff & (yuv420sp[j * width + i])) - 16;
+                    if (y < 0) {
+                        y = 0;
+                    }
+                    if ((i & 1) == 0) {
+                        v = (0xff & yuv420sp[uvp++]) - 128;
+                        u = (0xff & yuv420sp[uvp++]) - 128;
+                        uvp += 2;  // Skip the UV values for the 4 pixels skipped in between
+                    }
+                    int y1192 = 1192 * y;
+                    int r = (y1192 + 1634 * v);
+                    int g = (y1192 - 833 * v - 400 * u);
+                    int b = (y1192 + 2066 * u);
+
+                    if (r < 0) {
+                        r = 0;
+                    } else if (r > 262143) {
+                        r = 262143;
+                    }
+                    if (g < 0) {
+                        g = 0;
+                    } else if (g > 262143) {
+                        g = 262143;
+                    }
+                    if (b < 0) {
+                        b = 0;
+                    } else if (b > 262143) {
+                        b = 262143;
+                    }
+
+                    rgb[ypd] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) |
+                            ((b >> 10) & 0xff);
+                }
+            }
+        }
+    }
+}
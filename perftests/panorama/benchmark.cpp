@@ -14,21 +14,82 @@
  * limitations under the License.
  */
 
+#include <stdlib.h>
+#include <string.h>
 #include <time.h>
 #include <sys/types.h>
 #include <sys/stat.h>
 #include <unistd.h>
 
+#include "mosaic/FrameIngest.h"
+#include "mosaic/FrameStore.h"
 #include "mosaic/Mosaic.h"
 #include "mosaic/ImageUtils.h"
+#include "dbreg/dbstagetimer.h"
 
 #define MAX_FRAMES 200
 #define KERNEL_ITERATIONS 10
+#define MAX_THREAD_COUNTS 8
+#define NUM_STAGES db_StageTimer::NumStages
+// The whole iteration and the wait for the mosaic after the last frame are
+// gated like stages, under these names.
+#define TOTAL_NAME "total"
+#define LATENCY_NAME "latency"
+// Allowed slowdown in percent, unless the thresholds file says otherwise.
+#define DEFAULT_THRESHOLD 10.0
+// Downscale of the low resolution frames built by --nv21, H2L_FACTOR in the
+// app.
+#define LOW_RES_FACTOR 4
+// Frames of the low resolution mosaic this wide or wider are aligned at
+// quarter resolution, as in the app.
+#define LOW_RES_QUARTER_WIDTH 180
+// Still camera threshold of the low resolution mosaic, as in the app.
+#define LOW_RES_THRESH_STILL 5.0f
 
 const int blendingType = Blend::BLEND_TYPE_HORZ;
 const int stripType = Blend::STRIP_TYPE_WIDE;
 
 ImageType yvuFrames[MAX_FRAMES];
+// With --nv21, the frames as the camera preview delivers them, and the
+// planes FrameIngest builds from them.
+ImageType nv21Frames[MAX_FRAMES];
+ImageType highResFrames[MAX_FRAMES];
+ImageType lowResFrames[MAX_FRAMES];
+
+// The timings of the kernel iterations on one thread count, in ms per
+// iteration.
+struct RunResult {
+    int threads;
+    float totalTime;
+    float stitchTime;
+    double minTotal;
+    double meanTotal;
+    double minLatency;
+    double meanLatency;
+    // ms per frame of the NV21 ingest, with --nv21
+    double minIngest;
+    double meanIngest;
+    // ms per frame of the low resolution alignment, with --low-res
+    double meanLowRes;
+    double maxLowRes;
+    double minStage[NUM_STAGES];
+    double meanStage[NUM_STAGES];
+    int calls[NUM_STAGES];
+    // With --frame-store, the bytes of the frames the store held at most
+    // during the first iteration and when its mosaic was done.
+    size_t peakFrameBytes;
+    size_t keptFrameBytes;
+    int keptFrames;
+};
+
+// Allowed slowdowns in percent, from the thresholds file.
+struct Thresholds {
+    double percent[NUM_STAGES];
+    double total;
+    double latency;
+    // Slowdowns of fewer ms than this are taken as noise.
+    double slackMs;
+};
 
 int loadImages(const char* basename, int &width, int &height)
 {
@@ -48,52 +109,229 @@ int loadImages(const char* basename, int &width, int &height)
     return i;
 }
 
-int main(int argc, char **argv)
+// Makes the NV21 copies of the frames, with the chroma of the top left pixel
+// of each 2x2 block, and the buffers of the planes built from them.
+void makeNV21Frames(int totalFrames, int width, int height)
 {
-    struct timespec t1, t2, t3;
+    int frameSize = width * height;
 
-    int width, height;
-    float totalElapsedTime = 0;
+    for (int i = 0; i < totalFrames; i++) {
+        ImageType yvu = yvuFrames[i];
+        ImageType nv21 = ImageUtils::allocateImage(width, height * 3 / 2, 1);
 
-    const char *basename;
-    const char *filename;
+        memcpy(nv21, yvu, frameSize);
+        ImageType vu = nv21 + frameSize;
+        for (int y = 0; y < height; y += 2) {
+            for (int x = 0; x < width; x += 2) {
+                *vu++ = yvu[frameSize + y * width + x];
+                *vu++ = yvu[2 * frameSize + y * width + x];
+            }
+        }
+        nv21Frames[i] = nv21;
+        highResFrames[i] = ImageUtils::allocateImage(width, height,
+                ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+        lowResFrames[i] = ImageUtils::allocateImage(width / LOW_RES_FACTOR,
+                height / LOW_RES_FACTOR, ImageUtils::IMAGE_TYPE_NUM_CHANNELS);
+    }
+}
 
-    if (argc != 3) {
-        printf("Usage: %s input_dir output_filename\n", argv[0]);
-        return 0;
-    } else {
-        basename = argv[1];
-        filename = argv[2];
+// Aligns the low resolution frame as soon as it is built, as the app does,
+// if there is a low resolution mosaic, and times it.
+class LowResAligner : public FrameIngest::Listener {
+public:
+    LowResAligner(Mosaic *mosaic, ImageType image)
+        : m_mosaic(mosaic), m_image(image), m_seconds(0) {}
+
+    void onLowResReady()
+    {
+        if (m_mosaic == NULL) return;
+        struct timespec t1, t2;
+        clock_gettime(CLOCK_MONOTONIC, &t1);
+        m_mosaic->addFrame(m_image);
+        clock_gettime(CLOCK_MONOTONIC, &t2);
+        m_seconds = (t2.tv_sec - t1.tv_sec) + (t2.tv_nsec - t1.tv_nsec) / 1e9;
     }
 
-    // Load the images outside the computational kernel
-    int totalFrames = loadImages(basename, width, height);
+    double getSeconds() { return m_seconds; }
 
-    if (totalFrames == 0) {
-        printf("Image files not found. Make sure %s exists.\n",
-               basename);
-        return 1;
+private:
+    Mosaic *m_mosaic;
+    ImageType m_image;
+    double m_seconds;
+};
+
+// Builds the planes of frame i from its NV21 copy, as the app does with the
+// preview callback buffers, adds the time to seconds and returns the high
+// resolution frame. The low resolution frame is added to lowRes, unless it
+// is NULL, and the time it took is left in lowResSeconds.
+ImageType ingestFrame(FrameIngest &ingest, int i, int width, int height,
+                      Mosaic *lowRes, double &seconds, double &lowResSeconds)
+{
+    struct timespec t1, t2;
+    LowResAligner listener(lowRes, lowResFrames[i]);
+
+    clock_gettime(CLOCK_MONOTONIC, &t1);
+    ingest.ingest(nv21Frames[i], width, height, LOW_RES_FACTOR,
+                  highResFrames[i], lowResFrames[i], &listener);
+    clock_gettime(CLOCK_MONOTONIC, &t2);
+    seconds += (t2.tv_sec - t1.tv_sec) + (t2.tv_nsec - t1.tv_nsec) / 1e9;
+    lowResSeconds = listener.getSeconds();
+    return highResFrames[i];
+}
+
+// Copies image into an image of store, as the app copies each frame into
+// its store before adding it.
+ImageType storeFrame(FrameStore &store, ImageType image)
+{
+    ImageType stored = store.acquire();
+    if (stored != NULL) {
+        memcpy(stored, image, store.getFrameBytes());
     }
+    return stored;
+}
 
-    printf("%d frames loaded\n", totalFrames);
+// Mean ms per iteration of the corner detection and matching, the part of
+// the alignment split over the threads.
+double featureTime(const RunResult &result)
+{
+    return result.meanStage[db_StageTimer::FeatureDetection] +
+           result.meanStage[db_StageTimer::FeatureMatching];
+}
 
+// Mean ms per frame of the homography stage, the robust estimation of the
+// alignment of a frame and its inliers.
+double homographyTime(const RunResult &result)
+{
+    int calls = result.calls[db_StageTimer::Homography];
+    return calls > 0 ? result.meanStage[db_StageTimer::Homography] / calls : 0;
+}
 
-    // Interesting stuff is here
-    for (int iteration = 0; iteration < KERNEL_ITERATIONS; iteration++)  {
+// Runs the kernel iterations times blending on the given number of threads,
+// 0 leaving the default. Writes the first mosaic to filename, or compares it
+// with reference if there is one.
+//
+// Without a frame interval all the frames are there when the kernel starts,
+// and they are aligned then. With one, a frame arrives every frameInterval
+// ms as during a capture, and the frames are aligned in the background as
+// they arrive.
+//
+// With nv21 each frame is first built from its NV21 copy, as in the CPU
+// capture path of the app.
+//
+// A confidence above 0 lets the robust homography stop drawing hypotheses
+// early.
+//
+// With frameStore the mosaic takes its frames from a FrameStore, into which
+// each one is copied before it is added, and only holds the frames it blends.
+//
+// With lowRes and nv21 the low resolution frames are aligned too, as they
+// are built, into a low resolution mosaic that is not blended, as in the
+// app. The stage times then include that alignment.
+void runKernel(int totalFrames, int width, int height, int iterations,
+               bool quarterRes, int frameInterval, bool nv21,
+               double confidence, bool frameStore, bool lowRes,
+               const char *filename,
+               ImageType &reference, int &referenceWidth, int &referenceHeight,
+               RunResult &result)
+{
+    struct timespec t1, t2, t3;
+    struct timespec interval;
+
+    interval.tv_sec = frameInterval / 1000;
+    interval.tv_nsec = (frameInterval % 1000) * 1000000L;
+
+    result.totalTime = 0;
+    result.stitchTime = 0;
+    result.meanTotal = 0;
+    result.meanLatency = 0;
+    result.meanIngest = 0;
+    result.meanLowRes = 0;
+    result.maxLowRes = 0;
+    for (int s = 0; s < NUM_STAGES; s++) {
+        result.meanStage[s] = 0;
+    }
+
+    FrameIngest ingest;
+    if (nv21) {
+        ingest.start(2);
+    }
+    // Outlives the mosaics, which give their frames back when deleted.
+    FrameStore store;
+
+    for (int iteration = 0; iteration < iterations; iteration++)  {
+        store.initialize(width, height, ImageUtils::IMAGE_TYPE_NUM_CHANNELS,
+                         0);
         Mosaic mosaic;
 
-        mosaic.initialize(blendingType, stripType, width, height, -1, false, 0);
+        mosaic.initialize(blendingType, stripType, width, height, -1,
+                          quarterRes, 0);
+        if (result.threads > 0) {
+            mosaic.setThreadCount(result.threads);
+        }
+        if (confidence > 0) {
+            mosaic.getAligner()->setHomographyConfidence(confidence);
+        }
+        if (frameStore) {
+            mosaic.setFrameStore(&store);
+        }
+        Mosaic *lowResMosaic = NULL;
+        if (lowRes && nv21) {
+            int lowWidth = width / LOW_RES_FACTOR;
+            lowResMosaic = new Mosaic();
+            lowResMosaic->initialize(blendingType, stripType, lowWidth,
+                    height / LOW_RES_FACTOR, -1,
+                    lowWidth >= LOW_RES_QUARTER_WIDTH, LOW_RES_THRESH_STILL);
+            if (result.threads > 0) {
+                lowResMosaic->setThreadCount(result.threads);
+            }
+        }
+        db_StageTimer::Reset();
+        double ingestTime = 0;
+        double lowResTime = 0, lowResFrameTime = 0;
 
         clock_gettime(CLOCK_MONOTONIC, &t1);
-        for (int i = 0; i < totalFrames; i++) {
-            mosaic.addFrame(yvuFrames[i]);
+        if (frameInterval > 0) {
+            mosaic.startBackgroundAlignment();
+            for (int i = 0; i < totalFrames; i++) {
+                if (i > 0) nanosleep(&interval, NULL);
+                ImageType image = nv21 ?
+                        ingestFrame(ingest, i, width, height, lowResMosaic,
+                                    ingestTime, lowResFrameTime) :
+                        yvuFrames[i];
+                lowResTime += lowResFrameTime;
+                if (lowResFrameTime * 1000.0 > result.maxLowRes) {
+                    result.maxLowRes = lowResFrameTime * 1000.0;
+                }
+                mosaic.queueFrame(frameStore ? storeFrame(store, image) :
+                                  image);
+            }
+        } else {
+            for (int i = 0; i < totalFrames; i++) {
+                ImageType image = nv21 ?
+                        ingestFrame(ingest, i, width, height, lowResMosaic,
+                                    ingestTime, lowResFrameTime) :
+                        yvuFrames[i];
+                lowResTime += lowResFrameTime;
+                if (lowResFrameTime * 1000.0 > result.maxLowRes) {
+                    result.maxLowRes = lowResFrameTime * 1000.0;
+                }
+                mosaic.addFrame(frameStore ? storeFrame(store, image) :
+                                image);
+            }
         }
         clock_gettime(CLOCK_MONOTONIC, &t2);
+        delete lowResMosaic;
+        result.meanLowRes += lowResTime * 1000.0 / totalFrames / iterations;
 
         float progress = 0.0;
         bool cancelComputation = false;
 
         mosaic.createMosaic(progress, cancelComputation);
+        if (iteration == 0) {
+            result.peakFrameBytes = store.getPeakHeldBytes();
+            result.keptFrameBytes = store.getHeldBytes();
+            result.keptFrames = store.getHeldFrames();
+        }
 
         int mosaicWidth, mosaicHeight;
         ImageType resultYVU = mosaic.getMosaic(mosaicWidth, mosaicHeight);
@@ -110,22 +348,503 @@ int main(int argc, char **argv)
         float stitchImageTime =
             (t3.tv_sec - t2.tv_sec) + (t3.tv_nsec - t2.tv_nsec)/1e9;
 
-        totalElapsedTime += elapsedTime;
+        // The time from the last frame to the mosaic
+        float latency = frameInterval > 0 ? stitchImageTime : elapsedTime;
+
+        result.totalTime += elapsedTime;
+        result.stitchTime += stitchImageTime;
+        result.meanTotal += elapsedTime * 1000.0 / iterations;
+        if (iteration == 0 || elapsedTime * 1000.0 < result.minTotal) {
+            result.minTotal = elapsedTime * 1000.0;
+        }
+        result.meanLatency += latency * 1000.0 / iterations;
+        if (iteration == 0 || latency * 1000.0 < result.minLatency) {
+            result.minLatency = latency * 1000.0;
+        }
+        double ingestMs = ingestTime * 1000.0 / totalFrames;
+        result.meanIngest += ingestMs / iterations;
+        if (iteration == 0 || ingestMs < result.minIngest) {
+            result.minIngest = ingestMs;
+        }
+        for (int s = 0; s < NUM_STAGES; s++) {
+            db_StageTimer::Stage stage = (db_StageTimer::Stage) s;
+            double ms = db_StageTimer::GetSeconds(stage) * 1000.0;
+            result.meanStage[s] += ms / iterations;
+            if (iteration == 0 || ms < result.minStage[s]) {
+                result.minStage[s] = ms;
+            }
+            result.calls[s] = db_StageTimer::GetCalls(stage);
+        }
 
         printf("Iteration %d: %dx%d moasic created: "
-               "%.2f seconds (%.2f + %.2f)\n",
+               "%.2f seconds (%.2f + %.2f), %.2f after the last frame\n",
                iteration, mosaicWidth, mosaicHeight,
-               elapsedTime, addImageTime, stitchImageTime);
+               elapsedTime, addImageTime, stitchImageTime, latency);
 
         // Write the output only once for correctness check
         if (iteration == 0) {
             ImageUtils::yvu2rgb(imageRGB, resultYVU, mosaicWidth,
                                 mosaicHeight);
-            ImageUtils::writeBinaryPPM(imageRGB, filename, mosaicWidth,
-                                       mosaicHeight);
+            if (reference == NULL) {
+                ImageUtils::writeBinaryPPM(imageRGB, filename, mosaicWidth,
+                                           mosaicHeight);
+                reference = imageRGB;
+                referenceWidth = mosaicWidth;
+                referenceHeight = mosaicHeight;
+                continue;
+            } else if (mosaicWidth != referenceWidth ||
+                       mosaicHeight != referenceHeight ||
+                       memcmp(imageRGB, reference, mosaicWidth * mosaicHeight *
+                              ImageUtils::IMAGE_TYPE_NUM_CHANNELS) != 0) {
+                printf("Mosaic differs from the one written to %s\n",
+                       filename);
+            }
+        }
+        ImageUtils::freeImage(imageRGB);
+    }
+}
+
+void printStages(const RunResult &result)
+{
+    printf("Stage         Calls  Mean (ms)   Min (ms)\n");
+    for (int s = 0; s < NUM_STAGES; s++) {
+        printf("%-12s %6d %10.2f %10.2f\n",
+               db_StageTimer::GetName((db_StageTimer::Stage) s),
+               result.calls[s], result.meanStage[s], result.minStage[s]);
+    }
+    printf("%-12s %6d %10.2f %10.2f\n", TOTAL_NAME, 1, result.meanTotal,
+           result.minTotal);
+    printf("%-12s %6d %10.2f %10.2f\n", LATENCY_NAME, 1, result.meanLatency,
+           result.minLatency);
+}
+
+// Counts the bytes of the mosaic that differ from the golden PPM, or
+// returns -1 if the golden cannot be read or has another size.
+int compareGolden(const char *golden, ImageType mosaic, int width, int height,
+                  int &goldenWidth, int &goldenHeight)
+{
+    goldenWidth = goldenHeight = 0;
+    ImageType image = ImageUtils::readBinaryPPM(golden, goldenWidth,
+                                                goldenHeight);
+    if (image == NULL) {
+        return -1;
+    }
+
+    int differences = -1;
+    if (goldenWidth == width && goldenHeight == height) {
+        differences = 0;
+        int size = width * height * ImageUtils::IMAGE_TYPE_NUM_CHANNELS;
+        for (int i = 0; i < size; i++) {
+            if (image[i] != mosaic[i]) differences++;
+        }
+    }
+    ImageUtils::freeImage(image);
+    return differences;
+}
+
+// Reads lines of "<stage> <percent>", "default <percent>" and
+// "slack_ms <ms>"; # starts a comment.
+bool readThresholds(const char *filename, Thresholds &thresholds)
+{
+    for (int s = 0; s < NUM_STAGES; s++) {
+        thresholds.percent[s] = DEFAULT_THRESHOLD;
+    }
+    thresholds.total = DEFAULT_THRESHOLD;
+    thresholds.latency = DEFAULT_THRESHOLD;
+    thresholds.slackMs = 0;
+    if (filename == NULL) {
+        return true;
+    }
+
+    FILE *file = fopen(filename, "r");
+    if (file == NULL) {
+        fprintf(stderr, "Error: Thresholds %s not found\n", filename);
+        return false;
+    }
+
+    // The default applies to the stages that are not listed, wherever it is.
+    char line[256], name[64];
+    double value;
+    bool listed[NUM_STAGES + 2] = { false };
+    while (fgets(line, sizeof(line), file) != NULL) {
+        if (sscanf(line, "%63s %lf", name, &value) != 2 || name[0] == '#') {
+            continue;
+        }
+        if (strcmp(name, "slack_ms") == 0) {
+            thresholds.slackMs = value;
+        } else if (strcmp(name, "default") == 0) {
+            for (int s = 0; s < NUM_STAGES; s++) {
+                if (!listed[s]) thresholds.percent[s] = value;
+            }
+            if (!listed[NUM_STAGES]) thresholds.total = value;
+            if (!listed[NUM_STAGES + 1]) thresholds.latency = value;
+        } else if (strcmp(name, TOTAL_NAME) == 0) {
+            thresholds.total = value;
+            listed[NUM_STAGES] = true;
+        } else if (strcmp(name, LATENCY_NAME) == 0) {
+            thresholds.latency = value;
+            listed[NUM_STAGES + 1] = true;
+        } else {
+            int s;
+            for (s = 0; s < NUM_STAGES; s++) {
+                if (strcmp(name, db_StageTimer::GetName(
+                        (db_StageTimer::Stage) s)) == 0) break;
+            }
+            if (s == NUM_STAGES) {
+                fprintf(stderr, "Error: Unknown stage %s in %s\n", name,
+                        filename);
+                fclose(file);
+                return false;
+            }
+            thresholds.percent[s] = value;
+            listed[s] = true;
+        }
+    }
+    fclose(file);
+    return true;
+}
+
+char *readFile(const char *filename)
+{
+    FILE *file = fopen(filename, "r");
+    if (file == NULL) {
+        fprintf(stderr, "Error: Baseline %s not found\n", filename);
+        return NULL;
+    }
+    fseek(file, 0, SEEK_END);
+    long size = ftell(file);
+    fseek(file, 0, SEEK_SET);
+    char *text = (char *) malloc(size + 1);
+    size = fread(text, 1, size, file);
+    text[size] = 0;
+    fclose(file);
+    return text;
+}
+
+// Finds the min_ms of the named entry in the run of a baseline written by
+// writeJson(), or returns -1.
+double baselineMs(const char *run, const char *name)
+{
+    char key[80];
+    snprintf(key, sizeof(key), "\"%s\": {", name);
+    const char *entry = strstr(run, key);
+    const char *next = strstr(run + 1, "\"threads\": ");
+    if (entry == NULL || (next != NULL && entry > next)) {
+        return -1;
+    }
+    const char *min = strstr(entry, "\"min_ms\": ");
+    return min != NULL ? atof(min + strlen("\"min_ms\": ")) : -1;
+}
+
+bool checkStage(const char *name, double ms, double baseline, double percent,
+                double slackMs, int threads)
+{
+    if (baseline < 0 || ms <= baseline * (1 + percent / 100) ||
+            ms - baseline <= slackMs) {
+        return true;
+    }
+    printf("REGRESSION: %s", name);
+    if (threads > 0) {
+        printf(" on %d threads", threads);
+    }
+    printf(" took %.2f ms, %.1f%% over the baseline %.2f ms "
+           "(threshold %.1f%%)\n", ms, (ms / baseline - 1) * 100, baseline,
+           percent);
+    return false;
+}
+
+// Compares the minimum times of the run with those of the run on the same
+// thread count in the baseline. Returns false if any got slower than its
+// threshold.
+bool checkRegressions(const char *baseline, const RunResult &result,
+                      const Thresholds &thresholds)
+{
+    char key[32];
+    snprintf(key, sizeof(key), "\"threads\": %d,", result.threads);
+    const char *run = strstr(baseline, key);
+    if (run == NULL) {
+        printf("No baseline for %d threads\n", result.threads);
+        return true;
+    }
+
+    bool ok = true;
+    for (int s = 0; s < NUM_STAGES; s++) {
+        const char *name = db_StageTimer::GetName((db_StageTimer::Stage) s);
+        ok &= checkStage(name, result.minStage[s], baselineMs(run, name),
+                         thresholds.percent[s], thresholds.slackMs,
+                         result.threads);
+    }
+    ok &= checkStage(TOTAL_NAME, result.minTotal, baselineMs(run, TOTAL_NAME),
+                     thresholds.total, thresholds.slackMs, result.threads);
+    ok &= checkStage(LATENCY_NAME, result.minLatency,
+                     baselineMs(run, LATENCY_NAME), thresholds.latency,
+                     thresholds.slackMs, result.threads);
+    return ok;
+}
+
+void writeJson(FILE *out, int totalFrames, int iterations, int frameInterval,
+               bool nv21, bool frameStore, bool lowRes, int mosaicWidth,
+               int mosaicHeight, const char *golden, int goldenDifferences,
+               const RunResult *results, int counts, bool passed)
+{
+    fprintf(out, "{\n");
+    fprintf(out, "  \"frames\": %d,\n", totalFrames);
+    fprintf(out, "  \"iterations\": %d,\n", iterations);
+    fprintf(out, "  \"frame_interval_ms\": %d,\n", frameInterval);
+    fprintf(out, "  \"mosaic\": {\"width\": %d, \"height\": %d},\n",
+            mosaicWidth, mosaicHeight);
+    if (golden != NULL) {
+        fprintf(out, "  \"golden\": {\"file\": \"%s\", \"match\": %s, "
+                "\"differing_bytes\": %d},\n", golden,
+                goldenDifferences == 0 ? "true" : "false", goldenDifferences);
+    }
+    fprintf(out, "  \"runs\": [\n");
+    for (int c = 0; c < counts; c++) {
+        const RunResult &result = results[c];
+        fprintf(out, "    {\n");
+        fprintf(out, "      \"threads\": %d,\n", result.threads);
+        fprintf(out, "      \"speedup\": %.3f,\n",
+                results[0].minTotal / result.minTotal);
+        fprintf(out, "      \"homography_ms_per_frame\": %.3f,\n",
+                homographyTime(result));
+        if (nv21) {
+            fprintf(out, "      \"ingest\": {\"mean_ms\": %.3f, "
+                    "\"min_ms\": %.3f, \"fps\": %.1f},\n",
+                    result.meanIngest, result.minIngest,
+                    1000.0 / result.meanIngest);
+        }
+        if (lowRes && nv21) {
+            fprintf(out, "      \"low_res\": {\"mean_ms\": %.3f, "
+                    "\"max_ms\": %.3f},\n",
+                    result.meanLowRes, result.maxLowRes);
+        }
+        if (frameStore) {
+            fprintf(out, "      \"frame_store\": {\"peak_bytes\": %zu, "
+                    "\"kept_bytes\": %zu, \"kept_frames\": %d},\n",
+                    result.peakFrameBytes, result.keptFrameBytes,
+                    result.keptFrames);
+        }
+        fprintf(out, "      \"stages\": {\n");
+        for (int s = 0; s < NUM_STAGES; s++) {
+            fprintf(out, "        \"%s\": {\"calls\": %d, \"mean_ms\": %.3f, "
+                    "\"min_ms\": %.3f},\n",
+                    db_StageTimer::GetName((db_StageTimer::Stage) s),
+                    result.calls[s], result.meanStage[s], result.minStage[s]);
+        }
+        fprintf(out, "        \"%s\": {\"calls\": 1, \"mean_ms\": %.3f, "
+                "\"min_ms\": %.3f},\n", TOTAL_NAME, result.meanTotal,
+                result.minTotal);
+        fprintf(out, "        \"%s\": {\"calls\": 1, \"mean_ms\": %.3f, "
+                "\"min_ms\": %.3f}\n", LATENCY_NAME, result.meanLatency,
+                result.minLatency);
+        fprintf(out, "      }\n");
+        fprintf(out, "    }%s\n", c < counts - 1 ? "," : "");
+    }
+    fprintf(out, "  ],\n");
+    fprintf(out, "  \"passed\": %s\n", passed ? "true" : "false");
+    fprintf(out, "}\n");
+}
+
+void usage(const char *name)
+{
+    printf("Usage: %s input_dir output_filename [options] [threads...]\n"
+           "  --iterations N     kernel iterations per thread count (%d)\n"
+           "  --quarter-res      align at quarter resolution\n"
+           "  --frame-interval MS  feed a frame every MS ms, aligning in the\n"
+           "                     background as during a capture\n"
+           "  --nv21             build the frames from NV21 copies first\n"
+           "  --low-res          with --nv21, align the low resolution\n"
+           "                     frames too, as they are built\n"
+           "  --ransac-confidence P  stop drawing homography hypotheses\n"
+           "                     once an all inlier one is drawn with\n"
+           "                     probability P\n"
+           "  --frame-store      copy the frames into a frame store, which\n"
+           "                     only keeps those the blend uses\n"
+           "  --golden FILE      fail unless the mosaic is the same as FILE\n"
+           "  --json FILE        write the results as JSON, - for stdout\n"
+           "  --baseline FILE    fail if a stage is slower than in this JSON\n"
+           "  --thresholds FILE  allowed slowdown of each stage, in percent\n",
+           name, KERNEL_ITERATIONS);
+}
+
+int main(int argc, char **argv)
+{
+    int width, height;
+
+    const char *basename;
+    const char *filename;
+    const char *golden = NULL;
+    const char *json = NULL;
+    const char *baseline = NULL;
+    const char *thresholdsFile = NULL;
+    int iterations = KERNEL_ITERATIONS;
+    bool quarterRes = false;
+    int frameInterval = 0;
+    bool nv21 = false;
+    double confidence = 0;
+    bool frameStore = false;
+    bool lowRes = false;
+    RunResult results[MAX_THREAD_COUNTS];
+    int counts = 0;
+
+    if (argc < 3) {
+        usage(argv[0]);
+        return 0;
+    } else {
+        basename = argv[1];
+        filename = argv[2];
+    }
+
+    for (int i = 3; i < argc; i++) {
+        bool hasValue = i + 1 < argc;
+        if (strcmp(argv[i], "--iterations") == 0 && hasValue) {
+            iterations = atoi(argv[++i]);
+        } else if (strcmp(argv[i], "--quarter-res") == 0) {
+            quarterRes = true;
+        } else if (strcmp(argv[i], "--frame-interval") == 0 && hasValue) {
+            frameInterval = atoi(argv[++i]);
+        } else if (strcmp(argv[i], "--nv21") == 0) {
+            nv21 = true;
+        } else if (strcmp(argv[i], "--low-res") == 0) {
+            lowRes = true;
+        } else if (strcmp(argv[i], "--ransac-confidence") == 0 && hasValue) {
+            confidence = atof(argv[++i]);
+        } else if (strcmp(argv[i], "--frame-store") == 0) {
+            frameStore = true;
+        } else if (strcmp(argv[i], "--golden") == 0 && hasValue) {
+            golden = argv[++i];
+        } else if (strcmp(argv[i], "--json") == 0 && hasValue) {
+            json = argv[++i];
+        } else if (strcmp(argv[i], "--baseline") == 0 && hasValue) {
+            baseline = argv[++i];
+        } else if (strcmp(argv[i], "--thresholds") == 0 && hasValue) {
+            thresholdsFile = argv[++i];
+        } else if (argv[i][0] != '-' && atoi(argv[i]) > 0 &&
+                   counts < MAX_THREAD_COUNTS) {
+            results[counts++].threads = atoi(argv[i]);
+        } else {
+            usage(argv[0]);
+            return 1;
+        }
+    }
+    if (iterations < 1 || frameInterval < 0 || confidence < 0 ||
+            confidence >= 1 || (lowRes && !nv21)) {
+        usage(argv[0]);
+        return 1;
+    }
+    if (counts == 0) {
+        // The default thread count
+        results[counts++].threads = 0;
+    }
+
+    Thresholds thresholds;
+    if (!readThresholds(thresholdsFile, thresholds)) {
+        return 1;
+    }
+    char *baselineText = NULL;
+    if (baseline != NULL && (baselineText = readFile(baseline)) == NULL) {
+        return 1;
+    }
+
+    // Load the images outside the computational kernel
+    int totalFrames = loadImages(basename, width, height);
+
+    if (totalFrames == 0) {
+        printf("Image files not found. Make sure %s exists.\n",
+               basename);
+        return 1;
+    }
+
+    printf("%d frames loaded\n", totalFrames);
+    if (nv21) {
+        makeNV21Frames(totalFrames, width, height);
+    }
+
+    // Interesting stuff is here
+    ImageType reference = NULL;
+    int referenceWidth = 0, referenceHeight = 0;
+    bool passed = true;
+
+    db_StageTimer::SetEnabled(true);
+    for (int c = 0; c < counts; c++) {
+        if (results[c].threads > 0) {
+            printf("%d threads:\n", results[c].threads);
+        }
+        runKernel(totalFrames, width, height, iterations, quarterRes,
+                  frameInterval, nv21, confidence, frameStore, lowRes,
+                  filename,
+                  reference, referenceWidth, referenceHeight, results[c]);
+        printf("Total elapsed time: %.2f seconds\n", results[c].totalTime);
+        printStages(results[c]);
+        printf("Homography: %.3f ms per frame\n", homographyTime(results[c]));
+        if (nv21) {
+            printf("NV21 ingest: %.2f ms per frame (min %.2f), %.1f fps\n",
+                   results[c].meanIngest, results[c].minIngest,
+                   1000.0 / results[c].meanIngest);
+        }
+        if (lowRes) {
+            printf("Low res alignment: %.2f ms per frame (max %.2f)\n",
+                   results[c].meanLowRes, results[c].maxLowRes);
+        }
+        if (frameStore) {
+            printf("Frame store: peak %.1f MB, %d of %d frames (%.1f MB) "
+                   "kept, %.1f MB for all the frames\n",
+                   results[c].peakFrameBytes / 1048576.0,
+                   results[c].keptFrames, totalFrames,
+                   results[c].keptFrameBytes / 1048576.0,
+                   (double) totalFrames * width * height *
+                   ImageUtils::IMAGE_TYPE_NUM_CHANNELS / 1048576.0);
+        }
+        if (baselineText != NULL) {
+            passed &= checkRegressions(baselineText, results[c], thresholds);
+        }
+    }
+
+    if (counts > 1) {
+        printf("Threads  Total (s)  Stitch (s)  Stitch speedup"
+               "  Features (ms)  Features speedup\n");
+        for (int c = 0; c < counts; c++) {
+            printf("%7d  %9.2f  %10.2f  %13.2fx  %13.2f  %15.2fx\n",
+                   results[c].threads, results[c].totalTime,
+                   results[c].stitchTime,
+                   results[0].stitchTime / results[c].stitchTime,
+                   featureTime(results[c]),
+                   featureTime(results[0]) / featureTime(results[c]));
+        }
+    }
+
+    int goldenDifferences = 0;
+    if (golden != NULL) {
+        int goldenWidth, goldenHeight;
+        goldenDifferences = compareGolden(golden, reference, referenceWidth,
+                referenceHeight, goldenWidth, goldenHeight);
+        if (goldenDifferences == 0) {
+            printf("Mosaic matches %s\n", golden);
+        } else {
+            printf("MISMATCH: %dx%d mosaic differs from the %dx%d %s",
+                   referenceWidth, referenceHeight, goldenWidth, goldenHeight,
+                   golden);
+            if (goldenDifferences > 0) {
+                printf(" in %d bytes", goldenDifferences);
+            }
+            printf("\n");
+            passed = false;
+        }
+    }
+
+    if (json != NULL) {
+        FILE *out = strcmp(json, "-") == 0 ? stdout : fopen(json, "w");
+        if (out == NULL) {
+            fprintf(stderr, "Error: Filename %s could not be opened for "
+                    "writing\n", json);
+            return 1;
         }
+        writeJson(out, totalFrames, iterations, frameInterval, nv21,
+                  frameStore, lowRes, referenceWidth, referenceHeight, golden,
+                  goldenDifferences, results, counts, passed);
+        if (out != stdout) fclose(out);
     }
-    printf("Total elapsed time: %.2f seconds\n", totalElapsedTime);
 
-    return 0;
+    free(baselineText);
+    return passed ? 0 : 1;
 }
@@ -129,6 +129,7 @@ public abstract class ActivityBase extends AbstractGalleryActivity
                     || action.equals(Intent.ACTION_MEDIA_UNMOUNTED)
                     || action.equals(Intent.ACTION_MEDIA_CHECKING)
                     || action.equals(Intent.ACTION_MEDIA_SCANNER_FINISHED)) {
+                Storage.getStorage().invalidateAvailableSpace();
                 updateStorageSpaceAndHint();
             }
         }
@@ -243,6 +244,8 @@ public abstract class ActivityBase extends AbstractGalleryActivity
         super.onResume();
 
         installIntentFilter();
+        // Other apps may have used the storage while we were paused.
+        Storage.getStorage().invalidateAvailableSpace();
         if (updateStorageHintOnResume()) {
             updateStorageSpace();
             mHandler.sendEmptyMessageDelayed(UPDATE_STORAGE_HINT, 200);
@@ -281,6 +281,9 @@ public class CameraActivity extends ActivityBase
         mCurrentModule.onPauseBeforeSuper();
         super.onPause();
         mCurrentModule.onPauseAfterSuper();
+        // Make sure everything saved so far reaches the storage device,
+        // without blocking the main thread on the fsyncs.
+        Storage.getStorage().getFileWriter().syncInBackground();
     }
 
     @Override
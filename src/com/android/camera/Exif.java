@@ -16,6 +16,7 @@
 
 package com.android.camera;
 
+import android.location.Location;
 import android.util.Log;
 
 public class Exif {
@@ -27,111 +28,36 @@ public class Exif {
             return 0;
         }
 
-        int offset = 0;
-        int length = 0;
-
-        // ISO/IEC 10918-1:1993(E)
-        while (offset + 3 < jpeg.length && (jpeg[offset++] & 0xFF) == 0xFF) {
-            int marker = jpeg[offset] & 0xFF;
-
-            // Check if the marker is a padding.
-            if (marker == 0xFF) {
-                continue;
-            }
-            offset++;
-
-            // Check if the marker is SOI or TEM.
-            if (marker == 0xD8 || marker == 0x01) {
-                continue;
-            }
-            // Check if the marker is EOI or SOS.
-            if (marker == 0xD9 || marker == 0xDA) {
-                break;
-            }
-
-            // Get the length and check if it is reasonable.
-            length = pack(jpeg, offset, 2, false);
-            if (length < 2 || offset + length > jpeg.length) {
-                Log.e(TAG, "Invalid length");
-                return 0;
-            }
-
-            // Break if the marker is EXIF in APP1.
-            if (marker == 0xE1 && length >= 8 &&
-                    pack(jpeg, offset + 2, 4, false) == 0x45786966 &&
-                    pack(jpeg, offset + 6, 2, false) == 0) {
-                offset += 8;
-                length -= 8;
-                break;
-            }
-
-            // Skip other markers.
-            offset += length;
-            length = 0;
-        }
-
-        // JEITA CP-3451 Exif Version 2.2
-        if (length > 8) {
-            // Identify the byte order.
-            int tag = pack(jpeg, offset, 4, false);
-            if (tag != 0x49492A00 && tag != 0x4D4D002A) {
-                Log.e(TAG, "Invalid byte order");
-                return 0;
-            }
-            boolean littleEndian = (tag == 0x49492A00);
-
-            // Get the offset and check if it is reasonable.
-            int count = pack(jpeg, offset + 4, 4, littleEndian) + 2;
-            if (count < 10 || count > length) {
-                Log.e(TAG, "Invalid offset");
-                return 0;
-            }
-            offset += count;
-            length -= count;
-
-            // Get the count and go through all the elements.
-            count = pack(jpeg, offset - 2, 2, littleEndian);
-            while (count-- > 0 && length >= 12) {
-                // Get the tag and check if it is orientation.
-                tag = pack(jpeg, offset, 2, littleEndian);
-                if (tag == 0x0112) {
-                    // We do not really care about type and count, do we?
-                    int orientation = pack(jpeg, offset + 8, 2, littleEndian);
-                    switch (orientation) {
-                        case 1:
-                            return 0;
-                        case 3:
-                            return 180;
-                        case 6:
-                            return 90;
-                        case 8:
-                            return 270;
-                    }
-                    Log.i(TAG, "Unsupported orientation");
-                    return 0;
-                }
-                offset += 12;
-                length -= 12;
-            }
+        ExifEditor exif = new ExifEditor();
+        if (!exif.parse(jpeg)) {
+            Log.i(TAG, "Orientation not found");
+            return 0;
         }
-
-        Log.i(TAG, "Orientation not found");
-        return 0;
+        return exif.getOrientation();
     }
 
-    private static int pack(byte[] bytes, int offset, int length,
-            boolean littleEndian) {
-        int step = 1;
-        if (littleEndian) {
-            offset += length - 1;
-            step = -1;
+    // Returns a copy of jpeg with the orientation tag, the capture time (if
+    // dateTaken is not 0) and the location (if not null) written to its EXIF
+    // segment. The compressed image data is not touched. Returns jpeg itself
+    // if the metadata could not be written.
+    public static byte[] writeMetadata(byte[] jpeg, int orientation,
+            long dateTaken, Location loc) {
+        ExifEditor exif = new ExifEditor();
+        exif.parse(jpeg);
+        exif.setOrientation(orientation);
+        if (dateTaken != 0) {
+            exif.setDateTimeOriginal(dateTaken);
         }
-
-        int value = 0;
-        while (length-- > 0) {
-            value = (value << 8) | (bytes[offset] & 0xFF);
-            offset += step;
+        if (loc != null) {
+            exif.setGps(loc.getLatitude(), loc.getLongitude(),
+                    loc.hasAltitude() ? loc.getAltitude() : Double.NaN,
+                    loc.getTime());
+        }
+        byte[] result = exif.write();
+        if (result == null) {
+            Log.e(TAG, "Failed to write EXIF");
+            return jpeg;
         }
-        return value;
+        return result;
     }
 }
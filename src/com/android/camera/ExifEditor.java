@@ -0,0 +1,752 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Reads and edits the EXIF metadata of a JPEG held in memory.
+ *
+ * parse() walks IFD0, the EXIF, GPS and interoperability IFDs and IFD1 in one
+ * pass over the JPEG without copying anything: every tag is recorded as a few
+ * ints pointing into the original array. Modified tags are kept in a small
+ * side buffer, and write() splices a freshly laid out APP1 segment into the
+ * JPEG without touching the compressed image data. An editor can be reused for
+ * many pictures; its arrays only grow.
+ *
+ * The original byte order is kept, so unmodified values are copied verbatim.
+ * Offsets inside a MakerNote are not relocated, which is what most EXIF
+ * writers do as well.
+ *
+ * This class does not depend on the Android framework so it can be tested and
+ * benchmarked on a plain JVM. See ISO/IEC 10918-1:1993(E) and JEITA CP-3451
+ * Exif Version 2.2.
+ */
+public class ExifEditor {
+    public static final int IFD_0 = 0;
+    public static final int IFD_EXIF = 1;
+    public static final int IFD_GPS = 2;
+    public static final int IFD_INTEROP = 3;
+    public static final int IFD_1 = 4;
+    private static final int IFD_COUNT = 5;
+
+    public static final int TYPE_BYTE = 1;
+    public static final int TYPE_ASCII = 2;
+    public static final int TYPE_SHORT = 3;
+    public static final int TYPE_LONG = 4;
+    public static final int TYPE_RATIONAL = 5;
+    public static final int TYPE_UNDEFINED = 7;
+    public static final int TYPE_SLONG = 9;
+    public static final int TYPE_SRATIONAL = 10;
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    public static final int TAG_ORIENTATION = 0x0112;
+    public static final int TAG_DATE_TIME = 0x0132;
+    public static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    public static final int TAG_DATE_TIME_DIGITIZED = 0x9004;
+    public static final int TAG_GPS_VERSION_ID = 0x0000;
+    public static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    public static final int TAG_GPS_LATITUDE = 0x0002;
+    public static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    public static final int TAG_GPS_LONGITUDE = 0x0004;
+    public static final int TAG_GPS_ALTITUDE_REF = 0x0005;
+    public static final int TAG_GPS_ALTITUDE = 0x0006;
+    public static final int TAG_GPS_TIME_STAMP = 0x0007;
+    public static final int TAG_GPS_DATE_STAMP = 0x001D;
+
+    // Pointers to other IFDs and to the thumbnail. Their values are
+    // recomputed by write().
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_INTEROP_IFD = 0xA005;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TAG_STRIP_OFFSETS = 0x0111;
+    private static final int LINK_NONE = -1;
+    private static final int LINK_THUMBNAIL = IFD_COUNT;
+
+    // The largest APP1 segment: 0xFFFF minus the length field itself.
+    private static final int MAX_APP1_PAYLOAD = 0xFFFF - 2;
+    private static final int EXIF_HEADER_SIZE = 6;  // "Exif\0\0"
+    private static final int INITIAL_CAPACITY = 32;
+
+    private byte[] mJpeg;
+    private boolean mLittleEndian;
+    private int mTiff;
+    // Where the Exif APP1 segment starts and ends, or where a new one goes.
+    private int mSegmentStart;
+    private int mSegmentEnd;
+    private int mThumbnailOffset;
+    private int mThumbnailLength;
+
+    // One slot per tag, see the accessors below.
+    private int mCount;
+    private int[] mIfd = new int[INITIAL_CAPACITY];
+    private int[] mTag = new int[INITIAL_CAPACITY];
+    private int[] mType = new int[INITIAL_CAPACITY];
+    private int[] mValueCount = new int[INITIAL_CAPACITY];
+    private int[] mValueOffset = new int[INITIAL_CAPACITY];
+    private int[] mLink = new int[INITIAL_CAPACITY];
+    private boolean[] mInExtra = new boolean[INITIAL_CAPACITY];
+
+    // Values of modified tags.
+    private byte[] mExtra = new byte[256];
+    private int mExtraSize;
+
+    // Scratch space for write().
+    private final int[] mIfdEntries = new int[IFD_COUNT];
+    private final int[] mIfdDataSize = new int[IFD_COUNT];
+    private final int[] mIfdOffset = new int[IFD_COUNT];
+    private int[] mOrder = new int[INITIAL_CAPACITY];
+
+    /**
+     * Parses the EXIF metadata of jpeg. Returns false if the JPEG has no
+     * (valid) EXIF segment, in which case the editor is empty but can still be
+     * used to add tags. The array must not be modified until the editor is
+     * done with it.
+     */
+    public boolean parse(byte[] jpeg) {
+        mJpeg = jpeg;
+        mLittleEndian = false;
+        mCount = 0;
+        mExtraSize = 0;
+        mThumbnailOffset = -1;
+        mThumbnailLength = 0;
+        mSegmentStart = mSegmentEnd = -1;
+        if (jpeg == null || jpeg.length < 4
+                || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            return false;
+        }
+
+        // A new segment goes right after SOI, or after a JFIF APP0 segment.
+        int insert = 2;
+        int offset = 2;
+        while (offset + 3 < jpeg.length && (jpeg[offset++] & 0xFF) == 0xFF) {
+            int marker = jpeg[offset] & 0xFF;
+
+            // Check if the marker is a padding.
+            if (marker == 0xFF) {
+                continue;
+            }
+            offset++;
+
+            // Check if the marker is SOI or TEM.
+            if (marker == 0xD8 || marker == 0x01) {
+                continue;
+            }
+            // Check if the marker is EOI or SOS.
+            if (marker == 0xD9 || marker == 0xDA) {
+                break;
+            }
+
+            // Get the length and check if it is reasonable.
+            int length = readU16(jpeg, offset, false);
+            if (length < 2 || offset + length > jpeg.length) {
+                break;
+            }
+
+            if (marker == 0xE0 && insert == offset - 2) {
+                insert = offset + length;
+            }
+
+            if (marker == 0xE1 && length >= 8 &&
+                    readU32(jpeg, offset + 2, false) == 0x45786966 &&
+                    readU16(jpeg, offset + 6, false) == 0) {
+                mSegmentStart = offset - 2;
+                mSegmentEnd = offset + length;
+                mTiff = offset + 8;
+                return parseTiff(mSegmentEnd);
+            }
+
+            // Skip other markers.
+            offset += length;
+        }
+
+        mSegmentStart = mSegmentEnd = insert;
+        return false;
+    }
+
+    private boolean parseTiff(int end) {
+        if (mTiff + 8 > end) return false;
+        int order = readU32(mJpeg, mTiff, false);
+        if (order != 0x49492A00 && order != 0x4D4D002A) return false;
+        mLittleEndian = (order == 0x49492A00);
+
+        // IFD0 links to IFD1 and to the sub IFDs. We follow every link once,
+        // so a malformed file cannot make us loop.
+        int ifd0 = readU32(mJpeg, mTiff + 4, mLittleEndian);
+        int next = parseIfd(IFD_0, ifd0, end);
+        int exif = linkTarget(IFD_EXIF);
+        if (exif >= 0) parseIfd(IFD_EXIF, exif, end);
+        int gps = linkTarget(IFD_GPS);
+        if (gps >= 0) parseIfd(IFD_GPS, gps, end);
+        int interop = linkTarget(IFD_INTEROP);
+        if (interop >= 0) parseIfd(IFD_INTEROP, interop, end);
+        if (next > 0) {
+            parseIfd(IFD_1, next, end);
+            parseThumbnail(end);
+        }
+        return true;
+    }
+
+    // Returns the offset of the next IFD, or 0.
+    private int parseIfd(int ifd, int ifdOffset, int end) {
+        int pos = mTiff + ifdOffset;
+        if (ifdOffset < 8 || pos + 2 > end) return 0;
+        int entries = readU16(mJpeg, pos, mLittleEndian);
+        pos += 2;
+        if (pos + entries * 12 + 4 > end) return 0;
+
+        for (int i = 0; i < entries; i++, pos += 12) {
+            int tag = readU16(mJpeg, pos, mLittleEndian);
+            int type = readU16(mJpeg, pos + 2, mLittleEndian);
+            int count = readU32(mJpeg, pos + 4, mLittleEndian);
+            if (type <= 0 || type >= TYPE_SIZES.length || count < 0
+                    || count > end) {
+                continue;
+            }
+            int size = TYPE_SIZES[type] * count;
+            int value = pos + 8;
+            if (size > 4) {
+                value = mTiff + readU32(mJpeg, pos + 8, mLittleEndian);
+                if (value < mTiff || value + size > end) continue;
+            }
+            int slot = add(ifd, tag, type, count);
+            mValueOffset[slot] = value;
+            mLink[slot] = linkFor(ifd, tag);
+        }
+        return readU32(mJpeg, pos, mLittleEndian);
+    }
+
+    private void parseThumbnail(int end) {
+        int format = find(IFD_1, TAG_JPEG_INTERCHANGE_FORMAT);
+        int length = find(IFD_1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+        if (format >= 0 && length >= 0) {
+            int offset = mTiff + getInt(format);
+            int size = getInt(length);
+            if (offset > mTiff && size > 0 && offset + size <= end) {
+                mThumbnailOffset = offset;
+                mThumbnailLength = size;
+                return;
+            }
+        }
+        // We only know how to move a JPEG thumbnail. Drop anything else.
+        removeIfd(IFD_1);
+    }
+
+    private static int linkFor(int ifd, int tag) {
+        if (ifd == IFD_0 && tag == TAG_EXIF_IFD) return IFD_EXIF;
+        if (ifd == IFD_0 && tag == TAG_GPS_IFD) return IFD_GPS;
+        if (ifd == IFD_EXIF && tag == TAG_INTEROP_IFD) return IFD_INTEROP;
+        if (ifd == IFD_1 && tag == TAG_JPEG_INTERCHANGE_FORMAT) return LINK_THUMBNAIL;
+        return LINK_NONE;
+    }
+
+    private int linkTarget(int link) {
+        for (int i = 0; i < mCount; i++) {
+            if (mLink[i] == link) return getInt(i);
+        }
+        return -1;
+    }
+
+    // ---------------------------------------------------------------------
+    // Reading
+
+    public boolean hasTag(int ifd, int tag) {
+        return find(ifd, tag) >= 0;
+    }
+
+    // Returns the first value of a BYTE, SHORT or LONG tag, or defaultValue.
+    public int getInt(int ifd, int tag, int defaultValue) {
+        int slot = find(ifd, tag);
+        return (slot < 0) ? defaultValue : getInt(slot);
+    }
+
+    // Returns the value of an ASCII tag, or null.
+    public String getString(int ifd, int tag) {
+        int slot = find(ifd, tag);
+        if (slot < 0 || mType[slot] != TYPE_ASCII) return null;
+        byte[] buf = mInExtra[slot] ? mExtra : mJpeg;
+        int start = mValueOffset[slot];
+        int end = start;
+        while (end < start + mValueCount[slot] && buf[end] != 0) end++;
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (buf[start + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    // Returns the index-th value of a RATIONAL tag, or NaN.
+    public double getRational(int ifd, int tag, int index) {
+        int slot = find(ifd, tag);
+        if (slot < 0 || index >= mValueCount[slot]
+                || (mType[slot] != TYPE_RATIONAL && mType[slot] != TYPE_SRATIONAL)) {
+            return Double.NaN;
+        }
+        byte[] buf = mInExtra[slot] ? mExtra : mJpeg;
+        int offset = mValueOffset[slot] + index * 8;
+        long num = readU32(buf, offset, mLittleEndian);
+        long den = readU32(buf, offset + 4, mLittleEndian);
+        if (mType[slot] == TYPE_RATIONAL) {
+            num &= 0xFFFFFFFFL;
+            den &= 0xFFFFFFFFL;
+        }
+        return (den == 0) ? Double.NaN : (double) num / den;
+    }
+
+    // Returns the degrees in clockwise. Values are 0, 90, 180, or 270.
+    public int getOrientation() {
+        switch (getInt(IFD_0, TAG_ORIENTATION, 1)) {
+            case 3:
+                return 180;
+            case 6:
+                return 90;
+            case 8:
+                return 270;
+        }
+        return 0;
+    }
+
+    private int getInt(int slot) {
+        byte[] buf = mInExtra[slot] ? mExtra : mJpeg;
+        int offset = mValueOffset[slot];
+        switch (mType[slot]) {
+            case TYPE_BYTE:
+            case TYPE_UNDEFINED:
+                return buf[offset] & 0xFF;
+            case TYPE_SHORT:
+                return readU16(buf, offset, mLittleEndian);
+            case TYPE_LONG:
+            case TYPE_SLONG:
+                return readU32(buf, offset, mLittleEndian);
+        }
+        return 0;
+    }
+
+    // ---------------------------------------------------------------------
+    // Editing
+
+    // Sets the orientation tag from degrees in clockwise.
+    public void setOrientation(int degrees) {
+        setShort(IFD_0, TAG_ORIENTATION, orientationValue(degrees));
+    }
+
+    /**
+     * Changes the orientation tag directly in the parsed array when it is
+     * already there, which needs no allocation at all. Returns false if the
+     * tag has to be added with setOrientation() and write().
+     */
+    public boolean setOrientationInPlace(int degrees) {
+        int slot = find(IFD_0, TAG_ORIENTATION);
+        if (slot < 0 || mInExtra[slot] || mType[slot] != TYPE_SHORT) {
+            return false;
+        }
+        writeU16(mJpeg, mValueOffset[slot], orientationValue(degrees));
+        return true;
+    }
+
+    // Sets DateTime, DateTimeOriginal and DateTimeDigitized to the given time
+    // in the default time zone, as EXIF has no time zone field.
+    public void setDateTimeOriginal(long millis) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(millis);
+        String date = String.format(Locale.US, "%04d:%02d:%02d %02d:%02d:%02d",
+                c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1,
+                c.get(Calendar.DAY_OF_MONTH), c.get(Calendar.HOUR_OF_DAY),
+                c.get(Calendar.MINUTE), c.get(Calendar.SECOND));
+        setString(IFD_0, TAG_DATE_TIME, date);
+        setString(IFD_EXIF, TAG_DATE_TIME_ORIGINAL, date);
+        setString(IFD_EXIF, TAG_DATE_TIME_DIGITIZED, date);
+    }
+
+    /**
+     * Replaces the GPS IFD with the given position. altitude may be NaN and
+     * fixTime 0 if they are unknown.
+     */
+    public void setGps(double latitude, double longitude, double altitude,
+            long fixTime) {
+        removeIfd(IFD_GPS);
+        int version = put(IFD_GPS, TAG_GPS_VERSION_ID, TYPE_BYTE, 4);
+        mExtra[version] = 2;
+        mExtra[version + 1] = 2;
+        mExtra[version + 2] = 0;
+        mExtra[version + 3] = 0;
+        setString(IFD_GPS, TAG_GPS_LATITUDE_REF, latitude < 0 ? "S" : "N");
+        setDegrees(TAG_GPS_LATITUDE, Math.abs(latitude));
+        setString(IFD_GPS, TAG_GPS_LONGITUDE_REF, longitude < 0 ? "W" : "E");
+        setDegrees(TAG_GPS_LONGITUDE, Math.abs(longitude));
+        if (!Double.isNaN(altitude)) {
+            int ref = put(IFD_GPS, TAG_GPS_ALTITUDE_REF, TYPE_BYTE, 1);
+            mExtra[ref] = (byte) (altitude < 0 ? 1 : 0);
+            int alt = put(IFD_GPS, TAG_GPS_ALTITUDE, TYPE_RATIONAL, 1);
+            writeRational(alt, Math.round(Math.abs(altitude) * 100), 100);
+        }
+        if (fixTime != 0) {
+            Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            c.setTimeInMillis(fixTime);
+            int time = put(IFD_GPS, TAG_GPS_TIME_STAMP, TYPE_RATIONAL, 3);
+            writeRational(time, c.get(Calendar.HOUR_OF_DAY), 1);
+            writeRational(time + 8, c.get(Calendar.MINUTE), 1);
+            writeRational(time + 16, c.get(Calendar.SECOND), 1);
+            setString(IFD_GPS, TAG_GPS_DATE_STAMP, String.format(Locale.US,
+                    "%04d:%02d:%02d", c.get(Calendar.YEAR),
+                    c.get(Calendar.MONTH) + 1, c.get(Calendar.DAY_OF_MONTH)));
+        }
+    }
+
+    public void setShort(int ifd, int tag, int value) {
+        writeU16(mExtra, put(ifd, tag, TYPE_SHORT, 1), value);
+    }
+
+    public void setLong(int ifd, int tag, int value) {
+        writeU32(mExtra, put(ifd, tag, TYPE_LONG, 1), value);
+    }
+
+    // Only the low byte of each character is stored, as EXIF ASCII values are
+    // 7-bit.
+    public void setString(int ifd, int tag, String value) {
+        int length = value.length();
+        int offset = put(ifd, tag, TYPE_ASCII, length + 1);
+        for (int i = 0; i < length; i++) {
+            mExtra[offset + i] = (byte) value.charAt(i);
+        }
+        mExtra[offset + length] = 0;
+    }
+
+    public void removeTag(int ifd, int tag) {
+        int slot = find(ifd, tag);
+        if (slot >= 0) removeSlot(slot);
+    }
+
+    public void removeIfd(int ifd) {
+        for (int i = mCount - 1; i >= 0; i--) {
+            if (mIfd[i] == ifd) removeSlot(i);
+        }
+        if (ifd == IFD_1) {
+            mThumbnailOffset = -1;
+            mThumbnailLength = 0;
+        }
+    }
+
+    private void setDegrees(int tag, double value) {
+        int offset = put(IFD_GPS, tag, TYPE_RATIONAL, 3);
+        int degrees = (int) value;
+        value = (value - degrees) * 60;
+        int minutes = (int) value;
+        long seconds = Math.round((value - minutes) * 60 * 1000);
+        writeRational(offset, degrees, 1);
+        writeRational(offset + 8, minutes, 1);
+        writeRational(offset + 16, seconds, 1000);
+    }
+
+    private void writeRational(int offset, long num, long den) {
+        writeU32(mExtra, offset, (int) num);
+        writeU32(mExtra, offset + 4, (int) den);
+    }
+
+    private static int orientationValue(int degrees) {
+        switch (((degrees % 360) + 360) % 360) {
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+        }
+        return 1;
+    }
+
+    // Reserves room for a new value of the tag in the side buffer and returns
+    // its offset there.
+    private int put(int ifd, int tag, int type, int count) {
+        int size = TYPE_SIZES[type] * count;
+        if (mExtraSize + size > mExtra.length) {
+            byte[] extra = new byte[Math.max(mExtra.length * 2, mExtraSize + size)];
+            System.arraycopy(mExtra, 0, extra, 0, mExtraSize);
+            mExtra = extra;
+        }
+        int slot = find(ifd, tag);
+        if (slot < 0) slot = add(ifd, tag, type, count);
+        mType[slot] = type;
+        mValueCount[slot] = count;
+        mValueOffset[slot] = mExtraSize;
+        mInExtra[slot] = true;
+        mLink[slot] = LINK_NONE;
+        mExtraSize += size;
+        return mValueOffset[slot];
+    }
+
+    private int add(int ifd, int tag, int type, int count) {
+        if (mCount == mIfd.length) grow();
+        int slot = mCount++;
+        mIfd[slot] = ifd;
+        mTag[slot] = tag;
+        mType[slot] = type;
+        mValueCount[slot] = count;
+        mValueOffset[slot] = 0;
+        mLink[slot] = LINK_NONE;
+        mInExtra[slot] = false;
+        return slot;
+    }
+
+    private void removeSlot(int slot) {
+        int last = --mCount;
+        mIfd[slot] = mIfd[last];
+        mTag[slot] = mTag[last];
+        mType[slot] = mType[last];
+        mValueCount[slot] = mValueCount[last];
+        mValueOffset[slot] = mValueOffset[last];
+        mLink[slot] = mLink[last];
+        mInExtra[slot] = mInExtra[last];
+    }
+
+    private int find(int ifd, int tag) {
+        for (int i = 0; i < mCount; i++) {
+            if (mIfd[i] == ifd && mTag[i] == tag) return i;
+        }
+        return -1;
+    }
+
+    private void grow() {
+        int capacity = mIfd.length * 2;
+        mIfd = copyOf(mIfd, capacity);
+        mTag = copyOf(mTag, capacity);
+        mType = copyOf(mType, capacity);
+        mValueCount = copyOf(mValueCount, capacity);
+        mValueOffset = copyOf(mValueOffset, capacity);
+        mLink = copyOf(mLink, capacity);
+        boolean[] inExtra = new boolean[capacity];
+        System.arraycopy(mInExtra, 0, inExtra, 0, mCount);
+        mInExtra = inExtra;
+    }
+
+    private static int[] copyOf(int[] array, int capacity) {
+        int[] result = new int[capacity];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------
+    // Writing
+
+    /**
+     * Returns a new JPEG made of the parsed one with its EXIF segment
+     * replaced by the current tags. The compressed image data is copied
+     * verbatim. Returns null if the parsed array was not a JPEG or the
+     * metadata does not fit in an APP1 segment even without the thumbnail.
+     */
+    public byte[] write() {
+        if (mJpeg == null || mSegmentStart < 0) return null;
+
+        // Make the links match what is left in the sub IFDs.
+        updateLink(IFD_EXIF, IFD_INTEROP, TAG_INTEROP_IFD);
+        updateLink(IFD_0, IFD_EXIF, TAG_EXIF_IFD);
+        updateLink(IFD_0, IFD_GPS, TAG_GPS_IFD);
+        if (mThumbnailOffset < 0) removeIfd(IFD_1);
+
+        int tiffSize = layout();
+        if (tiffSize + EXIF_HEADER_SIZE > MAX_APP1_PAYLOAD && mThumbnailOffset >= 0) {
+            removeIfd(IFD_1);
+            tiffSize = layout();
+        }
+        if (tiffSize + EXIF_HEADER_SIZE > MAX_APP1_PAYLOAD) return null;
+
+        int segmentSize = 4 + EXIF_HEADER_SIZE + tiffSize;
+        byte[] out = new byte[mJpeg.length - (mSegmentEnd - mSegmentStart) + segmentSize];
+        System.arraycopy(mJpeg, 0, out, 0, mSegmentStart);
+        int pos = mSegmentStart;
+        out[pos++] = (byte) 0xFF;
+        out[pos++] = (byte) 0xE1;
+        writeU16Big(out, pos, segmentSize - 2);
+        pos += 2;
+        out[pos++] = 'E';
+        out[pos++] = 'x';
+        out[pos++] = 'i';
+        out[pos++] = 'f';
+        out[pos++] = 0;
+        out[pos++] = 0;
+        writeTiff(out, pos);
+        System.arraycopy(mJpeg, mSegmentEnd, out, pos + tiffSize,
+                mJpeg.length - mSegmentEnd);
+        return out;
+    }
+
+    private void updateLink(int parent, int child, int tag) {
+        int entries = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mIfd[i] == child) entries++;
+        }
+        int slot = find(parent, tag);
+        if (entries == 0) {
+            if (slot >= 0) removeSlot(slot);
+        } else if (slot < 0) {
+            slot = add(parent, tag, TYPE_LONG, 1);
+            mLink[slot] = child;
+        }
+    }
+
+    // Computes the size and offset of each IFD, returns the size of the TIFF
+    // structure including the thumbnail.
+    private int layout() {
+        for (int ifd = 0; ifd < IFD_COUNT; ifd++) {
+            mIfdEntries[ifd] = 0;
+            mIfdDataSize[ifd] = 0;
+        }
+        for (int i = 0; i < mCount; i++) {
+            mIfdEntries[mIfd[i]]++;
+            int size = valueSize(i);
+            if (size > 4) mIfdDataSize[mIfd[i]] += (size + 1) & ~1;
+        }
+        // IFD0 is always written, even if empty.
+        int pos = 8;
+        for (int ifd = 0; ifd < IFD_COUNT; ifd++) {
+            if (ifd != IFD_0 && mIfdEntries[ifd] == 0) {
+                mIfdOffset[ifd] = 0;
+                continue;
+            }
+            mIfdOffset[ifd] = pos;
+            pos += 2 + mIfdEntries[ifd] * 12 + 4 + mIfdDataSize[ifd];
+        }
+        if (mIfdEntries[IFD_1] > 0) pos += mThumbnailLength;
+        return pos;
+    }
+
+    private void writeTiff(byte[] out, int tiff) {
+        if (mLittleEndian) {
+            out[tiff] = 'I';
+            out[tiff + 1] = 'I';
+        } else {
+            out[tiff] = 'M';
+            out[tiff + 1] = 'M';
+        }
+        writeU16(out, tiff + 2, 42);
+        writeU32(out, tiff + 4, 8);
+
+        if (mOrder.length < mCount) mOrder = new int[mIfd.length];
+        for (int ifd = 0; ifd < IFD_COUNT; ifd++) {
+            if (ifd != IFD_0 && mIfdEntries[ifd] == 0) continue;
+
+            // Entries must be sorted by tag.
+            int n = 0;
+            for (int i = 0; i < mCount; i++) {
+                if (mIfd[i] != ifd) continue;
+                int j = n++;
+                while (j > 0 && mTag[mOrder[j - 1]] > mTag[i]) {
+                    mOrder[j] = mOrder[j - 1];
+                    j--;
+                }
+                mOrder[j] = i;
+            }
+
+            int pos = tiff + mIfdOffset[ifd];
+            int data = mIfdOffset[ifd] + 2 + n * 12 + 4;
+            writeU16(out, pos, n);
+            pos += 2;
+            for (int k = 0; k < n; k++, pos += 12) {
+                int i = mOrder[k];
+                writeU16(out, pos, mTag[i]);
+                writeU16(out, pos + 2, mType[i]);
+                writeU32(out, pos + 4, mValueCount[i]);
+                writeU32(out, pos + 8, 0);
+                if (mLink[i] != LINK_NONE) {
+                    int target = (mLink[i] == LINK_THUMBNAIL)
+                            ? thumbnailOffset() : mIfdOffset[mLink[i]];
+                    writeU16(out, pos + 2, TYPE_LONG);
+                    writeU32(out, pos + 4, 1);
+                    writeU32(out, pos + 8, target);
+                    continue;
+                }
+                byte[] src = mInExtra[i] ? mExtra : mJpeg;
+                int size = valueSize(i);
+                if (size <= 4) {
+                    System.arraycopy(src, mValueOffset[i], out, pos + 8, size);
+                } else {
+                    writeU32(out, pos + 8, data);
+                    System.arraycopy(src, mValueOffset[i], out, tiff + data, size);
+                    data += (size + 1) & ~1;
+                }
+            }
+            int nextIfd = (ifd == IFD_0) ? mIfdOffset[IFD_1] : 0;
+            writeU32(out, pos, nextIfd);
+        }
+
+        if (mIfdEntries[IFD_1] > 0) {
+            System.arraycopy(mJpeg, mThumbnailOffset, out,
+                    tiff + thumbnailOffset(), mThumbnailLength);
+        }
+    }
+
+    private int thumbnailOffset() {
+        return mIfdOffset[IFD_1] + 2 + mIfdEntries[IFD_1] * 12 + 4
+                + mIfdDataSize[IFD_1];
+    }
+
+    private int valueSize(int slot) {
+        if (mLink[slot] != LINK_NONE) return 4;
+        return TYPE_SIZES[mType[slot]] * mValueCount[slot];
+    }
+
+    // ---------------------------------------------------------------------
+    // Byte order helpers
+
+    private static int readU16(byte[] buf, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8);
+        }
+        return ((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF);
+    }
+
+    private static int readU32(byte[] buf, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return (buf[offset] & 0xFF) | ((buf[offset + 1] & 0xFF) << 8)
+                    | ((buf[offset + 2] & 0xFF) << 16) | ((buf[offset + 3] & 0xFF) << 24);
+        }
+        return ((buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16)
+                | ((buf[offset + 2] & 0xFF) << 8) | (buf[offset + 3] & 0xFF);
+    }
+
+    private void writeU16(byte[] buf, int offset, int value) {
+        if (mLittleEndian) {
+            buf[offset] = (byte) value;
+            buf[offset + 1] = (byte) (value >> 8);
+        } else {
+            writeU16Big(buf, offset, value);
+        }
+    }
+
+    private void writeU32(byte[] buf, int offset, int value) {
+        if (mLittleEndian) {
+            buf[offset] = (byte) value;
+            buf[offset + 1] = (byte) (value >> 8);
+            buf[offset + 2] = (byte) (value >> 16);
+            buf[offset + 3] = (byte) (value >> 24);
+        } else {
+            buf[offset] = (byte) (value >> 24);
+            buf[offset + 1] = (byte) (value >> 16);
+            buf[offset + 2] = (byte) (value >> 8);
+            buf[offset + 3] = (byte) value;
+        }
+    }
+
+    private static void writeU16Big(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >> 8);
+        buf[offset + 1] = (byte) value;
+    }
+}
@@ -0,0 +1,561 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merges differently exposed pictures of the same scene with exposure
+ * fusion (Mertens, Kautz and Van Reeth, 2007).
+ *
+ * Every pixel of every picture gets a weight from its local contrast, its
+ * color saturation and how close it is to mid gray. The pictures are then
+ * blended with those weights one frequency band at a time, in a Laplacian
+ * pyramid, which hides the seams a per-pixel blend would show.
+ *
+ * The work is done in square tiles, each with a margin so that the blend
+ * of its center does not depend on where the tile ends. The tiles are
+ * spread over the ImagingThreadPool. A fusion object is not thread safe; it
+ * keeps the per-thread buffers for the next call. It does not depend on the
+ * Android framework.
+ *
+ * fuseBands() reads and writes the pictures a band of rows at a time, so
+ * that none of them has to be in memory whole.
+ */
+public class ExposureFusion {
+    // Levels of the blending pyramid.
+    public static final int LEVELS = 5;
+    // Output pixels per tile side, and rows per band of fuseBands().
+    public static final int TILE_SIZE = 256;
+    // Extra pixels read around each tile. A multiple of 1 << (LEVELS - 1), so
+    // that all tiles sample their pyramids on the same grid.
+    public static final int MARGIN = 32;
+    private static final int REGION_SIZE = TILE_SIZE + 2 * MARGIN;
+
+    // Keeps the weights of flat, gray or clipped areas from being 0 in all
+    // pictures.
+    private static final float MIN_WEIGHT = 1e-6f;
+    // The spread of the well-exposedness Gaussian around 0.5.
+    private static final float EXPOSEDNESS_SIGMA = 0.2f;
+
+    // 8-bit value to 0..1.
+    private static final float[] UNIT = new float[256];
+    // 8-bit value to its well-exposedness factor.
+    private static final float[] EXPOSEDNESS = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            float v = i / 255f;
+            UNIT[i] = v;
+            float d = v - 0.5f;
+            EXPOSEDNESS[i] = (float) Math.exp(-d * d
+                    / (2 * EXPOSEDNESS_SIGMA * EXPOSEDNESS_SIGMA));
+        }
+    }
+
+    /**
+     * Reads the pixels of the pictures to merge.
+     */
+    public interface Source {
+        // Copies the width x height ARGB pixels at (x, y) of picture image
+        // into dst, row after row.
+        void read(int image, int x, int y, int width, int height, int[] dst);
+    }
+
+    /**
+     * Reads whole rows of the pictures to merge, top to bottom.
+     */
+    public interface RowSource {
+        // Copies rows rows of picture image, starting at row top, into dst
+        // at offset.
+        void readRows(int image, int top, int rows, int[] dst, int offset) throws IOException;
+    }
+
+    /**
+     * Takes the merged rows, top to bottom.
+     */
+    public interface RowSink {
+        // Takes the first rows rows of pixels. The array is reused once this
+        // returns.
+        void writeRows(int[] pixels, int rows) throws IOException;
+    }
+
+    /**
+     * How long the stages of the last fuse() took. The stage times are
+     * added up over all threads, so they can exceed the elapsed time.
+     */
+    public static class Timing {
+        public long readNs;
+        public long weightsNs;
+        public long blendNs;
+        public long collapseNs;
+        public long elapsedNs;
+        public int tiles;
+
+        void reset() {
+            readNs = weightsNs = blendNs = collapseNs = elapsedNs = 0;
+            tiles = 0;
+        }
+
+        synchronized void add(Tile tile) {
+            readNs += tile.mReadNs;
+            weightsNs += tile.mWeightsNs;
+            blendNs += tile.mBlendNs;
+            collapseNs += tile.mCollapseNs;
+            tiles += tile.mTiles;
+        }
+
+        void add(Timing other) {
+            readNs += other.readNs;
+            weightsNs += other.weightsNs;
+            blendNs += other.blendNs;
+            collapseNs += other.collapseNs;
+            tiles += other.tiles;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d tiles in %d ms (read %d, weights %d, blend %d,"
+                    + " collapse %d ms of CPU)", tiles, elapsedNs / 1000000,
+                    readNs / 1000000, weightsNs / 1000000, blendNs / 1000000,
+                    collapseNs / 1000000);
+        }
+    }
+
+    private final int mThreads;
+    private Tile[] mTiles;
+    private final Timing mTiming = new Timing();
+
+    public ExposureFusion() {
+        this(ImagingThreadPool.getThreadCount());
+    }
+
+    // Uses at most threads threads, including the calling one.
+    public ExposureFusion(int threads) {
+        mThreads = Math.max(1, threads);
+    }
+
+    public Timing getTiming() {
+        return mTiming;
+    }
+
+    // Lets the per-thread buffers go.
+    public void release() {
+        mTiles = null;
+    }
+
+    /**
+     * Merges width x height ARGB pictures into output, which must not be one
+     * of the inputs.
+     */
+    public void fuse(final int[][] inputs, final int width, int height, int[] output) {
+        for (int[] input : inputs) {
+            if (input.length < width * height) {
+                throw new IllegalArgumentException("Input too small");
+            }
+        }
+        fuse(new Source() {
+            @Override
+            public void read(int image, int x, int y, int w, int h, int[] dst) {
+                int[] src = inputs[image];
+                for (int row = 0; row < h; row++) {
+                    System.arraycopy(src, (y + row) * width + x, dst, row * w, w);
+                }
+            }
+        }, inputs.length, width, height, output);
+    }
+
+    /**
+     * Merges count width x height pictures read from source into output,
+     * which holds width * height pixels.
+     */
+    public void fuse(Source source, int count, int width, int height, int[] output) {
+        fuse(source, count, width, height, 0, height, output);
+    }
+
+    /**
+     * Merges rows rows of count width x height pictures, starting at row top,
+     * into output, which holds rows * width pixels. top must be a multiple of
+     * TILE_SIZE, and so must rows unless the band ends the picture; the rows
+     * then come out the same as from a fuse() of the whole picture. Only the
+     * rows from top - MARGIN to top + rows + MARGIN are read.
+     */
+    public void fuse(Source source, int count, int width, int height, int top, int rows,
+            int[] output) {
+        if (count < 1 || width <= 0 || height <= 0 || output.length < width * rows) {
+            throw new IllegalArgumentException("Bad pictures or output");
+        }
+        if (top < 0 || top % TILE_SIZE != 0 || rows <= 0 || top + rows > height
+                || (rows % TILE_SIZE != 0 && top + rows != height)) {
+            throw new IllegalArgumentException("Bad band " + top + "+" + rows);
+        }
+        long start = System.nanoTime();
+        mTiming.reset();
+
+        final int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        final int tilesY = (rows + TILE_SIZE - 1) / TILE_SIZE;
+        final int tiles = tilesX * tilesY;
+        int threads = Math.min(mThreads, tiles);
+        if (mTiles == null || mTiles.length < threads || mTiles[0].mCount != count) {
+            mTiles = new Tile[threads];
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final Source src = source;
+        final int[] out = output;
+        final int w = width, h = height, firstRow = top;
+
+        Runnable[] workers = new Runnable[threads];
+        for (int i = 0; i < threads; i++) {
+            if (mTiles[i] == null) mTiles[i] = new Tile(count);
+            final Tile tile = mTiles[i];
+            tile.resetTiming();
+            workers[i] = new Runnable() {
+                @Override
+                public void run() {
+                    int t;
+                    while ((t = next.getAndIncrement()) < tiles) {
+                        tile.process(src, w, h, (t % tilesX) * TILE_SIZE,
+                                firstRow + (t / tilesX) * TILE_SIZE, firstRow, out);
+                    }
+                    mTiming.add(tile);
+                }
+            };
+        }
+        ImagingThreadPool.runAll(workers);
+        mTiming.elapsedNs = System.nanoTime() - start;
+    }
+
+    /**
+     * Merges count width x height pictures read from source into sink, one
+     * band of TILE_SIZE rows at a time. Besides the per-thread buffers, it
+     * holds TILE_SIZE + 2 * MARGIN rows of each picture and TILE_SIZE rows of
+     * output, whatever the height. Every row is read once. The timing covers
+     * the whole run; its read time includes reading from source.
+     */
+    public void fuseBands(RowSource source, int count, final int width, int height,
+            RowSink sink) throws IOException {
+        if (count < 1 || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Bad pictures");
+        }
+        final int[][] bands = new int[count][(TILE_SIZE + 2 * MARGIN) * width];
+        int[] output = new int[TILE_SIZE * width];
+        // The rows held in bands start at bandTop[0].
+        final int[] bandTop = new int[1];
+        int bandRows = 0;
+        Source bandSource = new Source() {
+            @Override
+            public void read(int image, int x, int y, int w, int h, int[] dst) {
+                int[] src = bands[image];
+                for (int row = 0; row < h; row++) {
+                    System.arraycopy(src, (y - bandTop[0] + row) * width + x,
+                            dst, row * w, w);
+                }
+            }
+        };
+
+        Timing total = new Timing();
+        long start = System.nanoTime();
+        for (int top = 0; top < height; top += TILE_SIZE) {
+            int rows = Math.min(TILE_SIZE, height - top);
+            int first = Math.max(top - MARGIN, 0);
+            int end = Math.min(top + rows + MARGIN, height);
+
+            // Keep the rows the last band shares with this one, read the rest.
+            long readStart = System.nanoTime();
+            int drop = first - bandTop[0];
+            bandRows -= drop;
+            for (int k = 0; k < count; k++) {
+                if (drop > 0) {
+                    System.arraycopy(bands[k], drop * width, bands[k], 0, bandRows * width);
+                }
+                source.readRows(k, first + bandRows, end - first - bandRows,
+                        bands[k], bandRows * width);
+            }
+            bandTop[0] = first;
+            bandRows = end - first;
+            total.readNs += System.nanoTime() - readStart;
+
+            fuse(bandSource, count, width, height, top, rows, output);
+            total.add(mTiming);
+
+            sink.writeRows(output, rows);
+        }
+        mTiming.reset();
+        mTiming.add(total);
+        mTiming.elapsedNs = System.nanoTime() - start;
+    }
+
+    // The buffers of one thread, sized for a full region.
+    private static class Tile {
+        final int mCount;
+        final int[][] mPixels;
+        final float[][] mWeights;
+        final float[] mGray = new float[REGION_SIZE * REGION_SIZE];
+        final float[] mTemp = new float[REGION_SIZE * REGION_SIZE];
+        // Pyramid of the current channel, of the current weights, and the
+        // blended pyramid of each channel. Level 0 of the weight pyramid
+        // is the weights themselves.
+        final float[][] mChannel = new float[LEVELS][];
+        final float[][] mWeightLevels = new float[LEVELS][];
+        final float[][][] mResult = new float[3][LEVELS][];
+        final int[] mLevelWidth = new int[LEVELS];
+        final int[] mLevelHeight = new int[LEVELS];
+
+        long mReadNs, mWeightsNs, mBlendNs, mCollapseNs;
+        int mTiles;
+
+        Tile(int count) {
+            mCount = count;
+            mPixels = new int[count][REGION_SIZE * REGION_SIZE];
+            mWeights = new float[count][REGION_SIZE * REGION_SIZE];
+            int size = REGION_SIZE;
+            for (int l = 0; l < LEVELS; l++) {
+                int n = size * size;
+                mChannel[l] = new float[n];
+                if (l > 0) mWeightLevels[l] = new float[n];
+                for (int c = 0; c < 3; c++) mResult[c][l] = new float[n];
+                size = (size + 1) / 2;
+            }
+        }
+
+        void resetTiming() {
+            mReadNs = mWeightsNs = mBlendNs = mCollapseNs = 0;
+            mTiles = 0;
+        }
+
+        // Fuses the tile whose top left output pixel is (tx, ty) into out,
+        // which starts at row outTop.
+        void process(Source source, int width, int height, int tx, int ty, int outTop,
+                int[] out) {
+            long t0 = System.nanoTime();
+            int x0 = Math.max(tx - MARGIN, 0);
+            int y0 = Math.max(ty - MARGIN, 0);
+            int x1 = Math.min(tx + TILE_SIZE + MARGIN, width);
+            int y1 = Math.min(ty + TILE_SIZE + MARGIN, height);
+            int w = x1 - x0;
+            int h = y1 - y0;
+            for (int k = 0; k < mCount; k++) {
+                source.read(k, x0, y0, w, h, mPixels[k]);
+            }
+            long t1 = System.nanoTime();
+
+            computeWeights(w, h);
+            long t2 = System.nanoTime();
+
+            mLevelWidth[0] = w;
+            mLevelHeight[0] = h;
+            for (int l = 1; l < LEVELS; l++) {
+                mLevelWidth[l] = (mLevelWidth[l - 1] + 1) / 2;
+                mLevelHeight[l] = (mLevelHeight[l - 1] + 1) / 2;
+            }
+            blend();
+            long t3 = System.nanoTime();
+
+            for (int c = 0; c < 3; c++) collapse(mResult[c]);
+            int tw = Math.min(TILE_SIZE, width - tx);
+            int th = Math.min(TILE_SIZE, height - ty);
+            float[] r = mResult[0][0], g = mResult[1][0], b = mResult[2][0];
+            for (int y = 0; y < th; y++) {
+                int i = (ty - y0 + y) * w + (tx - x0);
+                int o = (ty - outTop + y) * width + tx;
+                for (int x = 0; x < tw; x++, i++, o++) {
+                    out[o] = 0xff000000 | (toByte(r[i]) << 16)
+                            | (toByte(g[i]) << 8) | toByte(b[i]);
+                }
+            }
+            long t4 = System.nanoTime();
+
+            mReadNs += t1 - t0;
+            mWeightsNs += t2 - t1;
+            mBlendNs += t3 - t2;
+            mCollapseNs += t4 - t3;
+            mTiles++;
+        }
+
+        // Fills mWeights with the normalized weights of each picture.
+        private void computeWeights(int w, int h) {
+            int n = w * h;
+            for (int k = 0; k < mCount; k++) {
+                int[] pixels = mPixels[k];
+                float[] gray = mGray;
+                for (int i = 0; i < n; i++) {
+                    int p = pixels[i];
+                    gray[i] = (UNIT[(p >> 16) & 0xFF] + UNIT[(p >> 8) & 0xFF]
+                            + UNIT[p & 0xFF]) * (1f / 3);
+                }
+                float[] weights = mWeights[k];
+                for (int y = 0; y < h; y++) {
+                    int up = (y > 0) ? -w : 0;
+                    int down = (y < h - 1) ? w : 0;
+                    for (int x = 0, i = y * w; x < w; x++, i++) {
+                        int left = (x > 0) ? -1 : 0;
+                        int right = (x < w - 1) ? 1 : 0;
+                        float m = gray[i];
+                        float contrast = Math.abs(4 * m - gray[i + left] - gray[i + right]
+                                - gray[i + up] - gray[i + down]);
+
+                        int p = pixels[i];
+                        int ri = (p >> 16) & 0xFF, gi = (p >> 8) & 0xFF, bi = p & 0xFF;
+                        float dr = UNIT[ri] - m, dg = UNIT[gi] - m, db = UNIT[bi] - m;
+                        float saturation = (float) Math.sqrt((dr * dr + dg * dg + db * db)
+                                * (1f / 3));
+                        float exposedness = EXPOSEDNESS[ri] * EXPOSEDNESS[gi]
+                                * EXPOSEDNESS[bi];
+                        weights[i] = contrast * saturation * exposedness + MIN_WEIGHT;
+                    }
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                float sum = 0;
+                for (int k = 0; k < mCount; k++) sum += mWeights[k][i];
+                float scale = 1 / sum;
+                for (int k = 0; k < mCount; k++) mWeights[k][i] *= scale;
+            }
+        }
+
+        // Adds the Laplacian pyramid of every channel of every picture,
+        // times the Gaussian pyramid of its weights, into mResult.
+        private void blend() {
+            for (int c = 0; c < 3; c++) {
+                for (int l = 0; l < LEVELS; l++) {
+                    Arrays.fill(mResult[c][l], 0, mLevelWidth[l] * mLevelHeight[l], 0f);
+                }
+            }
+            for (int k = 0; k < mCount; k++) {
+                mWeightLevels[0] = mWeights[k];
+                for (int l = 1; l < LEVELS; l++) {
+                    reduce(mWeightLevels[l - 1], mLevelWidth[l - 1], mLevelHeight[l - 1],
+                            mWeightLevels[l]);
+                }
+                int[] pixels = mPixels[k];
+                int n = mLevelWidth[0] * mLevelHeight[0];
+                for (int c = 0; c < 3; c++) {
+                    int shift = 16 - 8 * c;
+                    float[] channel = mChannel[0];
+                    for (int i = 0; i < n; i++) {
+                        channel[i] = UNIT[(pixels[i] >> shift) & 0xFF];
+                    }
+                    for (int l = 1; l < LEVELS; l++) {
+                        reduce(mChannel[l - 1], mLevelWidth[l - 1], mLevelHeight[l - 1],
+                                mChannel[l]);
+                    }
+                    for (int l = 0; l < LEVELS; l++) {
+                        float[] level = mChannel[l];
+                        int size = mLevelWidth[l] * mLevelHeight[l];
+                        if (l < LEVELS - 1) {
+                            // Laplacian: this level minus the next one expanded.
+                            expand(mChannel[l + 1], mLevelWidth[l + 1], mLevelHeight[l + 1],
+                                    mGray, mLevelWidth[l], mLevelHeight[l]);
+                            for (int i = 0; i < size; i++) level[i] -= mGray[i];
+                        }
+                        float[] weights = mWeightLevels[l];
+                        float[] result = mResult[c][l];
+                        for (int i = 0; i < size; i++) result[i] += weights[i] * level[i];
+                    }
+                }
+            }
+        }
+
+        // Adds up the levels of a blended pyramid into level 0.
+        private void collapse(float[][] pyramid) {
+            for (int l = LEVELS - 2; l >= 0; l--) {
+                expand(pyramid[l + 1], mLevelWidth[l + 1], mLevelHeight[l + 1],
+                        mGray, mLevelWidth[l], mLevelHeight[l]);
+                float[] level = pyramid[l];
+                int size = mLevelWidth[l] * mLevelHeight[l];
+                for (int i = 0; i < size; i++) level[i] += mGray[i];
+            }
+        }
+
+        // Blurs with the 1 4 6 4 1 binomial kernel and keeps every other
+        // pixel. Edges are extended.
+        private void reduce(float[] src, int w, int h, float[] dst) {
+            int w2 = (w + 1) / 2;
+            int h2 = (h + 1) / 2;
+            float[] tmp = mTemp;
+            for (int y = 0; y < h; y++) {
+                int row = y * w;
+                for (int i = 0; i < w2; i++) {
+                    int x = 2 * i;
+                    float sum = 6 * src[row + x]
+                            + 4 * (src[row + clamp(x - 1, w)] + src[row + clamp(x + 1, w)])
+                            + src[row + clamp(x - 2, w)] + src[row + clamp(x + 2, w)];
+                    tmp[y * w2 + i] = sum * (1f / 16);
+                }
+            }
+            for (int j = 0; j < h2; j++) {
+                int y = 2 * j;
+                int r0 = y * w2;
+                int rm1 = clamp(y - 1, h) * w2, rp1 = clamp(y + 1, h) * w2;
+                int rm2 = clamp(y - 2, h) * w2, rp2 = clamp(y + 2, h) * w2;
+                for (int i = 0; i < w2; i++) {
+                    float sum = 6 * tmp[r0 + i] + 4 * (tmp[rm1 + i] + tmp[rp1 + i])
+                            + tmp[rm2 + i] + tmp[rp2 + i];
+                    dst[j * w2 + i] = sum * (1f / 16);
+                }
+            }
+        }
+
+        // The inverse of reduce(): doubles the size of src into the w x h
+        // dst, interpolating with the same kernel.
+        private void expand(float[] src, int w2, int h2, float[] dst, int w, int h) {
+            float[] tmp = mTemp;
+            for (int j = 0; j < h2; j++) {
+                int row = j * w2;
+                for (int x = 0; x < w; x++) {
+                    int i = x >> 1;
+                    float v;
+                    if ((x & 1) == 0) {
+                        v = (src[row + Math.max(i - 1, 0)] + 6 * src[row + i]
+                                + src[row + Math.min(i + 1, w2 - 1)]) * (1f / 8);
+                    } else {
+                        v = (src[row + i] + src[row + Math.min(i + 1, w2 - 1)]) * 0.5f;
+                    }
+                    tmp[j * w + x] = v;
+                }
+            }
+            for (int y = 0; y < h; y++) {
+                int j = y >> 1;
+                int r0 = j * w;
+                int out = y * w;
+                if ((y & 1) == 0) {
+                    int rm = Math.max(j - 1, 0) * w, rp = Math.min(j + 1, h2 - 1) * w;
+                    for (int x = 0; x < w; x++) {
+                        dst[out + x] = (tmp[rm + x] + 6 * tmp[r0 + x] + tmp[rp + x])
+                                * (1f / 8);
+                    }
+                } else {
+                    int rp = Math.min(j + 1, h2 - 1) * w;
+                    for (int x = 0; x < w; x++) {
+                        dst[out + x] = (tmp[r0 + x] + tmp[rp + x]) * 0.5f;
+                    }
+                }
+            }
+        }
+
+        private static int clamp(int i, int size) {
+            return i < 0 ? 0 : (i >= size ? size - 1 : i);
+        }
+
+        private static int toByte(float v) {
+            int i = (int) (v * 255 + 0.5f);
+            return i < 0 ? 0 : (i > 255 ? 255 : i);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Tells from the preview frames when an exposure change has taken effect.
+ *
+ * Each frame is reduced to a histogram of its luma, sampled every STEP
+ * pixels in both directions, and to the mean of that histogram. After
+ * reset() the exposure is taken as settled once the mean has moved away
+ * from the first frame and then stayed put for a few frames. When the mean
+ * does not move at all, as in a scene clipped at both exposures or when
+ * auto-exposure is slow to start, it is never taken as settled: the caller
+ * waits for its timeout instead.
+ *
+ * Only the luma plane is read, so NV21 and YV12 frames both work. This
+ * class does not depend on the Android framework.
+ */
+public class ExposureSettleDetector {
+    // Only every STEP-th pixel of every STEP-th row is read.
+    public static final int STEP = 8;
+    // The mean moved when it is this many levels off the first frame.
+    private static final float MOVED = 4;
+    // The mean is steady when the last STEADY_FRAMES are within TOLERANCE
+    // levels of each other.
+    private static final float TOLERANCE = 1.5f;
+    private static final int STEADY_FRAMES = 3;
+
+    private final int[] mHistogram = new int[256];
+    private final float[] mRecent = new float[STEADY_FRAMES];
+    private int mFrames;
+    private float mFirstMean;
+    private float mMean;
+    private boolean mMoved;
+
+    public ExposureSettleDetector() {
+        reset();
+    }
+
+    /**
+     * Starts over, for an exposure that has just been changed.
+     */
+    public void reset() {
+        mFrames = 0;
+        mMoved = false;
+        mMean = 0;
+    }
+
+    /**
+     * Looks at the next preview frame, whose luma plane is width x height
+     * with rows stride bytes apart. Returns true once the exposure is
+     * settled.
+     */
+    public boolean addFrame(byte[] frame, int width, int height, int stride) {
+        mMean = mean(histogram(frame, width, height, stride, mHistogram), mHistogram);
+        if (mFrames == 0) mFirstMean = mMean;
+        if (Math.abs(mMean - mFirstMean) > MOVED) mMoved = true;
+        mRecent[mFrames % STEADY_FRAMES] = mMean;
+        mFrames++;
+
+        if (!mMoved || mFrames < STEADY_FRAMES) return false;
+        float min = mRecent[0], max = mRecent[0];
+        for (float mean : mRecent) {
+            min = Math.min(min, mean);
+            max = Math.max(max, mean);
+        }
+        return max - min <= TOLERANCE;
+    }
+
+    /**
+     * Returns the number of frames seen since reset().
+     */
+    public int getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Returns the mean luma of the last frame.
+     */
+    public float getMean() {
+        return mMean;
+    }
+
+    /**
+     * Returns the 256 bin luma histogram of the last frame. It is
+     * overwritten by the next one.
+     */
+    public int[] getHistogram() {
+        return mHistogram;
+    }
+
+    /**
+     * Counts the luma values of the frame every STEP pixels into histogram,
+     * starting half a step in. Returns the number of samples.
+     */
+    public static int histogram(byte[] frame, int width, int height, int stride,
+            int[] histogram) {
+        if (width <= 0 || height <= 0 || stride < width
+                || frame.length < stride * (height - 1) + width) {
+            throw new IllegalArgumentException("Bad frame " + width + "x" + height
+                    + ", stride " + stride);
+        }
+        for (int i = 0; i < histogram.length; i++) histogram[i] = 0;
+        int samples = 0;
+        for (int y = Math.min(STEP / 2, height - 1); y < height; y += STEP) {
+            int row = y * stride;
+            for (int x = Math.min(STEP / 2, width - 1); x < width; x += STEP) {
+                histogram[frame[row + x] & 0xFF]++;
+                samples++;
+            }
+        }
+        return samples;
+    }
+
+    private static float mean(int samples, int[] histogram) {
+        long sum = 0;
+        for (int v = 0; v < histogram.length; v++) sum += (long) v * histogram[v];
+        return (float) sum / samples;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.ArrayList;
+
+/**
+ * Holds the bracket JPEGs of a software HDR shot in memory until they are
+ * merged, so they do not have to go through storage and MediaStore.
+ *
+ * The session is bounded both in pictures and in bytes. A bracket that does
+ * not fit is refused, and the caller has to save it some other way.
+ *
+ * This class does not depend on the Android framework.
+ */
+public class HdrCaptureSession {
+    private final int mMaxBrackets;
+    private final long mMaxBytes;
+    private final ArrayList<byte[]> mBrackets = new ArrayList<byte[]>();
+    private long mBytes;
+
+    public HdrCaptureSession(int maxBrackets, long maxBytes) {
+        if (maxBrackets < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Empty session");
+        }
+        mMaxBrackets = maxBrackets;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Keeps the JPEG, which must not be changed afterwards. Returns false,
+     * keeping nothing, if the session is full or the JPEG would take it
+     * over its byte limit.
+     */
+    public synchronized boolean add(byte[] jpeg) {
+        if (jpeg == null || mBrackets.size() >= mMaxBrackets
+                || mBytes + jpeg.length > mMaxBytes) {
+            return false;
+        }
+        mBrackets.add(jpeg);
+        mBytes += jpeg.length;
+        return true;
+    }
+
+    public synchronized int size() {
+        return mBrackets.size();
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the brackets in the order they were added and empties the
+     * session.
+     */
+    public synchronized byte[][] take() {
+        byte[][] brackets = mBrackets.toArray(new byte[mBrackets.size()][]);
+        clear();
+        return brackets;
+    }
+
+    public synchronized void clear() {
+        mBrackets.clear();
+        mBytes = 0;
+    }
+}
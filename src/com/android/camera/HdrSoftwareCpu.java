@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Merges the HDR brackets on the CPU with ExposureFusion, band by band.
+ *
+ * The brackets are decoded a band of rows at a time, each band is fused as
+ * soon as it is read and handed straight to a JpegEncoder. Memory use
+ * depends on the picture width only, never on the full picture size.
+ * Brackets that moved are read shifted back, repeating their edge pixels
+ * where they have nothing to show.
+ */
+public class HdrSoftwareCpu implements HdrSoftwareProcessor.Backend {
+    private static final String TAG = "HdrSoftwareCpu";
+
+    private final ExposureFusion mFusion = new ExposureFusion();
+    private BitmapRegionDecoder[] mDecoders;
+    private Point[] mOffsets;
+    private int mWidth;
+    private int mHeight;
+
+    @Override
+    public void prepare(Context ctx, byte[][] sourceImages, Point[] offsets)
+            throws IOException {
+        release();
+        BitmapRegionDecoder[] decoders = new BitmapRegionDecoder[sourceImages.length];
+        try {
+            for (int i = 0; i < sourceImages.length; i++) {
+                decoders[i] = BitmapRegionDecoder.newInstance(sourceImages[i], 0,
+                        sourceImages[i].length, false);
+                if (i == 0) {
+                    mWidth = decoders[0].getWidth();
+                    mHeight = decoders[0].getHeight();
+                } else if (decoders[i].getWidth() != mWidth
+                        || decoders[i].getHeight() != mHeight) {
+                    throw new IOException("HDR input " + i
+                            + " does not match the size of the others");
+                }
+            }
+        } catch (IOException e) {
+            for (BitmapRegionDecoder decoder : decoders) {
+                if (decoder != null) decoder.recycle();
+            }
+            throw e;
+        }
+        mDecoders = decoders;
+        mOffsets = offsets;
+    }
+
+    @Override
+    public byte[] process(int quality) {
+        if (mDecoders == null || mDecoders.length == 0) {
+            Log.e(TAG, "No HDR input");
+            return null;
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        final Rect region = new Rect();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            final JpegEncoder encoder = new JpegEncoder(out, mWidth, mHeight, quality);
+            mFusion.fuseBands(new ExposureFusion.RowSource() {
+                @Override
+                public void readRows(int image, int top, int rows, int[] dst, int offset)
+                        throws IOException {
+                    if (rows == 0) return;
+                    Point shift = mOffsets[image];
+                    int first = clamp(top + shift.y, mHeight);
+                    int last = clamp(top + rows - 1 + shift.y, mHeight);
+                    region.set(0, first, mWidth, last + 1);
+                    Bitmap band = mDecoders[image].decodeRegion(region, options);
+                    if (band == null) {
+                        throw new IOException("Cannot decode rows " + first + "+"
+                                + (last + 1 - first) + " of HDR input " + image);
+                    }
+                    if (shift.x == 0 && shift.y == 0) {
+                        band.getPixels(dst, offset, mWidth, 0, 0, mWidth, rows);
+                    } else {
+                        // Columns [x0, x1) have a pixel x + shift.x to read.
+                        int x0 = clamp(-shift.x, mWidth);
+                        int x1 = Math.max(x0, Math.min(mWidth, mWidth - shift.x));
+                        for (int row = 0; row < rows; row++) {
+                            int y = clamp(top + row + shift.y, mHeight) - first;
+                            int o = offset + row * mWidth;
+                            if (x1 > x0) {
+                                band.getPixels(dst, o + x0, mWidth, x0 + shift.x, y,
+                                        x1 - x0, 1);
+                            }
+                            Arrays.fill(dst, o, o + x0, dst[o + x0]);
+                            Arrays.fill(dst, o + x1, o + mWidth, dst[o + x1 - 1]);
+                        }
+                    }
+                    band.recycle();
+                }
+            }, mDecoders.length, mWidth, mHeight, new ExposureFusion.RowSink() {
+                @Override
+                public void writeRows(int[] pixels, int rows) throws IOException {
+                    encoder.write(pixels, 0, mWidth, rows);
+                }
+            });
+            encoder.finish();
+            Log.d(TAG, "Exposure fusion: " + mFusion.getTiming());
+            return out.toByteArray();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not merge HDR pictures: " + e.getMessage());
+            return null;
+        } finally {
+            release();
+        }
+    }
+
+    private static int clamp(int v, int size) {
+        return Math.max(0, Math.min(size - 1, v));
+    }
+
+    // Lets the decoders and the fusion buffers go.
+    @Override
+    public void release() {
+        if (mDecoders != null) {
+            for (BitmapRegionDecoder decoder : mDecoders) decoder.recycle();
+            mDecoders = null;
+        }
+        mFusion.release();
+    }
+}
@@ -26,10 +26,9 @@ import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.net.Uri;
+import android.graphics.Point;
 import android.os.Bundle;
 import android.os.Environment;
-import android.provider.MediaStore.Images.Media;
 import android.renderscript.RenderScript;
 import android.util.Log;
 
@@ -56,38 +55,198 @@ public class HdrSoftwareProcessor {
         }
     };
 
-    private Bitmap mSourceBitmap;
-    private Bitmap mOutputBitmap;
-    private int mImageWidth;
-    private int mImageHeight;
-    private RenderScript mRSRenderer;
-    private HdrSoftwareRS mRSHost;
+    private static final int JPEG_QUALITY = 90;
+    // The brackets are aligned on thumbnails at most this wide.
+    private static final int ALIGN_WIDTH = 1280;
+
+    /**
+     * Merges the bracketed pictures into one.
+     */
+    public interface Backend {
+        /**
+         * Gets ready to merge the JPEGs, from the lowest exposure to the
+         * highest. Picture i at (x + offsets[i].x, y + offsets[i].y) shows
+         * the scene the others show at (x, y).
+         */
+        void prepare(Context ctx, byte[][] sourceImages, Point[] offsets)
+                throws IOException;
+
+        /**
+         * Returns the merged picture as a JPEG, or null if it failed.
+         */
+        byte[] process(int quality);
+
+        /**
+         * Frees whatever the backend keeps from one shot to the next.
+         */
+        void release();
+    }
+
+    /**
+     * Merges full size bitmaps with HdrSoftwareRS, which keeps its
+     * allocations for the next shot.
+     */
+    private static class RenderScriptBackend implements Backend {
+        private final HdrSoftwareRS mRS;
+
+        public RenderScriptBackend(Context ctx) {
+            mRS = new HdrSoftwareRS(RenderScript.create(ctx), ctx.getResources(),
+                    R.raw.hdrsoftware);
+        }
+
+        @Override
+        public void prepare(Context ctx, byte[][] sourceImages, Point[] offsets)
+                throws IOException {
+            // The script merges exactly three pictures, and none may be
+            // left from the previous shot.
+            mRS.clearInputs();
+            if (sourceImages.length != 3) {
+                throw new IOException("RenderScript HDR needs 3 pictures, got "
+                        + sourceImages.length);
+            }
+
+            // We load every source image in one Bitmap and hand it to the
+            // script, which keeps its own copy. This way we save memory by
+            // using only one Bitmap intermediate.
+            for (int i = 0; i < sourceImages.length; i++) {
+                Bitmap source = BitmapFactory.decodeByteArray(sourceImages[i], 0,
+                        sourceImages[i].length);
+                if (source == null) throw new IOException("Cannot decode HDR input " + i);
+                if (offsets[i].x != 0 || offsets[i].y != 0) {
+                    // Draw the picture shifted over a copy of itself, so the
+                    // edges it uncovers keep something close.
+                    Bitmap shifted = source.copy(Bitmap.Config.ARGB_8888, true);
+                    if (shifted == null) throw new IOException("Cannot shift HDR input " + i);
+                    new Canvas(shifted).drawBitmap(source, -offsets[i].x, -offsets[i].y, null);
+                    source.recycle();
+                    source = shifted;
+                }
+                mRS.setInput(source, i);
+
+                // try to use as few memory as possible
+                source.recycle();
+            }
+        }
+
+        @Override
+        public byte[] process(int quality) {
+            Bitmap output = mRS.process();
+            if (output == null) return null;
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                output.compress(Bitmap.CompressFormat.JPEG, quality, out);
+                return out.toByteArray();
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage());
+            }
+            return null;
+        }
+
+        @Override
+        public void release() {
+            mRS.release();
+        }
+    }
+
+    private Backend mBackend;
+    // Set between prepare() and the end of computeHDR().
+    private boolean mBusy;
+    private boolean mReleased;
 
     /**
      * Default constructor
      */
     public HdrSoftwareProcessor(Context ctx) {
-        mRSRenderer = RenderScript.create(ctx);
-        mRSHost = new HdrSoftwareRS(mRSRenderer, ctx.getResources(), R.raw.hdrsoftware);
+        if (Util.useRenderScriptHDR()) {
+            mBackend = new RenderScriptBackend(ctx);
+        } else {
+            mBackend = new HdrSoftwareCpu();
+        }
     }
 
     /**
-     * Prepare the processor with the provided source images paths
-     * @param sourceImages Source images at different exposures
+     * Prepare the processor with the provided source images
+     * @param sourceImages JPEGs of the source images at different exposures
      */
-    public void prepare(Context ctx, Uri[] sourceImages) throws IOException {
-        // We load every source image in one Bitmap and ask the renderscript to
-        // copy to the allocation. This way we save memory by using only one Bitmap
-        // intermediate.
-        for (int i = 0; i < sourceImages.length; i++) {
-            mSourceBitmap = Media.getBitmap(ctx.getContentResolver(), sourceImages[i]);
+    public void prepare(Context ctx, byte[][] sourceImages) throws IOException {
+        synchronized (this) {
+            if (mReleased) throw new IOException("HDR processor released");
+            mBusy = true;
+        }
+        try {
+            Point[] offsets = align(sourceImages);
+            long aligned = System.currentTimeMillis();
+            mBackend.prepare(ctx, sourceImages, offsets);
+            Log.d(TAG, "Prepared " + sourceImages.length + " pictures in "
+                    + (System.currentTimeMillis() - aligned) + " ms");
+        } catch (IOException e) {
+            done();
+            throw e;
+        } catch (RuntimeException e) {
+            done();
+            throw e;
+        }
+    }
+
+    /**
+     * Finds how far each picture moved from the middle one, on thumbnails,
+     * with MtbAlignment. Pictures that cannot be aligned are left where
+     * they are.
+     */
+    private Point[] align(byte[][] sourceImages) throws IOException {
+        Point[] offsets = new Point[sourceImages.length];
+        for (int i = 0; i < offsets.length; i++) offsets[i] = new Point();
+        if (sourceImages.length < 2) return offsets;
 
-            // load it in the renderscript
-            mRSHost.setBitmapInput(mSourceBitmap, i);
+        long start = System.currentTimeMillis();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(sourceImages[0], 0, sourceImages[0].length, options);
+        int sample = 1;
+        while (options.outWidth / sample > ALIGN_WIDTH) sample *= 2;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sample;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
 
-            // try to use as few memory as possible
-            mSourceBitmap.recycle();    
+        byte[][] luma = new byte[sourceImages.length][];
+        int width = 0, height = 0;
+        for (int i = 0; i < sourceImages.length; i++) {
+            Bitmap thumbnail = BitmapFactory.decodeByteArray(sourceImages[i], 0,
+                    sourceImages[i].length, options);
+            if (thumbnail == null) throw new IOException("Cannot decode HDR input " + i);
+            if (i == 0) {
+                width = thumbnail.getWidth();
+                height = thumbnail.getHeight();
+            } else if (thumbnail.getWidth() != width || thumbnail.getHeight() != height) {
+                thumbnail.recycle();
+                Log.w(TAG, "HDR input " + i + " does not match the size of the others,"
+                        + " not aligning");
+                return offsets;
+            }
+            int[] pixels = new int[width * height];
+            thumbnail.getPixels(pixels, 0, width, 0, 0, width, height);
+            thumbnail.recycle();
+            luma[i] = MtbAlignment.luma(pixels, width, height);
         }
+        long decoded = System.currentTimeMillis();
+
+        int reference = sourceImages.length / 2;
+        MtbAlignment alignment = new MtbAlignment();
+        alignment.setReference(luma[reference], width, height);
+        int[] offset = new int[2];
+        StringBuilder shifts = new StringBuilder();
+        for (int i = 0; i < sourceImages.length; i++) {
+            if (i != reference) {
+                alignment.align(luma[i], offset);
+                offsets[i].set(offset[0] * sample, offset[1] * sample);
+            }
+            shifts.append(' ').append(offsets[i].x).append(',').append(offsets[i].y);
+        }
+        long end = System.currentTimeMillis();
+        Log.d(TAG, "Aligned in " + (end - start) + " ms (thumbnails " + (decoded - start)
+                + " ms, MTB " + (end - decoded) + " ms at " + width + "x" + height
+                + "), offsets" + shifts);
+        return offsets;
     }
 
     /**
@@ -95,28 +254,31 @@ public class HdrSoftwareProcessor {
      * and output a final JPEG file at the specified output path
      */
     public byte[] computeHDR(Context ctx) {
-        computeHDRRenderScript(ctx);
-
+        long start = System.currentTimeMillis();
+        Log.d(TAG, "Starting HDR render (" + mBackend.getClass().getSimpleName() + ")");
         // Save image to memory - will be later fed into ImageSaver
         try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            mOutputBitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
-            return out.toByteArray();
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage());
+            byte[] jpeg = mBackend.process(JPEG_QUALITY);
+            Log.d(TAG, "Merged and encoded in " + (System.currentTimeMillis() - start) + " ms");
+            return jpeg;
+        } finally {
+            done();
         }
-
-        return null;
     }
 
     /**
-     * Computes the HDR image using renderscript
+     * Frees what the processor keeps between shots. If a merge is running
+     * it finishes first, on its own thread. The processor cannot be used
+     * afterwards.
      */
-    public void computeHDRRenderScript(Context ctx) {
-        Log.d(TAG, "Starting HDR render (RS)");
+    public synchronized void release() {
+        if (mReleased) return;
+        mReleased = true;
+        if (!mBusy) mBackend.release();
+    }
 
-        // process and grab output
-        mRSHost.process();
-        mOutputBitmap = mRSHost.getOutput();
+    private synchronized void done() {
+        mBusy = false;
+        if (mReleased) mBackend.release();
     }
 }
@@ -33,13 +33,25 @@ import android.util.Log;
 
 /**
  * RenderScript host class for HdrSoftware RenderScript.
+ *
+ * The allocations and the output bitmap are made for the first picture
+ * size and kept for the next shots of the same size, so back to back
+ * HDR shots do not allocate them again. A new size drops them first.
+ * Call clearInputs() before setting the inputs of each shot, so that an
+ * input left from the previous one is never merged again.
+ * Call release() when done, after which the object cannot be used.
  */
 public class HdrSoftwareRS {
     private RenderScript mRS;
     private ScriptC_HdrSoftware mScript;
     private Allocation[] mInBitmapAlloc;
+    // Which inputs were set since the last clearInputs().
+    private boolean[] mInputSet;
     private Allocation mOutBitmapAlloc;
+    private Allocation mRowIndexAlloc;
     private Bitmap mOutBitmap;
+    private int mWidth;
+    private int mHeight;
 
     public final static int BITMAP_LOW = 0;
     public final static int BITMAP_MID = 1;
@@ -56,39 +68,59 @@ public class HdrSoftwareRS {
         mRS = rs;
         mScript = new ScriptC_HdrSoftware(rs, res, resId);
         mInBitmapAlloc = new Allocation[3];
+        mInputSet = new boolean[3];
     }
 
     /**
-     * Run the processing
+     * Marks every input as not set, while keeping its allocation for the
+     * next setInput() of the same size.
      */
-    public void process() {
-        // We make the output bitmap based on the inputs.
-        // We don't really care about the content at this point, we just need the same size
-        // and pixel depth.
-        mOutBitmapAlloc = Allocation.createTyped(mRS, mInBitmapAlloc[BITMAP_LOW].getType());
-        mScript.bind_gOutput(mOutBitmapAlloc);
-
-        // We refer to the row of the images through an alloc to parallelize processing
-        int num_rows = mOutBitmap.getHeight();
-        int row_width = mOutBitmap.getWidth();
-
-        int[] row_indices = new int[num_rows];
-        for (int i = 0; i < num_rows; i++) {
-            row_indices[i] = i * row_width;
+    public void clearInputs() {
+        for (int i = 0; i < mInputSet.length; i++) {
+            mInputSet[i] = false;
         }
+    }
 
-        Allocation row_indices_alloc = Allocation.createSized(mRS, Element.I32(mRS), num_rows, Allocation.USAGE_SCRIPT);
-        row_indices_alloc.copyFrom(row_indices);
+    /**
+     * Run the processing. The returned bitmap is overwritten by the next
+     * call and recycled by release().
+     */
+    public Bitmap process() {
+        for (int i = BITMAP_LOW; i <= BITMAP_HI; i++) {
+            if (!mInputSet[i]) {
+                Log.e(TAG, "Cannot run HdrSoftware: input " + i + " is not set");
+                return null;
+            }
+        }
 
-        mScript.set_gInIndex(row_indices_alloc);
-        mScript.set_gImageWidth(row_width);
-        mScript.set_gScript(mScript);
+        if (mOutBitmapAlloc == null) {
+            // We make the output bitmap based on the inputs.
+            // We don't really care about the content at this point, we just need the same size
+            // and pixel depth.
+            mOutBitmapAlloc = Allocation.createTyped(mRS, mInBitmapAlloc[BITMAP_LOW].getType());
+            mScript.bind_gOutput(mOutBitmapAlloc);
+
+            // We refer to the row of the images through an alloc to parallelize processing
+            int[] row_indices = new int[mHeight];
+            for (int i = 0; i < mHeight; i++) {
+                row_indices[i] = i * mWidth;
+            }
+
+            mRowIndexAlloc = Allocation.createSized(mRS, Element.I32(mRS), mHeight,
+                    Allocation.USAGE_SCRIPT);
+            mRowIndexAlloc.copyFrom(row_indices);
+
+            mScript.set_gInIndex(mRowIndexAlloc);
+            mScript.set_gImageWidth(mWidth);
+            mScript.set_gScript(mScript);
+        }
 
         // We run the script...
         mScript.invoke_performHdrComputation();
 
         // And we copy the output to a bitmap
         mOutBitmapAlloc.copyTo(mOutBitmap);
+        return mOutBitmap;
     }
 
     /**
@@ -103,7 +135,7 @@ public class HdrSoftwareRS {
      * @param input Bitmap to import
      * @param input_image HdrSoftwareRS.BITMAP_LOW, BITMAP_MID, BITMAP_HI
      */
-    public void setBitmapInput(Bitmap input, int input_image) {
+    public void setInput(Bitmap input, int input_image) {
         if (input == null) {
             Log.e(TAG, "Cannot set HdrSoftware input bitmap " + input_image + ": input is null");
             return;
@@ -114,8 +146,22 @@ public class HdrSoftwareRS {
             return;
         }
 
+        if (input.getWidth() != mWidth || input.getHeight() != mHeight) {
+            releaseAllocations();
+            mWidth = input.getWidth();
+            mHeight = input.getHeight();
+        }
+
+        if (mInBitmapAlloc[input_image] != null) {
+            // Same size as last time, only the pixels change
+            mInBitmapAlloc[input_image].copyFrom(input);
+            mInputSet[input_image] = true;
+            return;
+        }
+
         mInBitmapAlloc[input_image] = Allocation.createFromBitmap(mRS, input, 
                                           Allocation.MipmapControl.MIPMAP_NONE, Allocation.USAGE_SCRIPT);
+        mInputSet[input_image] = true;
 
         // Bind our allocations to our script
         switch (input_image) {
@@ -138,5 +184,38 @@ public class HdrSoftwareRS {
             mOutBitmap = Bitmap.createBitmap(input.getWidth(), input.getHeight(), input.getConfig());
         }
     }
-}
 
+    /**
+     * Frees the allocations, the output bitmap and the RenderScript context.
+     */
+    public void release() {
+        releaseAllocations();
+        mScript.destroy();
+        mRS.destroy();
+    }
+
+    // Drops everything that depends on the picture size.
+    private void releaseAllocations() {
+        for (int i = 0; i < mInBitmapAlloc.length; i++) {
+            if (mInBitmapAlloc[i] != null) {
+                mInBitmapAlloc[i].destroy();
+                mInBitmapAlloc[i] = null;
+            }
+        }
+        clearInputs();
+        if (mOutBitmapAlloc != null) {
+            mOutBitmapAlloc.destroy();
+            mOutBitmapAlloc = null;
+        }
+        if (mRowIndexAlloc != null) {
+            mRowIndexAlloc.destroy();
+            mRowIndexAlloc = null;
+        }
+        if (mOutBitmap != null) {
+            mOutBitmap.recycle();
+            mOutBitmap = null;
+        }
+        mWidth = 0;
+        mHeight = 0;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes image files through a FileChannel. The data is written to a
+ * temporary file which is renamed to the final name, so other apps never read
+ * incomplete data.
+ *
+ * When the data reaches the storage device is controlled by the sync policy,
+ * the imageFileSyncPolicy config integer: SYNC_PER_IMAGE forces every file
+ * before it is renamed, SYNC_PER_BURST and SYNC_ON_PAUSE keep the files open
+ * until sync() is called at the end of a burst or when the activity is
+ * paused. Unsynced files are also forced once
+ * MAX_UNSYNCED_FILES of them are pending. The main thread uses
+ * syncInBackground(), which forces them on a thread of the writer.
+ *
+ * Writers may be used from several threads at once.
+ */
+public class ImageFileWriter {
+    private static final String TAG = "CAM_ImageFileWriter";
+
+    public static final int SYNC_PER_IMAGE = 0;
+    public static final int SYNC_PER_BURST = 1;
+    public static final int SYNC_ON_PAUSE = 2;
+
+    private static final int MAX_UNSYNCED_FILES = 16;
+
+    // Produces the content of a file as it is written, for images too large
+    // to be held in memory.
+    public interface Source {
+        void writeTo(FileOutputStream out) throws IOException;
+    }
+
+    private int mSyncPolicy = SYNC_ON_PAUSE;
+    private final ArrayList<FileOutputStream> mUnsynced =
+            new ArrayList<FileOutputStream>();
+    // Runs syncInBackground(). Its thread goes away when idle.
+    private final ExecutorService mSyncer = new ThreadPoolExecutor(0, 1,
+            1L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread("ImageFileWriter-sync") {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(
+                                    Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                }
+            });
+
+    // One of the SYNC_* policies. Any other value is ignored.
+    public synchronized void setSyncPolicy(int policy) {
+        if (policy < SYNC_PER_IMAGE || policy > SYNC_ON_PAUSE) {
+            Log.w(TAG, "Unknown sync policy " + policy);
+            return;
+        }
+        mSyncPolicy = policy;
+    }
+
+    public synchronized int getSyncPolicy() {
+        return mSyncPolicy;
+    }
+
+    public boolean write(String path, byte[] data) {
+        return write(path, ByteBuffer.wrap(data));
+    }
+
+    // Writes length bytes of data starting at offset, e.g. a slice of a
+    // pooled buffer. The array is wrapped, not copied.
+    public boolean write(String path, byte[] data, int offset, int length) {
+        return write(path, ByteBuffer.wrap(data, offset, length));
+    }
+
+    // Writes the remaining bytes of data. The position of data is advanced
+    // to its limit.
+    public boolean write(String path, final ByteBuffer data) {
+        return write(path, new Source() {
+            @Override
+            public void writeTo(FileOutputStream out) throws IOException {
+                FileChannel channel = out.getChannel();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        }) >= 0;
+    }
+
+    // Writes what source produces. Returns the size of the file, or -1 if it
+    // could not be written.
+    public long write(String path, Source source) {
+        String tmpPath = path + ".tmp";
+        boolean syncNow = (getSyncPolicy() == SYNC_PER_IMAGE);
+        long start = SystemClock.uptimeMillis();
+        long bytes, written, synced;
+
+        FileOutputStream out = null;
+        boolean done = false;
+        try {
+            out = new FileOutputStream(tmpPath);
+            FileChannel channel = out.getChannel();
+            source.writeTo(out);
+            bytes = channel.position();
+            written = SystemClock.uptimeMillis();
+            if (syncNow) channel.force(false);
+            synced = SystemClock.uptimeMillis();
+            done = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + path, e);
+            return -1;
+        } finally {
+            // Also when the source throws a RuntimeException.
+            if (!done) {
+                closeQuietly(out);
+                new File(tmpPath).delete();
+            }
+        }
+
+        if (!new File(tmpPath).renameTo(new File(path))) {
+            Log.e(TAG, "Failed to rename " + tmpPath);
+            closeQuietly(out);
+            new File(tmpPath).delete();
+            return -1;
+        }
+
+        if (syncNow) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close " + path, e);
+                return -1;
+            }
+        } else {
+            keepForSync(out);
+        }
+
+        long total = synced - start;
+        Log.v(TAG, "Wrote " + bytes + " bytes in " + (written - start)
+                + "ms, sync " + (synced - written) + "ms, "
+                + (total == 0 ? 0 : bytes * 1000 / total / 1024) + "KB/s");
+        return bytes;
+    }
+
+    // Called at the end of a burst. Only syncs under SYNC_PER_BURST.
+    public void onBurstDone() {
+        if (getSyncPolicy() == SYNC_PER_BURST) sync();
+    }
+
+    // Same as sync(), without waiting for it. For the main thread.
+    public void syncInBackground() {
+        synchronized (this) {
+            if (mUnsynced.isEmpty()) return;
+        }
+        mSyncer.execute(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        });
+    }
+
+    // Forces every file written since the last sync to the storage device.
+    // Returns false if any of them failed.
+    public boolean sync() {
+        ArrayList<FileOutputStream> files;
+        synchronized (this) {
+            if (mUnsynced.isEmpty()) return true;
+            files = new ArrayList<FileOutputStream>(mUnsynced);
+            mUnsynced.clear();
+        }
+
+        long start = SystemClock.uptimeMillis();
+        boolean ok = true;
+        for (FileOutputStream out : files) {
+            try {
+                out.getChannel().force(false);
+                out.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to sync image file", e);
+                closeQuietly(out);
+                ok = false;
+            }
+        }
+        Log.v(TAG, "Synced " + files.size() + " files in "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+        return ok;
+    }
+
+    private void keepForSync(FileOutputStream out) {
+        boolean full;
+        synchronized (this) {
+            mUnsynced.add(out);
+            full = mUnsynced.size() >= MAX_UNSYNCED_FILES;
+        }
+        // Do not hold on to too many file descriptors.
+        if (full) sync();
+    }
+
+    private static void closeQuietly(FileOutputStream out) {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // ignore.
+        }
+    }
+}
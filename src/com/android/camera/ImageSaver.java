@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.location.Location;
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves captured images in three stages: an optional processing step and the
+ * file write run on a small worker pool, then the MediaStore update and the
+ * new picture broadcast run on a single commit thread in shot order. The
+ * MediaStore updates of a burst are sent to the provider as one batch.
+ *
+ * Backpressure is expressed in bytes: addImage() blocks the caller only when
+ * the image data held by unfinished requests would exceed the memory budget.
+ * One request is always admitted, whatever its size, so a single oversized
+ * picture cannot deadlock the caller.
+ *
+ * When the activity's onPause() is called we need to finish all the work, so
+ * other programs (like Gallery) can see all the images. That is what
+ * waitDone() and finish() are for.
+ */
+public class ImageSaver {
+    private static final String TAG = "CAM_ImageSaver";
+
+    // Never hold more than this many bytes of image data, whatever the heap.
+    private static final long MAX_MEMORY_BUDGET = 48 * 1024 * 1024;
+    private static final int MAX_WORKERS = 3;
+    // Apply pending MediaStore updates when this many have been collected, or
+    // when the oldest has waited this long for the rest of its burst.
+    private static final int MAX_BATCH_SIZE = 10;
+    private static final long MAX_BATCH_DELAY = 500;
+
+    // Each SaveRequest remembers the data needed to save an image.
+    public static class SaveRequest {
+        byte[] data;
+        Uri uri;
+        String title;
+        long date;
+        Location loc;
+        int width, height;
+        int orientation;
+        // Optional step run on a worker before the file is written, e.g. to
+        // encode raw sensor data into a JPEG.
+        Processor processor;
+
+        // Set by the pipeline.
+        long seq;
+        long bytes;
+        int length;
+        boolean written;
+    }
+
+    public interface Processor {
+        // Runs in a worker thread. It may replace r.data and update the
+        // dimensions and orientation of the request.
+        public void process(SaveRequest r);
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final long mMemoryBudget;
+
+    private final ExecutorService mWorkers;
+    private final ExecutorService mCommitter;
+
+    // Requests whose file write finished ahead of an older shot, keyed by
+    // sequence number. Guarded by this.
+    private final HashMap<Long, SaveRequest> mWritten =
+            new HashMap<Long, SaveRequest>();
+    private long mNextSeq;
+    private long mNextCommitSeq;
+    private int mPending;
+    private long mBytesHeld;
+    private boolean mStopped;
+
+    // Only touched by the commit thread.
+    private final Storage.Batch mBatch = Storage.getStorage().newBatch();
+    private final ArrayList<SaveRequest> mBatched = new ArrayList<SaveRequest>();
+    private long mBatchStartTime;
+
+    // Runs in main thread
+    public ImageSaver(Context context, ContentResolver resolver) {
+        mContext = context;
+        mResolver = resolver;
+        mMemoryBudget = Math.min(MAX_MEMORY_BUDGET,
+                Runtime.getRuntime().maxMemory() / 4);
+        int workers = Math.max(1, Math.min(MAX_WORKERS,
+                Runtime.getRuntime().availableProcessors() - 1));
+        mWorkers = new ThreadPoolExecutor(workers, workers, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new SaverThreadFactory("ImageSaver-writer"));
+        mCommitter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new SaverThreadFactory("ImageSaver-commit"));
+    }
+
+    // Runs in main thread
+    public void addImage(final byte[] data, Uri uri, String title,
+            Location loc, int width, int height, int orientation) {
+        addImage(data, uri, title, 0, loc, width, height, orientation, null);
+    }
+
+    // Runs in main thread. If date is not 0, it replaces the DATE_TAKEN
+    // written when the uri was reserved.
+    public void addImage(final byte[] data, Uri uri, String title, long date,
+            Location loc, int width, int height, int orientation,
+            Processor processor) {
+        final SaveRequest r = new SaveRequest();
+        r.data = data;
+        r.uri = uri;
+        r.title = title;
+        r.date = date;
+        r.loc = (loc == null) ? null : new Location(loc);  // make a copy
+        r.width = width;
+        r.height = height;
+        r.orientation = orientation;
+        r.processor = processor;
+        r.bytes = (data == null) ? 0 : data.length;
+
+        synchronized (this) {
+            if (mStopped) {
+                Log.w(TAG, "Dropping " + title + ", saver already finished");
+                return;
+            }
+            // Block only if something is already in flight and this request
+            // would push us over the memory budget.
+            while (mPending > 0 && mBytesHeld + r.bytes > mMemoryBudget) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
+            }
+            r.seq = mNextSeq++;
+            mPending++;
+            mBytesHeld += r.bytes;
+        }
+
+        mWorkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(r);
+            }
+        });
+    }
+
+    // Runs in main thread
+    public synchronized long getBytesHeld() {
+        return mBytesHeld;
+    }
+
+    // Runs in main thread
+    public void waitDone() {
+        synchronized (this) {
+            while (mPending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
+            }
+        }
+    }
+
+    // Runs in main thread
+    public void finish() {
+        waitDone();
+        synchronized (this) {
+            mStopped = true;
+        }
+        mWorkers.shutdown();
+        mCommitter.shutdown();
+    }
+
+    // Runs in a worker thread
+    private void write(SaveRequest r) {
+        try {
+            if (r.processor != null) {
+                r.processor.process(r);
+                updateBytes(r);
+            }
+            r.written = Storage.getStorage().writeImageFile(r.title, r.data);
+        } catch (Throwable t) {
+            // Keep the sequence moving, otherwise every later shot would be
+            // stuck behind this one.
+            Log.e(TAG, "Failed to save " + r.title, t);
+            r.written = false;
+        }
+
+        synchronized (this) {
+            mWritten.put(r.seq, r);
+            // Hand the finished writes to the committer in shot order.
+            SaveRequest next;
+            while ((next = mWritten.remove(mNextCommitSeq)) != null) {
+                mNextCommitSeq++;
+                final SaveRequest c = next;
+                mCommitter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        commit(c);
+                    }
+                });
+            }
+        }
+    }
+
+    // Runs in the commit thread. MediaStore updates are collected into one
+    // batch while more shots of the same burst are still on their way, and
+    // the batch is applied once the pipeline drains, or earlier if it grows
+    // too large or too old.
+    private void commit(SaveRequest r) {
+        if (mBatched.isEmpty()) {
+            mBatchStartTime = SystemClock.uptimeMillis();
+        }
+        if (r.written && r.uri != null && r.data != null) {
+            r.length = r.data.length;
+            mBatch.updateImageRecord(r.uri, r.title, r.date, r.loc,
+                    r.orientation, r.length, r.width, r.height);
+        } else {
+            r.written = false;
+        }
+        mBatched.add(r);
+
+        // The jpeg is on disk, so its memory can be given back right away.
+        boolean more;
+        r.data = null;
+        synchronized (this) {
+            mBytesHeld -= r.bytes;
+            r.bytes = 0;
+            more = mPending > mBatched.size();
+            notifyAll();  // the main thread may wait in addImage
+        }
+
+        if (!more || mBatch.size() >= MAX_BATCH_SIZE
+                || SystemClock.uptimeMillis() - mBatchStartTime >= MAX_BATCH_DELAY) {
+            flush();
+        }
+    }
+
+    // Runs in the commit thread
+    private void flush() {
+        ContentProviderResult[] results = mBatch.commit(mResolver);
+        int index = 0;
+        for (SaveRequest r : mBatched) {
+            if (!r.written) continue;
+            boolean ok;
+            if (results != null) {
+                ok = results[index].count != null && results[index].count > 0;
+            } else {
+                // The batch failed as a whole, try the updates one by one so
+                // a single bad row does not hide the whole burst.
+                ok = Storage.getStorage().updateImageRecord(mResolver, r.uri,
+                        r.title, r.date, r.loc, r.orientation, r.length,
+                        r.width, r.height);
+            }
+            index++;
+            if (ok) {
+                Util.broadcastNewPicture(mContext, r.uri);
+            }
+        }
+
+        boolean burstDone;
+        synchronized (this) {
+            mPending -= mBatched.size();
+            burstDone = (mPending == 0);
+            notifyAll();  // the main thread may wait in waitDone
+        }
+        mBatched.clear();
+        if (burstDone) {
+            Storage.getStorage().getFileWriter().onBurstDone();
+        }
+    }
+
+    // Runs in a worker thread
+    private synchronized void updateBytes(SaveRequest r) {
+        long bytes = (r.data == null) ? 0 : r.data.length;
+        mBytesHeld += bytes - r.bytes;
+        r.bytes = bytes;
+        notifyAll();
+    }
+
+    private static class SaverThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        public SaverThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(mName + "-" + mCount.incrementAndGet()) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads shared by the pure Java imaging code to split work across
+ * cores. There is one thread per core; they go away after a few idle
+ * seconds. Does not depend on the Android framework.
+ */
+public class ImagingThreadPool {
+    private static ThreadPoolExecutor sExecutor;
+
+    private static class ImagingThreadFactory implements ThreadFactory {
+        private int mCount;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Imaging-" + (++mCount));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private ImagingThreadPool() {
+    }
+
+    public static synchronized ThreadPoolExecutor get() {
+        if (sExecutor == null) {
+            int cores = getThreadCount();
+            sExecutor = new ThreadPoolExecutor(cores, cores, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ImagingThreadFactory());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    public static int getThreadCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Runs the first task on the calling thread and the others on the pool,
+     * and returns once they are all done.
+     */
+    public static void runAll(Runnable[] tasks) {
+        final CountDownLatch done = new CountDownLatch(tasks.length - 1);
+        for (int i = 1; i < tasks.length; i++) {
+            final Runnable task = tasks[i];
+            get().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        tasks[0].run();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
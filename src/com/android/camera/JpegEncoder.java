@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes ARGB pixels, or full resolution YCbCr planes, to a baseline JFIF
+ * JPEG a few rows at a time.
+ *
+ * Rows can be written in any number per call. Only one row of MCUs, 16
+ * pixel rows, is kept before it is compressed and written to the stream,
+ * so a picture can be encoded without ever being in memory whole. The
+ * chroma is subsampled 2x2 and the result is Huffman coded with the
+ * standard tables of ISO/IEC 10918-1 Annex K, the quantization tables being
+ * the Annex K ones scaled for the quality like libjpeg does.
+ *
+ * This class does not depend on the Android framework.
+ */
+public class JpegEncoder {
+    // ISO/IEC 10918-1 Annex K.1, natural order.
+    private static final int[] STD_LUMINANCE_QUANT = {
+        16, 11, 10, 16, 24, 40, 51, 61,
+        12, 12, 14, 19, 26, 58, 60, 55,
+        14, 13, 16, 24, 40, 57, 69, 56,
+        14, 17, 22, 29, 51, 87, 80, 62,
+        18, 22, 37, 56, 68, 109, 103, 77,
+        24, 35, 55, 64, 81, 104, 113, 92,
+        49, 64, 78, 87, 103, 121, 120, 101,
+        72, 92, 95, 98, 112, 100, 103, 99
+    };
+    private static final int[] STD_CHROMINANCE_QUANT = {
+        17, 18, 24, 47, 99, 99, 99, 99,
+        18, 21, 26, 66, 99, 99, 99, 99,
+        24, 26, 56, 99, 99, 99, 99, 99,
+        47, 66, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99,
+        99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    // The row and column scale factors of the AAN DCT.
+    private static final float[] AAN_SCALE = {
+        1.0f, 1.387039845f, 1.306562965f, 1.175875602f,
+        1.0f, 0.785694958f, 0.541196100f, 0.275899379f
+    };
+
+    // JFIF YCbCr from 8-bit RGB, in 16.16 fixed point.
+    private static final int[] Y_R = new int[256], Y_G = new int[256], Y_B = new int[256];
+    private static final int[] CB_R = new int[256], CB_G = new int[256];
+    private static final int[] CR_G = new int[256], CR_B = new int[256];
+    // Also the Cb blue and Cr red factor.
+    private static final int[] HALF = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_R[i] = Math.round(0.299f * 65536) * i;
+            Y_G[i] = Math.round(0.587f * 65536) * i;
+            Y_B[i] = Math.round(0.114f * 65536) * i;
+            CB_R[i] = -Math.round(0.168736f * 65536) * i;
+            CB_G[i] = -Math.round(0.331264f * 65536) * i;
+            CR_G[i] = -Math.round(0.418688f * 65536) * i;
+            CR_B[i] = -Math.round(0.081312f * 65536) * i;
+            HALF[i] = 32768 * i;
+        }
+    }
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMcusX;
+    // Quantizer reciprocals with the DCT scale folded in, natural order.
+    private final float[] mLumaDivisors = new float[64];
+    private final float[] mChromaDivisors = new float[64];
+    private final Huffman mDcLuma, mAcLuma, mDcChroma, mAcChroma;
+
+    // The MCU row being filled, level shifted to -128..127. Luma is 16 rows
+    // of mMcusX * 16 samples; chroma is 8 rows of mMcusX * 8 samples, each
+    // the sum of four pixels until the row is compressed.
+    private final float[] mY;
+    private final float[] mCb;
+    private final float[] mCr;
+    private int mRows;
+    private int mRowsWritten;
+    // The last row written, repeated down to the end of the last MCU row.
+    // The planes are only allocated once writeYCbCr() is used.
+    private final int[] mLastRow;
+    private byte[] mLastY, mLastCb, mLastCr;
+    private boolean mLastRowIsYCbCr;
+
+    private final float[] mBlock = new float[64];
+    private int mPredY, mPredCb, mPredCr;
+
+    // Entropy coded output, flushed to mOut as it fills.
+    private final byte[] mBuffer = new byte[65536];
+    private int mSize;
+    private int mBits;
+    private int mBitCount;
+
+    /**
+     * Writes the headers of a width x height JPEG of the given quality, 1 to
+     * 100, to out. The stream is not closed.
+     */
+    public JpegEncoder(OutputStream out, int width, int height, int quality)
+            throws IOException {
+        if (width <= 0 || height <= 0 || width > 65535 || height > 65535) {
+            throw new IllegalArgumentException("Bad size " + width + "x" + height);
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mMcusX = (width + 15) / 16;
+        mY = new float[16 * mMcusX * 16];
+        mCb = new float[8 * mMcusX * 8];
+        mCr = new float[8 * mMcusX * 8];
+        mLastRow = new int[width];
+
+        mDcLuma = new Huffman(JpegTransform.STD_DC_LUMINANCE_BITS,
+                JpegTransform.STD_DC_VALUES);
+        mAcLuma = new Huffman(JpegTransform.STD_AC_LUMINANCE_BITS,
+                JpegTransform.STD_AC_LUMINANCE_VALUES);
+        mDcChroma = new Huffman(JpegTransform.STD_DC_CHROMINANCE_BITS,
+                JpegTransform.STD_DC_VALUES);
+        mAcChroma = new Huffman(JpegTransform.STD_AC_CHROMINANCE_BITS,
+                JpegTransform.STD_AC_CHROMINANCE_VALUES);
+
+        quality = Math.max(1, Math.min(100, quality));
+        int scale = (quality < 50) ? 5000 / quality : 200 - 2 * quality;
+        int[] luma = scaleQuant(STD_LUMINANCE_QUANT, scale, mLumaDivisors);
+        int[] chroma = scaleQuant(STD_CHROMINANCE_QUANT, scale, mChromaDivisors);
+        writeHeaders(luma, chroma);
+    }
+
+    /**
+     * Encodes rows rows of width ARGB pixels from pixels, starting at offset,
+     * stride pixels apart. Alpha is ignored.
+     */
+    public void write(int[] pixels, int offset, int stride, int rows) throws IOException {
+        if (rows < 0 || mRowsWritten + rows > mHeight) {
+            throw new IllegalArgumentException("Too many rows");
+        }
+        for (int row = 0; row < rows; row++) {
+            addRow(pixels, offset + row * stride);
+        }
+        if (rows > 0) {
+            System.arraycopy(pixels, offset + (rows - 1) * stride, mLastRow, 0, mWidth);
+            mLastRowIsYCbCr = false;
+        }
+        mRowsWritten += rows;
+    }
+
+    /**
+     * Encodes rows rows of width JFIF YCbCr samples, one byte per sample and
+     * plane, starting at offset, stride bytes apart. The chroma planes are at
+     * full resolution; they are subsampled here like converted ARGB pixels.
+     */
+    public void writeYCbCr(byte[] y, byte[] cb, byte[] cr, int offset, int stride, int rows)
+            throws IOException {
+        if (rows < 0 || mRowsWritten + rows > mHeight) {
+            throw new IllegalArgumentException("Too many rows");
+        }
+        for (int row = 0; row < rows; row++) {
+            addRow(y, cb, cr, offset + row * stride);
+        }
+        if (rows > 0) {
+            if (mLastY == null) {
+                mLastY = new byte[mWidth];
+                mLastCb = new byte[mWidth];
+                mLastCr = new byte[mWidth];
+            }
+            int last = offset + (rows - 1) * stride;
+            System.arraycopy(y, last, mLastY, 0, mWidth);
+            System.arraycopy(cb, last, mLastCb, 0, mWidth);
+            System.arraycopy(cr, last, mLastCr, 0, mWidth);
+            mLastRowIsYCbCr = true;
+        }
+        mRowsWritten += rows;
+    }
+
+    /**
+     * Encodes what is left once all the rows have been written, and ends the
+     * JPEG. The stream is flushed but not closed.
+     */
+    public void finish() throws IOException {
+        if (mRowsWritten != mHeight) {
+            throw new IllegalStateException(mRowsWritten + " of " + mHeight + " rows written");
+        }
+        while (mRows != 0) {
+            if (mLastRowIsYCbCr) {
+                addRow(mLastY, mLastCb, mLastCr, 0);
+            } else {
+                addRow(mLastRow, 0);
+            }
+        }
+        // Pad the last byte with one bits.
+        if (mBitCount > 0) putBits(0x7F, 8 - mBitCount);
+        putByte(0xFF);
+        putByte(0xD9);
+        mOut.write(mBuffer, 0, mSize);
+        mSize = 0;
+        mOut.flush();
+    }
+
+    // Converts one row to YCbCr into the MCU row, and compresses the MCU row
+    // once it is full. The last pixel is repeated to the end of the last MCU.
+    private void addRow(int[] pixels, int offset) throws IOException {
+        int lumaStride = mMcusX * 16;
+        int y = mRows * lumaStride;
+        int c = startChromaRow();
+        for (int x = 0; x < lumaStride; x++) {
+            int p = pixels[offset + Math.min(x, mWidth - 1)];
+            int r = (p >> 16) & 0xFF, g = (p >> 8) & 0xFF, b = p & 0xFF;
+            mY[y + x] = ((Y_R[r] + Y_G[g] + Y_B[b] + 32768) >> 16) - 128;
+            int ci = c + (x >> 1);
+            mCb[ci] += (CB_R[r] + CB_G[g] + HALF[b]) * (1f / 65536);
+            mCr[ci] += (HALF[r] + CR_G[g] + CR_B[b]) * (1f / 65536);
+        }
+        endRow();
+    }
+
+    // The same for a row of YCbCr planes.
+    private void addRow(byte[] ys, byte[] cbs, byte[] crs, int offset) throws IOException {
+        int lumaStride = mMcusX * 16;
+        int y = mRows * lumaStride;
+        int c = startChromaRow();
+        for (int x = 0; x < lumaStride; x++) {
+            int i = offset + Math.min(x, mWidth - 1);
+            mY[y + x] = (ys[i] & 0xFF) - 128;
+            int ci = c + (x >> 1);
+            mCb[ci] += (cbs[i] & 0xFF) - 128;
+            mCr[ci] += (crs[i] & 0xFF) - 128;
+        }
+        endRow();
+    }
+
+    // Returns where the chroma of the current row goes, clearing it on the
+    // first of each pair of rows.
+    private int startChromaRow() {
+        int chromaStride = mMcusX * 8;
+        int c = (mRows >> 1) * chromaStride;
+        if ((mRows & 1) == 0) {
+            Arrays.fill(mCb, c, c + chromaStride, 0f);
+            Arrays.fill(mCr, c, c + chromaStride, 0f);
+        }
+        return c;
+    }
+
+    private void endRow() throws IOException {
+        if (++mRows == 16) {
+            compressRow();
+            mRows = 0;
+        }
+    }
+
+    private void compressRow() throws IOException {
+        int lumaStride = mMcusX * 16;
+        int chromaStride = mMcusX * 8;
+        for (int mx = 0; mx < mMcusX; mx++) {
+            for (int by = 0; by < 2; by++) {
+                for (int bx = 0; bx < 2; bx++) {
+                    loadBlock(mY, (by * 8) * lumaStride + mx * 16 + bx * 8, lumaStride, 1f);
+                    mPredY = encodeBlock(mLumaDivisors, mPredY, mDcLuma, mAcLuma);
+                }
+            }
+            // The chroma samples hold four pixels each.
+            loadBlock(mCb, mx * 8, chromaStride, 0.25f);
+            mPredCb = encodeBlock(mChromaDivisors, mPredCb, mDcChroma, mAcChroma);
+            loadBlock(mCr, mx * 8, chromaStride, 0.25f);
+            mPredCr = encodeBlock(mChromaDivisors, mPredCr, mDcChroma, mAcChroma);
+        }
+    }
+
+    private void loadBlock(float[] src, int offset, int stride, float scale) {
+        float[] block = mBlock;
+        for (int row = 0; row < 8; row++) {
+            int s = offset + row * stride;
+            for (int col = 0; col < 8; col++) {
+                block[row * 8 + col] = src[s + col] * scale;
+            }
+        }
+    }
+
+    // Transforms, quantizes and Huffman codes mBlock. Returns the new DC
+    // predictor.
+    private int encodeBlock(float[] divisors, int predictor, Huffman dc, Huffman ac)
+            throws IOException {
+        float[] block = mBlock;
+        forwardDct(block);
+
+        // Rounding can push a coefficient just past the range of its Huffman
+        // table at the highest qualities.
+        int value = clamp(Math.round(block[0] * divisors[0]), 1023);
+        int diff = value - predictor;
+        int size = bitSize(diff);
+        putBits(dc.mCode[size], dc.mLength[size]);
+        if (size > 0) putBits(diff < 0 ? diff - 1 : diff, size);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int n = JpegTransform.ZIGZAG[k];
+            int coefficient = clamp(Math.round(block[n] * divisors[n]), 1023);
+            if (coefficient == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                putBits(ac.mCode[0xF0], ac.mLength[0xF0]);
+                run -= 16;
+            }
+            size = bitSize(coefficient);
+            int symbol = (run << 4) | size;
+            putBits(ac.mCode[symbol], ac.mLength[symbol]);
+            putBits(coefficient < 0 ? coefficient - 1 : coefficient, size);
+            run = 0;
+        }
+        if (run > 0) putBits(ac.mCode[0x00], ac.mLength[0x00]);
+        return value;
+    }
+
+    // The floating point AAN DCT of libjpeg's jfdctflt.c, in place. The
+    // outputs are scaled by 8 * AAN_SCALE[row] * AAN_SCALE[col], which the
+    // divisors undo.
+    private static void forwardDct(float[] d) {
+        for (int pass = 0; pass < 2; pass++) {
+            // Rows first, then columns.
+            int step = (pass == 0) ? 1 : 8;
+            int next = (pass == 0) ? 8 : 1;
+            for (int line = 0, o = 0; line < 8; line++, o += next) {
+                float tmp0 = d[o] + d[o + 7 * step];
+                float tmp7 = d[o] - d[o + 7 * step];
+                float tmp1 = d[o + step] + d[o + 6 * step];
+                float tmp6 = d[o + step] - d[o + 6 * step];
+                float tmp2 = d[o + 2 * step] + d[o + 5 * step];
+                float tmp5 = d[o + 2 * step] - d[o + 5 * step];
+                float tmp3 = d[o + 3 * step] + d[o + 4 * step];
+                float tmp4 = d[o + 3 * step] - d[o + 4 * step];
+
+                // Even part.
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                d[o] = tmp10 + tmp11;
+                d[o + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                d[o + 2 * step] = tmp13 + z1;
+                d[o + 6 * step] = tmp13 - z1;
+
+                // Odd part.
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                d[o + 5 * step] = z13 + z2;
+                d[o + 3 * step] = z13 - z2;
+                d[o + step] = z11 + z4;
+                d[o + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    private static int clamp(int value, int limit) {
+        return value < -limit ? -limit : (value > limit ? limit : value);
+    }
+
+    private static int bitSize(int value) {
+        if (value < 0) value = -value;
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    // Returns the scaled table, and fills divisors with what multiplies the
+    // DCT output into the quantized coefficient.
+    private static int[] scaleQuant(int[] base, int scale, float[] divisors) {
+        int[] table = new int[64];
+        for (int i = 0; i < 64; i++) {
+            int q = (base[i] * scale + 50) / 100;
+            table[i] = Math.max(1, Math.min(255, q));
+            divisors[i] = 1f / (table[i] * AAN_SCALE[i / 8] * AAN_SCALE[i % 8] * 8);
+        }
+        return table;
+    }
+
+    private void writeHeaders(int[] luma, int[] chroma) throws IOException {
+        putShort(0xFFD8);
+
+        // JFIF 1.01, no density, no thumbnail.
+        putShort(0xFFE0);
+        putShort(16);
+        putByte('J');
+        putByte('F');
+        putByte('I');
+        putByte('F');
+        putByte(0);
+        putShort(0x0101);
+        putByte(0);
+        putShort(1);
+        putShort(1);
+        putByte(0);
+        putByte(0);
+
+        putQuantTable(0, luma);
+        putQuantTable(1, chroma);
+
+        // Y at 2x2, Cb and Cr at 1x1.
+        putShort(0xFFC0);
+        putShort(8 + 3 * 3);
+        putByte(8);
+        putShort(mHeight);
+        putShort(mWidth);
+        putByte(3);
+        putByte(1);
+        putByte(0x22);
+        putByte(0);
+        putByte(2);
+        putByte(0x11);
+        putByte(1);
+        putByte(3);
+        putByte(0x11);
+        putByte(1);
+
+        putHuffmanTable(0x00, JpegTransform.STD_DC_LUMINANCE_BITS,
+                JpegTransform.STD_DC_VALUES);
+        putHuffmanTable(0x10, JpegTransform.STD_AC_LUMINANCE_BITS,
+                JpegTransform.STD_AC_LUMINANCE_VALUES);
+        putHuffmanTable(0x01, JpegTransform.STD_DC_CHROMINANCE_BITS,
+                JpegTransform.STD_DC_VALUES);
+        putHuffmanTable(0x11, JpegTransform.STD_AC_CHROMINANCE_BITS,
+                JpegTransform.STD_AC_CHROMINANCE_VALUES);
+
+        putShort(0xFFDA);
+        putShort(6 + 2 * 3);
+        putByte(3);
+        putByte(1);
+        putByte(0x00);
+        putByte(2);
+        putByte(0x11);
+        putByte(3);
+        putByte(0x11);
+        putByte(0);
+        putByte(63);
+        putByte(0);
+    }
+
+    private void putQuantTable(int id, int[] table) throws IOException {
+        putShort(0xFFDB);
+        putShort(2 + 1 + 64);
+        putByte(id);
+        for (int k = 0; k < 64; k++) putByte(table[JpegTransform.ZIGZAG[k]]);
+    }
+
+    private void putHuffmanTable(int id, byte[] bits, byte[] values) throws IOException {
+        putShort(0xFFC4);
+        putShort(2 + 1 + 16 + values.length);
+        putByte(id);
+        for (int i = 0; i < 16; i++) putByte(bits[i]);
+        for (int i = 0; i < values.length; i++) putByte(values[i]);
+    }
+
+    private void putByte(int value) throws IOException {
+        if (mSize == mBuffer.length) {
+            mOut.write(mBuffer, 0, mSize);
+            mSize = 0;
+        }
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    private void putShort(int value) throws IOException {
+        putByte(value >> 8);
+        putByte(value);
+    }
+
+    // Appends the low count bits of value, most significant first, stuffing
+    // a zero byte after each 0xFF.
+    private void putBits(int value, int count) throws IOException {
+        mBits = (mBits << count) | (value & ((1 << count) - 1));
+        mBitCount += count;
+        while (mBitCount >= 8) {
+            int b = (mBits >> (mBitCount - 8)) & 0xFF;
+            putByte(b);
+            if (b == 0xFF) putByte(0);
+            mBitCount -= 8;
+        }
+    }
+
+    // The codes of a Huffman table, by symbol.
+    private static class Huffman {
+        final int[] mCode = new int[256];
+        final int[] mLength = new int[256];
+
+        Huffman(byte[] bits, byte[] values) {
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++, k++, code++) {
+                    int value = values[k] & 0xFF;
+                    mCode[value] = code;
+                    mLength[value] = length;
+                }
+                code <<= 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,862 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Rotates and mirrors baseline JPEGs without decoding them to pixels.
+ *
+ * The entropy coded data is decoded to quantized DCT coefficients only. Each
+ * 8x8 block is then moved to its new place and transposed and/or has the sign
+ * of its odd frequencies flipped, which is exactly the DCT of the transformed
+ * pixels, so there is no generation loss. The result is Huffman coded again
+ * with the standard tables of ISO/IEC 10918-1 Annex K.
+ *
+ * A block cannot be mirrored along an axis where the picture does not end on
+ * an MCU boundary, because its padding would end up inside the picture. Like
+ * jpegtran -trim, such partial edge MCUs are dropped, so the result may be up
+ * to 15 pixels smaller along a mirrored axis. The camera picture sizes are
+ * normally MCU aligned.
+ *
+ * Only baseline and extended sequential Huffman JPEGs with a single scan are
+ * supported; transform() returns null for anything else so callers can fall
+ * back to decoding. APPn and COM segments are copied, and the EXIF
+ * orientation tag, if any, is reset to normal.
+ *
+ * This class does not depend on the Android framework.
+ */
+public class JpegTransform {
+    // Mirrors left to right.
+    public static final int FLIP_X = 1;
+    // Mirrors top to bottom.
+    public static final int FLIP_Y = 2;
+    // Swaps x and y. Applied before the flips.
+    public static final int TRANSPOSE = 4;
+
+    // Natural order index of each zigzag position.
+    static final int[] ZIGZAG = {
+         0,  1,  8, 16,  9,  2,  3, 10,
+        17, 24, 32, 25, 18, 11,  4,  5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13,  6,  7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // ISO/IEC 10918-1 Annex K.3 to K.6.
+    static final byte[] STD_DC_LUMINANCE_BITS = {
+        0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0
+    };
+    static final byte[] STD_DC_CHROMINANCE_BITS = {
+        0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0
+    };
+    static final byte[] STD_DC_VALUES = {
+        0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11
+    };
+    static final byte[] STD_AC_LUMINANCE_BITS = {
+        0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d
+    };
+    static final byte[] STD_AC_LUMINANCE_VALUES = toBytes(new int[] {
+        0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06,
+        0x13, 0x51, 0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+        0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72,
+        0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+        0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45,
+        0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+        0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+        0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+        0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3,
+        0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+        0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9,
+        0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+        0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4,
+        0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    });
+    static final byte[] STD_AC_CHROMINANCE_BITS = {
+        0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77
+    };
+    static final byte[] STD_AC_CHROMINANCE_VALUES = toBytes(new int[] {
+        0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41,
+        0x51, 0x07, 0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+        0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1,
+        0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+        0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44,
+        0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+        0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+        0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+        0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a,
+        0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+        0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7,
+        0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+        0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4,
+        0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    });
+
+    private static final int MAX_COMPONENTS = 4;
+
+    // Thrown for JPEGs we do not handle. transform() turns it into null.
+    private static class UnsupportedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    // Input state.
+    private byte[] mIn;
+    private int mWidth, mHeight;
+    private int mComponents;
+    private final int[] mComponentId = new int[MAX_COMPONENTS];
+    private final int[] mH = new int[MAX_COMPONENTS];
+    private final int[] mV = new int[MAX_COMPONENTS];
+    private final int[] mQuantIndex = new int[MAX_COMPONENTS];
+    private final int[] mDcIndex = new int[MAX_COMPONENTS];
+    private final int[] mAcIndex = new int[MAX_COMPONENTS];
+    private final int[][] mQuant = new int[4][];
+    private final HuffmanDecoder[] mDcTables = new HuffmanDecoder[4];
+    private final HuffmanDecoder[] mAcTables = new HuffmanDecoder[4];
+    private int mRestartInterval;
+    private boolean mExtended;
+    private int mMcusX, mMcusY;
+    // Start and end of the APPn and COM segments to copy.
+    private IntArray mSegments;
+    private int[] mSegmentBounds;
+
+    // Quantized coefficients of each component, 64 per block in natural
+    // order, blocks in raster order.
+    private final short[][] mCoefficients = new short[MAX_COMPONENTS][];
+    private final int[] mBlocksWide = new int[MAX_COMPONENTS];
+
+    private int mOutWidth, mOutHeight;
+    private String mError;
+
+    /**
+     * Returns the transform which mirrors the picture left to right if
+     * mirror is true, then rotates it by degrees clockwise, the same as
+     * Util.rotateAndMirror().
+     */
+    public static int forRotation(int degrees, boolean mirror) {
+        // Work with the matrix of the transform, in image coordinates
+        // (y points down) relative to the center.
+        int a = mirror ? -1 : 1, b = 0, c = 0, d = 1;
+        int turns = (((degrees % 360) + 360) % 360) / 90;
+        for (int i = 0; i < turns; i++) {
+            // A clockwise quarter turn maps (x, y) to (-y, x).
+            int na = -c, nb = -d, nc = a, nd = b;
+            a = na; b = nb; c = nc; d = nd;
+        }
+        if (a == 0) {
+            // [0 b; c 0] = diag(b, c) * transpose
+            return TRANSPOSE | (b < 0 ? FLIP_X : 0) | (c < 0 ? FLIP_Y : 0);
+        }
+        return (a < 0 ? FLIP_X : 0) | (d < 0 ? FLIP_Y : 0);
+    }
+
+    /**
+     * Returns a new JPEG with the transform applied, or null if the JPEG is
+     * not supported or is corrupt; see getError().
+     */
+    public byte[] transform(byte[] jpeg, int transform) {
+        mError = null;
+        try {
+            parse(jpeg);
+            return write(transform);
+        } catch (UnsupportedException e) {
+            mError = e.getMessage();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            mError = "Truncated JPEG";
+        } finally {
+            mIn = null;
+            for (int i = 0; i < MAX_COMPONENTS; i++) mCoefficients[i] = null;
+        }
+        return null;
+    }
+
+    // The size of the last transformed picture.
+    public int getOutputWidth() {
+        return mOutWidth;
+    }
+
+    public int getOutputHeight() {
+        return mOutHeight;
+    }
+
+    // Why the last transform() returned null.
+    public String getError() {
+        return mError;
+    }
+
+    // ---------------------------------------------------------------------
+    // Decoding
+
+    private void parse(byte[] jpeg) throws UnsupportedException {
+        mIn = jpeg;
+        mComponents = 0;
+        mRestartInterval = 0;
+        mSegments = new IntArray();
+        for (int i = 0; i < 4; i++) {
+            mQuant[i] = null;
+            mDcTables[i] = mAcTables[i] = null;
+        }
+        if (jpeg == null || jpeg.length < 4
+                || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+            throw new UnsupportedException("Not a JPEG");
+        }
+
+        int pos = 2;
+        boolean scanned = false;
+        while (pos + 4 <= jpeg.length) {
+            if ((jpeg[pos] & 0xFF) != 0xFF) {
+                throw new UnsupportedException("Marker expected at " + pos);
+            }
+            int marker = jpeg[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                pos++;
+                continue;
+            }
+            if (marker == 0xD9) break;
+            int length = u16(jpeg, pos + 2);
+            int start = pos + 4;
+            int end = pos + 2 + length;
+            if (length < 2 || end > jpeg.length) {
+                throw new UnsupportedException("Bad segment length");
+            }
+
+            if ((marker >= 0xE0 && marker <= 0xEF) || marker == 0xFE) {
+                mSegments.add(pos);
+                mSegments.add(end);
+            } else if (marker == 0xDB) {
+                parseQuantTables(start, end);
+            } else if (marker == 0xC4) {
+                parseHuffmanTables(start, end);
+            } else if (marker == 0xC0 || marker == 0xC1) {
+                mExtended = (marker == 0xC1);
+                parseFrame(start);
+            } else if (marker == 0xDD) {
+                mRestartInterval = u16(jpeg, start);
+            } else if (marker == 0xDA) {
+                if (scanned) {
+                    throw new UnsupportedException("Multiple scans");
+                }
+                end = decodeScan(start);
+                scanned = true;
+            } else if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4
+                    && marker != 0xC8 && marker != 0xCC) {
+                throw new UnsupportedException("Unsupported frame type "
+                        + Integer.toHexString(marker));
+            }
+            pos = end;
+        }
+        if (!scanned) throw new UnsupportedException("No scan");
+        mSegmentBounds = mSegments.toArray(mSegmentBounds);
+    }
+
+    private void parseQuantTables(int pos, int end) throws UnsupportedException {
+        while (pos < end) {
+            int pq = (mIn[pos] & 0xFF) >> 4;
+            int tq = mIn[pos] & 0x0F;
+            pos++;
+            if (tq > 3) throw new UnsupportedException("Bad quantization table");
+            int[] table = new int[64];
+            for (int k = 0; k < 64; k++) {
+                if (pq == 0) {
+                    table[ZIGZAG[k]] = mIn[pos++] & 0xFF;
+                } else {
+                    table[ZIGZAG[k]] = u16(mIn, pos);
+                    pos += 2;
+                }
+            }
+            mQuant[tq] = table;
+        }
+    }
+
+    private void parseHuffmanTables(int pos, int end) throws UnsupportedException {
+        while (pos < end) {
+            int tc = (mIn[pos] & 0xFF) >> 4;
+            int th = mIn[pos] & 0x0F;
+            if (tc > 1 || th > 3) throw new UnsupportedException("Bad Huffman table");
+            int total = 0;
+            for (int i = 1; i <= 16; i++) total += mIn[pos + i] & 0xFF;
+            HuffmanDecoder table = new HuffmanDecoder(mIn, pos + 1, pos + 17, total);
+            if (tc == 0) {
+                mDcTables[th] = table;
+            } else {
+                mAcTables[th] = table;
+            }
+            pos += 17 + total;
+        }
+    }
+
+    private void parseFrame(int pos) throws UnsupportedException {
+        if ((mIn[pos] & 0xFF) != 8) throw new UnsupportedException("Not 8-bit");
+        mHeight = u16(mIn, pos + 1);
+        mWidth = u16(mIn, pos + 3);
+        mComponents = mIn[pos + 5] & 0xFF;
+        if (mHeight == 0 || mWidth == 0 || mComponents == 0
+                || mComponents > MAX_COMPONENTS) {
+            throw new UnsupportedException("Unsupported frame");
+        }
+        pos += 6;
+        int hMax = 1, vMax = 1;
+        for (int i = 0; i < mComponents; i++, pos += 3) {
+            mComponentId[i] = mIn[pos] & 0xFF;
+            mH[i] = (mIn[pos + 1] & 0xFF) >> 4;
+            mV[i] = mIn[pos + 1] & 0x0F;
+            mQuantIndex[i] = mIn[pos + 2] & 0x03;
+            if (mH[i] < 1 || mH[i] > 4 || mV[i] < 1 || mV[i] > 4) {
+                throw new UnsupportedException("Bad sampling factors");
+            }
+            hMax = Math.max(hMax, mH[i]);
+            vMax = Math.max(vMax, mV[i]);
+        }
+        // A single component is never interleaved, so its MCU is one block.
+        if (mComponents == 1) {
+            mH[0] = mV[0] = hMax = vMax = 1;
+        }
+        mMcusX = (mWidth + 8 * hMax - 1) / (8 * hMax);
+        mMcusY = (mHeight + 8 * vMax - 1) / (8 * vMax);
+        for (int i = 0; i < mComponents; i++) {
+            mBlocksWide[i] = mMcusX * mH[i];
+            int blocksHigh = mMcusY * mV[i];
+            mCoefficients[i] = new short[mBlocksWide[i] * blocksHigh * 64];
+        }
+    }
+
+    // Decodes the scan that starts at pos and returns where it ends.
+    private int decodeScan(int pos) throws UnsupportedException {
+        if (mComponents == 0) throw new UnsupportedException("Scan before frame");
+        int count = mIn[pos] & 0xFF;
+        if (count != mComponents) {
+            throw new UnsupportedException("Non-interleaved scans");
+        }
+        pos++;
+        for (int i = 0; i < count; i++, pos += 2) {
+            int id = mIn[pos] & 0xFF;
+            if (id != mComponentId[i]) {
+                throw new UnsupportedException("Unexpected component order");
+            }
+            mDcIndex[i] = (mIn[pos + 1] & 0xFF) >> 4;
+            mAcIndex[i] = mIn[pos + 1] & 0x03;
+            if (mDcTables[mDcIndex[i]] == null || mAcTables[mAcIndex[i]] == null
+                    || mQuant[mQuantIndex[i]] == null) {
+                throw new UnsupportedException("Missing table");
+            }
+        }
+        pos += 3;  // Ss, Se, Ah/Al are fixed for sequential JPEGs.
+
+        BitReader in = new BitReader(mIn, pos);
+        int[] predictors = new int[MAX_COMPONENTS];
+        int mcus = mMcusX * mMcusY;
+        int untilRestart = mRestartInterval;
+        for (int mcu = 0; mcu < mcus; mcu++) {
+            if (mRestartInterval > 0) {
+                if (untilRestart == 0) {
+                    in.restart();
+                    for (int i = 0; i < MAX_COMPONENTS; i++) predictors[i] = 0;
+                    untilRestart = mRestartInterval;
+                }
+                untilRestart--;
+            }
+            int mx = mcu % mMcusX;
+            int my = mcu / mMcusX;
+            for (int c = 0; c < mComponents; c++) {
+                HuffmanDecoder dc = mDcTables[mDcIndex[c]];
+                HuffmanDecoder ac = mAcTables[mAcIndex[c]];
+                short[] coef = mCoefficients[c];
+                for (int v = 0; v < mV[c]; v++) {
+                    for (int h = 0; h < mH[c]; h++) {
+                        int block = (my * mV[c] + v) * mBlocksWide[c] + mx * mH[c] + h;
+                        int base = block * 64;
+                        int s = dc.decode(in);
+                        predictors[c] += in.receiveExtend(s);
+                        coef[base] = (short) predictors[c];
+                        for (int k = 1; k < 64; k++) {
+                            int rs = ac.decode(in);
+                            int r = rs >> 4;
+                            s = rs & 0x0F;
+                            if (s == 0) {
+                                if (r != 15) break;
+                                k += 15;
+                                continue;
+                            }
+                            k += r;
+                            if (k > 63) throw new UnsupportedException("Bad AC run");
+                            coef[base + ZIGZAG[k]] = (short) in.receiveExtend(s);
+                        }
+                    }
+                }
+            }
+        }
+        return in.end();
+    }
+
+    // ---------------------------------------------------------------------
+    // Encoding
+
+    private byte[] write(int transform) throws UnsupportedException {
+        boolean transpose = (transform & TRANSPOSE) != 0;
+        boolean flipX = (transform & FLIP_X) != 0;
+        boolean flipY = (transform & FLIP_Y) != 0;
+
+        int[] h = new int[mComponents];
+        int[] v = new int[mComponents];
+        int hMax = 1, vMax = 1;
+        for (int c = 0; c < mComponents; c++) {
+            h[c] = transpose ? mV[c] : mH[c];
+            v[c] = transpose ? mH[c] : mV[c];
+            hMax = Math.max(hMax, h[c]);
+            vMax = Math.max(vMax, v[c]);
+        }
+        int width = transpose ? mHeight : mWidth;
+        int height = transpose ? mWidth : mHeight;
+        // Drop the partial MCUs that would end up on the wrong side.
+        if (flipX) width -= width % (8 * hMax);
+        if (flipY) height -= height % (8 * vMax);
+        if (width == 0 || height == 0) {
+            throw new UnsupportedException("Picture smaller than one MCU");
+        }
+        mOutWidth = width;
+        mOutHeight = height;
+        int mcusX = (width + 8 * hMax - 1) / (8 * hMax);
+        int mcusY = (height + 8 * vMax - 1) / (8 * vMax);
+
+        // Everything but the entropy coded data is small, so start with
+        // room for the input size.
+        ByteWriter out = new ByteWriter(mIn.length + 1024);
+        out.u16(0xFFD8);
+        int exifStart = -1;
+        for (int i = 0; i < mSegments.size(); i += 2) {
+            int start = mSegmentBounds[i];
+            if ((mIn[start + 1] & 0xFF) == 0xE1 && exifStart < 0) {
+                exifStart = out.size();
+            }
+            out.bytes(mIn, start, mSegmentBounds[i + 1] - start);
+        }
+        writeQuantTables(out, transpose);
+        writeFrame(out, width, height, h, v);
+        writeHuffmanTables(out);
+        writeScanHeader(out);
+
+        HuffmanEncoder[] dc = {
+            new HuffmanEncoder(STD_DC_LUMINANCE_BITS, STD_DC_VALUES),
+            new HuffmanEncoder(STD_DC_CHROMINANCE_BITS, STD_DC_VALUES)
+        };
+        HuffmanEncoder[] ac = {
+            new HuffmanEncoder(STD_AC_LUMINANCE_BITS, STD_AC_LUMINANCE_VALUES),
+            new HuffmanEncoder(STD_AC_CHROMINANCE_BITS, STD_AC_CHROMINANCE_VALUES)
+        };
+        short[] block = new short[64];
+        int[] predictors = new int[MAX_COMPONENTS];
+        for (int my = 0; my < mcusY; my++) {
+            for (int mx = 0; mx < mcusX; mx++) {
+                for (int c = 0; c < mComponents; c++) {
+                    int table = (c == 0) ? 0 : 1;
+                    // Blocks of this component across the kept picture.
+                    int blocksX = mcusX * h[c];
+                    int blocksY = mcusY * v[c];
+                    for (int by = 0; by < v[c]; by++) {
+                        for (int bx = 0; bx < h[c]; bx++) {
+                            int x = mx * h[c] + bx;
+                            int y = my * v[c] + by;
+                            if (flipX) x = blocksX - 1 - x;
+                            if (flipY) y = blocksY - 1 - y;
+                            int sx = transpose ? y : x;
+                            int sy = transpose ? x : y;
+                            transformBlock(mCoefficients[c],
+                                    (sy * mBlocksWide[c] + sx) * 64, block,
+                                    transpose, flipX, flipY);
+                            predictors[c] = encodeBlock(out, block,
+                                    predictors[c], dc[table], ac[table]);
+                        }
+                    }
+                }
+            }
+        }
+        out.flushBits();
+        out.u16(0xFFD9);
+
+        byte[] result = out.toByteArray();
+        if (exifStart >= 0) {
+            // The pixels now have the orientation the tag asked for.
+            ExifEditor exif = new ExifEditor();
+            if (exif.parse(result)) exif.setOrientationInPlace(0);
+        }
+        return result;
+    }
+
+    private static void transformBlock(short[] src, int base, short[] dst,
+            boolean transpose, boolean flipX, boolean flipY) {
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                // Frequencies of the output block at (row, col).
+                int value = transpose ? src[base + col * 8 + row]
+                        : src[base + row * 8 + col];
+                // Mirroring negates the odd frequencies along that axis.
+                if ((flipX && (col & 1) != 0) != (flipY && (row & 1) != 0)) {
+                    value = -value;
+                }
+                dst[row * 8 + col] = (short) value;
+            }
+        }
+    }
+
+    // Returns the new DC predictor.
+    private static int encodeBlock(ByteWriter out, short[] block, int predictor,
+            HuffmanEncoder dc, HuffmanEncoder ac) throws UnsupportedException {
+        int diff = block[0] - predictor;
+        int size = bitSize(diff);
+        if (size > 11) throw new UnsupportedException("DC out of range");
+        dc.encode(out, size);
+        if (size > 0) out.bits(diff < 0 ? diff - 1 : diff, size);
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = block[ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                ac.encode(out, 0xF0);
+                run -= 16;
+            }
+            size = bitSize(value);
+            if (size > 10) throw new UnsupportedException("AC out of range");
+            ac.encode(out, (run << 4) | size);
+            out.bits(value < 0 ? value - 1 : value, size);
+            run = 0;
+        }
+        if (run > 0) ac.encode(out, 0x00);
+        return block[0];
+    }
+
+    private static int bitSize(int value) {
+        if (value < 0) value = -value;
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    private void writeQuantTables(ByteWriter out, boolean transpose) {
+        for (int t = 0; t < 4; t++) {
+            int[] table = mQuant[t];
+            if (table == null) continue;
+            boolean wide = false;
+            for (int k = 0; k < 64; k++) wide |= table[k] > 255;
+            out.u16(0xFFDB);
+            out.u16(2 + 1 + (wide ? 128 : 64));
+            out.u8((wide ? 0x10 : 0) | t);
+            for (int k = 0; k < 64; k++) {
+                int n = ZIGZAG[k];
+                // The quantizer of a coefficient moves with it.
+                int value = transpose ? table[(n % 8) * 8 + n / 8] : table[n];
+                if (wide) {
+                    out.u16(value);
+                } else {
+                    out.u8(value);
+                }
+            }
+        }
+    }
+
+    private void writeFrame(ByteWriter out, int width, int height, int[] h, int[] v) {
+        out.u16(mExtended ? 0xFFC1 : 0xFFC0);
+        out.u16(8 + 3 * mComponents);
+        out.u8(8);
+        out.u16(height);
+        out.u16(width);
+        out.u8(mComponents);
+        for (int c = 0; c < mComponents; c++) {
+            out.u8(mComponentId[c]);
+            out.u8((h[c] << 4) | v[c]);
+            out.u8(mQuantIndex[c]);
+        }
+    }
+
+    private void writeHuffmanTables(ByteWriter out) {
+        writeHuffmanTable(out, 0x00, STD_DC_LUMINANCE_BITS, STD_DC_VALUES);
+        writeHuffmanTable(out, 0x10, STD_AC_LUMINANCE_BITS, STD_AC_LUMINANCE_VALUES);
+        if (mComponents > 1) {
+            writeHuffmanTable(out, 0x01, STD_DC_CHROMINANCE_BITS, STD_DC_VALUES);
+            writeHuffmanTable(out, 0x11, STD_AC_CHROMINANCE_BITS,
+                    STD_AC_CHROMINANCE_VALUES);
+        }
+    }
+
+    private static void writeHuffmanTable(ByteWriter out, int id, byte[] bits,
+            byte[] values) {
+        out.u16(0xFFC4);
+        out.u16(2 + 1 + 16 + values.length);
+        out.u8(id);
+        out.bytes(bits, 0, 16);
+        out.bytes(values, 0, values.length);
+    }
+
+    private void writeScanHeader(ByteWriter out) {
+        out.u16(0xFFDA);
+        out.u16(6 + 2 * mComponents);
+        out.u8(mComponents);
+        for (int c = 0; c < mComponents; c++) {
+            out.u8(mComponentId[c]);
+            out.u8(c == 0 ? 0x00 : 0x11);
+        }
+        out.u8(0);
+        out.u8(63);
+        out.u8(0);
+    }
+
+    // ---------------------------------------------------------------------
+    // Helpers
+
+    private static int u16(byte[] buf, int pos) {
+        return ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+    }
+
+    private static byte[] toBytes(int[] values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = (byte) values[i];
+        return result;
+    }
+
+    // Reads the entropy coded data, removing stuffed zero bytes. Reading
+    // past a marker yields zero bits, as the specification requires.
+    private static class BitReader {
+        private final byte[] mData;
+        private int mPos;
+        private int mBuffer;
+        private int mBits;
+
+        public BitReader(byte[] data, int pos) {
+            mData = data;
+            mPos = pos;
+        }
+
+        private void fill() {
+            while (mBits <= 24) {
+                int b = 0;
+                if (mPos < mData.length) {
+                    b = mData[mPos] & 0xFF;
+                    if (b == 0xFF) {
+                        int next = (mPos + 1 < mData.length) ? mData[mPos + 1] & 0xFF : 0xD9;
+                        if (next == 0) {
+                            mPos += 2;
+                        } else {
+                            b = 0;  // marker, do not consume it
+                        }
+                    } else {
+                        mPos++;
+                    }
+                }
+                mBuffer |= b << (24 - mBits);
+                mBits += 8;
+            }
+        }
+
+        public int peek(int count) {
+            if (mBits < count) fill();
+            return mBuffer >>> (32 - count);
+        }
+
+        public void skip(int count) {
+            mBuffer <<= count;
+            mBits -= count;
+        }
+
+        public int bits(int count) {
+            int value = peek(count);
+            skip(count);
+            return value;
+        }
+
+        // F.2.2.1: reads count bits and sign extends them.
+        public int receiveExtend(int count) {
+            if (count == 0) return 0;
+            int value = bits(count);
+            return (value < (1 << (count - 1))) ? value - (1 << count) + 1 : value;
+        }
+
+        // Skips to the RSTn marker that must follow.
+        public void restart() throws UnsupportedException {
+            mBuffer = 0;
+            mBits = 0;
+            // The padding byte before the marker may not have been read yet.
+            while (mPos + 1 < mData.length && !((mData[mPos] & 0xFF) == 0xFF
+                    && (mData[mPos + 1] & 0xFF) != 0)) {
+                mPos++;
+            }
+            if (mPos + 1 >= mData.length || (mData[mPos] & 0xFF) != 0xFF
+                    || ((mData[mPos + 1] & 0xFF) & 0xF8) != 0xD0) {
+                throw new UnsupportedException("Missing restart marker");
+            }
+            mPos += 2;
+        }
+
+        // Returns the position of the marker that ends the scan.
+        public int end() {
+            int pos = mPos;
+            while (pos + 1 < mData.length && !((mData[pos] & 0xFF) == 0xFF
+                    && (mData[pos + 1] & 0xFF) != 0
+                    && ((mData[pos + 1] & 0xFF) & 0xF8) != 0xD0)) {
+                pos++;
+            }
+            return pos;
+        }
+    }
+
+    // Canonical Huffman decoding, ISO/IEC 10918-1 F.2.2.3, with a lookup
+    // table for codes of up to 8 bits.
+    private static class HuffmanDecoder {
+        private static final int LOOKUP_BITS = 8;
+
+        private final int[] mMaxCode = new int[18];
+        private final int[] mValueOffset = new int[17];
+        private final byte[] mValues;
+        // (length << 8) | value, or 0 for longer codes.
+        private final int[] mLookup = new int[1 << LOOKUP_BITS];
+
+        public HuffmanDecoder(byte[] data, int bits, int values, int total)
+                throws UnsupportedException {
+            if (total > 256) throw new UnsupportedException("Bad Huffman table");
+            mValues = new byte[total];
+            System.arraycopy(data, values, mValues, 0, total);
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                int count = data[bits + length - 1] & 0xFF;
+                mValueOffset[length] = k - code;
+                for (int i = 0; i < count; i++, k++, code++) {
+                    if (length <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - length;
+                        for (int j = 0; j < (1 << shift); j++) {
+                            mLookup[(code << shift) | j] = (length << 8)
+                                    | (mValues[k] & 0xFF);
+                        }
+                    }
+                }
+                mMaxCode[length] = (count == 0) ? -1 : code - 1;
+                code <<= 1;
+            }
+            mMaxCode[17] = Integer.MAX_VALUE;
+        }
+
+        public int decode(BitReader in) throws UnsupportedException {
+            int entry = mLookup[in.peek(LOOKUP_BITS)];
+            if (entry != 0) {
+                in.skip(entry >> 8);
+                return entry & 0xFF;
+            }
+            int code = in.peek(16);
+            for (int length = LOOKUP_BITS + 1; length <= 16; length++) {
+                int c = code >>> (16 - length);
+                if (c <= mMaxCode[length]) {
+                    in.skip(length);
+                    return mValues[mValueOffset[length] + c] & 0xFF;
+                }
+            }
+            throw new UnsupportedException("Bad Huffman code");
+        }
+    }
+
+    private static class HuffmanEncoder {
+        private final int[] mCode = new int[256];
+        private final int[] mLength = new int[256];
+
+        public HuffmanEncoder(byte[] bits, byte[] values) {
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++, k++, code++) {
+                    int value = values[k] & 0xFF;
+                    mCode[value] = code;
+                    mLength[value] = length;
+                }
+                code <<= 1;
+            }
+        }
+
+        public void encode(ByteWriter out, int symbol) throws UnsupportedException {
+            if (mLength[symbol] == 0) {
+                throw new UnsupportedException("No code for " + symbol);
+            }
+            out.bits(mCode[symbol], mLength[symbol]);
+        }
+    }
+
+    // A growable byte array with a bit writer that stuffs zero bytes.
+    private static class ByteWriter {
+        private byte[] mData;
+        private int mSize;
+        private int mBuffer;
+        private int mBits;
+
+        public ByteWriter(int capacity) {
+            mData = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (mSize + extra > mData.length) {
+                byte[] data = new byte[Math.max(mData.length * 3 / 2, mSize + extra)];
+                System.arraycopy(mData, 0, data, 0, mSize);
+                mData = data;
+            }
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public void u8(int value) {
+            ensure(1);
+            mData[mSize++] = (byte) value;
+        }
+
+        public void u16(int value) {
+            u8(value >> 8);
+            u8(value);
+        }
+
+        public void bytes(byte[] src, int offset, int length) {
+            ensure(length);
+            System.arraycopy(src, offset, mData, mSize, length);
+            mSize += length;
+        }
+
+        // Appends the low count bits of value, most significant first.
+        public void bits(int value, int count) {
+            mBuffer = (mBuffer << count) | (value & ((1 << count) - 1));
+            mBits += count;
+            while (mBits >= 8) {
+                int b = (mBuffer >> (mBits - 8)) & 0xFF;
+                u8(b);
+                if (b == 0xFF) u8(0);
+                mBits -= 8;
+            }
+        }
+
+        // Pads the last byte with one bits.
+        public void flushBits() {
+            if (mBits > 0) bits(0x7F, 8 - mBits);
+            mBuffer = 0;
+        }
+
+        public byte[] toByteArray() {
+            byte[] result = new byte[mSize];
+            System.arraycopy(mData, 0, result, 0, mSize);
+            return result;
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.android.camera;
 
+import java.nio.ByteBuffer;
+
 /**
  * The Java interface to JNI calls regarding mosaic stitching.
  *
@@ -32,6 +34,22 @@ package com.android.camera;
  * mosaic.createMosaic(highRes);
  * byte[] result = mosaic.getFinalMosaic();
  *
+ * A capture can instead avoid an allocation per frame:
+ *
+ * FloatBuffer trs = mosaic.getResultBuffer().order(ByteOrder.nativeOrder()).asFloatBuffer();
+ *
+ * while ((frame = nextPreviewFrame()) != null) {
+ *    int ret = mosaic.setSourceImageFromPreview(frame);
+ * }
+ *
+ * or, to read the mosaic a strip at a time:
+ *
+ * int[] size = mosaic.getFinalMosaicSize();
+ * for (int top = 0; top < size[1]; top += rows) {
+ *    rows = mosaic.getFinalMosaicRows(top, STRIP_ROWS, y, cb, cr);
+ * }
+ * mosaic.freeFinalMosaic();
+ *
  */
 public class Mosaic {
     /**
@@ -91,6 +109,14 @@ public class Mosaic {
     public static final int MOSAIC_RET_LOW_TEXTURE = -3;
     public static final int MOSAIC_RET_FEW_INLIERS = 2;
 
+    /**
+     * Returned for a frame passed to setSourceImage() and the like when there
+     * is no room left for it, either because the capture has as many frames
+     * as it can or because the images of the frames the mosaic blends use up
+     * their memory. The capture is then over.
+     */
+    public static final int MOSAIC_RET_FULL = -4;
+
 
     static {
         System.loadLibrary("jni_mosaic");
@@ -139,6 +165,34 @@ public class Mosaic {
      */
     public native float[] setSourceImageFromGPU();
 
+    /**
+     * Get the buffer the native layer leaves the results of each frame in.
+     * The same buffer is returned on every call and stays valid for the life
+     * of the process.
+     *
+     * @return A direct buffer of 11 floats in the native byte order, laid out like the
+     *         array returned by setSourceImage().
+     */
+    public native ByteBuffer getResultBuffer();
+
+    /**
+     * Same as setSourceImageFromGPU, without allocating a new array.
+     *
+     * @return The returning code, one of the MOSAIC_RET_* flags. The other
+     *         results are in the buffer returned by getResultBuffer().
+     */
+    public native int setSourceImageFromGPUDirect();
+
+    /**
+     * Same as setSourceImage, for a preview callback buffer, without
+     * allocating a new array. The planes of the frame are built on the CPU.
+     *
+     * @param pixels source image of NV21 format.
+     * @return The returning code, one of the MOSAIC_RET_* flags. The other
+     *         results are in the buffer returned by getResultBuffer().
+     */
+    public native int setSourceImageFromPreview(byte[] pixels);
+
     /**
      * Set the type of blending.
      *
@@ -187,6 +241,42 @@ public class Mosaic {
      */
     public native byte[] getFinalMosaicNV21();
 
+    /**
+     * Get the size of the created mosaic, which stays on the native side until
+     * it is read by getFinalMosaicNV21() or freed by freeFinalMosaic().
+     *
+     * @return Returns the MosaicWidth and MosaicHeight, or null if there is no mosaic.
+     */
+    public native int[] getFinalMosaicSize();
+
+    /**
+     * Copy rows of the created mosaic, without converting it. The planes are at full
+     * resolution and hold JFIF YCbCr samples, so they can go straight to a JPEG encoder.
+     *
+     * @param top the first row to copy
+     * @param rows the number of rows wanted
+     * @param y receives the luma, MosaicWidth bytes per row
+     * @param cb receives the blue difference chroma, laid out like y
+     * @param cr receives the red difference chroma, laid out like y
+     * @return Returns the number of rows copied, fewer than asked at the bottom of the
+     *         mosaic or if the arrays are too small, and 0 if there is no mosaic.
+     */
+    public native int getFinalMosaicRows(int top, int rows, byte[] y, byte[] cb, byte[] cr);
+
+    /**
+     * Free the created mosaic once it has been read with getFinalMosaicRows().
+     */
+    public native void freeFinalMosaic();
+
+    /**
+     * Get the memory held by the images of the frames of the current capture.
+     * Only the frames the mosaic will blend are kept, so this grows with the
+     * width of the panorama rather than with the number of frames.
+     *
+     * @return Returns the number of bytes held, at both resolutions.
+     */
+    public native long getFrameStoreBytes();
+
     /**
      * Reset the state of the frame arrays which maintain the captured frame data.
      * Also re-initializes the native mosaic object to make it ready for capturing a new mosaic.
@@ -18,13 +18,16 @@ package com.android.camera;
 
 import android.util.Log;
 
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
 /**
  * Class to handle the processing of each frame by Mosaicer.
  */
 public class MosaicFrameProcessor {
     private static final String TAG = "MosaicFrameProcessor";
     private static final int NUM_FRAMES_IN_BUFFER = 2;
-    private static final int MAX_NUMBER_OF_FRAMES = 100;
+    private static final int MAX_NUMBER_OF_FRAMES = 300;
     private static final int MOSAIC_RET_CODE_INDEX = 10;
     private static final int FRAME_COUNT_INDEX = 9;
     private static final int X_COORD_INDEX = 2;
@@ -33,12 +36,16 @@ public class MosaicFrameProcessor {
     private static final int WINDOW_SIZE = 3;
 
     private Mosaic mMosaicer;
+    // Shared with the native layer, which writes the results of each frame.
+    private final FloatBuffer mFrameData;
     private boolean mIsMosaicMemoryAllocated = false;
     private float mTranslationLastX;
     private float mTranslationLastY;
 
     private int mFillIn = 0;
     private int mTotalFrameCount = 0;
+    // Whether the library had no room left for the last frame.
+    private boolean mIsCaptureFull;
     private int mLastProcessFrameIdx = -1;
     private int mCurrProcessFrameIdx = -1;
     private boolean mFirstRun;
@@ -76,6 +83,8 @@ public class MosaicFrameProcessor {
 
     private MosaicFrameProcessor() {
         mMosaicer = new Mosaic();
+        mFrameData = mMosaicer.getResultBuffer().order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
     }
 
     public void setProgressListener(ProgressListener listener) {
@@ -96,11 +105,12 @@ public class MosaicFrameProcessor {
     }
 
     public void clear() {
-        if (mIsMosaicMemoryAllocated) {
-            mMosaicer.freeMosaicMemory();
-            mIsMosaicMemoryAllocated = false;
-        }
+        // Waits for a frame being processed on another thread.
         synchronized (this) {
+            if (mIsMosaicMemoryAllocated) {
+                mMosaicer.freeMosaicMemory();
+                mIsMosaicMemoryAllocated = false;
+            }
             notify();
         }
     }
@@ -126,6 +136,7 @@ public class MosaicFrameProcessor {
         // Only counters will be changed.
         mFirstRun = true;
         mTotalFrameCount = 0;
+        mIsCaptureFull = false;
         mFillIn = 0;
         mTotalTranslationX = 0;
         mTranslationLastX = 0;
@@ -150,10 +161,30 @@ public class MosaicFrameProcessor {
         return mMosaicer.getFinalMosaicNV21();
     }
 
+    public int[] getFinalMosaicSize() {
+        return mMosaicer.getFinalMosaicSize();
+    }
+
+    public int getFinalMosaicRows(int top, int rows, byte[] y, byte[] cb, byte[] cr) {
+        return mMosaicer.getFinalMosaicRows(top, rows, y, cb, cr);
+    }
+
+    public void freeFinalMosaic() {
+        mMosaicer.freeFinalMosaic();
+    }
+
     // Processes the last filled image frame through the mosaicer and
     // updates the UI to show progress.
     // When done, processes and displays the final mosaic.
     public void processFrame() {
+        processFrame(null);
+    }
+
+    // Same as processFrame(), for an NV21 preview frame rather than the one
+    // read back from the GPU, or for the GPU frame if frame is null. Can be
+    // called on another thread than clear(); the progress listener is then
+    // called on that thread.
+    public synchronized void processFrame(byte[] frame) {
         if (!mIsMosaicMemoryAllocated) {
             // clear() is called and buffers are cleared, stop computation.
             // This can happen when the onPause() is called in the activity, but still some frames
@@ -169,12 +200,12 @@ public class MosaicFrameProcessor {
         if (mCurrProcessFrameIdx != mLastProcessFrameIdx) {
             mLastProcessFrameIdx = mCurrProcessFrameIdx;
 
-            // TODO: make the termination condition regarding reaching
-            // MAX_NUMBER_OF_FRAMES solely determined in the library.
-            if (mTotalFrameCount < MAX_NUMBER_OF_FRAMES) {
+            // The library also ends the capture when the frames it keeps use
+            // up their memory, see Mosaic.MOSAIC_RET_FULL.
+            if (!mIsCaptureFull && mTotalFrameCount < MAX_NUMBER_OF_FRAMES) {
                 // If we are still collecting new frames for the current mosaic,
                 // process the new frame.
-                calculateTranslationRate();
+                calculateTranslationRate(frame);
 
                 // Publish progress of the ongoing processing
                 if (mProgressListener != null) {
@@ -192,12 +223,19 @@ public class MosaicFrameProcessor {
         }
     }
 
-    public void calculateTranslationRate() {
-        float[] frameData = mMosaicer.setSourceImageFromGPU();
-        int ret_code = (int) frameData[MOSAIC_RET_CODE_INDEX];
-        mTotalFrameCount  = (int) frameData[FRAME_COUNT_INDEX];
-        float translationCurrX = frameData[X_COORD_INDEX];
-        float translationCurrY = frameData[Y_COORD_INDEX];
+    public void calculateTranslationRate(byte[] frame) {
+        int ret_code = frame == null ? mMosaicer.setSourceImageFromGPUDirect()
+                : mMosaicer.setSourceImageFromPreview(frame);
+        if (ret_code == Mosaic.MOSAIC_RET_FULL) {
+            // The results are those of no motion, leave the panning rate alone.
+            mIsCaptureFull = true;
+            Log.v(TAG, "Capture full at " + mTotalFrameCount + " frames, "
+                    + mMosaicer.getFrameStoreBytes() + " bytes held");
+            return;
+        }
+        mTotalFrameCount  = (int) mFrameData.get(FRAME_COUNT_INDEX);
+        float translationCurrX = mFrameData.get(X_COORD_INDEX);
+        float translationCurrY = mFrameData.get(Y_COORD_INDEX);
 
         if (mFirstRun) {
             // First time: no need to update delta values.
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+/**
+ * Finds the translation between differently exposed pictures of the same
+ * scene with median threshold bitmaps (Ward, 2003).
+ *
+ * Each picture is turned into a bitmap of the pixels brighter than its
+ * median, which looks the same whatever the exposure. When the median is
+ * clipped in one of the pictures, both use the same other percentile
+ * instead, in the range neither has clipped. The bitmaps are
+ * compared in a pyramid: the offset found at each level, doubled, is the
+ * starting point of the next finer level, where it is refined by at most a
+ * pixel either way. Pixels close to the median flip with noise and are
+ * left out. The bitmaps are packed 64 pixels to a long, so comparing them
+ * is mostly XOR and bit counting.
+ *
+ * The nine candidate offsets of a level are counted over bands of rows on
+ * the ImagingThreadPool. An alignment object is not thread safe. It does
+ * not depend on the Android framework.
+ */
+public class MtbAlignment {
+    // The pyramid stops before a side gets shorter than this.
+    private static final int MIN_SIZE = 32;
+    public static final int MAX_LEVELS = 6;
+    // Pixels this close to the threshold are left out, and pixels this
+    // close to 0 or 255 are clipped.
+    private static final int NOISE = 4;
+    // Rows are not split below this many pixels per task.
+    private static final int MIN_PIXELS_PER_TASK = 16384;
+
+    private final int mThreads;
+    private int mWidth;
+    private int mHeight;
+    private int mLevels;
+    private final int[] mLevelWidth = new int[MAX_LEVELS];
+    private final int[] mLevelHeight = new int[MAX_LEVELS];
+    // The luma pyramid and the level 0 histogram of the reference.
+    private byte[][] mReference;
+    private int[] mReferenceHistogram;
+
+    public MtbAlignment() {
+        this(ImagingThreadPool.getThreadCount());
+    }
+
+    // Uses at most threads threads, including the calling one.
+    public MtbAlignment(int threads) {
+        mThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Returns the luma of width x height ARGB pixels, one byte per pixel.
+     */
+    public static byte[] luma(int[] argb, int width, int height) {
+        byte[] luma = new byte[width * height];
+        for (int i = 0; i < luma.length; i++) {
+            int p = argb[i];
+            luma[i] = (byte) ((77 * ((p >> 16) & 0xFF) + 150 * ((p >> 8) & 0xFF)
+                    + 29 * (p & 0xFF)) >> 8);
+        }
+        return luma;
+    }
+
+    /**
+     * Sets the width x height luma that the other pictures are aligned to.
+     */
+    public void setReference(byte[] luma, int width, int height) {
+        if (width <= 0 || height <= 0 || luma.length < width * height) {
+            throw new IllegalArgumentException("Bad reference");
+        }
+        mWidth = width;
+        mHeight = height;
+        mLevels = 1;
+        mLevelWidth[0] = width;
+        mLevelHeight[0] = height;
+        while (mLevels < MAX_LEVELS && mLevelWidth[mLevels - 1] / 2 >= MIN_SIZE
+                && mLevelHeight[mLevels - 1] / 2 >= MIN_SIZE) {
+            mLevelWidth[mLevels] = mLevelWidth[mLevels - 1] / 2;
+            mLevelHeight[mLevels] = mLevelHeight[mLevels - 1] / 2;
+            mLevels++;
+        }
+        mReference = pyramid(luma);
+        mReferenceHistogram = histogram(luma, width * height);
+    }
+
+    /**
+     * Returns the largest offset align() can find, in each direction.
+     */
+    public int getMaxOffset() {
+        return (1 << mLevels) - 1;
+    }
+
+    /**
+     * Finds where the content of the reference is in luma, which has the
+     * same size: luma at (x + offset[0], y + offset[1]) shows the reference
+     * at (x, y).
+     */
+    public void align(byte[] luma, int[] offset) {
+        if (mReference == null) {
+            throw new IllegalStateException("No reference");
+        }
+        if (luma.length < mWidth * mHeight) {
+            throw new IllegalArgumentException("Picture too small");
+        }
+        byte[][] moving = pyramid(luma);
+        float percentile = percentile(mReferenceHistogram,
+                histogram(luma, mWidth * mHeight), mWidth * mHeight);
+
+        int dx = 0, dy = 0;
+        long[] errors = new long[9];
+        for (int l = mLevels - 1; l >= 0; l--) {
+            Bitmap reference = new Bitmap(mReference[l], mLevelWidth[l], mLevelHeight[l],
+                    percentile);
+            Bitmap bitmap = new Bitmap(moving[l], mLevelWidth[l], mLevelHeight[l],
+                    percentile);
+            dx *= 2;
+            dy *= 2;
+            countErrors(reference, bitmap, dx, dy, errors);
+            int best = 4;
+            for (int i = 0; i < 9; i++) {
+                if (errors[i] < errors[best]) best = i;
+            }
+            dx += best % 3 - 1;
+            dy += best / 3 - 1;
+        }
+        offset[0] = dx;
+        offset[1] = dy;
+    }
+
+    // The levels of the luma pyramid, level 0 being luma itself.
+    private byte[][] pyramid(byte[] luma) {
+        byte[][] levels = new byte[mLevels][];
+        levels[0] = luma;
+        for (int l = 1; l < mLevels; l++) {
+            levels[l] = halve(levels[l - 1], mLevelWidth[l - 1], mLevelWidth[l],
+                    mLevelHeight[l]);
+        }
+        return levels;
+    }
+
+    private static int[] histogram(byte[] luma, int n) {
+        int[] histogram = new int[256];
+        for (int i = 0; i < n; i++) histogram[luma[i] & 0xFF]++;
+        return histogram;
+    }
+
+    // The fraction of the pixels to put below the threshold of both
+    // pictures. It is the median, unless that is clipped in either picture,
+    // as in a bracket that is mostly black or white; then it is the middle
+    // of the range that neither has clipped.
+    private static float percentile(int[] a, int[] b, int n) {
+        float below = (float) Math.max(sum(a, 0, NOISE), sum(b, 0, NOISE)) / n;
+        float above = (float) Math.max(sum(a, 255 - NOISE, 255), sum(b, 255 - NOISE, 255)) / n;
+        if (below < 0.5f && above < 0.5f) return 0.5f;
+        return (below + 1 - above) / 2;
+    }
+
+    private static int sum(int[] histogram, int from, int to) {
+        int sum = 0;
+        for (int v = from; v <= to; v++) sum += histogram[v];
+        return sum;
+    }
+
+    // Averages 2x2 blocks of the srcWidth wide src into a w x h picture.
+    private static byte[] halve(byte[] src, int srcWidth, int w, int h) {
+        byte[] dst = new byte[w * h];
+        for (int y = 0; y < h; y++) {
+            int s = 2 * y * srcWidth;
+            for (int x = 0; x < w; x++, s += 2) {
+                dst[y * w + x] = (byte) (((src[s] & 0xFF) + (src[s + 1] & 0xFF)
+                        + (src[s + srcWidth] & 0xFF) + (src[s + srcWidth + 1] & 0xFF)
+                        + 2) >> 2);
+            }
+        }
+        return dst;
+    }
+
+    // Counts the pixels where the bitmaps differ and both are kept, for the
+    // offsets (dx - 1 .. dx + 1, dy - 1 .. dy + 1), into errors in raster
+    // order.
+    private void countErrors(final Bitmap reference, final Bitmap moving, final int dx,
+            final int dy, long[] errors) {
+        final int h = reference.mHeight;
+        int tasks = Math.max(1, Math.min(mThreads,
+                reference.mWidth * h / MIN_PIXELS_PER_TASK));
+        final long[][] counts = new long[tasks][9];
+        Runnable[] workers = new Runnable[tasks];
+        for (int t = 0; t < tasks; t++) {
+            final int first = h * t / tasks;
+            final int end = h * (t + 1) / tasks;
+            final long[] count = counts[t];
+            workers[t] = new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 9; i++) {
+                        count[i] = countErrors(reference, moving,
+                                dx + i % 3 - 1, dy + i / 3 - 1, first, end);
+                    }
+                }
+            };
+        }
+        ImagingThreadPool.runAll(workers);
+        for (int i = 0; i < 9; i++) {
+            errors[i] = 0;
+            for (int t = 0; t < tasks; t++) errors[i] += counts[t][i];
+        }
+    }
+
+    // Counts over the reference rows [first, end). Where moving has no
+    // pixel, its keep bits are 0.
+    private static long countErrors(Bitmap reference, Bitmap moving, int dx, int dy,
+            int first, int end) {
+        int words = reference.mWords;
+        int y0 = Math.max(first, -dy);
+        int y1 = Math.min(end, reference.mHeight - dy);
+        int wordShift = dx >> 6;
+        int bitShift = dx & 63;
+        long errors = 0;
+        for (int y = y0; y < y1; y++) {
+            int r = y * words;
+            int m = (y + dy) * words;
+            for (int k = 0; k < words; k++, r++) {
+                // The 64 moving pixels under reference word k.
+                int j = k + wordShift;
+                long above = moving.word(moving.mAbove, m, j, bitShift);
+                long keep = moving.word(moving.mKeep, m, j, bitShift);
+                errors += Long.bitCount((reference.mAbove[r] ^ above)
+                        & reference.mKeep[r] & keep);
+            }
+        }
+        return errors;
+    }
+
+    // A picture thresholded at a percentile, one bit per pixel, rows padded
+    // to whole longs. Pixel x of a row is bit x % 64 of word x / 64.
+    private static class Bitmap {
+        final int mWidth;
+        final int mHeight;
+        final int mWords;
+        // Set above the threshold.
+        final long[] mAbove;
+        // Set where the pixel is far enough from the threshold to count.
+        final long[] mKeep;
+
+        Bitmap(byte[] gray, int width, int height, float percentile) {
+            mWidth = width;
+            mHeight = height;
+            mWords = (width + 63) >> 6;
+            mAbove = new long[mWords * height];
+            mKeep = new long[mWords * height];
+
+            int n = width * height;
+            int[] histogram = histogram(gray, n);
+            int threshold = 0;
+            for (int count = 0; threshold < 255; threshold++) {
+                count += histogram[threshold];
+                if (count >= percentile * n) break;
+            }
+            for (int y = 0; y < height; y++) {
+                int row = y * mWords;
+                for (int x = 0, i = y * width; x < width; x++, i++) {
+                    int v = gray[i] & 0xFF;
+                    long bit = 1L << (x & 63);
+                    if (v > threshold) mAbove[row + (x >> 6)] |= bit;
+                    if (Math.abs(v - threshold) > NOISE) mKeep[row + (x >> 6)] |= bit;
+                }
+            }
+        }
+
+        // Bits j * 64 + shift to j * 64 + shift + 63 of the row starting
+        // at word row of bits, 0 past either end of the row.
+        long word(long[] bits, int row, int j, int shift) {
+            long low = (j >= 0 && j < mWords) ? bits[row + j] : 0;
+            if (shift == 0) return low;
+            long high = (j + 1 >= 0 && j + 1 < mWords) ? bits[row + j + 1] : 0;
+            return (low >>> shift) | (high << (64 - shift));
+        }
+    }
+}
@@ -65,7 +65,9 @@ import com.android.gallery3d.ui.GLRootView;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.List;
@@ -104,6 +106,9 @@ public class PanoramaModule implements CameraModule,
     // The unit of speed is degrees per frame.
     private static final float PANNING_SPEED_THRESHOLD = 2.5f;
 
+    // Rows of the final mosaic encoded at a time, one row of JPEG MCUs.
+    private static final int MOSAIC_STRIP_ROWS = 16;
+
     private ContentResolver mContentResolver;
 
     private GLRootView mGLRootView;
@@ -175,24 +180,27 @@ public class PanoramaModule implements CameraModule,
     private CameraActivity mActivity;
     private View mRootView;
     private CameraProxy mCameraDevice;
+    // Feeds the capture with preview callback frames, see
+    // Util.usePanoramaSoftwareIngest().
+    private PanoramaSoftwareIngest mSoftwareIngest;
+    private boolean mSoftwareCapture;
     private boolean mPaused;
 
-    private class MosaicJpeg {
-        public MosaicJpeg(byte[] data, int width, int height) {
-            this.data = data;
+    // The final mosaic, which is kept on the native side until it has been
+    // encoded.
+    private class FinalMosaic {
+        public FinalMosaic(int width, int height) {
             this.width = width;
             this.height = height;
             this.isValid = true;
         }
 
-        public MosaicJpeg() {
-            this.data = null;
+        public FinalMosaic() {
             this.width = 0;
             this.height = 0;
             this.isValid = false;
         }
 
-        public final byte[] data;
         public final int width;
         public final int height;
         public final boolean isValid;
@@ -247,7 +255,8 @@ public class PanoramaModule implements CameraModule,
                     mMosaicPreviewRenderer.showPreviewFrameSync();
                     mGLRootView.setVisibility(View.VISIBLE);
                 } else {
-                    if (mCaptureState == CAPTURE_STATE_VIEWFINDER) {
+                    if (mCaptureState == CAPTURE_STATE_VIEWFINDER || mSoftwareCapture) {
+                        // The ingest thread aligns the preview frames.
                         mMosaicPreviewRenderer.showPreviewFrame();
                     } else {
                         mMosaicPreviewRenderer.alignFrameSync();
@@ -497,7 +506,8 @@ public class PanoramaModule implements CameraModule,
         mCaptureIndicator.setVisibility(View.VISIBLE);
         showDirectionIndicators(PanoProgressBar.DIRECTION_NONE);
 
-        mMosaicFrameProcessor.setProgressListener(new MosaicFrameProcessor.ProgressListener() {
+        final MosaicFrameProcessor.ProgressListener listener =
+                new MosaicFrameProcessor.ProgressListener() {
             @Override
             public void onProgress(boolean isFinished, float panningRateX, float panningRateY,
                     float progressX, float progressY) {
@@ -514,7 +524,36 @@ public class PanoramaModule implements CameraModule,
                             accumulatedHorizontalAngle, accumulatedVerticalAngle);
                 }
             }
-        });
+        };
+
+        mSoftwareCapture = false;
+        if (Util.usePanoramaSoftwareIngest() && mCameraDevice != null) {
+            if (mSoftwareIngest == null) {
+                mSoftwareIngest = new PanoramaSoftwareIngest(mMosaicFrameProcessor);
+            }
+            mSoftwareCapture = mSoftwareIngest.start(mCameraDevice, mPreviewWidth,
+                    mPreviewHeight);
+        }
+        if (mSoftwareCapture) {
+            // The progress comes from the ingest thread.
+            mMosaicFrameProcessor.setProgressListener(
+                    new MosaicFrameProcessor.ProgressListener() {
+                @Override
+                public void onProgress(final boolean isFinished, final float panningRateX,
+                        final float panningRateY, final float progressX, final float progressY) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mCaptureState != CAPTURE_STATE_MOSAIC) return;
+                            listener.onProgress(isFinished, panningRateX, panningRateY,
+                                    progressX, progressY);
+                        }
+                    });
+                }
+            });
+        } else {
+            mMosaicFrameProcessor.setProgressListener(listener);
+        }
 
         mPanoProgressBar.reset();
         // TODO: calculate the indicator width according to different devices to reflect the actual
@@ -537,6 +576,11 @@ public class PanoramaModule implements CameraModule,
     }
 
     private void stopCapture(boolean aborted) {
+        if (mSoftwareCapture) {
+            // Waits for the frame being aligned.
+            mSoftwareIngest.stop();
+            mSoftwareCapture = false;
+        }
         mCaptureState = CAPTURE_STATE_VIEWFINDER;
         mCaptureIndicator.setVisibility(View.GONE);
         hideTooFastIndication();
@@ -555,11 +599,24 @@ public class PanoramaModule implements CameraModule,
             runBackgroundThread(new Thread() {
                 @Override
                 public void run() {
-                    MosaicJpeg jpeg = generateFinalMosaic(false);
+                    FinalMosaic mosaic = generateFinalMosaic(false);
+                    byte[] jpeg = null;
+                    if (mosaic != null && mosaic.isValid) {
+                        // The low-res mosaic is small enough to be encoded in memory.
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        try {
+                            writeFinalMosaic(out, mosaic);
+                            jpeg = out.toByteArray();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Exception in encoding the low-res mosaic", e);
+                        } finally {
+                            mMosaicFrameProcessor.freeFinalMosaic();
+                        }
+                    }
 
-                    if (jpeg != null && jpeg.isValid) {
+                    if (jpeg != null) {
                         Bitmap bitmap = null;
-                        bitmap = BitmapFactory.decodeByteArray(jpeg.data, 0, jpeg.data.length);
+                        bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
                         mMainHandler.sendMessage(mMainHandler.obtainMessage(
                                 MSG_LOW_RES_FINAL_MOSAIC_READY, bitmap));
                     } else {
@@ -757,20 +814,23 @@ public class PanoramaModule implements CameraModule,
             @Override
             public void run() {
                 mPartialWakeLock.acquire();
-                MosaicJpeg jpeg;
+                FinalMosaic mosaic;
+                Uri uri = null;
                 try {
-                    jpeg = generateFinalMosaic(true);
+                    mosaic = generateFinalMosaic(true);
+                    if (mosaic != null && mosaic.isValid) {
+                        uri = savePanorama(mosaic, getCaptureOrientation());
+                    }
                 } finally {
+                    mMosaicFrameProcessor.freeFinalMosaic();
                     mPartialWakeLock.release();
                 }
 
-                if (jpeg == null) {  // Cancelled by user.
+                if (mosaic == null) {  // Cancelled by user.
                     mMainHandler.sendEmptyMessage(MSG_RESET_TO_PREVIEW);
-                } else if (!jpeg.isValid) {  // Error when generating mosaic.
+                } else if (!mosaic.isValid) {  // Error when generating mosaic.
                     mMainHandler.sendEmptyMessage(MSG_GENERATE_FINAL_MOSAIC_ERROR);
                 } else {
-                    int orientation = getCaptureOrientation();
-                    Uri uri = savePanorama(jpeg.data, jpeg.width, jpeg.height, orientation);
                     if (uri != null) {
                         mActivity.addSecureAlbumItemIfNeeded(false, uri);
                         Util.broadcastNewPicture(mActivity, uri);
@@ -862,12 +922,18 @@ public class PanoramaModule implements CameraModule,
         mReviewLayout.setVisibility(View.VISIBLE);
     }
 
-    private Uri savePanorama(byte[] jpegData, int width, int height, int orientation) {
-        if (jpegData != null) {
-            String filename = PanoUtil.createName(
-                    mActivity.getResources().getString(R.string.pano_file_name_format), mTimeTaken);
-            String filepath = Storage.getStorage().writeFile(filename, jpegData);
-
+    // Encodes the final mosaic straight into its file.
+    private Uri savePanorama(final FinalMosaic mosaic, int orientation) {
+        String filename = PanoUtil.createName(
+                mActivity.getResources().getString(R.string.pano_file_name_format), mTimeTaken);
+        String filepath = Storage.getStorage().writeFile(filename,
+                new ImageFileWriter.Source() {
+                    @Override
+                    public void writeTo(FileOutputStream out) throws IOException {
+                        writeFinalMosaic(out, mosaic);
+                    }
+                });
+        if (filepath != null) {
             // Add Exif tags.
             try {
                 ExifInterface exif = new ExifInterface(filepath);
@@ -886,11 +952,48 @@ public class PanoramaModule implements CameraModule,
 
             int jpegLength = (int) (new File(filepath).length());
             return Storage.getStorage().addImage(mContentResolver, filename, mTimeTaken,
-                    null, orientation, jpegLength, filepath, width, height);
+                    null, orientation, jpegLength, filepath, mosaic.width, mosaic.height);
         }
         return null;
     }
 
+    // Encodes the final mosaic to out. YuvImage, which encodes with libjpeg,
+    // is used if an NV21 copy of the mosaic fits in the heap. Otherwise the
+    // mosaic is encoded a strip at a time, as it is read from the native
+    // buffer, so the picture is never whole on the Java heap.
+    private void writeFinalMosaic(OutputStream out, FinalMosaic mosaic) throws IOException {
+        int width = mosaic.width;
+        if (fitsInHeap((long) width * mosaic.height * 3 / 2)) {
+            byte[] nv21 = mMosaicFrameProcessor.getFinalMosaicNV21();
+            if (nv21 == null) throw new IOException("Cannot read the final mosaic");
+            YuvImage image = new YuvImage(nv21, ImageFormat.NV21, width, mosaic.height, null);
+            if (!image.compressToJpeg(new Rect(0, 0, width, mosaic.height), 100, out)) {
+                throw new IOException("Cannot encode the final mosaic");
+            }
+            return;
+        }
+
+        JpegEncoder encoder = new JpegEncoder(out, width, mosaic.height, 100);
+        byte[] y = new byte[width * MOSAIC_STRIP_ROWS];
+        byte[] cb = new byte[y.length];
+        byte[] cr = new byte[y.length];
+        for (int top = 0; top < mosaic.height; ) {
+            int rows = mMosaicFrameProcessor.getFinalMosaicRows(top, MOSAIC_STRIP_ROWS,
+                    y, cb, cr);
+            if (rows <= 0) throw new IOException("Final mosaic ends at row " + top);
+            encoder.writeYCbCr(y, cb, cr, 0, width, rows);
+            top += rows;
+        }
+        encoder.finish();
+    }
+
+    // Leaves half the free heap for the rest of the app.
+    private static boolean fitsInHeap(long bytes) {
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return bytes <= free / 2;
+    }
+
     private static String getExifOrientation(int orientation) {
         switch (orientation) {
             case 0:
@@ -943,6 +1046,10 @@ public class PanoramaModule implements CameraModule,
 
         releaseCamera();
         mCameraTexture = null;
+        if (mSoftwareIngest != null) {
+            mSoftwareIngest.release();
+            mSoftwareIngest = null;
+        }
 
         // The preview renderer might not have a chance to be initialized before
         // onPause().
@@ -1052,48 +1159,38 @@ public class PanoramaModule implements CameraModule,
      * Generate the final mosaic image.
      *
      * @param highRes flag to indicate whether we want to get a high-res version.
-     * @return a MosaicJpeg with its isValid flag set to true if successful; null if the generation
-     *         process is cancelled; and a MosaicJpeg with its isValid flag set to false if there
-     *         is an error in generating the final mosaic.
+     * @return a FinalMosaic with its isValid flag set to true if successful; null if the generation
+     *         process is cancelled; and a FinalMosaic with its isValid flag set to false if there
+     *         is an error in generating the final mosaic. The caller encodes a valid mosaic with
+     *         writeFinalMosaic() and then frees it.
      */
-    public MosaicJpeg generateFinalMosaic(boolean highRes) {
+    public FinalMosaic generateFinalMosaic(boolean highRes) {
         int mosaicReturnCode = mMosaicFrameProcessor.createMosaic(highRes);
         if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED) {
+            mMosaicFrameProcessor.freeFinalMosaic();
             return null;
         } else if (mosaicReturnCode == Mosaic.MOSAIC_RET_ERROR) {
-            return new MosaicJpeg();
+            mMosaicFrameProcessor.freeFinalMosaic();
+            return new FinalMosaic();
         }
 
-        byte[] imageData = mMosaicFrameProcessor.getFinalMosaicNV21();
-        if (imageData == null) {
-            Log.e(TAG, "getFinalMosaicNV21() returned null.");
-            return new MosaicJpeg();
+        int[] size = mMosaicFrameProcessor.getFinalMosaicSize();
+        if (size == null) {
+            Log.e(TAG, "getFinalMosaicSize() returned null.");
+            return new FinalMosaic();
         }
 
-        int len = imageData.length - 8;
-        int width = (imageData[len + 0] << 24) + ((imageData[len + 1] & 0xFF) << 16)
-                + ((imageData[len + 2] & 0xFF) << 8) + (imageData[len + 3] & 0xFF);
-        int height = (imageData[len + 4] << 24) + ((imageData[len + 5] & 0xFF) << 16)
-                + ((imageData[len + 6] & 0xFF) << 8) + (imageData[len + 7] & 0xFF);
-        Log.v(TAG, "ImLength = " + (len) + ", W = " + width + ", H = " + height);
+        int width = size[0];
+        int height = size[1];
+        Log.v(TAG, "W = " + width + ", H = " + height);
 
         if (width <= 0 || height <= 0) {
             // TODO: pop up an error message indicating that the final result is not generated.
-            Log.e(TAG, "width|height <= 0!!, len = " + (len) + ", W = " + width + ", H = " +
-                    height);
-            return new MosaicJpeg();
-        }
-
-        YuvImage yuvimage = new YuvImage(imageData, ImageFormat.NV21, width, height, null);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvimage.compressToJpeg(new Rect(0, 0, width, height), 100, out);
-        try {
-            out.close();
-        } catch (Exception e) {
-            Log.e(TAG, "Exception in storing final mosaic", e);
-            return new MosaicJpeg();
+            Log.e(TAG, "width|height <= 0!!, W = " + width + ", H = " + height);
+            mMosaicFrameProcessor.freeFinalMosaic();
+            return new FinalMosaic();
         }
-        return new MosaicJpeg(out.toByteArray(), width, height);
+        return new FinalMosaic(width, height);
     }
 
     private void startCameraPreview() {
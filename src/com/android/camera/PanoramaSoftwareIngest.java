@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+
+import com.android.camera.CameraManager.CameraProxy;
+
+/**
+ * Feeds the panorama capture with NV21 preview callback frames instead of
+ * frames read back from the GPU. Each frame is processed on a thread of its
+ * own, where the native layer builds its high and low resolution planes on
+ * worker threads and aligns it, and then goes back to the camera. The GL
+ * preview still shows the frames, warped by the alignment.
+ *
+ * The rate of the processed frames is logged when the capture stops.
+ */
+public class PanoramaSoftwareIngest implements Camera.PreviewCallback {
+    private static final String TAG = "PanoramaSoftwareIngest";
+    // One buffer filled by the camera, one queued and one being processed.
+    private static final int NUM_BUFFERS = 3;
+    private static final int MSG_FRAME = 1;
+
+    private final MosaicFrameProcessor mProcessor;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private CameraProxy mCameraDevice;
+    private byte[][] mBuffers;
+    // The camera of the last frame, to give the buffers back.
+    private volatile Camera mCamera;
+
+    // Held while a frame is processed, so that stop() waits for it.
+    private final Object mLock = new Object();
+    private boolean mRunning;
+    private int mFrames;
+    private long mFirstFrameTime;
+    private long mLastFrameTime;
+    private long mProcessingTime;
+
+    public PanoramaSoftwareIngest(MosaicFrameProcessor processor) {
+        mProcessor = processor;
+        mThread = new HandlerThread("PanoramaIngest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FRAME) {
+                    processFrame((byte[]) msg.obj);
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts feeding the preview frames of camera to the frame processor,
+     * which must be initialized for width x height frames. Returns false,
+     * leaving the camera alone, if the preview is not NV21.
+     */
+    public boolean start(CameraProxy camera, int width, int height) {
+        if (camera.getParameters().getPreviewFormat() != ImageFormat.NV21) {
+            Log.w(TAG, "Preview is not NV21, not using the preview frames");
+            return false;
+        }
+        int length = width * height * 3 / 2;
+        if (mBuffers == null || mBuffers[0].length != length) {
+            mBuffers = new byte[NUM_BUFFERS][length];
+        }
+        synchronized (mLock) {
+            mRunning = true;
+            mFrames = 0;
+            mProcessingTime = 0;
+        }
+        mCameraDevice = camera;
+        camera.setPreviewCallbackWithBuffer(this);
+        for (byte[] buffer : mBuffers) {
+            camera.addCallbackBuffer(buffer);
+        }
+        return true;
+    }
+
+    /**
+     * Stops feeding the frames, after the one being processed if any, and
+     * logs the frame rate.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (!mRunning) return;
+            mRunning = false;
+        }
+        mHandler.removeMessages(MSG_FRAME);
+        mCameraDevice.setPreviewCallbackWithBuffer(null);
+        mCameraDevice = null;
+        mCamera = null;
+        Log.i(TAG, mFrames + " frames at " + getFrameRate() + " fps, "
+                + getMeanFrameTime() + " ms per frame");
+    }
+
+    public void release() {
+        mThread.quit();
+    }
+
+    /**
+     * Returns the rate at which the frames of the last capture were
+     * processed, in frames per second.
+     */
+    public float getFrameRate() {
+        synchronized (mLock) {
+            if (mFrames < 2 || mLastFrameTime == mFirstFrameTime) return 0;
+            return (mFrames - 1) * 1e9f / (mLastFrameTime - mFirstFrameTime);
+        }
+    }
+
+    /**
+     * Returns the mean time spent processing a frame of the last capture,
+     * in ms.
+     */
+    public float getMeanFrameTime() {
+        synchronized (mLock) {
+            return mFrames == 0 ? 0 : mProcessingTime / 1e6f / mFrames;
+        }
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null) return;
+        mCamera = camera;
+        mHandler.obtainMessage(MSG_FRAME, data).sendToTarget();
+    }
+
+    private void processFrame(byte[] data) {
+        synchronized (mLock) {
+            if (!mRunning) return;
+            long start = System.nanoTime();
+            mProcessor.processFrame(data);
+            long end = System.nanoTime();
+            if (mFrames == 0) mFirstFrameTime = start;
+            mLastFrameTime = start;
+            mProcessingTime += end - start;
+            mFrames++;
+            // Straight to the camera, as CameraProxy calls are made on the
+            // main thread.
+            Camera camera = mCamera;
+            if (camera != null) camera.addCallbackBuffer(data);
+        }
+    }
+}
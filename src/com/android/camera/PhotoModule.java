@@ -21,6 +21,7 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -28,6 +29,7 @@ import android.content.SharedPreferences.Editor;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera.CameraInfo;
@@ -210,8 +212,8 @@ public class PhotoModule
 
     private ImageView mGpsIndicator;
 
-    // We use a thread in ImageSaver to do the work of saving images. This
-    // reduces the shot-to-shot time.
+    // We use a pool of threads in ImageSaver to do the work of saving images.
+    // This reduces the shot-to-shot time.
     private ImageSaver mImageSaver;
     // Similarly, we use a thread to generate the name of the picture and insert
     // it into MediaStore while picture taking is still in progress.
@@ -316,7 +318,22 @@ public class PhotoModule
     private boolean mHDRExposureSet = false;
     private boolean mHDRRendering = false;
     private ProgressDialog mHdrProgressDialog = null;
-    private static ArrayList<Uri> sHDRShotsPaths = new ArrayList<Uri>();
+    // The brackets wait here for the merge instead of going through storage.
+    // The merge takes them, and abandonHdrShot() drops them.
+    private final HdrCaptureSession mHdrSession = new HdrCaptureSession(3,
+            Runtime.getRuntime().maxMemory() / 4);
+    // Kept from one HDR shot to the next until onPause, so the merge does
+    // not allocate its buffers again.
+    private HdrSoftwareProcessor mHdrProcessor;
+    // Each bracket is shot once the preview shows its exposure, or when the
+    // settle time runs out.
+    private final ExposureSettleDetector mExposureSettle = new ExposureSettleDetector();
+    private final ExposureSettleCallback mExposureSettleCallback =
+            new ExposureSettleCallback();
+    private byte[][] mExposureSettleBuffers;
+    private boolean mHdrShotQueued;
+    private long mHdrShotQueuedTime;
+    private long mHdrSequenceStartTime;
     private int mResetExposure;
 
     // Camera timer.
@@ -664,8 +681,8 @@ public class PhotoModule
         mShutterButton.setOnShutterButtonListener(this);
         mShutterButton.setVisibility(View.VISIBLE);
 
-        mImageSaver = new ImageSaver();
-        mImageNamer = new ImageNamer();
+        mImageSaver = new ImageSaver(mActivity, mContentResolver);
+        mImageNamer = new ImageNamer(mContentResolver);
 
         mFirstTimeInitialized = true;
         addIdleHandler();
@@ -702,8 +719,8 @@ public class PhotoModule
                 mPreferences, mContentResolver);
         mLocationManager.recordLocation(recordLocation);
 
-        mImageSaver = new ImageSaver();
-        mImageNamer = new ImageNamer();
+        mImageSaver = new ImageSaver(mActivity, mContentResolver);
+        mImageNamer = new ImageNamer(mContentResolver);
         initializeZoom();
         keepMediaProviderInstance();
         hidePostCaptureAlert();
@@ -1084,7 +1101,15 @@ public class PhotoModule
                 }
             }
 
-            if (!mIsImageCaptureIntent) {
+            boolean hdrBracket = !mIsImageCaptureIntent && mHDRShotInProgress;
+            if (hdrBracket && !mHdrSession.add(jpegData)) {
+                Log.w(TAG, "No room for HDR bracket " + mHdrSession.size()
+                        + ", saving it as a picture");
+                hdrBracket = false;
+            }
+            if (hdrBracket && !Util.keepSoftwareHDRBrackets()) {
+                // The merge takes the bracket from memory, it is never saved.
+            } else if (!mIsImageCaptureIntent) {
                 // Calculate the width and the height of the jpeg.
                 Size s = mParameters.getPictureSize();
                 int orientation = Exif.getOrientation(jpegData);
@@ -1101,8 +1126,16 @@ public class PhotoModule
                 Uri uri = mImageNamer.getUri();
                 mActivity.addSecureAlbumItemIfNeeded(false, uri);
                 String title = mImageNamer.getTitle();
-                mImageSaver.addImage(jpegData, uri, title, mLocation,
-                        width, height, orientation);
+                long dateTaken = mImageNamer.getDateTaken();
+                ImageSaver.Processor processor = null;
+                if (mSceneMode == Util.SCENE_MODE_HDR && Util.needSamsungHDRFormat()) {
+                    processor = new SamsungHdrProcessor(mJpegRotation,
+                            Integer.parseInt(mPreferences.getString(
+                            CameraSettings.KEY_JPEG, mActivity.getString(
+                            R.string.pref_camera_jpeg_default))));
+                }
+                mImageSaver.addImage(jpegData, uri, title, dateTaken, mLocation,
+                        width, height, orientation, processor);
             } else {
                 mJpegImageData = jpegData;
                 if (!mQuickCapture) {
@@ -1157,167 +1190,216 @@ public class PhotoModule
         }
     }
 
-    // Each SaveRequest remembers the data needed to save an image.
-    private static class SaveRequest {
-        byte[] data;
-        Uri uri;
-        String title;
-        Location loc;
-        int width, height;
-        int orientation;
-    }
+    // Shoots the queued HDR bracket as soon as the preview frames show that
+    // the new exposure has taken effect.
+    private final class ExposureSettleCallback
+            implements android.hardware.Camera.PreviewCallback {
+        private int mWidth;
+        private int mHeight;
 
-    // We use a queue to store the SaveRequests that have not been completed
-    // yet. The main thread puts the request into the queue. The saver thread
-    // gets it from the queue, does the work, and removes it from the queue.
-    //
-    // The main thread needs to wait for the saver thread to finish all the work
-    // in the queue, when the activity's onPause() is called, we need to finish
-    // all the work, so other programs (like Gallery) can see all the images.
-    //
-    // If the queue becomes too long, adding a new request will block the main
-    // thread until the queue length drops below the threshold (QUEUE_LIMIT).
-    // If we don't do this, we may face several problems: (1) We may OOM
-    // because we are holding all the jpeg data in memory. (2) We may ANR
-    // when we need to wait for saver thread finishing all the work (in
-    // onPause() or gotoGallery()) because the time to finishing a long queue
-    // of work may be too long.
-    private class ImageSaver extends Thread {
-        private static final int QUEUE_LIMIT = 3;
-
-        private ArrayList<SaveRequest> mQueue;
-        private boolean mStop;
-
-        // Runs in main thread
-        public ImageSaver() {
-            mQueue = new ArrayList<SaveRequest>();
-            start();
+        public void setSize(int width, int height) {
+            mWidth = width;
+            mHeight = height;
         }
 
-        // Runs in main thread
-        public void addImage(final byte[] data, Uri uri, String title,
-                Location loc, int width, int height, int orientation) {
-            SaveRequest r = new SaveRequest();
-            r.data = data;
-            r.uri = uri;
-            r.title = title;
-            r.loc = (loc == null) ? null : new Location(loc);  // make a copy
-            r.width = width;
-            r.height = height;
-            r.orientation = orientation;
-            synchronized (this) {
-                while (mQueue.size() >= QUEUE_LIMIT) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
-                    }
-                }
-                mQueue.add(r);
-                notifyAll();  // Tell saver thread there is new work to do.
+        @Override
+        public void onPreviewFrame(byte[] data, android.hardware.Camera camera) {
+            if (!mHdrShotQueued || data == null) return;
+            if (mExposureSettle.addFrame(data, mWidth, mHeight, mWidth)) {
+                Log.d(TAG, "HDR - exposure settled after " + mExposureSettle.getFrameCount()
+                        + " frames, " + (SystemClock.uptimeMillis() - mHdrShotQueuedTime)
+                        + " ms, mean luma " + mExposureSettle.getMean());
+                mHandler.removeCallbacks(mHdrShot);
+                mHandler.post(mHdrShot);
+                return;
             }
+            // Through the proxy like every other camera call, if the camera
+            // is still open.
+            CameraProxy device = mCameraDevice;
+            if (device != null) device.addCallbackBuffer(data);
         }
+    }
 
-        // Runs in saver thread
-        @Override
+    private final Runnable mHdrShot = new Runnable() {
         public void run() {
-            while (true) {
-                SaveRequest r;
-                synchronized (this) {
-                    if (mQueue.isEmpty()) {
-                        notifyAll();  // notify main thread in waitDone
+            if (!mHdrShotQueued) return;
+            mHdrShotQueued = false;
+            mHandler.removeCallbacks(this);
+            stopExposureSettleDetection();
+            mHDRExposureSet = true;
+            onShutterButtonClick();
+        }
+    };
 
-                        // Note that we can only stop after we saved all images
-                        // in the queue.
-                        if (mStop) break;
+    // Shoots the next HDR bracket once its exposure is set, after timeout
+    // ms at the latest.
+    private void queueHdrShot(int timeout) {
+        mHdrShotQueued = true;
+        mHdrShotQueuedTime = SystemClock.uptimeMillis();
+        mHandler.postDelayed(mHdrShot, timeout);
+        startExposureSettleDetection();
+    }
+
+    private void cancelHdrShot() {
+        mHdrShotQueued = false;
+        mHandler.removeCallbacks(mHdrShot);
+        stopExposureSettleDetection();
+    }
+
+    // Drops an HDR sequence cut short by onPause(), and puts back the
+    // exposure compensation the user set, as the merge does. Called with the
+    // preview stopped, as the exposure is set on the camera if it is still
+    // open.
+    private void abandonHdrShot() {
+        cancelHdrShot();
+        // Up to three full size JPEGs, not worth keeping for the next shot.
+        mHdrSession.clear();
+        if (!mHDRShotInProgress) return;
+        mHDRShotInProgress = false;
+        mHDRExposureSet = false;
+        mBurstShotsDone = 0;
+        mSnapshotOnIdle = false;
+        mParameters.setExposureCompensation(CameraSettings.readExposure(mPreferences));
+        if (mCameraDevice != null) mCameraDevice.setParameters(mParameters);
+        mActivity.showSwitcher();
+        mActivity.setSwipingEnabled(true);
+    }
 
-                        try {
-                            wait();
-                        } catch (InterruptedException ex) {
-                            // ignore.
-                        }
-                        continue;
-                    }
-                    r = mQueue.get(0);
-                }
+    private void startExposureSettleDetection() {
+        // The luma plane is read as NV21, the format every camera supports
+        // for preview; anything else waits for the timeout.
+        if (!Util.detectSoftwareHDRExposureSettle() || mCameraDevice == null
+                || mParameters.getPreviewFormat() != ImageFormat.NV21) {
+            return;
+        }
+        Size size = mParameters.getPreviewSize();
+        int length = size.width * size.height * 3 / 2;
+        if (mExposureSettleBuffers == null || mExposureSettleBuffers[0].length != length) {
+            mExposureSettleBuffers = new byte[2][length];
+        }
+        mExposureSettle.reset();
+        mExposureSettleCallback.setSize(size.width, size.height);
+        mCameraDevice.setPreviewCallbackWithBuffer(mExposureSettleCallback);
+        for (byte[] buffer : mExposureSettleBuffers) {
+            mCameraDevice.addCallbackBuffer(buffer);
+        }
+    }
 
-                if (mSceneMode == Util.SCENE_MODE_HDR && Util.needSamsungHDRFormat()) {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    Bitmap bm = Util.decodeYUV422P(r.data, r.width, r.height);
-                    if (mJpegRotation != 0) {
-                        Matrix matrix = new Matrix();
-                        matrix.postRotate(mJpegRotation);
-                        bm = Bitmap.createBitmap(bm, 0, 0, r.width, r.height, matrix, true);
-                    }
-                    if (mJpegRotation % 180 != 0) {
-                        int x=r.height;
-                        int y=r.width;
-                        r.width = x;
-                        r.height = y;
-                    }
-                    bm.compress(Bitmap.CompressFormat.JPEG, Integer.parseInt(mPreferences.getString(
-                            CameraSettings.KEY_JPEG, mActivity.getString(
-                            R.string.pref_camera_jpeg_default))), baos);
-                    r.data = baos.toByteArray();
-                }
-                storeImage(r.data, r.uri, r.title, r.loc, r.width, r.height,
-                        r.orientation);
-                synchronized (this) {
-                    mQueue.remove(0);
-                    notifyAll();  // the main thread may wait in addImage
-                }
-            }
+    private void stopExposureSettleDetection() {
+        if (mCameraDevice != null && Util.detectSoftwareHDRExposureSettle()) {
+            mCameraDevice.setPreviewCallbackWithBuffer(null);
         }
+    }
 
-        // Runs in main thread
-        public void waitDone() {
-            synchronized (this) {
-                while (!mQueue.isEmpty()) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
-                    }
-                }
-            }
+    // Encodes the YUV422P frames delivered by the Samsung HDR scene mode into
+    // a JPEG. Runs in an ImageSaver worker thread.
+    //
+    // The frame is encoded once at sensor orientation and the rotation goes
+    // into the EXIF orientation tag, like the JPEGs of the camera HAL. If the
+    // tag cannot be written the JPEG is rotated with JpegTransform, and only
+    // if that fails too are the pixels rotated and encoded again.
+    private static class SamsungHdrProcessor implements ImageSaver.Processor {
+        private final int mRotation;
+        private final int mQuality;
+
+        public SamsungHdrProcessor(int rotation, int quality) {
+            mRotation = rotation;
+            mQuality = quality;
         }
 
-        // Runs in main thread
-        public void finish() {
-            waitDone();
-            synchronized (this) {
-                mStop = true;
-                notifyAll();
+        @Override
+        public void process(ImageSaver.SaveRequest r) {
+            Bitmap bm = Util.decodeYUV422P(r.data, r.width, r.height);
+            r.data = null;  // let the raw frame go before encoding
+            byte[] jpeg = compress(bm, r.width * r.height / 4);
+            byte[] tagged = Exif.writeMetadata(jpeg, mRotation, r.date, r.loc);
+            if (tagged != jpeg || mRotation == 0) {
+                bm.recycle();
+                r.data = tagged;
+                r.orientation = mRotation;
+                return;
             }
-            try {
-                join();
-            } catch (InterruptedException ex) {
-                // ignore.
+
+            // Rotate the compressed picture, without another encode.
+            JpegTransform transform = new JpegTransform();
+            byte[] rotated = transform.transform(jpeg,
+                    JpegTransform.forRotation(mRotation, false));
+            if (rotated != null) {
+                bm.recycle();
+                Log.w(TAG, "Could not tag HDR picture, rotated it losslessly");
+                r.data = rotated;
+                r.width = transform.getOutputWidth();
+                r.height = transform.getOutputHeight();
+                r.orientation = 0;
+                return;
             }
-        }
 
-        // Runs in saver thread
-        private void storeImage(final byte[] data, Uri uri, String title,
-                Location loc, int width, int height, int orientation) {
-            boolean ok = Storage.getStorage().updateImage(mContentResolver, uri, title, loc,
-                    orientation, data, width, height);
-            if (ok) {
-                Util.broadcastNewPicture(mActivity, uri);
+            Log.w(TAG, "Could not tag HDR picture (" + transform.getError()
+                    + "), rotating pixels instead");
+            Matrix matrix = new Matrix();
+            matrix.postRotate(mRotation);
+            Bitmap bitmap = Bitmap.createBitmap(bm, 0, 0, r.width, r.height, matrix, true);
+            bm.recycle();
+            if (mRotation % 180 != 0) {
+                int x = r.height;
+                int y = r.width;
+                r.width = x;
+                r.height = y;
             }
+            r.data = compress(bitmap, jpeg.length);
+            bitmap.recycle();
+            r.orientation = 0;
+        }
+
+        private byte[] compress(Bitmap bm, int sizeHint) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(sizeHint);
+            bm.compress(Bitmap.CompressFormat.JPEG, mQuality, baos);
+            return baos.toByteArray();
         }
     }
 
+    // Adds the EXIF metadata to pictures we encoded ourselves. Runs in an
+    // ImageSaver worker thread.
+    private static class ExifProcessor implements ImageSaver.Processor {
+        @Override
+        public void process(ImageSaver.SaveRequest r) {
+            r.data = Exif.writeMetadata(r.data, r.orientation, r.date, r.loc);
+        }
+    }
+
+    // Keeps a small pool of URIs (and their titles) inserted into MediaStore
+    // ahead of time, so the shutter path can pick one up without waiting for
+    // a ContentResolver insert. The pool is refilled in the namer thread from
+    // the timestamp of the latest capture, with a single batched insert.
+    //
+    // A URI that was prepared but never picked up goes back to the pool.
+    // Everything left in the pool is deleted from MediaStore in finish().
+    // The records of a pool lost with the process are deleted by the first
+    // namer of the next one.
     private static class ImageNamer extends Thread {
+        private static final int POOL_SIZE = 3;
+        // Set once the stale records have been looked for in this process.
+        private static boolean sStaleDeleted;
+
+        private static class Entry {
+            Uri uri;
+            String title;
+        }
+
+        private final ArrayList<Entry> mPool = new ArrayList<Entry>();
         private boolean mRequestPending;
+        private boolean mRefillFailed;
         private ContentResolver mResolver;
         private long mDateTaken;
         private int mWidth, mHeight;
         private boolean mStop;
+        private Entry mPrepared;
         private Uri mUri;
         private String mTitle;
 
         // Runs in main thread
-        public ImageNamer() {
+        public ImageNamer(ContentResolver resolver) {
+            mResolver = resolver;
             start();
         }
 
@@ -1329,11 +1411,22 @@ public class PhotoModule
                 width = height;
                 height = tmp;
             }
-            mRequestPending = true;
+            cleanOldUri();
             mResolver = resolver;
             mDateTaken = dateTaken;
             mWidth = width;
             mHeight = height;
+            mRefillFailed = false;
+            if (!mPool.isEmpty()) {
+                // The pooled entry was named after an earlier capture. The
+                // saver writes the file under the new title, and the record
+                // is updated with it.
+                mPrepared = mPool.remove(0);
+                mPrepared.title = Util.createJpegName(dateTaken);
+            } else {
+                mRequestPending = true;
+            }
+            // Wake up the namer thread to refill the pool.
             notifyAll();
         }
 
@@ -1349,9 +1442,15 @@ public class PhotoModule
             }
 
             // return the uri generated
-            Uri uri = mUri;
-            mUri = null;
-            return uri;
+            Entry e = mPrepared;
+            mPrepared = null;
+            if (e == null) {
+                mUri = null;
+                return null;
+            }
+            mUri = e.uri;
+            mTitle = e.title;
+            return mUri;
         }
 
         // Runs in main thread, should be called after getUri().
@@ -1359,25 +1458,90 @@ public class PhotoModule
             return mTitle;
         }
 
+        // Runs in main thread, should be called after getUri(). A pooled
+        // entry was inserted with the time and file name of an earlier
+        // capture, so the saver has to write the real ones.
+        public synchronized long getDateTaken() {
+            return mDateTaken;
+        }
+
         // Runs in namer thread
         @Override
-        public synchronized void run() {
+        public void run() {
+            deleteStaleUris();
             while (true) {
-                if (mStop) break;
-                if (!mRequestPending) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
+                ContentResolver resolver;
+                long dateTaken;
+                int width, height;
+                boolean pending;
+                int count;
+                synchronized (this) {
+                    if (mStop) break;
+                    pending = mRequestPending;
+                    // The pool is only filled once a capture has told us
+                    // the picture size.
+                    if (!pending && (mWidth == 0 || mRefillFailed
+                            || mPool.size() >= POOL_SIZE)) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            // ignore.
+                        }
+                        continue;
+                    }
+                    resolver = mResolver;
+                    dateTaken = mDateTaken;
+                    width = mWidth;
+                    height = mHeight;
+                    // A pending request is served on its own. Otherwise the
+                    // whole pool is refilled with one batch.
+                    count = pending ? 1 : POOL_SIZE - mPool.size();
+                }
+
+                // The inserts are done without holding the lock, so the main
+                // thread can take a pooled entry while the pool is refilled.
+                ArrayList<Entry> entries = generateUris(resolver, dateTaken,
+                        width, height, count);
+
+                synchronized (this) {
+                    if (!entries.isEmpty() && mRequestPending) {
+                        // Either the request we were serving, or one that
+                        // came in while we were refilling the pool. The
+                        // latter is named after the previous capture.
+                        mPrepared = entries.remove(0);
+                        mPrepared.title = Util.createJpegName(mDateTaken);
+                        mRequestPending = false;
+                        notifyAll();
+                    } else if (pending) {
+                        mRequestPending = false;
+                        notifyAll();
+                    } else if (entries.isEmpty()) {
+                        // The insert failed, wait for the next capture
+                        // before trying again.
+                        mRefillFailed = true;
                     }
-                    continue;
+                    mPool.addAll(entries);
                 }
+            }
+            synchronized (this) {
                 cleanOldUri();
-                generateUri();
-                mRequestPending = false;
-                notifyAll();
+                Storage.Batch batch = Storage.getStorage().newBatch();
+                for (Entry e : mPool) {
+                    batch.deleteImage(e.uri);
+                }
+                batch.commit(mResolver);
+                mPool.clear();
             }
-            cleanOldUri();
+        }
+
+        // Runs in namer thread. Only the first namer of the process looks, as
+        // a later one could find the records of pictures still being saved.
+        private void deleteStaleUris() {
+            synchronized (ImageNamer.class) {
+                if (sStaleDeleted) return;
+                sStaleDeleted = true;
+            }
+            Storage.getStorage().deleteStaleImages(mResolver);
         }
 
         // Runs in main thread
@@ -1387,17 +1551,44 @@ public class PhotoModule
         }
 
         // Runs in namer thread
-        private void generateUri() {
-            mTitle = Util.createJpegName(mDateTaken);
-            mUri = Storage.getStorage().newImage(mResolver, mTitle, mDateTaken, mWidth, mHeight);
-            sHDRShotsPaths.add(mUri);
+        private static ArrayList<Entry> generateUris(ContentResolver resolver,
+                long dateTaken, int width, int height, int count) {
+            ArrayList<Entry> entries = new ArrayList<Entry>(count);
+            if (count == 1) {
+                Entry e = new Entry();
+                e.title = Util.createJpegName(dateTaken);
+                e.uri = Storage.getStorage().newImage(resolver, e.title,
+                        dateTaken, width, height);
+                if (e.uri != null) entries.add(e);
+                return entries;
+            }
+
+            Storage.Batch batch = Storage.getStorage().newBatch();
+            String[] titles = new String[count];
+            for (int i = 0; i < count; i++) {
+                titles[i] = Util.createJpegName(dateTaken);
+                batch.newImage(titles[i], dateTaken, width, height);
+            }
+            ContentProviderResult[] results = batch.commit(resolver);
+            for (int i = 0; i < count; i++) {
+                Entry e = new Entry();
+                e.title = titles[i];
+                e.uri = Storage.getUri(results, i);
+                if (e.uri != null) entries.add(e);
+            }
+            return entries;
         }
 
-        // Runs in namer thread
+        // Runs in main thread or namer thread. Puts back an entry that was
+        // prepared but never picked up.
         private void cleanOldUri() {
-            if (mUri == null) return;
-            Storage.getStorage().deleteImage(mResolver, mUri);
-            mUri = null;
+            if (mPrepared == null) return;
+            if (mStop) {
+                Storage.getStorage().deleteImage(mResolver, mPrepared.uri);
+            } else {
+                mPool.add(0, mPrepared);
+            }
+            mPrepared = null;
         }
     }
 
@@ -1813,7 +2004,8 @@ public class PhotoModule
             mParameters.setExposureCompensation(mParameters.getMinExposureCompensation());
             mCameraDevice.setParameters(mParameters);
             mHDRShotInProgress = true;
-            sHDRShotsPaths.clear();
+            mHdrSession.clear();
+            mHdrSequenceStartTime = SystemClock.uptimeMillis();
 
             // We hide controls while we are shooting
             mActivity.hideSwitcher();
@@ -1821,12 +2013,7 @@ public class PhotoModule
 
 
             // We queue the shot so exposure gets set
-            mHandler.postDelayed(new Runnable() {
-                public void run() {
-                    mHDRExposureSet = true;
-                    onShutterButtonClick();
-                }
-            }, 1000);
+            queueHdrShot(1000);
             return;
         }
         else if (Util.getDoSoftwareHDRShot() && mHDRShotInProgress && !mHDRExposureSet) {
@@ -1857,47 +2044,48 @@ public class PhotoModule
                 mHDRRendering = true;
                 mSnapshotOnIdle = false;
                 mBurstShotsDone = 0;
-                Log.d(TAG, "Done shooting all exposures, computing HDR");
+                Log.d(TAG, "Done shooting all exposures in "
+                        + (SystemClock.uptimeMillis() - mHdrSequenceStartTime)
+                        + " ms, computing HDR");
 
                 // We release controls
                 mActivity.showSwitcher();
                 mActivity.setSwipingEnabled(true);
 
                 // And we compute the final image
-                final HdrSoftwareProcessor hdr = new HdrSoftwareProcessor(mActivity);
+                if (mHdrProcessor == null) {
+                    mHdrProcessor = new HdrSoftwareProcessor(mActivity);
+                }
+                final HdrSoftwareProcessor hdr = mHdrProcessor;
 
                 mHdrProgressDialog = ProgressDialog.show(mActivity, mActivity.getString(R.string.pref_camera_scenemode_entry_hdr), mActivity.getString(R.string.wait), true);
 
-                // Let a second for the shot to get recorded on SDcard, then go!
-                mHandler.postDelayed(new Runnable() {
+                // The brackets are all in memory by now, go!
+                mHandler.post(new Runnable() {
                     public void run() {
                         new Thread() {
                             public void run() {
-                                Uri[] strArray = new Uri[sHDRShotsPaths.size()];
-                                sHDRShotsPaths.toArray(strArray);
+                                byte[][] brackets = mHdrSession.take();
 
                                 try {
                                     Size s = mParameters.getPictureSize();
                                     mImageNamer.prepareUri(mContentResolver, mCaptureStartTime, s.width, s.height, mJpegRotation);
-                                    hdr.prepare(mActivity, strArray);
+                                    hdr.prepare(mActivity, brackets);
+                                    brackets = null;
 
                                     byte[] jpegData = hdr.computeHDR(mActivity);
 
                                     Uri uri = mImageNamer.getUri();
                                     mActivity.addSecureAlbumItemIfNeeded(false, uri);
                                     String title = mImageNamer.getTitle();
-                                    mImageSaver.addImage(jpegData, uri, title, mLocationManager.getCurrentLocation(),
-                                        s.width, s.height, 0);
+                                    mImageSaver.addImage(jpegData, uri, title, mImageNamer.getDateTaken(),
+                                        mLocationManager.getCurrentLocation(),
+                                        s.width, s.height, 0, new ExifProcessor());
 
                                 } catch (Exception e) {
                                     Log.e(TAG, "Could not make HDR final shot: " + e.getMessage());
                                 }
 
-                                // delete source images
-                                for (int i = 0; i < sHDRShotsPaths.size()-1; i++) {
-                                    Storage.getStorage().deleteImage(mContentResolver, sHDRShotsPaths.get(i));
-                                }
-
                                 // reset exposure
                                 mParameters.setExposureCompensation(CameraSettings.readExposure(mPreferences));
                                 mCameraDevice.setParameters(mParameters);
@@ -1907,18 +2095,13 @@ public class PhotoModule
                             }
                         }.start();
                     }
-                }, 1000);
+                });
                 return;
             }
 
             if (queueShot) {
                 mSnapshotOnIdle = false;
-                mHandler.postDelayed(new Runnable() {
-                    public void run() {
-                        mHDRExposureSet = true;
-                        onShutterButtonClick();
-                    }
-                }, Util.getSoftwareHDRExposureSettleTime());
+                queueHdrShot(Util.getSoftwareHDRExposureSettleTime());
                 return;
             }
         }
@@ -2056,6 +2239,7 @@ public class PhotoModule
             mCameraDevice.cancelAutoFocus();
         }
         stopPreview();
+        abandonHdrShot();
         // Close the camera now because other activities may need to use it.
         closeCamera();
         if (Util.mSurfaceTexture != null) {
@@ -2082,6 +2266,14 @@ public class PhotoModule
 
         if (mLocationManager != null) mLocationManager.recordLocation(false);
 
+        mExposureSettleBuffers = null;
+
+        // A merge still running lets go of the HDR buffers when it is done.
+        if (mHdrProcessor != null) {
+            mHdrProcessor.release();
+            mHdrProcessor = null;
+        }
+
         // If we are in an image capture intent and has taken
         // a picture, we just clear it in onPause.
         mJpegImageData = null;
@@ -17,13 +17,17 @@
 package com.android.camera;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.MediaColumns;
@@ -32,7 +36,7 @@ import android.util.Log;
 import com.android.gallery3d.common.ApiHelper;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.util.ArrayList;
 
 public class Storage {
     private static final String TAG = "CameraStorage";
@@ -41,8 +45,17 @@ public class Storage {
     public static final long PREPARING = -2L;
     public static final long UNKNOWN_SIZE = -3L;
     public static final long LOW_STORAGE_THRESHOLD= 50000000;
+    // Do a full free space check again when the estimate drops below
+    // LOW_STORAGE_THRESHOLD plus this margin.
+    private static final long RESYNC_MARGIN = 50000000;
 
     private String mRoot = Environment.getExternalStorageDirectory().toString();
+    private final ImageFileWriter mFileWriter = new ImageFileWriter();
+
+    // Free space tracking, see getAvailableSpace().
+    private boolean mSpaceValid;
+    private long mSpaceBaseline;
+    private long mBytesSinceBaseline;
     private static Storage sStorage;
 
     // Singleton
@@ -57,6 +70,7 @@ public class Storage {
 
     public void setRoot(String root) {
         mRoot = root;
+        invalidateAvailableSpace();
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
@@ -70,21 +84,26 @@ public class Storage {
 
     public String writeFile(String title, byte[] data) {
         String path = generateFilepath(title);
-        FileOutputStream out = null;
-        try {
-            out = new FileOutputStream(path);
-            out.write(data);
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to write data", e);
-        } finally {
-            try {
-                out.close();
-            } catch (Exception e) {
-            }
+        if (mFileWriter.write(path, data)) {
+            onBytesWritten(data.length);
         }
         return path;
     }
 
+    // Writes the file as source produces it. Returns its path, or null if it
+    // could not be written.
+    public String writeFile(String title, ImageFileWriter.Source source) {
+        String path = generateFilepath(title);
+        long bytes = mFileWriter.write(path, source);
+        if (bytes < 0) return null;
+        onBytesWritten(bytes);
+        return path;
+    }
+
+    public ImageFileWriter getFileWriter() {
+        return mFileWriter;
+    }
+
     // Save the image and add it to media store.
     public Uri addImage(ContentResolver resolver, String title,
             long date, Location location, int orientation, byte[] jpeg,
@@ -139,18 +158,10 @@ public class Storage {
     // correct aspect ratio before the real values are updated in updateImage().
     public Uri newImage(ContentResolver resolver, String title,
             long date, int width, int height) {
-        String path = generateFilepath(title);
-
-        // Insert into MediaStore.
-        ContentValues values = new ContentValues(4);
-        values.put(ImageColumns.DATE_TAKEN, date);
-        values.put(ImageColumns.DATA, path);
-
-        setImageSize(values, width, height);
-
         Uri uri = null;
         try {
-            uri = resolver.insert(Images.Media.EXTERNAL_CONTENT_URI, values);
+            uri = resolver.insert(Images.Media.EXTERNAL_CONTENT_URI,
+                    newImageValues(title, date, width, height));
         } catch (Throwable th)  {
             // This can happen when the external volume is already mounted, but
             // MediaScanner has not notify MediaProvider to add that volume.
@@ -162,6 +173,16 @@ public class Storage {
         return uri;
     }
 
+    private ContentValues newImageValues(String title, long date,
+            int width, int height) {
+        ContentValues values = new ContentValues(4);
+        values.put(ImageColumns.DATE_TAKEN, date);
+        values.put(ImageColumns.DATA, generateFilepath(title));
+
+        setImageSize(values, width, height);
+        return values;
+    }
+
     // This is the second step. It completes the partial data added by
     // newImage. All columns other than DATE_TAKEN and DATA are inserted
     // here. This method also save the image data into the file.
@@ -170,35 +191,52 @@ public class Storage {
     public boolean updateImage(ContentResolver resolver, Uri uri,
             String title, Location location, int orientation, byte[] jpeg,
             int width, int height) {
-        // Save the image.
-        String path = generateFilepath(title);
-        String tmpPath = path + ".tmp";
-        FileOutputStream out = null;
+        if (!writeImageFile(title, jpeg)) return false;
+        return updateImageRecord(resolver, uri, title, 0, location,
+                orientation, jpeg.length, width, height);
+    }
+
+    // The file half of updateImage(). It may run concurrently for different
+    // titles, so the save pipeline can overlap disk writes of a burst.
+    public boolean writeImageFile(String title, byte[] jpeg) {
+        if (!mFileWriter.write(generateFilepath(title), jpeg)) return false;
+        onBytesWritten(jpeg.length);
+        return true;
+    }
+
+    // The MediaStore half of updateImage(). The file must already have been
+    // written by writeImageFile(). The DATA path is that of title, and if
+    // date is not 0 it replaces the DATE_TAKEN inserted by newImage(): the
+    // record may have been reserved ahead of the capture, under another
+    // title.
+    public boolean updateImageRecord(ContentResolver resolver, Uri uri,
+            String title, long date, Location location, int orientation,
+            int jpegLength, int width, int height) {
         try {
-            // Write to a temporary file and rename it to the final name. This
-            // avoids other apps reading incomplete data.
-            out = new FileOutputStream(tmpPath);
-            out.write(jpeg);
-            out.close();
-            new File(tmpPath).renameTo(new File(path));
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to write image", e);
+            resolver.update(uri, updateImageValues(title, date, location,
+                    orientation, jpegLength, width, height), null, null);
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to update image" + th);
             return false;
-        } finally {
-            try {
-                out.close();
-            } catch (Exception e) {
-            }
         }
 
-        // Insert into MediaStore.
-        ContentValues values = new ContentValues(9);
+        return true;
+    }
+
+    private ContentValues updateImageValues(String title, long date,
+            Location location, int orientation, int jpegLength,
+            int width, int height) {
+        ContentValues values = new ContentValues(11);
         values.put(ImageColumns.TITLE, title);
+        values.put(ImageColumns.DATA, generateFilepath(title));
+        if (date != 0) {
+            values.put(ImageColumns.DATE_TAKEN, date);
+        }
         values.put(ImageColumns.DISPLAY_NAME, title + ".jpg");
         values.put(ImageColumns.MIME_TYPE, "image/jpeg");
         // Clockwise rotation in degrees. 0, 90, 180, or 270.
         values.put(ImageColumns.ORIENTATION, orientation);
-        values.put(ImageColumns.SIZE, jpeg.length);
+        values.put(ImageColumns.SIZE, jpegLength);
 
         setImageSize(values, width, height);
 
@@ -206,25 +244,115 @@ public class Storage {
             values.put(ImageColumns.LATITUDE, location.getLatitude());
             values.put(ImageColumns.LONGITUDE, location.getLongitude());
         }
+        return values;
+    }
 
+    public void deleteImage(ContentResolver resolver, Uri uri) {
         try {
-            resolver.update(uri, values, null, null);
+            resolver.delete(uri, null, null);
         } catch (Throwable th) {
-            Log.e(TAG, "Failed to update image" + th);
-            return false;
+            Log.e(TAG, "Failed to delete image: " + uri);
         }
-
-        return true;
     }
 
-    public void deleteImage(ContentResolver resolver, Uri uri) {
+    // Deletes the records newImage() inserted for pictures that were never
+    // written: those have no SIZE, and no file at their DATA path. They are
+    // left behind when the process dies while URIs are reserved ahead of the
+    // capture. Must not run while a picture of this process is being saved.
+    public void deleteStaleImages(ContentResolver resolver) {
+        String[] projection = new String[] {ImageColumns._ID, ImageColumns.DATA};
+        String selection = ImageColumns.DATA + " LIKE ? AND " + ImageColumns.SIZE
+                + " IS NULL";
+        String[] args = new String[] {generateDirectory() + "/%"};
+        Batch batch = newBatch();
+        Cursor c = null;
         try {
-            resolver.delete(uri, null, null);
+            c = resolver.query(Images.Media.EXTERNAL_CONTENT_URI, projection,
+                    selection, args, null);
+            while (c != null && c.moveToNext()) {
+                String path = c.getString(1);
+                if (path != null && new File(path).exists()) continue;
+                batch.deleteImage(Uri.withAppendedPath(
+                        Images.Media.EXTERNAL_CONTENT_URI, c.getString(0)));
+            }
         } catch (Throwable th) {
-            Log.e(TAG, "Failed to delete image: " + uri);
+            Log.e(TAG, "Failed to look for stale images" + th);
+        } finally {
+            if (c != null) c.close();
+        }
+        if (batch.size() > 0) {
+            Log.i(TAG, "Deleting " + batch.size() + " stale image records");
+            batch.commit(resolver);
         }
     }
 
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    // Collects newImage(), updateImageRecord() and deleteImage() calls and
+    // sends them to MediaProvider with a single applyBatch(). A software HDR
+    // shot or a burst otherwise pays one provider round trip per call.
+    //
+    // A Batch is not thread safe. Nothing reaches MediaStore until commit()
+    // is called, so callers must commit before the activity is paused.
+    public class Batch {
+        private final ArrayList<ContentProviderOperation> mOps =
+                new ArrayList<ContentProviderOperation>();
+
+        private Batch() {}
+
+        // Queues the first step of newImage(). Returns the index of the
+        // operation, which can be passed to getUri() after commit().
+        public int newImage(String title, long date, int width, int height) {
+            mOps.add(ContentProviderOperation
+                    .newInsert(Images.Media.EXTERNAL_CONTENT_URI)
+                    .withValues(newImageValues(title, date, width, height))
+                    .build());
+            return mOps.size() - 1;
+        }
+
+        public void updateImageRecord(Uri uri, String title, long date,
+                Location location, int orientation, int jpegLength,
+                int width, int height) {
+            mOps.add(ContentProviderOperation.newUpdate(uri)
+                    .withValues(updateImageValues(title, date, location,
+                            orientation, jpegLength, width, height))
+                    .build());
+        }
+
+        public void deleteImage(Uri uri) {
+            mOps.add(ContentProviderOperation.newDelete(uri).build());
+        }
+
+        public int size() {
+            return mOps.size();
+        }
+
+        // Sends all queued operations. Returns the results, or null if the
+        // batch failed as a whole. The batch is empty afterwards either way.
+        public ContentProviderResult[] commit(ContentResolver resolver) {
+            if (mOps.isEmpty()) return new ContentProviderResult[0];
+            try {
+                return resolver.applyBatch(MediaStore.AUTHORITY, mOps);
+            } catch (Throwable th) {
+                // Same as newImage(): the files are safe and MediaScanner will
+                // pick them up later.
+                Log.e(TAG, "Failed to apply batch of " + mOps.size() + ": " + th);
+                return null;
+            } finally {
+                mOps.clear();
+            }
+        }
+    }
+
+    // Returns the uri of the insert at index in the results of
+    // Batch.commit(), or null if it failed.
+    public static Uri getUri(ContentProviderResult[] results, int index) {
+        if (results == null || index < 0 || index >= results.length) return null;
+        return results[index].uri;
+    }
+
     private String generateDCIM() {
         return new File(mRoot, Environment.DIRECTORY_DCIM).toString();
     }
@@ -245,7 +373,41 @@ public class Storage {
         return generateDirectory().toLowerCase().hashCode();
     }
 
-    public long getAvailableSpace() {
+    // Returns the free space in the storage directory. A full check with
+    // StatFs is only done for the first call after invalidateAvailableSpace(),
+    // after that the bytes written through this class are subtracted from
+    // that baseline. We check again once the estimate gets close to
+    // LOW_STORAGE_THRESHOLD, where being wrong matters.
+    public synchronized long getAvailableSpace() {
+        if (mSpaceValid) {
+            long estimate = mSpaceBaseline - mBytesSinceBaseline;
+            if (estimate > LOW_STORAGE_THRESHOLD + RESYNC_MARGIN) {
+                return estimate;
+            }
+        }
+
+        long space = checkAvailableSpace();
+        // Only a real size is a baseline. Other states must be checked again
+        // until the volume is ready.
+        mSpaceValid = (space >= 0);
+        mSpaceBaseline = space;
+        mBytesSinceBaseline = 0;
+        return space;
+    }
+
+    // Called when the storage may have changed behind our back, e.g. on
+    // media mount events, so the next getAvailableSpace() does a full check.
+    public synchronized void invalidateAvailableSpace() {
+        mSpaceValid = false;
+    }
+
+    // Accounts for bytes written to the storage directory by the app,
+    // e.g. by the video recorder.
+    public synchronized void onBytesWritten(long bytes) {
+        mBytesSinceBaseline += bytes;
+    }
+
+    private long checkAvailableSpace() {
         String state = Environment.getExternalStorageState();
         Log.d(TAG, "External storage state=" + state);
         if (Environment.MEDIA_CHECKING.equals(state)) {
@@ -175,7 +175,10 @@ public class Util {
     private static boolean sEnableSoftwareHDR;
     private static boolean sDoSoftwareHDRShot;
     private static int sSoftwareHDRExposureSettleTime;
+    private static boolean sDetectSoftwareHDRExposureSettle;
     private static boolean sForceSoftwareHDR;
+    private static boolean sRenderScriptHDR;
+    private static boolean sKeepSoftwareHDRBrackets;
 
     // Use samsung HDR format
     private static boolean sSamsungHDRFormat;
@@ -188,6 +191,9 @@ public class Util {
 
     private static boolean sShutterSpeed;
 
+    // Feed the panorama frames from preview callbacks
+    private static boolean sPanoramaSoftwareIngest;
+
     private static SpeechRecognizer mSpeechRecognizer;
     private static Intent mSpeechRecognizerIntent;
     private static String[] mShutterWords;
@@ -223,6 +229,11 @@ public class Util {
         sForceSoftwareHDR = context.getResources().getBoolean(R.bool.forceSoftwareHDR);
         sSoftwareHDRExposureSettleTime = context.getResources().getInteger(
                 R.integer.softwareHDRExposureSettleTime);
+        sDetectSoftwareHDRExposureSettle = context.getResources().getBoolean(
+                R.bool.detectSoftwareHDRExposureSettle);
+        sRenderScriptHDR = context.getResources().getBoolean(R.bool.useRenderScriptHDR);
+        sKeepSoftwareHDRBrackets = context.getResources().getBoolean(
+                R.bool.keepSoftwareHDRBrackets);
         sDoSoftwareHDRShot = false;
 
         sSamsungHDRFormat = context.getResources().getBoolean(R.bool.needsSamsungHDRFormat);
@@ -236,6 +247,12 @@ public class Util {
         sShutterSpeed = context.getResources().getBoolean(
                 R.bool.enableShutterSpeed);
 
+        sPanoramaSoftwareIngest = context.getResources().getBoolean(
+                R.bool.usePanoramaSoftwareIngest);
+
+        Storage.getStorage().getFileWriter().setSyncPolicy(
+                context.getResources().getInteger(R.integer.imageFileSyncPolicy));
+
         /* Voice Shutter */
         mSpeechRecognizer = SpeechRecognizer.createSpeechRecognizer(context);
         mSpeechRecognizer.setRecognitionListener(new ShutterVoice());
@@ -283,6 +300,14 @@ public class Util {
         return sEnableSoftwareHDR;
     }
 
+    public static boolean useRenderScriptHDR() {
+        return sRenderScriptHDR;
+    }
+
+    public static boolean keepSoftwareHDRBrackets() {
+        return sKeepSoftwareHDRBrackets;
+    }
+
     public static boolean needSamsungHDRFormat() {
         return sSamsungHDRFormat;
     }
@@ -299,6 +324,14 @@ public class Util {
         return sSoftwareHDRExposureSettleTime;
     }
 
+    public static boolean detectSoftwareHDRExposureSettle() {
+        return sDetectSoftwareHDRExposureSettle;
+    }
+
+    public static boolean usePanoramaSoftwareIngest() {
+        return sPanoramaSoftwareIngest;
+    }
+
     public static boolean noFaceDetectOnFrontCamera() {
         return sNoFaceDetectOnFrontCamera;
     }
@@ -471,44 +504,25 @@ public class Util {
         }
     }
 
+    // Rows converted per Bitmap.setPixels() call in decodeYUV422P.
+    private static final int YUV_BAND_ROWS = 256;
+
     public static Bitmap decodeYUV422P(byte[] yuv422p, int width, int height)
                         throws NullPointerException, IllegalArgumentException {
-        final int frameSize = width * height;
-        int[] rgb = new int[frameSize];
-        for (int j = 0, yp = 0; j < height; j++) {
-            int up = frameSize + (j * (width/2)), u = 0, v = 0;
-            int vp = ((int)(frameSize*1.5) + (j*(width/2)));
-            for (int i = 0; i < width; i++, yp++) {
-                int y = (0xff & ((int) yuv422p[yp])) - 16;
-                if (y < 0)
-                    y = 0;
-                if ((i & 1) == 0) {
-                    u = (0xff & yuv422p[up++]) - 128;
-                    v = (0xff & yuv422p[vp++]) - 128;
-                }
-
-                int y1192 = 1192 * y;
-                int r = (y1192 + 1634 * v);
-                int g = (y1192 - 833 * v - 400 * u);
-                int b = (y1192 + 2066 * u);
-
-                if (r < 0)
-                    r = 0;
-                else if (r > 262143)
-                    r = 262143;
-                if (g < 0)
-                    g = 0;
-                else if (g > 262143)
-                    g = 262143;
-                if (b < 0)
-                    b = 0;
-                else if (b > 262143)
-                    b = 262143;
-
-                rgb[yp] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
-            }
+        // Convert a band of rows at a time, so that the only full size
+        // buffer is the bitmap itself.
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int rows = Math.min(height, YUV_BAND_ROWS);
+        int[] band = YuvConverter.obtainBuffer(width * rows);
+        YuvConverter converter = new YuvConverter();
+        for (int y = 0; y < height; y += rows) {
+            int count = Math.min(rows, height - y);
+            converter.convert(yuv422p, YuvConverter.FORMAT_YUV422P, width, height,
+                    width, 0, y, width, count, 1, band, 0, width);
+            bitmap.setPixels(band, 0, width, 0, y, width, count);
         }
-        return Bitmap.createBitmap(rgb, width, height, Bitmap.Config.ARGB_8888);
+        YuvConverter.releaseBuffer(band);
+        return bitmap;
     }
 
     public static void closeSilently(Closeable c) {
@@ -1477,8 +1477,9 @@ public class VideoModule implements CameraModule,
     private boolean addVideoToMediaStore() {
         boolean fail = false;
         if (mVideoFileDescriptor == null) {
-            mCurrentVideoValues.put(Video.Media.SIZE,
-                    new File(mCurrentVideoFilename).length());
+            long size = new File(mCurrentVideoFilename).length();
+            mCurrentVideoValues.put(Video.Media.SIZE, size);
+            Storage.getStorage().onBytesWritten(size);
             long duration = SystemClock.uptimeMillis() - mRecordingStartTime;
             if (duration > 0) {
                 if (mCaptureTimeLapse) {
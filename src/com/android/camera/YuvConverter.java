@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Converts YUV frames in the preview and capture formats of the camera to
+ * ARGB pixels in caller provided buffers.
+ *
+ * The conversion uses the BT.601 fixed point coefficients the camera has
+ * always used, so the output is bit exact with the loops it replaced, but
+ * looks the products up in tables and clamps with a table instead of
+ * branches. The rows of a conversion are split across the
+ * ImagingThreadPool.
+ *
+ * The source may have a row stride larger than its width, any rectangle of
+ * it can be converted into any place of the destination, and it can be
+ * downscaled by 2, 4 or 8 on the way by taking every nth pixel. A converter
+ * is not thread safe; use one per thread. It does not depend on the Android
+ * framework.
+ */
+public class YuvConverter {
+    // Semi-planar 4:2:0 (ImageFormat.NV21): the Y plane, then rows of
+    // interleaved V and U samples, each row as wide as the Y stride.
+    public static final int FORMAT_NV21 = 0;
+    // The preview format the panorama code calls YUV420SP is NV21.
+    public static final int FORMAT_YUV420SP = FORMAT_NV21;
+    // Planar 4:2:0 (ImageFormat.YV12): the Y plane, then the V plane and the
+    // U plane, with the Y stride halved and rounded up to 16 bytes.
+    public static final int FORMAT_YV12 = 1;
+    // Planar 4:2:2, as delivered by the Samsung HDR scene mode: the Y plane,
+    // then the U and V planes with half the Y stride and all the rows.
+    public static final int FORMAT_YUV422P = 2;
+
+    // Do not bother other threads for less than this many pixels.
+    private static final int MIN_PIXELS_PER_TASK = 64 * 1024;
+    // The most buffers kept by releaseBuffer().
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] RV_TABLE = new int[256];
+    private static final int[] GU_TABLE = new int[256];
+    private static final int[] GV_TABLE = new int[256];
+    private static final int[] BU_TABLE = new int[256];
+    // Channel value >> 10, offset by CLAMP_OFFSET, to 0..255.
+    private static final int CLAMP_OFFSET = 512;
+    private static final int[] CLAMP_TABLE = new int[1536];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_TABLE[i] = 1192 * Math.max(i - 16, 0);
+            RV_TABLE[i] = 1634 * (i - 128);
+            GU_TABLE[i] = -400 * (i - 128);
+            GV_TABLE[i] = -833 * (i - 128);
+            BU_TABLE[i] = 2066 * (i - 128);
+        }
+        for (int i = 0; i < CLAMP_TABLE.length; i++) {
+            CLAMP_TABLE[i] = Math.min(Math.max(i - CLAMP_OFFSET, 0), 255);
+        }
+    }
+
+    private static final ArrayList<int[]> sBufferPool = new ArrayList<int[]>();
+
+    private final int mThreads;
+    private final RowTask[] mTasks;
+
+    // The conversion in progress, read by the row tasks.
+    private byte[] mSrc;
+    private int mStride;
+    // Offsets of the U and V samples of the first chroma row, the distance
+    // between chroma rows and between horizontally adjacent samples.
+    private int mUPlane, mVPlane, mChromaStride, mChromaStep;
+    // log2 of the vertical chroma subsampling.
+    private int mChromaShift;
+    private int mCropX, mCropY;
+    private int mScale;
+    private int mWidth;
+    private int[] mDst;
+    private int mDstOffset, mDstStride;
+    private CountDownLatch mDone;
+
+    private class RowTask implements Runnable {
+        int mFirstRow, mEndRow;
+
+        @Override
+        public void run() {
+            try {
+                convertRows(mFirstRow, mEndRow);
+            } finally {
+                mDone.countDown();
+            }
+        }
+    }
+
+    public YuvConverter() {
+        this(ImagingThreadPool.getThreadCount());
+    }
+
+    // Uses at most threads threads, including the calling one.
+    public YuvConverter(int threads) {
+        mThreads = Math.max(1, threads);
+        mTasks = new RowTask[mThreads - 1];
+        for (int i = 0; i < mTasks.length; i++) mTasks[i] = new RowTask();
+    }
+
+    /**
+     * Returns a buffer of at least size pixels, reusing one given back with
+     * releaseBuffer() if possible.
+     */
+    public static int[] obtainBuffer(int size) {
+        synchronized (sBufferPool) {
+            int best = -1;
+            for (int i = 0; i < sBufferPool.size(); i++) {
+                int length = sBufferPool.get(i).length;
+                if (length >= size && (best < 0
+                        || length < sBufferPool.get(best).length)) {
+                    best = i;
+                }
+            }
+            if (best >= 0) return sBufferPool.remove(best);
+        }
+        return new int[size];
+    }
+
+    // Gives a buffer back for obtainBuffer(). The caller must not use it
+    // any more.
+    public static void releaseBuffer(int[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() == MAX_POOLED_BUFFERS) {
+                // Keep the larger buffers.
+                int smallest = 0;
+                for (int i = 1; i < sBufferPool.size(); i++) {
+                    if (sBufferPool.get(i).length < sBufferPool.get(smallest).length) {
+                        smallest = i;
+                    }
+                }
+                if (sBufferPool.get(smallest).length >= buffer.length) return;
+                sBufferPool.remove(smallest);
+            }
+            sBufferPool.add(buffer);
+        }
+    }
+
+    // The number of output pixels for length source pixels at a scale.
+    public static int scaledSize(int length, int scale) {
+        return (length + scale - 1) / scale;
+    }
+
+    /**
+     * Converts a whole width x height frame, with a stride equal to its
+     * width, into dst, which must hold width * height pixels.
+     */
+    public void convert(byte[] src, int format, int width, int height, int[] dst) {
+        convert(src, format, width, height, width, 0, 0, width, height, 1, dst, 0, width);
+    }
+
+    /**
+     * Converts the cropWidth x cropHeight rectangle at (cropX, cropY) of a
+     * frame with the given size and Y row stride, keeping every scale-th
+     * pixel in both directions. Pixel (x, y) of the result, which is
+     * scaledSize(cropWidth, scale) x scaledSize(cropHeight, scale), goes to
+     * dst[dstOffset + y * dstStride + x].
+     *
+     * Scale is 1, 2, 4 or 8. At scale 1 the crop should start on an even
+     * column so that it does not split a pair of pixels sharing their
+     * chroma.
+     */
+    public void convert(byte[] src, int format, int width, int height, int stride,
+            int cropX, int cropY, int cropWidth, int cropHeight, int scale,
+            int[] dst, int dstOffset, int dstStride) {
+        if (scale != 1 && scale != 2 && scale != 4 && scale != 8) {
+            throw new IllegalArgumentException("Bad scale " + scale);
+        }
+        int outWidth = scaledSize(cropWidth, scale);
+        int outHeight = scaledSize(cropHeight, scale);
+        if (cropX < 0 || cropY < 0 || cropWidth <= 0 || cropHeight <= 0
+                || cropX + cropWidth > width || cropY + cropHeight > height
+                || stride < width || (stride & 1) != 0 || dstStride < outWidth
+                || dstOffset + (outHeight - 1) * dstStride + outWidth > dst.length) {
+            throw new IllegalArgumentException("Bad frame or crop");
+        }
+        int ySize = stride * height;
+        int chromaRows = (height + 1) / 2;
+        int size;
+        switch (format) {
+            case FORMAT_NV21:
+                mChromaStride = stride;
+                mChromaStep = 2;
+                mChromaShift = 1;
+                mVPlane = ySize;
+                mUPlane = ySize + 1;
+                size = ySize + stride * chromaRows;
+                break;
+            case FORMAT_YV12:
+                mChromaStride = ((stride / 2) + 15) & ~15;
+                mChromaStep = 1;
+                mChromaShift = 1;
+                mVPlane = ySize;
+                mUPlane = ySize + mChromaStride * chromaRows;
+                size = mUPlane + mChromaStride * chromaRows;
+                break;
+            case FORMAT_YUV422P:
+                mChromaStride = stride / 2;
+                mChromaStep = 1;
+                mChromaShift = 0;
+                mUPlane = ySize;
+                mVPlane = ySize + mChromaStride * height;
+                size = mVPlane + mChromaStride * height;
+                break;
+            default:
+                throw new IllegalArgumentException("Bad format " + format);
+        }
+        if (src.length < size) {
+            throw new IllegalArgumentException("Frame too small for its size");
+        }
+        mSrc = src;
+        mStride = stride;
+        mCropX = cropX;
+        mCropY = cropY;
+        mScale = scale;
+        mWidth = outWidth;
+        mDst = dst;
+        mDstOffset = dstOffset;
+        mDstStride = dstStride;
+
+        int tasks = Math.min(mThreads,
+                Math.max(1, outWidth * outHeight / MIN_PIXELS_PER_TASK));
+        tasks = Math.min(tasks, outHeight);
+        try {
+            if (tasks == 1) {
+                convertRows(0, outHeight);
+                return;
+            }
+            mDone = new CountDownLatch(tasks - 1);
+            ThreadPoolExecutor executor = ImagingThreadPool.get();
+            for (int i = 0; i < tasks - 1; i++) {
+                RowTask task = mTasks[i];
+                task.mFirstRow = outHeight * i / tasks;
+                task.mEndRow = outHeight * (i + 1) / tasks;
+                executor.execute(task);
+            }
+            // The calling thread takes the last share.
+            convertRows(outHeight * (tasks - 1) / tasks, outHeight);
+            awaitTasks();
+        } finally {
+            mSrc = null;
+            mDst = null;
+            mDone = null;
+        }
+    }
+
+    private void awaitTasks() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mDone.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Converts output rows [first, end).
+    private void convertRows(int first, int end) {
+        final byte[] src = mSrc;
+        final int[] dst = mDst;
+        final int[] yTable = Y_TABLE;
+        final int[] clamp = CLAMP_TABLE;
+        final int width = mWidth;
+        final int scale = mScale;
+        final int step = mChromaStep;
+        // Chroma samples to advance per output pixel when scaling.
+        final int chromaAdvance = step * (scale >> 1);
+
+        for (int row = first; row < end; row++) {
+            int sy = mCropY + row * scale;
+            int yp = sy * mStride + mCropX;
+            int cp = (sy >> mChromaShift) * mChromaStride + (mCropX >> 1) * step;
+            int up = mUPlane + cp;
+            int vp = mVPlane + cp;
+            int out = mDstOffset + row * mDstStride;
+
+            if (scale > 1) {
+                for (int x = 0; x < width; x++) {
+                    dst[out++] = pixel(src[yp] & 0xFF, src[up] & 0xFF, src[vp] & 0xFF);
+                    yp += scale;
+                    up += chromaAdvance;
+                    vp += chromaAdvance;
+                }
+                continue;
+            }
+
+            int x = 0;
+            if ((mCropX & 1) != 0) {
+                // The crop starts on the second pixel of a pair.
+                dst[out++] = pixel(src[yp++] & 0xFF, src[up] & 0xFF, src[vp] & 0xFF);
+                up += step;
+                vp += step;
+                x++;
+            }
+            for (; x + 1 < width; x += 2) {
+                int u = src[up] & 0xFF;
+                int v = src[vp] & 0xFF;
+                up += step;
+                vp += step;
+                int rv = RV_TABLE[v] + (CLAMP_OFFSET << 10);
+                int guv = GU_TABLE[u] + GV_TABLE[v] + (CLAMP_OFFSET << 10);
+                int bu = BU_TABLE[u] + (CLAMP_OFFSET << 10);
+
+                int y = yTable[src[yp++] & 0xFF];
+                dst[out++] = 0xff000000 | (clamp[(y + rv) >> 10] << 16)
+                        | (clamp[(y + guv) >> 10] << 8) | clamp[(y + bu) >> 10];
+                y = yTable[src[yp++] & 0xFF];
+                dst[out++] = 0xff000000 | (clamp[(y + rv) >> 10] << 16)
+                        | (clamp[(y + guv) >> 10] << 8) | clamp[(y + bu) >> 10];
+            }
+            if (x < width) {
+                dst[out] = pixel(src[yp] & 0xFF, src[up] & 0xFF, src[vp] & 0xFF);
+            }
+        }
+    }
+
+    private static int pixel(int y, int u, int v) {
+        int y1192 = Y_TABLE[y] + (CLAMP_OFFSET << 10);
+        return 0xff000000 | (CLAMP_TABLE[(y1192 + RV_TABLE[v]) >> 10] << 16)
+                | (CLAMP_TABLE[(y1192 + GU_TABLE[u] + GV_TABLE[v]) >> 10] << 8)
+                | CLAMP_TABLE[(y1192 + BU_TABLE[u]) >> 10];
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.ExifEditor;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Locale;
+
+@SmallTest
+public class ExifEditorTest extends TestCase {
+    // Stands in for the compressed image data, which must survive untouched.
+    private static final byte[] SCAN = {
+        (byte) 0xFF, (byte) 0xDA, 0, 4, 1, 2, 3, 4, 5, (byte) 0xFF, (byte) 0xD9
+    };
+    private static final byte[] THUMBNAIL = {
+        (byte) 0xFF, (byte) 0xD8, 9, 8, 7, 6, (byte) 0xFF, (byte) 0xD9
+    };
+
+    public void testReadOrientation() {
+        for (boolean littleEndian : new boolean[] {true, false}) {
+            ExifEditor exif = new ExifEditor();
+            assertTrue(exif.parse(createJpeg(littleEndian, 6, false)));
+            assertEquals(90, exif.getOrientation());
+            assertEquals(6, exif.getInt(ExifEditor.IFD_0, ExifEditor.TAG_ORIENTATION, 0));
+            assertEquals("2012:01:02 03:04:05", exif.getString(
+                    ExifEditor.IFD_EXIF, ExifEditor.TAG_DATE_TIME_ORIGINAL));
+        }
+    }
+
+    public void testNoExif() {
+        ExifEditor exif = new ExifEditor();
+        assertFalse(exif.parse(concat(new byte[] {(byte) 0xFF, (byte) 0xD8}, SCAN)));
+        assertEquals(0, exif.getOrientation());
+        assertFalse(exif.parse(new byte[] {1, 2, 3, 4}));
+        assertNull(exif.write());
+    }
+
+    public void testRewriteKeepsTagsThumbnailAndImage() {
+        for (boolean littleEndian : new boolean[] {true, false}) {
+            ExifEditor exif = new ExifEditor();
+            exif.parse(createJpeg(littleEndian, 1, true));
+            exif.setOrientation(270);
+            byte[] out = exif.write();
+            assertNotNull(out);
+            assertTrue(endsWith(out, SCAN));
+
+            ExifEditor check = new ExifEditor();
+            assertTrue(check.parse(out));
+            assertEquals(270, check.getOrientation());
+            assertEquals(0x1234, check.getInt(ExifEditor.IFD_0, 0x0100, 0));
+            assertEquals("2012:01:02 03:04:05", check.getString(
+                    ExifEditor.IFD_EXIF, ExifEditor.TAG_DATE_TIME_ORIGINAL));
+            assertTrue(contains(out, THUMBNAIL));
+        }
+    }
+
+    public void testInsertIntoJpegWithoutExif() {
+        byte[] app0 = {(byte) 0xFF, (byte) 0xE0, 0, 4, 'J', 'F'};
+        byte[] jpeg = concat(concat(new byte[] {(byte) 0xFF, (byte) 0xD8}, app0), SCAN);
+
+        ExifEditor exif = new ExifEditor();
+        exif.parse(jpeg);
+        exif.setOrientation(180);
+        exif.setDateTimeOriginal(0);
+        exif.setGps(-33.5, 151.25, 12.5, 0);
+        byte[] out = exif.write();
+
+        // The new segment goes after the JFIF segment.
+        for (int i = 0; i < 8; i++) assertEquals(jpeg[i], out[i]);
+        assertEquals(0xE1, out[9] & 0xFF);
+        assertTrue(endsWith(out, SCAN));
+
+        ExifEditor check = new ExifEditor();
+        assertTrue(check.parse(out));
+        assertEquals(180, check.getOrientation());
+        assertNotNull(check.getString(ExifEditor.IFD_EXIF,
+                ExifEditor.TAG_DATE_TIME_ORIGINAL));
+        assertEquals("S", check.getString(ExifEditor.IFD_GPS,
+                ExifEditor.TAG_GPS_LATITUDE_REF));
+        assertEquals(33, check.getRational(ExifEditor.IFD_GPS,
+                ExifEditor.TAG_GPS_LATITUDE, 0), 0);
+        assertEquals(30, check.getRational(ExifEditor.IFD_GPS,
+                ExifEditor.TAG_GPS_LATITUDE, 1), 0);
+        assertEquals("E", check.getString(ExifEditor.IFD_GPS,
+                ExifEditor.TAG_GPS_LONGITUDE_REF));
+        assertEquals(15, check.getRational(ExifEditor.IFD_GPS,
+                ExifEditor.TAG_GPS_LONGITUDE, 1), 0);
+        assertEquals(12.5, check.getRational(ExifEditor.IFD_GPS,
+                ExifEditor.TAG_GPS_ALTITUDE, 0), 0);
+    }
+
+    public void testDatesUseAsciiDigitsInAnyLocale() {
+        Locale locale = Locale.getDefault();
+        try {
+            // Formats numbers with Persian digits.
+            Locale.setDefault(new Locale("fa"));
+            ExifEditor exif = new ExifEditor();
+            exif.parse(createJpeg(false, 1, false));
+            exif.setDateTimeOriginal(1000000000000L);
+            exif.setGps(1, 2, Double.NaN, 1000000000000L);
+
+            ExifEditor check = new ExifEditor();
+            assertTrue(check.parse(exif.write()));
+            assertTrue(check.getString(ExifEditor.IFD_EXIF,
+                    ExifEditor.TAG_DATE_TIME_ORIGINAL).matches(
+                    "[0-9]{4}:[0-9]{2}:[0-9]{2} [0-9]{2}:[0-9]{2}:[0-9]{2}"));
+            assertEquals("2001:09:09", check.getString(ExifEditor.IFD_GPS,
+                    ExifEditor.TAG_GPS_DATE_STAMP));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    public void testOrientationInPlace() {
+        byte[] jpeg = createJpeg(true, 1, false);
+        ExifEditor exif = new ExifEditor();
+        exif.parse(jpeg);
+        assertTrue(exif.setOrientationInPlace(90));
+
+        ExifEditor check = new ExifEditor();
+        check.parse(jpeg);
+        assertEquals(90, check.getOrientation());
+    }
+
+    // Builds SOI, an Exif APP1 segment with IFD0 (ImageWidth, Orientation),
+    // an EXIF IFD with DateTimeOriginal and optionally IFD1 with a JPEG
+    // thumbnail, followed by SCAN.
+    private static byte[] createJpeg(boolean littleEndian, int orientation,
+            boolean thumbnail) {
+        Writer tiff = new Writer(littleEndian);
+        tiff.bytes(littleEndian ? new byte[] {'I', 'I'} : new byte[] {'M', 'M'});
+        tiff.u16(42);
+        tiff.u32(8);
+        // IFD0 at 8: 3 entries.
+        int ifd1 = thumbnail ? 8 + 2 + 3 * 12 + 4 + 2 + 1 * 12 + 4 + 20 : 0;
+        tiff.u16(3);
+        tiff.entry(0x0100, 3, 1, 0x1234 << (littleEndian ? 0 : 16));
+        tiff.entry(0x0112, 3, 1, orientation << (littleEndian ? 0 : 16));
+        tiff.entry(0x8769, 4, 1, 8 + 2 + 3 * 12 + 4);
+        tiff.u32(ifd1);
+        // EXIF IFD: 1 entry, data follows.
+        int exifData = 8 + 2 + 3 * 12 + 4 + 2 + 12 + 4;
+        tiff.u16(1);
+        tiff.entry(0x9003, 2, 20, exifData);
+        tiff.u32(0);
+        tiff.bytes("2012:01:02 03:04:05\0".getBytes());
+        if (thumbnail) {
+            int thumbOffset = ifd1 + 2 + 2 * 12 + 4;
+            tiff.u16(2);
+            tiff.entry(0x0201, 4, 1, thumbOffset);
+            tiff.entry(0x0202, 4, 1, THUMBNAIL.length);
+            tiff.u32(0);
+            tiff.bytes(THUMBNAIL);
+        }
+        byte[] body = tiff.toByteArray();
+
+        Writer jpeg = new Writer(false);
+        jpeg.bytes(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1});
+        jpeg.u16(2 + 6 + body.length);
+        jpeg.bytes(new byte[] {'E', 'x', 'i', 'f', 0, 0});
+        jpeg.bytes(body);
+        jpeg.bytes(SCAN);
+        return jpeg.toByteArray();
+    }
+
+    private static class Writer extends ByteArrayOutputStream {
+        private final boolean mLittleEndian;
+
+        Writer(boolean littleEndian) {
+            mLittleEndian = littleEndian;
+        }
+
+        void bytes(byte[] b) {
+            write(b, 0, b.length);
+        }
+
+        void u16(int v) {
+            if (mLittleEndian) {
+                write(v);
+                write(v >> 8);
+            } else {
+                write(v >> 8);
+                write(v);
+            }
+        }
+
+        void u32(int v) {
+            if (mLittleEndian) {
+                u16(v);
+                u16(v >>> 16);
+            } else {
+                u16(v >>> 16);
+                u16(v);
+            }
+        }
+
+        void entry(int tag, int type, int count, int value) {
+            u16(tag);
+            u16(type);
+            u32(count);
+            u32(value);
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static boolean endsWith(byte[] data, byte[] suffix) {
+        int offset = data.length - suffix.length;
+        for (int i = 0; i < suffix.length; i++) {
+            if (data[offset + i] != suffix[i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean contains(byte[] data, byte[] part) {
+        outer:
+        for (int i = 0; i + part.length <= data.length; i++) {
+            for (int j = 0; j < part.length; j++) {
+                if (data[i + j] != part[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.ExposureFusion;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+@SmallTest
+public class ExposureFusionTest extends TestCase {
+    // Not a multiple of the tile size, so there are partial tiles.
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 300;
+    private static final float[] EXPOSURES = {0.25f, 1f, 4f};
+
+    public void testSamePictureComesBack() {
+        int[] picture = createBracket(1f);
+        int[] output = new int[WIDTH * HEIGHT];
+        new ExposureFusion(2).fuse(new int[][] {picture, picture, picture},
+                WIDTH, HEIGHT, output);
+        assertTrue(Arrays.equals(picture, output));
+    }
+
+    public void testKeepsTheWellExposedParts() {
+        int[][] brackets = new int[EXPOSURES.length][];
+        for (int i = 0; i < EXPOSURES.length; i++) brackets[i] = createBracket(EXPOSURES[i]);
+        int[] output = new int[WIDTH * HEIGHT];
+        new ExposureFusion(2).fuse(brackets, WIDTH, HEIGHT, output);
+
+        // The dark end of the scene is black in the short exposure and the
+        // bright end white in the long one; the result shows both.
+        assertTrue(clipped(brackets[0], 0, WIDTH / 4) > 0.5);
+        assertTrue(clipped(brackets[2], WIDTH * 3 / 4, WIDTH) > 0.5);
+        assertTrue(clipped(output, 0, WIDTH / 4) < 0.2);
+        assertTrue(clipped(output, WIDTH * 3 / 4, WIDTH) < 0.2);
+    }
+
+    public void testThreadsAndTilesDoNotChangeTheResult() {
+        int[][] brackets = new int[EXPOSURES.length][];
+        for (int i = 0; i < EXPOSURES.length; i++) brackets[i] = createBracket(EXPOSURES[i]);
+        int[] single = new int[WIDTH * HEIGHT];
+        ExposureFusion fusion = new ExposureFusion(1);
+        fusion.fuse(brackets, WIDTH, HEIGHT, single);
+        assertEquals(6, fusion.getTiming().tiles);
+
+        int[] parallel = new int[WIDTH * HEIGHT];
+        new ExposureFusion(4).fuse(brackets, WIDTH, HEIGHT, parallel);
+        assertTrue(Arrays.equals(single, parallel));
+
+        // A tile seam would show as a step between the columns on each
+        // side of it that the neighbouring columns do not have.
+        int seam = 256;
+        double step = columnDifference(single, seam - 1, seam);
+        double around = Math.max(columnDifference(single, seam - 2, seam - 1),
+                columnDifference(single, seam, seam + 1));
+        assertTrue(step < around + 0.5);
+    }
+
+    public void testBandsMatchTheWholePicture() throws IOException {
+        final int[][] brackets = new int[EXPOSURES.length][];
+        for (int i = 0; i < EXPOSURES.length; i++) brackets[i] = createBracket(EXPOSURES[i]);
+        int[] whole = new int[WIDTH * HEIGHT];
+        ExposureFusion fusion = new ExposureFusion(2);
+        fusion.fuse(brackets, WIDTH, HEIGHT, whole);
+
+        final int[] rowsRead = new int[EXPOSURES.length];
+        final int[] banded = new int[WIDTH * HEIGHT];
+        final int[] rowsWritten = new int[1];
+        fusion.fuseBands(new ExposureFusion.RowSource() {
+            @Override
+            public void readRows(int image, int top, int rows, int[] dst, int offset) {
+                // Rows come in order, once each.
+                assertEquals(rowsRead[image], top);
+                rowsRead[image] += rows;
+                System.arraycopy(brackets[image], top * WIDTH, dst, offset, rows * WIDTH);
+            }
+        }, EXPOSURES.length, WIDTH, HEIGHT, new ExposureFusion.RowSink() {
+            @Override
+            public void writeRows(int[] pixels, int rows) {
+                assertTrue(rows <= ExposureFusion.TILE_SIZE);
+                System.arraycopy(pixels, 0, banded, rowsWritten[0] * WIDTH, rows * WIDTH);
+                rowsWritten[0] += rows;
+            }
+        });
+        for (int rows : rowsRead) assertEquals(HEIGHT, rows);
+        assertEquals(HEIGHT, rowsWritten[0]);
+        assertTrue(Arrays.equals(whole, banded));
+    }
+
+    // A warm, textured scene whose brightness spans 8 stops from left to
+    // right, photographed with the given exposure by a linear sensor.
+    private static int[] createBracket(float exposure) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double radiance = Math.pow(2, 8.0 * x / WIDTH - 6)
+                        * (1 + 0.3 * Math.sin(x * 0.2) * Math.sin(y * 0.15));
+                double v = 255 * Math.min(1, radiance * exposure);
+                int r = (int) v;
+                int g = (int) (v * 0.85);
+                int b = (int) (v * 0.7);
+                pixels[y * WIDTH + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    // The fraction of the pixels in columns [x0, x1) whose red is at an end
+    // of the range.
+    private static double clipped(int[] pixels, int x0, int x1) {
+        int count = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = x0; x < x1; x++) {
+                int r = (pixels[y * WIDTH + x] >> 16) & 0xFF;
+                if (r < 8 || r > 247) count++;
+            }
+        }
+        return (double) count / ((x1 - x0) * HEIGHT);
+    }
+
+    private static double columnDifference(int[] pixels, int x0, int x1) {
+        long sum = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            int a = pixels[y * WIDTH + x0];
+            int b = pixels[y * WIDTH + x1];
+            sum += Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF));
+        }
+        return (double) sum / HEIGHT;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.ExposureSettleDetector;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+@SmallTest
+public class ExposureSettleDetectorTest extends TestCase {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    private final Random mRandom = new Random(7);
+
+    // An NV21 frame of a horizontal ramp scaled by gain, with some noise,
+    // and chroma that is all 255 so it shows up if it gets counted.
+    private byte[] createFrame(float gain, int noise) {
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int v = Math.round((16 + x * 96 / WIDTH) * gain);
+                if (noise > 0) v += mRandom.nextInt(2 * noise + 1) - noise;
+                frame[y * WIDTH + x] = (byte) Math.max(0, Math.min(254, v));
+            }
+        }
+        for (int i = WIDTH * HEIGHT; i < frame.length; i++) frame[i] = (byte) 255;
+        return frame;
+    }
+
+    private boolean add(ExposureSettleDetector detector, byte[] frame) {
+        return detector.addFrame(frame, WIDTH, HEIGHT, WIDTH);
+    }
+
+    public void testHistogramOfALumaPlane() {
+        int[] histogram = new int[256];
+        int samples = ExposureSettleDetector.histogram(createFrame(1, 0), WIDTH, HEIGHT,
+                WIDTH, histogram);
+        int step = ExposureSettleDetector.STEP;
+        assertEquals((WIDTH / step) * (HEIGHT / step), samples);
+
+        int total = 0;
+        for (int v = 0; v < 256; v++) {
+            total += histogram[v];
+            if (histogram[v] > 0) {
+                // Only values of the sampled columns, in every sampled row.
+                assertTrue("value " + v, v >= 16 && v < 112);
+                assertEquals("value " + v, 0, histogram[v] % (HEIGHT / step));
+            }
+        }
+        assertEquals(samples, total);
+        assertEquals(0, histogram[255]);
+    }
+
+    public void testSettlesOnceTheExposureStopsMoving() {
+        ExposureSettleDetector detector = new ExposureSettleDetector();
+        // The old exposure is still in the pipeline for a few frames.
+        for (int i = 0; i < 3; i++) assertFalse(add(detector, createFrame(1, 2)));
+        // Then the sensor ramps up over a few frames.
+        float[] ramp = {1.2f, 1.5f, 1.8f, 1.95f};
+        for (float gain : ramp) assertFalse(add(detector, createFrame(gain, 2)));
+        // Two steady frames are not enough yet, the third one is.
+        assertFalse(add(detector, createFrame(2, 2)));
+        assertFalse(add(detector, createFrame(2, 2)));
+        assertTrue(add(detector, createFrame(2, 2)));
+        assertEquals(10, detector.getFrameCount());
+        assertEquals(2 * 64, detector.getMean(), 2);
+    }
+
+    public void testWaitsForTheTimeoutWhenTheSceneDoesNotChange() {
+        ExposureSettleDetector detector = new ExposureSettleDetector();
+        // A scene that is clipped at every exposure never moves, and neither
+        // does one whose auto-exposure has not started yet. Only the
+        // caller's timeout shoots then.
+        for (int i = 0; i < 60; i++) {
+            assertFalse("frame " + i, add(detector, createFrame(4, 1)));
+        }
+    }
+
+    public void testDoesNotSettleWhileTheExposureMoves() {
+        ExposureSettleDetector detector = new ExposureSettleDetector();
+        for (int i = 0; i < 30; i++) {
+            assertFalse("frame " + i, add(detector, createFrame(0.5f + i * 0.05f, 1)));
+        }
+
+        // And it starts over after a reset.
+        detector.reset();
+        assertEquals(0, detector.getFrameCount());
+        for (int i = 0; i < 3; i++) assertFalse(add(detector, createFrame(1, 1)));
+        for (int i = 0; i < 2; i++) assertFalse(add(detector, createFrame(0.5f, 1)));
+        assertTrue(add(detector, createFrame(0.5f, 1)));
+    }
+}
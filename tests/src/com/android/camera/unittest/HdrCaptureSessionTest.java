@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.HdrCaptureSession;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class HdrCaptureSessionTest extends TestCase {
+    public void testKeepsTheBracketsInOrder() {
+        HdrCaptureSession session = new HdrCaptureSession(3, 100);
+        byte[] low = new byte[10], mid = new byte[20], high = new byte[30];
+        assertTrue(session.add(low));
+        assertTrue(session.add(mid));
+        assertTrue(session.add(high));
+        assertEquals(60, session.getBytes());
+
+        byte[][] brackets = session.take();
+        assertEquals(3, brackets.length);
+        assertSame(low, brackets[0]);
+        assertSame(mid, brackets[1]);
+        assertSame(high, brackets[2]);
+        assertEquals(0, session.size());
+        assertEquals(0, session.getBytes());
+    }
+
+    public void testRefusesWhatDoesNotFit() {
+        HdrCaptureSession session = new HdrCaptureSession(2, 100);
+        assertTrue(session.add(new byte[60]));
+        assertFalse(session.add(new byte[41]));
+        assertTrue(session.add(new byte[40]));
+        // Full, even though this one is empty.
+        assertFalse(session.add(new byte[0]));
+        assertFalse(session.add(null));
+        assertEquals(2, session.size());
+
+        session.clear();
+        assertEquals(0, session.take().length);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.JpegEncoder;
+import com.android.camera.JpegTransform;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@SmallTest
+public class JpegEncoderTest extends TestCase {
+    // Neither side ends on an MCU boundary.
+    private static final int WIDTH = 75;
+    private static final int HEIGHT = 41;
+
+    public void testRowsCanComeInAnyNumber() throws IOException {
+        int[] pixels = createPicture();
+        byte[] whole = encode(pixels, new int[] {HEIGHT});
+        byte[] pieces = encode(pixels, new int[] {1, 15, 3, 0, 22});
+        assertTrue(Arrays.equals(whole, pieces));
+    }
+
+    public void testJpegTransformReadsItBack() throws IOException {
+        byte[] jpeg = encode(createPicture(), new int[] {HEIGHT});
+        assertEquals(0xFF, jpeg[0] & 0xFF);
+        assertEquals(0xD8, jpeg[1] & 0xFF);
+        assertEquals(0xD9, jpeg[jpeg.length - 1] & 0xFF);
+
+        // Decoding the coefficients and coding them again with the same
+        // tables gives the same file.
+        JpegTransform transform = new JpegTransform();
+        byte[] copy = transform.transform(jpeg, 0);
+        assertNotNull(transform.getError(), copy);
+        assertEquals(WIDTH, transform.getOutputWidth());
+        assertEquals(HEIGHT, transform.getOutputHeight());
+        assertTrue(Arrays.equals(jpeg, copy));
+    }
+
+    public void testYCbCrPlanesEncodeLikeGrayPixels() throws IOException {
+        // Gray converts to Cb = Cr = 128 without rounding, so both paths must
+        // give the same file, the padding of the last MCU row included.
+        int[] pixels = createPicture();
+        byte[] y = new byte[WIDTH * HEIGHT];
+        byte[] chroma = new byte[WIDTH * HEIGHT];
+        Arrays.fill(chroma, (byte) 128);
+        for (int i = 0; i < pixels.length; i++) {
+            int g = (pixels[i] >> 8) & 0xFF;
+            pixels[i] = 0xff000000 | (g << 16) | (g << 8) | g;
+            y[i] = (byte) g;
+        }
+        byte[] argb = encode(pixels, new int[] {HEIGHT});
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegEncoder encoder = new JpegEncoder(out, WIDTH, HEIGHT, 90);
+        int row = 0;
+        for (int rows : new int[] {16, 7, 0, 18}) {
+            encoder.writeYCbCr(y, chroma, chroma, row * WIDTH, WIDTH, rows);
+            row += rows;
+        }
+        encoder.finish();
+        assertTrue(Arrays.equals(argb, out.toByteArray()));
+    }
+
+    public void testMissingRowsAreAnError() throws IOException {
+        JpegEncoder encoder = new JpegEncoder(new ByteArrayOutputStream(), WIDTH, HEIGHT, 90);
+        encoder.write(createPicture(), 0, WIDTH, HEIGHT - 1);
+        try {
+            encoder.finish();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    // Writes the rows of pixels in chunks of the given sizes.
+    private static byte[] encode(int[] pixels, int[] chunks) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegEncoder encoder = new JpegEncoder(out, WIDTH, HEIGHT, 90);
+        int row = 0;
+        for (int rows : chunks) {
+            encoder.write(pixels, row * WIDTH, WIDTH, rows);
+            row += rows;
+        }
+        encoder.finish();
+        return out.toByteArray();
+    }
+
+    private static int[] createPicture() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int r = x * 255 / WIDTH;
+                int g = y * 255 / HEIGHT;
+                int b = ((x / 5 + y / 5) % 2 == 0) ? 40 : 220;
+                pixels[y * WIDTH + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.JpegTransform;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+@SmallTest
+public class JpegTransformTest extends TestCase {
+    // A 40x24 baseline JPEG with 4:2:0 chroma, so neither side ends on an
+    // MCU boundary.
+    private static final int[] JPEG = {
+        0xff, 0xd8, 0xff, 0xe0, 0x00, 0x10, 0x4a, 0x46, 0x49, 0x46, 0x00, 0x01,
+        0x02, 0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0xff, 0xdb, 0x00, 0x43,
+        0x00, 0x10, 0x0b, 0x0c, 0x0e, 0x0c, 0x0a, 0x10, 0x0e, 0x0d, 0x0e, 0x12,
+        0x11, 0x10, 0x13, 0x18, 0x28, 0x1a, 0x18, 0x16, 0x16, 0x18, 0x31, 0x23,
+        0x25, 0x1d, 0x28, 0x3a, 0x33, 0x3d, 0x3c, 0x39, 0x33, 0x38, 0x37, 0x40,
+        0x48, 0x5c, 0x4e, 0x40, 0x44, 0x57, 0x45, 0x37, 0x38, 0x50, 0x6d, 0x51,
+        0x57, 0x5f, 0x62, 0x67, 0x68, 0x67, 0x3e, 0x4d, 0x71, 0x79, 0x70, 0x64,
+        0x78, 0x5c, 0x65, 0x67, 0x63, 0xff, 0xdb, 0x00, 0x43, 0x01, 0x11, 0x12,
+        0x12, 0x18, 0x15, 0x18, 0x2f, 0x1a, 0x1a, 0x2f, 0x63, 0x42, 0x38, 0x42,
+        0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63,
+        0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63,
+        0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63,
+        0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63, 0x63,
+        0x63, 0x63, 0xff, 0xc0, 0x00, 0x11, 0x08, 0x00, 0x18, 0x00, 0x28, 0x03,
+        0x01, 0x22, 0x00, 0x02, 0x11, 0x01, 0x03, 0x11, 0x01, 0xff, 0xc4, 0x00,
+        0x1f, 0x00, 0x00, 0x01, 0x05, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x00,
+        0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05,
+        0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0xff, 0xc4, 0x00, 0xb5, 0x10, 0x00,
+        0x02, 0x01, 0x03, 0x03, 0x02, 0x04, 0x03, 0x05, 0x05, 0x04, 0x04, 0x00,
+        0x00, 0x01, 0x7d, 0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21,
+        0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81,
+        0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0, 0x24,
+        0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25,
+        0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a,
+        0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+        0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86,
+        0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99,
+        0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3,
+        0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6,
+        0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9,
+        0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1,
+        0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa, 0xff, 0xc4, 0x00,
+        0x1f, 0x01, 0x00, 0x03, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01,
+        0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x02, 0x03, 0x04, 0x05,
+        0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0xff, 0xc4, 0x00, 0xb5, 0x11, 0x00,
+        0x02, 0x01, 0x02, 0x04, 0x04, 0x03, 0x04, 0x07, 0x05, 0x04, 0x04, 0x00,
+        0x01, 0x02, 0x77, 0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31,
+        0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08,
+        0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0, 0x15,
+        0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18,
+        0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39,
+        0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55,
+        0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+        0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84,
+        0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97,
+        0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa,
+        0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4,
+        0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7,
+        0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+        0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa, 0xff, 0xda, 0x00,
+        0x0c, 0x03, 0x01, 0x00, 0x02, 0x11, 0x03, 0x11, 0x00, 0x3f, 0x00, 0xe3,
+        0xa3, 0xb5, 0xf6, 0xab, 0x31, 0xda, 0xfb, 0x56, 0x84, 0x76, 0xbe, 0xd5,
+        0x66, 0x3b, 0x5f, 0x6a, 0x51, 0x99, 0x8d, 0x2c, 0x49, 0x9f, 0x1d, 0xaf,
+        0xb5, 0x59, 0x8e, 0xd7, 0xda, 0xb4, 0x23, 0xb5, 0xf6, 0xab, 0x31, 0xda,
+        0xfb, 0x56, 0xf1, 0x99, 0xea, 0x52, 0xc4, 0x99, 0xf1, 0xda, 0xfb, 0x51,
+        0x5b, 0x31, 0xda, 0xfb, 0x51, 0x5b, 0xa9, 0x9e, 0x8c, 0x71, 0x3a, 0x15,
+        0x63, 0xb5, 0xf6, 0xab, 0x31, 0xda, 0xfb, 0x51, 0x45, 0x79, 0x31, 0x67,
+        0xe7, 0xb4, 0xaa, 0x48, 0xb3, 0x1d, 0xaf, 0xb5, 0x59, 0x8e, 0xd7, 0xda,
+        0x8a, 0x2b, 0x78, 0xb3, 0xd4, 0xa5, 0x52, 0x45, 0x98, 0xed, 0x7d, 0xa8,
+        0xa2, 0x8a, 0xd9, 0x36, 0x7a, 0x31, 0xa9, 0x2b, 0x1f, 0xff, 0xd9
+
+    };
+
+    public void testForRotation() {
+        assertEquals(0, JpegTransform.forRotation(0, false));
+        assertEquals(JpegTransform.FLIP_X, JpegTransform.forRotation(0, true));
+        assertEquals(JpegTransform.TRANSPOSE | JpegTransform.FLIP_X,
+                JpegTransform.forRotation(90, false));
+        assertEquals(JpegTransform.FLIP_X | JpegTransform.FLIP_Y,
+                JpegTransform.forRotation(180, false));
+        assertEquals(JpegTransform.TRANSPOSE | JpegTransform.FLIP_Y,
+                JpegTransform.forRotation(270, false));
+        assertEquals(JpegTransform.FLIP_Y, JpegTransform.forRotation(180, true));
+        assertEquals(JpegTransform.TRANSPOSE, JpegTransform.forRotation(270, true));
+        assertEquals(JpegTransform.forRotation(90, false),
+                JpegTransform.forRotation(-270, false));
+    }
+
+    public void testRotateTrimsPartialMcus() {
+        JpegTransform transform = new JpegTransform();
+        byte[] out = transform.transform(jpeg(), JpegTransform.forRotation(90, false));
+        assertNotNull(out);
+        // The 8 rows that do not fill an MCU would end up on the left.
+        assertEquals(16, transform.getOutputWidth());
+        assertEquals(40, transform.getOutputHeight());
+
+        // Transposing alone moves no padding.
+        assertNotNull(transform.transform(jpeg(), JpegTransform.TRANSPOSE));
+        assertEquals(24, transform.getOutputWidth());
+        assertEquals(40, transform.getOutputHeight());
+    }
+
+    public void testRotationsCompose() {
+        JpegTransform transform = new JpegTransform();
+        int rotate90 = JpegTransform.forRotation(90, false);
+        int rotate180 = JpegTransform.forRotation(180, false);
+
+        byte[] quarters = jpeg();
+        for (int i = 0; i < 4; i++) {
+            quarters = transform.transform(quarters, rotate90);
+            assertNotNull(quarters);
+        }
+        byte[] halves = transform.transform(
+                transform.transform(jpeg(), rotate180), rotate180);
+        assertEquals(32, transform.getOutputWidth());
+        assertEquals(16, transform.getOutputHeight());
+        // No generation loss: the coefficients come back bit exact.
+        assertTrue(Arrays.equals(quarters, halves));
+
+        byte[] transposed = transform.transform(jpeg(), JpegTransform.TRANSPOSE);
+        assertTrue(Arrays.equals(transform.transform(jpeg(), 0),
+                transform.transform(transposed, JpegTransform.TRANSPOSE)));
+    }
+
+    public void testUnsupported() {
+        JpegTransform transform = new JpegTransform();
+        assertNull(transform.transform(new byte[] {1, 2, 3, 4}, 0));
+        assertNotNull(transform.getError());
+
+        byte[] truncated = Arrays.copyOf(jpeg(), 200);
+        assertNull(transform.transform(truncated, JpegTransform.TRANSPOSE));
+
+        // Progressive frames are left to the decoder.
+        byte[] progressive = jpeg();
+        for (int i = 2; i + 1 < progressive.length; i++) {
+            if ((progressive[i] & 0xFF) == 0xFF && (progressive[i + 1] & 0xFF) == 0xC0) {
+                progressive[i + 1] = (byte) 0xC2;
+                break;
+            }
+        }
+        assertNull(transform.transform(progressive, 0));
+    }
+
+    private static byte[] jpeg() {
+        byte[] result = new byte[JPEG.length];
+        for (int i = 0; i < JPEG.length; i++) result[i] = (byte) JPEG[i];
+        return result;
+    }
+}
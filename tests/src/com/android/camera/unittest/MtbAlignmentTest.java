@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.MtbAlignment;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+@SmallTest
+public class MtbAlignmentTest extends TestCase {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 256;
+    // Room around the pictures for the shifts.
+    private static final int MARGIN = 16;
+
+    public void testFindsTheShiftOfEachBracket() {
+        MtbAlignment alignment = new MtbAlignment(2);
+        alignment.setReference(createBracket(0, 0, 1f), WIDTH, HEIGHT);
+        assertEquals(15, alignment.getMaxOffset());
+
+        int[][] shifts = {{0, 0}, {7, -3}, {-12, 5}, {1, 14}, {-15, -15}};
+        int[] offset = new int[2];
+        for (int[] shift : shifts) {
+            // The short exposure is mostly dark, the long one mostly white.
+            for (float exposure : new float[] {0.25f, 4f}) {
+                alignment.align(createBracket(shift[0], shift[1], exposure), offset);
+                assertEquals(shift[0], offset[0]);
+                assertEquals(shift[1], offset[1]);
+            }
+        }
+    }
+
+    public void testMostlyClippedBracket() {
+        MtbAlignment alignment = new MtbAlignment(2);
+        alignment.setReference(createBracket(0, 0, 1f), WIDTH, HEIGHT);
+        // 90% white: the median of this bracket says nothing.
+        byte[] bracket = createBracket(7, -3, 8f);
+        int[] offset = new int[2];
+        alignment.align(bracket, offset);
+        assertEquals(7, offset[0]);
+        assertEquals(-3, offset[1]);
+    }
+
+    public void testThreadsDoNotChangeTheResult() {
+        byte[] reference = createBracket(0, 0, 1f);
+        byte[] moving = createBracket(-9, 4, 0.5f);
+        int[] single = new int[2];
+        int[] parallel = new int[2];
+        MtbAlignment alignment = new MtbAlignment(1);
+        alignment.setReference(reference, WIDTH, HEIGHT);
+        alignment.align(moving, single);
+        alignment = new MtbAlignment(4);
+        alignment.setReference(reference, WIDTH, HEIGHT);
+        alignment.align(moving, parallel);
+        assertEquals(single[0], parallel[0]);
+        assertEquals(single[1], parallel[1]);
+    }
+
+    // The luma of the scene seen through a noisy linear sensor, with the
+    // camera moved so that the picture at (x + dx, y + dy) shows what the
+    // unmoved one shows at (x, y).
+    private static byte[] createBracket(int dx, int dy, float exposure) {
+        Random random = new Random(dx * 31 + dy);
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double v = 255 * exposure * radiance(x - dx + MARGIN, y - dy + MARGIN)
+                        + random.nextGaussian() * 2;
+                luma[y * WIDTH + x] = (byte) Math.max(0, Math.min(255, (int) v));
+            }
+        }
+        return luma;
+    }
+
+    // Blobs of all sizes spanning about 6 stops around 0.25, so that each
+    // bracket clips part of the scene: random values on grids of 64, 16 and
+    // 4 pixels, interpolated and added up.
+    private static final float[] SCENE = createScene();
+
+    private static double radiance(int x, int y) {
+        return SCENE[y * (WIDTH + 2 * MARGIN) + x];
+    }
+
+    private static float[] createScene() {
+        int w = WIDTH + 2 * MARGIN;
+        int h = HEIGHT + 2 * MARGIN;
+        float[] scene = new float[w * h];
+        Random random = new Random(42);
+        float amplitude = 0.25f;
+        for (int cell = 64; cell >= 4; cell /= 4, amplitude /= 2) {
+            int gw = w / cell + 2;
+            float[] grid = new float[gw * (h / cell + 2)];
+            for (int i = 0; i < grid.length; i++) grid[i] = random.nextFloat() * 2 - 1;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    float fx = (float) x / cell, fy = (float) y / cell;
+                    int gx = (int) fx, gy = (int) fy;
+                    fx -= gx;
+                    fy -= gy;
+                    int g = gy * gw + gx;
+                    float top = grid[g] + (grid[g + 1] - grid[g]) * fx;
+                    float bottom = grid[g + gw] + (grid[g + gw + 1] - grid[g + gw]) * fx;
+                    scene[y * w + x] += amplitude * (top + (bottom - top) * fy);
+                }
+            }
+        }
+        for (int i = 0; i < scene.length; i++) {
+            scene[i] = 0.25f * (float) Math.pow(2, 8 * scene[i]);
+        }
+        return scene;
+    }
+}
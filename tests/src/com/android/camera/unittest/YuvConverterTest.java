@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.YuvConverter;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+@SmallTest
+public class YuvConverterTest extends TestCase {
+    private static final int[] FORMATS = {
+        YuvConverter.FORMAT_NV21, YuvConverter.FORMAT_YV12, YuvConverter.FORMAT_YUV422P
+    };
+
+    public void testMatchesLegacyYUV422P() {
+        int width = 640, height = 480;
+        byte[] yuv = createFrame(width * height * 2);
+        int[] expected = legacyYUV422P(yuv, width, height);
+        for (int threads = 1; threads <= 4; threads++) {
+            int[] actual = new int[width * height];
+            new YuvConverter(threads).convert(yuv, YuvConverter.FORMAT_YUV422P,
+                    width, height, actual);
+            assertEquals(expected, actual, width, 0, width, 0, width, height);
+        }
+    }
+
+    public void testMatchesLegacyQuarterRes() {
+        int width = 320, height = 240;
+        byte[] yuv = createFrame(width * height * 3 / 2);
+        int[] expected = new int[(width / 4) * (height / 4)];
+        legacyYUV420SPQuarterRes(expected, yuv, width, height);
+        int[] actual = new int[expected.length];
+        new YuvConverter(2).convert(yuv, YuvConverter.FORMAT_YUV420SP, width, height,
+                width, 0, 0, width, height, 4, actual, 0, width / 4);
+        assertEquals(expected, actual, width / 4, 0, width / 4, 0, width / 4, height / 4);
+    }
+
+    public void testFormatsStrideCropAndScale() {
+        int width = 100, height = 60, stride = 128;
+        // Odd and even crop origins and sizes.
+        int[][] crops = {{0, 0, 100, 60}, {10, 6, 31, 20}, {11, 7, 40, 1}, {99, 59, 1, 1}};
+        YuvConverter converter = new YuvConverter(2);
+        for (int format : FORMATS) {
+            byte[] yuv = createFrame(frameSize(format, stride, height));
+            for (int scale = 1; scale <= 8; scale *= 2) {
+                for (int[] crop : crops) {
+                    int outWidth = YuvConverter.scaledSize(crop[2], scale);
+                    int outHeight = YuvConverter.scaledSize(crop[3], scale);
+                    // Convert into the middle of a larger tile.
+                    int dstStride = outWidth + 3;
+                    int[] tile = new int[5 + outHeight * dstStride];
+                    converter.convert(yuv, format, width, height, stride, crop[0], crop[1],
+                            crop[2], crop[3], scale, tile, 5, dstStride);
+                    for (int y = 0; y < outHeight; y++) {
+                        for (int x = 0; x < outWidth; x++) {
+                            int expected = reference(yuv, format, stride, height,
+                                    crop[0] + x * scale, crop[1] + y * scale);
+                            if (tile[5 + y * dstStride + x] != expected) {
+                                fail("Format " + format + " scale " + scale
+                                        + " pixel " + x + "," + y);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public void testBadArguments() {
+        YuvConverter converter = new YuvConverter(1);
+        try {
+            converter.convert(new byte[10], YuvConverter.FORMAT_YUV422P, 4, 4, new int[16]);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            converter.convert(new byte[32], YuvConverter.FORMAT_YUV422P, 4, 4, 4,
+                    2, 0, 4, 4, 1, new int[16], 0, 4);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            converter.convert(new byte[32], YuvConverter.FORMAT_NV21, 4, 4, 4,
+                    0, 0, 4, 4, 3, new int[16], 0, 4);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testBufferPool() {
+        int[] buffer = YuvConverter.obtainBuffer(1000);
+        assertTrue(buffer.length >= 1000);
+        YuvConverter.releaseBuffer(buffer);
+        assertSame(buffer, YuvConverter.obtainBuffer(500));
+        assertNotSame(buffer, YuvConverter.obtainBuffer(500));
+    }
+
+    private static void assertEquals(int[] expected, int[] actual, int expectedStride,
+            int expectedOffset, int actualStride, int actualOffset, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int e = expected[expectedOffset + y * expectedStride + x];
+                int a = actual[actualOffset + y * actualStride + x];
+                if (e != a) {
+                    fail("Pixel " + x + "," + y + ": " + Integer.toHexString(e)
+                            + " != " + Integer.toHexString(a));
+                }
+            }
+        }
+    }
+
+    private static byte[] createFrame(int size) {
+        byte[] yuv = new byte[size];
+        new Random(7).nextBytes(yuv);
+        return yuv;
+    }
+
+    private static int chromaStride(int format, int stride) {
+        return (format == YuvConverter.FORMAT_YV12) ? ((stride / 2 + 15) & ~15) : stride / 2;
+    }
+
+    private static int frameSize(int format, int stride, int height) {
+        if (format == YuvConverter.FORMAT_YUV422P) return stride * height * 2;
+        return stride * height + 2 * chromaStride(format, stride) * ((height + 1) / 2);
+    }
+
+    // Pixel (x, y) of a frame, computed with the formula of the legacy code.
+    private static int reference(byte[] yuv, int format, int stride, int height,
+            int x, int y) {
+        int ySize = stride * height;
+        int c = chromaStride(format, stride);
+        int u, v;
+        switch (format) {
+            case YuvConverter.FORMAT_NV21:
+                v = yuv[ySize + (y / 2) * stride + (x / 2) * 2];
+                u = yuv[ySize + (y / 2) * stride + (x / 2) * 2 + 1];
+                break;
+            case YuvConverter.FORMAT_YV12:
+                v = yuv[ySize + (y / 2) * c + x / 2];
+                u = yuv[ySize + c * ((height + 1) / 2) + (y / 2) * c + x / 2];
+                break;
+            default:
+                u = yuv[ySize + y * c + x / 2];
+                v = yuv[ySize + c * height + y * c + x / 2];
+                break;
+        }
+        return legacyPixel(yuv[y * stride + x] & 0xFF, u & 0xFF, v & 0xFF);
+    }
+
+    private static int legacyPixel(int yValue, int uValue, int vValue) {
+        int y = yValue - 16;
+        if (y < 0) y = 0;
+        int u = uValue - 128;
+        int v = vValue - 128;
+        int y1192 = 1192 * y;
+        int r = (y1192 + 1634 * v);
+        int g = (y1192 - 833 * v - 400 * u);
+        int b = (y1192 + 2066 * u);
+        r = Math.min(Math.max(r, 0), 262143);
+        g = Math.min(Math.max(g, 0), 262143);
+        b = Math.min(Math.max(b, 0), 262143);
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+
+    // The original Util.decodeYUV422P(), without the bitmap.
+    private static int[] legacyYUV422P(byte[] yuv422p, int width, int height) {
+        final int frameSize = width * height;
+        int[] rgb = new int[frameSize];
+        for (int j = 0, yp = 0; j < height; j++) {
+            int up = frameSize + (j * (width/2)), u = 0, v = 0;
+            int vp = ((int)(frameSize*1.5) + (j*(width/2)));
+            for (int i = 0; i < width; i++, yp++) {
+                if ((i & 1) == 0) {
+                    u = 0xff & yuv422p[up++];
+                    v = 0xff & yuv422p[vp++];
+                }
+                rgb[yp] = legacyPixel(0xff & yuv422p[yp], u, v);
+            }
+        }
+        return rgb;
+    }
+
+    // The original PanoUtil.decodeYUV420SPQuarterRes().
+    private static void legacyYUV420SPQuarterRes(int[] rgb, byte[] yuv420sp,
+            int width, int height) {
+        final int frameSize = width * height;
+        for (int j = 0, ypd = 0; j < height; j += 4) {
+            int uvp = frameSize + (j >> 1) * width, u = 0, v = 0;
+            for (int i = 0; i < width; i += 4, ypd++) {
+                if ((i & 1) == 0) {
+                    v = 0xff & yuv420sp[uvp++];
+                    u = 0xff & yuv420sp[uvp++];
+                    uvp += 2;  // Skip the UV values for the 4 pixels skipped in between
+                }
+                rgb[ypd] = legacyPixel(0xff & yuv420sp[j * width + i], u, v);
+            }
+        }
+    }
+}